@@ -0,0 +1,63 @@
+package com.boydti.fawe.benchmark;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.function.RegionFunction;
+import com.sk89q.worldedit.function.operation.RunContext;
+import com.sk89q.worldedit.function.visitor.BreadthFirstSearch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A flood fill (as used by the recursive visitors) of a cube, with and without the diagonal directions
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BreadthFirstSearchBenchmark {
+
+    /**
+     * Width of the filled cube
+     */
+    @Param({"32", "64"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean diagonal;
+
+    private static final RegionFunction COUNT = new RegionFunction() {
+        @Override
+        public boolean apply(Vector position) throws WorldEditException {
+            return true;
+        }
+    };
+
+    @Benchmark
+    public int fill() throws WorldEditException {
+        final int max = size - 1;
+        BreadthFirstSearch search = new BreadthFirstSearch(COUNT) {
+            {
+                if (diagonal) {
+                    addDiagonal();
+                }
+            }
+
+            @Override
+            protected boolean isVisitable(Vector from, Vector to) {
+                int x = to.getBlockX();
+                int y = to.getBlockY();
+                int z = to.getBlockZ();
+                return x >= 0 && y >= 0 && z >= 0 && x <= max && y <= max && z <= max;
+            }
+        };
+        search.visit(new Vector(size >> 1, size >> 1, size >> 1));
+        search.resume(new RunContext());
+        return search.getAffected();
+    }
+}
@@ -0,0 +1,93 @@
+package com.boydti.fawe.benchmark;
+
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.changeset.FaweStreamChangeSet;
+import com.boydti.fawe.object.changeset.MemoryOptimizedHistory;
+import com.sk89q.worldedit.history.change.Change;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writing and reading back block history (FaweStreamChangeSet) for the history compression settings
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChangeSetBenchmark {
+
+    /**
+     * history.compression-level
+     */
+    @Param({"0", "1"})
+    public int compression;
+
+    @Param({"531441"})
+    public int bufferSize;
+
+    /**
+     * Width of the edited cube
+     */
+    @Param({"64"})
+    public int size;
+
+    private FaweStreamChangeSet written;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Settings.COMPRESSION_LEVEL = compression;
+        Settings.BUFFER_SIZE = bufferSize;
+        written = write();
+    }
+
+    /**
+     * A cuboid of stone replaced with a mix of blocks (history is only ever read after a flush)
+     */
+    private FaweStreamChangeSet write() {
+        FaweStreamChangeSet set = new MemoryOptimizedHistory(null);
+        for (int y = 0; y < size; y++) {
+            for (int z = 0; z < size; z++) {
+                for (int x = 0; x < size; x++) {
+                    set.add(x, y, z, 1 << 4, ((x + y + z) & 7) << 4);
+                }
+            }
+        }
+        set.flush();
+        return set;
+    }
+
+    @Benchmark
+    public FaweStreamChangeSet add() {
+        return write();
+    }
+
+    @Benchmark
+    public void backwardIterator(Blackhole hole) {
+        Iterator<Change> iterator = written.backwardIterator();
+        while (iterator.hasNext()) {
+            hole.consume(iterator.next());
+        }
+    }
+
+    @Benchmark
+    public void forwardIterator(Blackhole hole) {
+        Iterator<Change> iterator = written.forwardIterator();
+        while (iterator.hasNext()) {
+            hole.consume(iterator.next());
+        }
+    }
+
+    @Benchmark
+    public int compressedSize() {
+        return written.getCompressedSize();
+    }
+}
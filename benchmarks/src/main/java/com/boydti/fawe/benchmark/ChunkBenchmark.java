@@ -0,0 +1,148 @@
+package com.boydti.fawe.benchmark;
+
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.example.CharFaweChunk;
+import com.boydti.fawe.example.PaletteFaweChunk;
+import com.boydti.fawe.object.FaweChunk;
+import com.boydti.fawe.util.ChunkDispatcher;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Section writes on a single queued chunk, and the (parallel) optimize pass over a queue of them
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChunkBenchmark {
+
+    /**
+     * char: a char[4096] per section, palette: palette-compressed sections
+     */
+    @Param({"char", "palette"})
+    public String type;
+
+    /**
+     * queue.parallel-threads (the pool is created again for each trial)
+     */
+    @Param({"1", "4"})
+    public int threads;
+
+    /**
+     * Width of the queue in chunks (optimize)
+     */
+    @Param({"16"})
+    public int chunks;
+
+    private MemoryFaweQueue queue;
+    private CharFaweChunk<char[][]> chunk;
+    private int[] random;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        Settings.PARALLEL_THREADS = threads;
+        ChunkDispatcher.IMP.resetPool();
+        random = new int[4096];
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < random.length; i++) {
+            seed = (seed * 0x5DEECE66DL + 0xBL) & ((1L << 48) - 1);
+            random[i] = (int) (seed >>> 16);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        ChunkDispatcher.IMP.resetPool();
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        queue = new MemoryFaweQueue();
+        chunk = createChunk(0, 0);
+        // The queue for optimize (a few scattered blocks in each chunk)
+        for (int cx = 0; cx < chunks; cx++) {
+            for (int cz = 0; cz < chunks; cz++) {
+                FaweChunk fc = createChunk(cx, cz);
+                for (int value : random) {
+                    fc.setBlock(value & 15, 64 + ((value >> 4) & 15), (value >> 8) & 15, 1 + ((value >> 12) & 3), (byte) 0);
+                }
+                queue.setChunk(fc);
+            }
+        }
+    }
+
+    private CharFaweChunk<char[][]> createChunk(final int x, final int z) {
+        switch (type) {
+            case "palette":
+                return new PaletteFaweChunk<char[][]>(queue, x, z) {
+                    @Override
+                    public char[][] getNewChunk() {
+                        return queue.getCachedSections(queue.getWorld(null), x, z);
+                    }
+                };
+            default:
+                return new CharFaweChunk<char[][]>(queue, x, z) {
+                    @Override
+                    public char[][] getNewChunk() {
+                        return queue.getCachedSections(queue.getWorld(null), x, z);
+                    }
+                };
+        }
+    }
+
+    /**
+     * Every block of a chunk, one block type per layer
+     */
+    @Benchmark
+    public FaweChunk setLayers() {
+        for (int y = 0; y < 256; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    chunk.setBlock(x, y, z, y & 15, (byte) 0);
+                }
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Scattered blocks of a few types (terrain-like)
+     */
+    @Benchmark
+    public FaweChunk setScattered() {
+        for (int y = 0; y < 256; y += 16) {
+            for (int value : random) {
+                chunk.setBlock(value & 15, y + ((value >> 4) & 15), (value >> 8) & 15, 1 + ((value >> 12) & 3), (byte) 0);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Whole chunk cuboids (uniform sections)
+     */
+    @Benchmark
+    public FaweChunk fillCuboid() {
+        chunk.fillCuboid(0, 15, 0, 255, 0, 15, 1, (byte) 0);
+        return chunk;
+    }
+
+    /**
+     * Optimize every chunk of the queue (waits for the pool, as optimize only submits the chunks)
+     */
+    @Benchmark
+    public MemoryFaweQueue optimize() {
+        queue.optimize();
+        ChunkDispatcher.IMP.getPool().awaitQuiescence(1, TimeUnit.MINUTES);
+        return queue;
+    }
+}
@@ -0,0 +1,107 @@
+package com.boydti.fawe.benchmark;
+
+import com.boydti.fawe.FaweCache;
+import com.boydti.fawe.object.clipboard.CompressedClipboard;
+import com.boydti.fawe.object.clipboard.DiskOptimizedClipboard;
+import com.boydti.fawe.object.clipboard.FaweClipboard;
+import com.boydti.fawe.object.clipboard.MappedDiskClipboard;
+import com.boydti.fawe.object.clipboard.MemoryOptimizedClipboard;
+import com.boydti.fawe.object.clipboard.TiledClipboard;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Block get/set on the memory, disk, memory mapped disk, tiled and compressed clipboards
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClipboardBenchmark {
+
+    @Param({"memory", "disk", "mapped", "tiled", "compressed"})
+    public String type;
+
+    /**
+     * Width of the (cubic) clipboard
+     */
+    @Param({"64"})
+    public int size;
+
+    private FaweClipboard clipboard;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        switch (type) {
+            case "disk":
+                file = File.createTempFile("fawe-benchmark", ".bd");
+                clipboard = new DiskOptimizedClipboard(size, size, size, file);
+                break;
+            case "mapped":
+                file = File.createTempFile("fawe-benchmark", ".bd");
+                clipboard = new MappedDiskClipboard(size, size, size, file);
+                break;
+            case "compressed":
+                clipboard = new CompressedClipboard(size, size, size);
+                break;
+            case "tiled":
+                clipboard = new TiledClipboard(size, size, size);
+                break;
+            default:
+                clipboard = new MemoryOptimizedClipboard(size, size, size);
+                break;
+        }
+        set();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (clipboard instanceof DiskOptimizedClipboard) {
+            ((DiskOptimizedClipboard) clipboard).close();
+        }
+        if (clipboard instanceof MappedDiskClipboard) {
+            ((MappedDiskClipboard) clipboard).close();
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Copying a cuboid into the clipboard (y, z, x order)
+     */
+    @Benchmark
+    public FaweClipboard set() {
+        for (int y = 0; y < size; y++) {
+            for (int z = 0; z < size; z++) {
+                for (int x = 0; x < size; x++) {
+                    clipboard.setBlock(x, y, z, FaweCache.CACHE_BLOCK[((1 + ((x + y + z) & 7)) << 4) + (x & 3)]);
+                }
+            }
+        }
+        return clipboard;
+    }
+
+    @Benchmark
+    public void get(Blackhole hole) {
+        for (int y = 0; y < size; y++) {
+            for (int z = 0; z < size; z++) {
+                for (int x = 0; x < size; x++) {
+                    hole.consume(clipboard.getBlock(x, y, z));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.boydti.fawe.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import net.jpountz.lz4.LZ4InputStream;
+import net.jpountz.lz4.LZ4OutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The bundled LZ4 codecs on block data (history records / sections)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LZ4Benchmark {
+
+    /**
+     * fastest: JNI if available, safe: pure java, unsafe: java with sun.misc.Unsafe
+     */
+    @Param({"fastest", "safe", "unsafe"})
+    public String factory;
+
+    /**
+     * fast or high (history.compression-level 1 adds a high compression pass)
+     */
+    @Param({"fast", "high"})
+    public String compressor;
+
+    @Param({"531441"})
+    public int bufferSize;
+
+    private byte[] raw;
+    private byte[] compressed;
+    private byte[] buffer;
+    private byte[] streamed;
+    private int compressedLength;
+
+    private LZ4Compressor lz4Compressor;
+    private LZ4FastDecompressor lz4Decompressor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        LZ4Factory instance;
+        switch (factory) {
+            case "safe":
+                instance = LZ4Factory.safeInstance();
+                break;
+            case "unsafe":
+                instance = LZ4Factory.unsafeInstance();
+                break;
+            default:
+                instance = LZ4Factory.fastestInstance();
+                break;
+        }
+        lz4Compressor = compressor.equals("high") ? instance.highCompressor() : instance.fastCompressor();
+        lz4Decompressor = instance.fastDecompressor();
+        // 8 sections of terrain-like block data (combined ids, 2 bytes each)
+        raw = new byte[8 * 4096 * 2];
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < raw.length; i += 2) {
+            int y = (i >> 9) & 15;
+            seed = (seed * 0x5DEECE66DL + 0xBL) & ((1L << 48) - 1);
+            int id = y < 4 ? 1 : y < 12 ? ((seed >>> 40) & 31) == 0 ? 16 : 3 : y == 12 ? 2 : 0;
+            char combined = (char) (id << 4);
+            raw[i] = (byte) combined;
+            raw[i + 1] = (byte) (combined >> 8);
+        }
+        buffer = new byte[lz4Compressor.maxCompressedLength(raw.length)];
+        compressedLength = lz4Compressor.compress(raw, 0, raw.length, buffer, 0, buffer.length);
+        compressed = new byte[compressedLength];
+        System.arraycopy(buffer, 0, compressed, 0, compressedLength);
+        streamed = compressStream();
+    }
+
+    @Benchmark
+    public int compress() {
+        return lz4Compressor.compress(raw, 0, raw.length, buffer, 0, buffer.length);
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        byte[] out = new byte[raw.length];
+        lz4Decompressor.decompress(compressed, 0, out, 0, out.length);
+        return out;
+    }
+
+    /**
+     * As used by the history streams
+     */
+    @Benchmark
+    public byte[] compressStream() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(raw.length);
+        LZ4OutputStream os = new LZ4OutputStream(baos, bufferSize, lz4Compressor);
+        os.write(raw);
+        os.close();
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public int decompressStream() throws IOException {
+        LZ4InputStream is = new LZ4InputStream(new ByteArrayInputStream(streamed));
+        int total = 0;
+        int read;
+        byte[] out = new byte[8192];
+        while ((read = is.read(out)) != -1) {
+            total += read;
+        }
+        is.close();
+        return total;
+    }
+}
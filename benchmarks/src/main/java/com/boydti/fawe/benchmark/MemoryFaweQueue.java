@@ -0,0 +1,125 @@
+package com.boydti.fawe.benchmark;
+
+import com.boydti.fawe.FaweCache;
+import com.boydti.fawe.example.CharFaweChunk;
+import com.boydti.fawe.example.IFaweQueueMap;
+import com.boydti.fawe.example.MappedFaweQueue;
+import com.boydti.fawe.object.FaweChunk;
+import com.boydti.fawe.object.RunnableVal;
+import com.boydti.fawe.util.MathMan;
+import com.sk89q.jnbt.CompoundTag;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A FaweQueue backed by an in-memory world, so the queue can be benchmarked without a server<br>
+ *     - The "world" is a map of chunk -> section arrays
+ *     - setComponents copies the queued sections into the world
+ */
+public class MemoryFaweQueue extends MappedFaweQueue<HashMap<Long, char[][]>, char[][], char[]> {
+
+    private final HashMap<Long, char[][]> world = new HashMap<>();
+
+    public MemoryFaweQueue() {
+        this(null);
+    }
+
+    public MemoryFaweQueue(IFaweQueueMap map) {
+        super("memory", map);
+    }
+
+    @Override
+    public HashMap<Long, char[][]> getWorld(String world) {
+        return this.world;
+    }
+
+    @Override
+    public boolean isChunkLoaded(HashMap<Long, char[][]> world, int x, int z) {
+        return true;
+    }
+
+    @Override
+    public boolean regenerateChunk(HashMap<Long, char[][]> world, int x, int z) {
+        return world.remove(MathMan.pairInt(x, z)) != null;
+    }
+
+    @Override
+    public boolean setComponents(FaweChunk fc, RunnableVal<FaweChunk> changeTask) {
+        CharFaweChunk<char[][]> chunk = (CharFaweChunk<char[][]>) fc;
+        char[][] sections = chunk.getChunk();
+        for (int layer = 0; layer < 16; layer++) {
+            char uniform = chunk.getUniform(layer);
+            if (uniform != 0) {
+                char[] section = sections[layer] = new char[4096];
+                Arrays.fill(section, uniform);
+                continue;
+            }
+            char[] newArray = chunk.getIdArray(layer);
+            if (newArray == null) {
+                continue;
+            }
+            char[] current = sections[layer];
+            if (current == null || chunk.getCount(layer) >= 4096) {
+                sections[layer] = newArray;
+                continue;
+            }
+            for (int i = 0; i < 4096; i++) {
+                char value = newArray[i];
+                if (value != 0) {
+                    current[i] = value;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public FaweChunk getFaweChunk(final int x, final int z) {
+        return new CharFaweChunk<char[][]>(this, x, z) {
+            @Override
+            public char[][] getNewChunk() {
+                return getCachedSections(world, x, z);
+            }
+        };
+    }
+
+    @Override
+    public boolean loadChunk(HashMap<Long, char[][]> world, int x, int z, boolean generate) {
+        getCachedSections(world, x, z);
+        return true;
+    }
+
+    @Override
+    public char[][] getCachedSections(HashMap<Long, char[][]> world, int cx, int cz) {
+        long pair = MathMan.pairInt(cx, cz);
+        char[][] sections = world.get(pair);
+        if (sections == null) {
+            world.put(pair, sections = new char[16][]);
+        }
+        return sections;
+    }
+
+    @Override
+    public char[] getCachedSection(char[][] chunk, int cy) {
+        return chunk[cy];
+    }
+
+    @Override
+    public int getCombinedId4Data(char[] section, int x, int y, int z) {
+        int combined = section[FaweCache.CACHE_J[y][x & 15][z & 15]];
+        return combined == 1 ? 0 : combined;
+    }
+
+    @Override
+    public boolean fixLighting(FaweChunk<?> chunk, RelightMode mode) {
+        return true;
+    }
+
+    @Override
+    public void sendChunk(FaweChunk chunk, RelightMode mode) {}
+
+    @Override
+    public CompoundTag getTileEntity(int x, int y, int z) {
+        return null;
+    }
+}
@@ -0,0 +1,90 @@
+package com.boydti.fawe.benchmark;
+
+import com.boydti.fawe.example.DefaultFaweQueueMap;
+import com.boydti.fawe.example.IFaweQueueMap;
+import com.boydti.fawe.example.LongFaweQueueMap;
+import com.boydti.fawe.object.FaweChunk;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the boxed (default) and primitive chunk maps used by MappedFaweQueue
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueueMapBenchmark {
+
+    @Param({"default", "long"})
+    public String map;
+
+    /**
+     * Width of the edited area in chunks
+     */
+    @Param({"64"})
+    public int chunks;
+
+    private MemoryFaweQueue queue;
+
+    private IFaweQueueMap createMap(MemoryFaweQueue queue) {
+        switch (map) {
+            case "long":
+                return new LongFaweQueueMap(queue);
+            default:
+                return new DefaultFaweQueueMap(queue);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        queue = new MemoryFaweQueue();
+        queue.setFaweQueueMap(createMap(queue));
+        // Pre-populate so lookups hit existing chunks
+        for (int cx = 0; cx < chunks; cx++) {
+            for (int cz = 0; cz < chunks; cz++) {
+                queue.getFaweQueueMap().getFaweChunk(cx, cz);
+            }
+        }
+    }
+
+    /**
+     * A single layer set in z-major order, which switches chunk every 16 blocks
+     */
+    @Benchmark
+    public void setBlock() {
+        int size = chunks << 4;
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++) {
+                queue.setBlock(x, 64, z, (short) 1, (byte) 0);
+            }
+        }
+    }
+
+    @Benchmark
+    public void lookup(Blackhole hole) {
+        IFaweQueueMap map = queue.getFaweQueueMap();
+        for (int cx = 0; cx < chunks; cx++) {
+            for (int cz = 0; cz < chunks; cz++) {
+                hole.consume(map.getCachedFaweChunk(cx, cz));
+            }
+        }
+    }
+
+    @Benchmark
+    public void drain(Blackhole hole) {
+        IFaweQueueMap map = queue.getFaweQueueMap();
+        FaweChunk chunk;
+        while ((chunk = map.next()) != null) {
+            hole.consume(chunk);
+        }
+    }
+}
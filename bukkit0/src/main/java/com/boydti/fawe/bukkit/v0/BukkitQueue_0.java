@@ -153,19 +153,20 @@ public abstract class BukkitQueue_0<CHUNK, CHUNKSECTIONS, SECTION> extends NMSMa
             final Chunk chunk = fs.getChunk();
             chunk.load(true);
             final World world = chunk.getWorld();
-            char[][] sections = fs.getCombinedIdArrays();
             boolean done = false;
             boolean more = false;
             // Efficiently merge sections
-            for (int j = 0; j < sections.length; j++) {
+            for (int j = 0; j < 16; j++) {
                 final int jf = j;
                 int changes = fs.getCount(j);
                 int lighting = fs.getRelight(j);
                 if (changes == 0) {
                     continue;
                 }
-                final char[] newArray = sections[j];
-                if (newArray == null) {
+                // A section filled with a single block doesn't need its array
+                final char uniform = fs.getUniform(j);
+                final char[] newArray = uniform != 0 ? null : fs.getIdArray(j);
+                if (uniform == 0 && newArray == null) {
                     continue;
                 }
                 if (done) {
@@ -173,7 +174,8 @@ public abstract class BukkitQueue_0<CHUNK, CHUNKSECTIONS, SECTION> extends NMSMa
                     break;
                 }
                 done = true;
-                sections[j] = null;
+                fs.ids[j] = null;
+                fs.uniform[j] = 0;
                 ArrayList<Thread> threads = new ArrayList<Thread>();
                 for (int k = 0; k < 16; k++) {
                     final int l = k << 8;
@@ -182,7 +184,7 @@ public abstract class BukkitQueue_0<CHUNK, CHUNKSECTIONS, SECTION> extends NMSMa
                         @Override
                         public void run() {
                             for (int m = l; m < l + 256; m++) {
-                                int combined = newArray[m];
+                                int combined = uniform != 0 ? uniform : newArray[m];
                                 switch (combined) {
                                     case 0:
                                         continue;
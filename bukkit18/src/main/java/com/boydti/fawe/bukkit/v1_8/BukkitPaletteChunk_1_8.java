@@ -0,0 +1,27 @@
+package com.boydti.fawe.bukkit.v1_8;
+
+import com.boydti.fawe.example.PaletteFaweChunk;
+import com.boydti.fawe.object.FaweQueue;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+
+/**
+ * The chunk used by BukkitQueue18R3 if queue.palette-sections is enabled
+ */
+public class BukkitPaletteChunk_1_8 extends PaletteFaweChunk<Chunk> {
+    /**
+     * A FaweSections object represents a chunk and the blocks that you wish to change in it.
+     *
+     * @param parent
+     * @param x
+     * @param z
+     */
+    public BukkitPaletteChunk_1_8(FaweQueue parent, int x, int z) {
+        super(parent, x, z);
+    }
+
+    @Override
+    public Chunk getNewChunk() {
+        return Bukkit.getWorld(getParent().getWorldName()).getChunkAt(getX(), getZ());
+    }
+}
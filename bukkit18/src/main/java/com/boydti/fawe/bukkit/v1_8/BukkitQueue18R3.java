@@ -3,7 +3,10 @@ package com.boydti.fawe.bukkit.v1_8;
 import com.boydti.fawe.Fawe;
 import com.boydti.fawe.FaweCache;
 import com.boydti.fawe.bukkit.v0.BukkitQueue_0;
+import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.example.CharFaweChunk;
+import com.boydti.fawe.example.PaletteFaweChunk;
+import com.boydti.fawe.example.PaletteSection;
 import com.boydti.fawe.object.BytePair;
 import com.boydti.fawe.object.FaweChunk;
 import com.boydti.fawe.object.PseudoRandom;
@@ -19,6 +22,7 @@ import com.sk89q.jnbt.Tag;
 import com.sk89q.worldedit.internal.Constants;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -145,12 +149,8 @@ public class BukkitQueue18R3 extends BukkitQueue_0<Chunk, ChunkSection[], char[]
                     int z = ((int) Math.round(ent.locZ) & 15);
                     int y = (int) Math.round(ent.locY);
                     int i = FaweCache.CACHE_I[y][x][z];
-                    char[] array = fs.getIdArray(i);
-                    if (array == null) {
-                        continue;
-                    }
                     int j = FaweCache.CACHE_J[y][x][z];
-                    if (array[j] != 0) {
+                    if (fs.getValue(i, j) != 0) {
                         String id = EntityTypes.b(ent);
                         if (id != null) {
                             NBTTagCompound tag = new NBTTagCompound();
@@ -194,6 +194,14 @@ public class BukkitQueue18R3 extends BukkitQueue_0<Chunk, ChunkSection[], char[]
         return world.getChunkAt(x, z);
     }
 
+    @Override
+    public FaweChunk getFaweChunk(int x, int z) {
+        if (Settings.PALETTE_SECTIONS) {
+            return new BukkitPaletteChunk_1_8(this, x, z);
+        }
+        return super.getFaweChunk(x, z);
+    }
+
     @Override
     public boolean setComponents(FaweChunk fc, RunnableVal<FaweChunk> changeTask) {
         CharFaweChunk<Chunk> fs = (CharFaweChunk<Chunk>) fc;
@@ -215,7 +223,6 @@ public class BukkitQueue18R3 extends BukkitQueue_0<Chunk, ChunkSection[], char[]
                 } else if (count >= 4096) {
                     entities[i].clear();
                 } else {
-                    char[] array = fs.getIdArray(i);
                     Collection<Entity> ents = new ArrayList<>(entities[i]);
                     for (Entity entity : ents) {
                         if (entity instanceof EntityPlayer) {
@@ -224,10 +231,7 @@ public class BukkitQueue18R3 extends BukkitQueue_0<Chunk, ChunkSection[], char[]
                         int x = ((int) Math.round(entity.locX) & 15);
                         int z = ((int) Math.round(entity.locZ) & 15);
                         int y = (int) Math.round(entity.locY);
-                        if (array == null) {
-                            continue;
-                        }
-                        if (y < 0 || y > 255 || array[FaweCache.CACHE_J[y][x][z]] != 0) {
+                        if (y < 0 || y > 255 || fs.getValue(i, FaweCache.CACHE_J[y][x][z]) != 0) {
                             nmsWorld.removeEntity(entity);
                         }
                     }
@@ -280,12 +284,8 @@ public class BukkitQueue18R3 extends BukkitQueue_0<Chunk, ChunkSection[], char[]
                 int ly = pos.getY();
                 int lz = pos.getZ() & 15;
                 int j = FaweCache.CACHE_I[ly][lx][lz];
-                char[] array = fs.getIdArray(j);
-                if (array == null) {
-                    continue;
-                }
                 int k = FaweCache.CACHE_J[ly][lx][lz];
-                if (array[k] != 0) {
+                if (fs.getValue(j, k) != 0) {
                     tile.getValue().E();
                     iterator.remove();
                 }
@@ -306,11 +306,47 @@ public class BukkitQueue18R3 extends BukkitQueue_0<Chunk, ChunkSection[], char[]
                 if (fs.getCount(j) == 0) {
                     continue;
                 }
+                ChunkSection section = sections[j];
+                char uniform = fs.getUniform(j);
+                if (uniform != 0) {
+                    // Filled with a single block
+                    char value = uniform == 1 ? 0 : uniform;
+                    if (section == null) {
+                        sections[j] = section = new ChunkSection(j << 4, flag);
+                    }
+                    Arrays.fill(section.getIdArray(), value);
+                    setCount(0, value == 0 ? 0 : 4096, section);
+                    continue;
+                }
+                PaletteSection palette = fs instanceof PaletteFaweChunk ? ((PaletteFaweChunk) fs).getPalette(j) : null;
+                if (palette != null && section != null && fs.getCount(j) < 4096) {
+                    // Merge straight from the palette (without creating the section's id array)
+                    char[] currentArray = section.getIdArray();
+                    int solid = 0;
+                    for (int k = 0; k < 4096; k++) {
+                        char n = palette.get(k);
+                        switch (n) {
+                            case 0:
+                                continue;
+                            case 1:
+                                if (currentArray[k] > 1) {
+                                    solid++;
+                                    currentArray[k] = 0;
+                                }
+                                continue;
+                            default:
+                                solid++;
+                                currentArray[k] = n;
+                                continue;
+                        }
+                    }
+                    setCount(0, solid, section);
+                    continue;
+                }
                 char[] newArray = fs.getIdArray(j);
                 if (newArray == null) {
                     continue;
                 }
-                ChunkSection section = sections[j];
                 if ((section == null) || (fs.getCount(j) >= 4096)) {
                     section = new ChunkSection(j << 4, flag, newArray);
                     sections[j] = section;
@@ -106,7 +106,7 @@ public class BukkitChunk_1_9 extends CharFaweChunk<Chunk> {
         IBlockData lastBlock = null;
         char lastChar = Character.MAX_VALUE;
         for (int layer = 0; layer < 16; layer++) {
-            if (getCount(layer) > 0) {
+            if (getCount(layer) > 0 && getUniform(layer) == 0) {
                 if (sectionPalettes == null) {
                     sectionPalettes = new DataPaletteBlock[16];
                 }
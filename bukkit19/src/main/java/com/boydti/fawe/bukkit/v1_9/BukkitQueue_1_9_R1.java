@@ -365,6 +365,38 @@ public class BukkitQueue_1_9_R1 extends BukkitQueue_0<Chunk, ChunkSection[], Dat
         fieldSection.set(section, palette);
     }
 
+    /**
+     * Turn a new palette into one with a single entry, so that every block in it is that block
+     * @param blocks A new palette (@see BukkitChunk_1_9#newDataPaletteBlock)
+     * @param block
+     * @return
+     */
+    public DataPaletteBlock newUniformPalette(DataPaletteBlock blocks, IBlockData block) throws NoSuchFieldException, IllegalAccessException {
+        if (block == air) {
+            return blocks;
+        }
+        // A new palette only has air (index 0), which every block refers to, so that entry is replaced
+        Field fieldPalette = DataPaletteBlock.class.getDeclaredField("c");
+        fieldPalette.setAccessible(true);
+        DataPalette palette = (DataPalette) fieldPalette.get(blocks);
+        for (Field field : palette.getClass().getDeclaredFields()) {
+            if (field.getType() == IBlockData[].class) {
+                field.setAccessible(true);
+                ((IBlockData[]) field.get(palette))[0] = block;
+                return blocks;
+            }
+        }
+        // Not a linear palette
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    blocks.setBlock(x, y, z, block);
+                }
+            }
+        }
+        return blocks;
+    }
+
     public ChunkSection newChunkSection(int y2, boolean flag, char[] array) {
         try {
             if (array == null) {
@@ -595,6 +627,12 @@ public class BukkitQueue_1_9_R1 extends BukkitQueue_0<Chunk, ChunkSection[], Dat
                 int ly = pos.getY();
                 int lz = pos.getZ() & 15;
                 int j = FaweCache.CACHE_I[ly][lx][lz];
+                if (fs.getUniform(j) != 0) {
+                    // The whole section is replaced
+                    tile.getValue().invalidateBlockCache();
+                    iterator.remove();
+                    continue;
+                }
                 char[] array = fs.getIdArray(j);
                 if (array == null) {
                     continue;
@@ -611,6 +649,18 @@ public class BukkitQueue_1_9_R1 extends BukkitQueue_0<Chunk, ChunkSection[], Dat
                 if (count == 0) {
                     continue;
                 }
+                char uniform = fs.getUniform(j);
+                if (uniform != 0) {
+                    // Filled with a single block (an existing section keeps its light)
+                    ChunkSection section = sections[j];
+                    if (section == null) {
+                        section = sections[j] = newChunkSection(j << 4, flag, null);
+                    }
+                    IBlockData block = uniform == 1 ? air : Block.getById(uniform >> 4).fromLegacyData(uniform & 0xF);
+                    setPalette(section, newUniformPalette(fs.newDataPaletteBlock(), block));
+                    setCount(0, uniform == 1 ? 0 : 4096, section);
+                    continue;
+                }
                 final char[] array = fs.getIdArray(j);
                 if (array == null) {
                     continue;
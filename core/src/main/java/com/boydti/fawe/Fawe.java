@@ -10,9 +10,12 @@ import com.boydti.fawe.command.WorldEditRegion;
 import com.boydti.fawe.config.BBC;
 import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.object.FawePlayer;
+import com.boydti.fawe.object.RunnableVal;
+import com.boydti.fawe.object.changeset.HistoryCompactor;
+import com.boydti.fawe.object.changeset.HistoryPack;
 import com.boydti.fawe.regions.general.PlotSquaredFeature;
 import com.boydti.fawe.util.MainUtil;
-import com.boydti.fawe.util.MemUtil;
+import com.boydti.fawe.util.MemoryMonitor;
 import com.boydti.fawe.util.TaskManager;
 import com.boydti.fawe.util.WEManager;
 import com.boydti.fawe.util.WESubscriber;
@@ -50,18 +53,11 @@ import com.sk89q.worldedit.regions.selector.CuboidRegionSelector;
 import com.sk89q.worldedit.world.registry.BundledBlockData;
 import java.io.File;
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.MemoryPoolMXBean;
-import java.lang.management.MemoryUsage;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import javax.management.InstanceAlreadyExistsException;
-import javax.management.Notification;
-import javax.management.NotificationEmitter;
-import javax.management.NotificationListener;
 import net.jpountz.util.Native;
 
 /**[ WorldEdit action]
@@ -164,7 +160,15 @@ public class Fawe {
          * Implementation dependent stuff
          */
         this.setupConfigs();
-        MainUtil.deleteOlder(new File(IMP.getDirectory(), "history"), TimeUnit.DAYS.toMillis(Settings.DELETE_HISTORY_AFTER_DAYS));
+        MainUtil.deleteOlder(new File(IMP.getDirectory(), "history"), TimeUnit.DAYS.toMillis(Settings.DELETE_HISTORY_AFTER_DAYS), new RunnableVal<File>() {
+            @Override
+            public void run(File file) {
+                if (file.getName().endsWith(HistoryPack.EXTENSION)) {
+                    // Forget the entries of the deleted pack
+                    HistoryPack.get(file.getParentFile()).reload();
+                }
+            }
+        });
         MainUtil.deleteOlder(new File(IMP.getDirectory(), "clipboard"), TimeUnit.DAYS.toMillis(Settings.DELETE_CLIPBOARD_AFTER_DAYS));
 
         TaskManager.IMP = this.IMP.getTaskManager();
@@ -186,6 +190,7 @@ public class Fawe {
                 // Events
                 Fawe.this.setupEvents();
                 Fawe.this.IMP.setupVault();
+                HistoryCompactor.IMP.start();
             }
         }, 0);
 
@@ -353,29 +358,7 @@ public class Fawe {
             return;
         }
         try {
-            final MemoryMXBean memBean = ManagementFactory.getMemoryMXBean();
-            final NotificationEmitter ne = (NotificationEmitter) memBean;
-
-            ne.addNotificationListener(new NotificationListener() {
-                @Override
-                public void handleNotification(final Notification notification, final Object handback) {
-                    MemUtil.memoryLimitedTask();
-                }
-            }, null, null);
-
-            final List<MemoryPoolMXBean> memPools = ManagementFactory.getMemoryPoolMXBeans();
-            for (final MemoryPoolMXBean mp : memPools) {
-                if (mp.isUsageThresholdSupported()) {
-                    final MemoryUsage mu = mp.getUsage();
-                    final long max = mu.getMax();
-                    if (max < 0) {
-                        continue;
-                    }
-                    final long alert = (max * Settings.MEM_FREE) / 100;
-                    mp.setUsageThreshold(alert);
-
-                }
-            }
+            MemoryMonitor.IMP.start();
         } catch (Throwable e) {
             debug("====== MEMORY LISTENER ERROR ======");
             MainUtil.handleError(e, false);
@@ -7,9 +7,13 @@ import com.boydti.fawe.object.FawePlayer;
 import com.boydti.fawe.object.PseudoRandom;
 import com.boydti.fawe.object.RegionWrapper;
 import com.boydti.fawe.object.changeset.DiskStorageHistory;
+import com.boydti.fawe.object.changeset.HistoryIndex;
+import com.boydti.fawe.object.changeset.HistoryShardReader;
+import com.boydti.fawe.object.changeset.HistoryShards;
 import com.boydti.fawe.regions.FaweMaskManager;
 import com.boydti.fawe.object.FaweQueue;
 import com.boydti.fawe.util.MainUtil;
+import com.boydti.fawe.util.MathMan;
 import com.boydti.fawe.util.MemUtil;
 import com.boydti.fawe.util.SetQueue;
 import com.boydti.fawe.util.TaskManager;
@@ -33,8 +37,7 @@ import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -213,76 +216,44 @@ public class FaweAPI {
     /**
      * Used in the RollBack to generate a list of DiskStorageHistory objects<br>
      *      - Note: An edit outside the radius may be included if it overlaps with an edit inside that depends on it.
+     *      - The edits are found using the history index (the history files aren't read)
+     *      - With history.region-shards, an edit written to the shards is only included if it changed a block within the radius (only the shards in the radius are read)
      * @param origin - The origin location
      * @param user - The uuid (may be null)
      * @param radius - The radius from the origin of the edit
      * @param timediff - The max age of the file in milliseconds
-     * @param shallow - If shallow is true, FAWE will only read the first Settings.BUFFER_SIZE bytes to obtain history info<br>
-     *                Reading only part of the file will result in unreliable bounds info for large edits
+     * @param shallow - If shallow is true, at most 64 edits are returned
      * @return
      */
     public static List<DiskStorageHistory> getBDFiles(FaweLocation origin, UUID user, int radius, long timediff, boolean shallow) {
-        File history = new File(Fawe.imp().getDirectory(), "history" + File.separator + origin.world);
-        if (!history.exists()) {
-            return new ArrayList<>();
-        }
-        long now = System.currentTimeMillis();
-        ArrayList<File> files = new ArrayList<>();
-        for (File userFile : history.listFiles()) {
-            if (!userFile.isDirectory()) {
-                continue;
-            }
-            UUID userUUID;
-            try {
-                userUUID = UUID.fromString(userFile.getName());
-            } catch (IllegalArgumentException e) {
-                continue;
-            }
-            if (user != null && !userUUID.equals(user)) {
-                continue;
-            }
-            ArrayList<Integer> ids = new ArrayList<>();
-            for (File file : userFile.listFiles()) {
-                if (file.getName().endsWith(".bd")) {
-                    if (timediff >= Integer.MAX_VALUE || now - file.lastModified() <= timediff) {
-                        files.add(file);
-                        if (files.size() > 2048) {
-                            return null;
-                        }
-                    }
-                }
-            }
-        }
         World world = origin.getWorld();
-        Collections.sort(files, new Comparator<File>() {
-            @Override
-            public int compare(File a, File b) {
-                String aName = a.getName();
-                String bName = b.getName();
-                int aI = Integer.parseInt(aName.substring(0, aName.length() - 3));
-                int bI = Integer.parseInt(bName.substring(0, bName.length() - 3));
-                long value = aI - bI;
-                return value == 0 ? 0 : value < 0 ? -1 : 1;
-            }
-        });
-        RegionWrapper bounds = new RegionWrapper(origin.x - radius, origin.x + radius, origin.z - radius, origin.z + radius);
+        int r = Math.min(radius, 30000000);
+        RegionWrapper bounds = new RegionWrapper(origin.x - r, origin.x + r, origin.z - r, origin.z + r);
+        // Edits outside this are only summarized by their origin (so they can't overlap the bounds)
         RegionWrapper boundsPlus = new RegionWrapper(bounds.minX - 64, bounds.maxX + 512, bounds.minZ - 64, bounds.maxZ + 512);
+        List<HistoryIndex.Entry> entries = HistoryIndex.get(world).query(user, radius == Integer.MAX_VALUE ? null : boundsPlus, timediff);
+        HistoryShards shards = Settings.HISTORY_REGION_SHARDS && radius != Integer.MAX_VALUE ? HistoryShards.get(world) : null;
+        Map<UUID, Set<Integer>> touched = shards != null ? getShardedEdits(shards, bounds, user) : null;
         HashSet<RegionWrapper> regionSet = new HashSet<RegionWrapper>(Arrays.asList(bounds));
         ArrayList<DiskStorageHistory> result = new ArrayList<>();
-        for (File file : files) {
-            UUID uuid = UUID.fromString(file.getParentFile().getName());
-            DiskStorageHistory dsh = new DiskStorageHistory(world, uuid, Integer.parseInt(file.getName().split("\\.")[0]));
-            DiskStorageHistory.DiskStorageSummary summary = dsh.summarize(boundsPlus, shallow);
-            RegionWrapper region = new RegionWrapper(summary.minX, summary.maxX, summary.minZ, summary.maxZ);
+        for (HistoryIndex.Entry entry : entries) {
+            RegionWrapper region = entry.getRegion();
             boolean encompassed = false;
             boolean isIn = false;
             for (RegionWrapper allowed : regionSet) {
-                isIn = isIn || allowed.intersects(region);
+                boolean intersects = allowed.intersects(region);
+                if (intersects && allowed == bounds && touched != null && shards.isSharded(entry.user, entry.id)) {
+                    Set<Integer> ids = touched.get(entry.user);
+                    intersects = ids != null && ids.contains(entry.id);
+                }
+                isIn = isIn || intersects;
                 if (encompassed = allowed.isIn(region.minX, region.maxX) && allowed.isIn(region.minZ, region.maxZ)) {
                     break;
                 }
             }
             if (isIn) {
+                DiskStorageHistory dsh = new DiskStorageHistory(world, entry.user, entry.id);
+                dsh.setIndexEntry(entry);
                 result.add(0, dsh);
                 if (!encompassed) {
                     regionSet.add(region);
@@ -295,6 +266,91 @@ public class FaweAPI {
         return result;
     }
 
+    /**
+     * Find the edits which changed a block in an area, using the region shards
+     * @param shards
+     * @param region
+     * @param user The user (or null for everyone)
+     * @return The ids of the edits of each user
+     */
+    private static Map<UUID, Set<Integer>> getShardedEdits(HistoryShards shards, RegionWrapper region, UUID user) {
+        HashMap<UUID, Set<Integer>> result = new HashMap<>();
+        HistoryShardReader reader = shards.getReader(region, user, Long.MIN_VALUE);
+        try {
+            while (reader.next()) {
+                Set<Integer> ids = result.get(reader.user);
+                if (ids == null) {
+                    result.put(reader.user, ids = new HashSet<>());
+                }
+                ids.add(reader.id);
+                reader.skipBlock();
+            }
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * Restore an area to how it was at a point in time, using the region shards (history.region-shards)<br>
+     *      - Only the shards the area touches are read
+     *      - Each position is set to its state before its first change since then (blocks only, tiles and entities aren't restored)
+     *      - The changes are timed by when they were written to the shards, which may be a little after they were made
+     *      - Unlike a rollback, the edits are kept
+     * @param world
+     * @param region The area
+     * @param user The user to restore the changes of (or null for everyone)
+     * @param timediff How long ago the point in time is, in milliseconds
+     * @param whenDone Called when the blocks have been set (may be null)
+     * @return The number of blocks restored
+     */
+    public static int restoreRegion(World world, RegionWrapper region, UUID user, long timediff, final Runnable whenDone) {
+        FaweQueue queue = createQueue(Fawe.imp().getWorldName(world), true);
+        HistoryShardReader reader = HistoryShards.get(world).getReader(region, user, System.currentTimeMillis() - timediff);
+        // The positions which have been restored (a bitset per chunk section)
+        HashMap<Long, long[][]> visited = new HashMap<>();
+        int count = 0;
+        try {
+            while (reader.next()) {
+                int x = reader.x;
+                int y = reader.y;
+                int z = reader.z;
+                if (y < 0 || y > 255) {
+                    continue;
+                }
+                long pair = MathMan.pairInt(x >> 4, z >> 4);
+                long[][] sections = visited.get(pair);
+                if (sections == null) {
+                    visited.put(pair, sections = new long[16][]);
+                }
+                long[] bits = sections[y >> 4];
+                if (bits == null) {
+                    bits = sections[y >> 4] = new long[64];
+                }
+                int i = ((y & 15) << 8) + ((z & 15) << 4) + (x & 15);
+                long bit = 1L << (i & 63);
+                if ((bits[i >> 6] & bit) != 0) {
+                    continue;
+                }
+                bits[i >> 6] |= bit;
+                int combined = reader.combinedFrom;
+                queue.setBlock(x, y, z, (short) (combined >> 4), (byte) (combined & 15));
+                count++;
+            }
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        } finally {
+            reader.close();
+        }
+        if (whenDone != null) {
+            queue.addNotifyTask(whenDone);
+        }
+        queue.enqueue();
+        return count;
+    }
+
     /**
      * The DiskStorageHistory class is what FAWE uses to represent the undo on disk.
      * @see com.boydti.fawe.object.changeset.DiskStorageHistory#toEditSession(com.sk89q.worldedit.entity.Player)
@@ -1,9 +1,17 @@
 package com.boydti.fawe.command;
 
 import com.boydti.fawe.Fawe;
+import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.object.FaweCommand;
 import com.boydti.fawe.object.FawePlayer;
+import com.boydti.fawe.object.QueueStats;
+import com.boydti.fawe.object.StageTimer;
+import com.boydti.fawe.object.changeset.HistoryCompactor;
+import com.boydti.fawe.object.io.SectionSwap;
+import com.boydti.fawe.util.ChunkDispatcher;
 import com.boydti.fawe.util.MainUtil;
+import com.boydti.fawe.util.MemoryMonitor;
+import com.boydti.fawe.util.SetQueue;
 
 public class Reload extends FaweCommand {
 
@@ -13,7 +21,34 @@ public class Reload extends FaweCommand {
 
     @Override
     public boolean execute(final FawePlayer player, final String... args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("timings")) {
+            MainUtil.sendMessage(player, "&d=| Stage | Chunks | Average | Max | Total |=");
+            for (StageTimer timer : ChunkDispatcher.IMP.getTimers()) {
+                MainUtil.sendMessage(player, "&7" + timer);
+            }
+            MainUtil.sendMessage(player, "&7optimize: " + ChunkDispatcher.IMP.getOptimizeQueueDepth() + " pending, " + Math.round(ChunkDispatcher.IMP.getOptimizeThroughput()) + " chunks/s");
+            MainUtil.sendMessage(player, "&7" + SetQueue.IMP.getTickBudget());
+            MainUtil.sendMessage(player, "&7" + MemoryMonitor.IMP);
+            if (Settings.QUEUE_SPILL) {
+                SectionSwap swap = SetQueue.IMP.getSwap();
+                MainUtil.sendMessage(player, "&7swap: " + swap.getLiveSections() + " sections (" + (swap.getLength() >> 10) + "KiB), " + swap.getTotalWritten() + " written, " + swap.getTotalRead() + " read");
+            }
+            for (QueueStats stats : SetQueue.IMP.getQueuePolicy().getStats()) {
+                MainUtil.sendMessage(player, "&7" + stats);
+            }
+            if (args.length > 1 && args[1].equalsIgnoreCase("reset")) {
+                ChunkDispatcher.IMP.resetTimers();
+                SetQueue.IMP.getTickBudget().reset();
+                SetQueue.IMP.getQueuePolicy().resetStats();
+                MainUtil.sendMessage(player, "&dTimings reset");
+            }
+            return true;
+        }
         Fawe.get().setupConfigs();
+        ChunkDispatcher.IMP.resetPool();
+        // The interval may have changed (or compaction been turned on / off)
+        HistoryCompactor.IMP.stop();
+        HistoryCompactor.IMP.start();
         MainUtil.sendMessage(player, "Reloaded configuration");
         return true;
     }
@@ -3,18 +3,29 @@ package com.boydti.fawe.command;
 import com.boydti.fawe.Fawe;
 import com.boydti.fawe.FaweAPI;
 import com.boydti.fawe.config.BBC;
+import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.object.FaweCommand;
 import com.boydti.fawe.object.FaweLocation;
 import com.boydti.fawe.object.FawePlayer;
 import com.boydti.fawe.object.RegionWrapper;
 import com.boydti.fawe.object.RunnableVal;
+import com.boydti.fawe.object.RunnableVal3;
 import com.boydti.fawe.object.changeset.DiskStorageHistory;
+import com.boydti.fawe.object.changeset.HistoryIndex;
+import com.boydti.fawe.object.changeset.HistoryShardReader;
+import com.boydti.fawe.object.changeset.HistoryShards;
+import com.boydti.fawe.object.changeset.RollbackEngine;
 import com.boydti.fawe.util.MainUtil;
 import com.boydti.fawe.util.MathMan;
-import com.sk89q.worldedit.EditSession;
+import com.boydti.fawe.util.TaskManager;
 import com.sk89q.worldedit.blocks.ItemType;
 import com.sk89q.worldedit.world.World;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -28,10 +39,10 @@ public class Rollback extends FaweCommand {
     @Override
     public boolean execute(final FawePlayer player, final String... args) {
         if (args.length < 1) {
-            BBC.COMMAND_SYNTAX.send(player, "/frb <info|undo> u:<uuid> r:<radius> t:<time>");
+            BBC.COMMAND_SYNTAX.send(player, "/frb <info|undo|cancel|inspect|restore> u:<uuid> r:<radius> t:<time>");
             return false;
         }
-        World world = player.getWorld();
+        final World world = player.getWorld();
         switch (args[0]) {
             default: {
                 BBC.COMMAND_SYNTAX.send(player, "/frb info u:<uuid> r:<radius> t:<time>");
@@ -40,7 +51,7 @@ public class Rollback extends FaweCommand {
             case "i":
             case "info": {
                 if (args.length < 2) {
-                    BBC.COMMAND_SYNTAX.send(player, "/frb <info|undo> u:<uuid> r:<radius> t:<time>");
+                    BBC.COMMAND_SYNTAX.send(player, "/frb <info|undo|cancel|inspect|restore> u:<uuid> r:<radius> t:<time>");
                     return false;
                 }
                 player.deleteMeta("rollback");
@@ -51,14 +62,27 @@ public class Rollback extends FaweCommand {
                         long total = 0;
                         player.sendMessage("&d=| Username | Bounds | Distance | Changes | Age |=");
                         for (DiskStorageHistory edit : edits) {
-                            DiskStorageHistory.DiskStorageSummary summary = edit.summarize(new RegionWrapper(origin.x, origin.x, origin.z, origin.z), !player.hasPermission("fawe.rollback.deep"));
-                            RegionWrapper region = new RegionWrapper(summary.minX, summary.maxX, summary.minZ, summary.maxZ);
+                            RegionWrapper region;
+                            long seconds;
+                            int size;
+                            Map<Integer, Double> percents;
+                            HistoryIndex.Entry indexEntry = edit.getIndexEntry();
+                            if (indexEntry != null) {
+                                region = indexEntry.getRegion();
+                                seconds = (System.currentTimeMillis() - indexEntry.time) / 1000;
+                                total += indexEntry.size;
+                                size = indexEntry.changes;
+                                percents = indexEntry.getPercents();
+                            } else {
+                                DiskStorageHistory.DiskStorageSummary summary = edit.summarize(new RegionWrapper(origin.x, origin.x, origin.z, origin.z), !player.hasPermission("fawe.rollback.deep"));
+                                region = new RegionWrapper(summary.minX, summary.maxX, summary.minZ, summary.maxZ);
+                                seconds = (System.currentTimeMillis() - edit.getBDFile().lastModified()) / 1000;
+                                total += edit.getBDFile().length();
+                                size = summary.getSize();
+                                percents = summary.getPercents();
+                            }
                             int distance = region.distance(origin.x, origin.z);
                             String name = Fawe.imp().getName(edit.getUUID());
-                            long seconds = (System.currentTimeMillis() - edit.getBDFile().lastModified()) / 1000;
-                            total += edit.getBDFile().length();
-                            int size = summary.getSize();
-                            Map<Integer, Double> percents = summary.getPercents();
                             StringBuilder percentString = new StringBuilder();
                             String prefix = "";
                             for (Map.Entry<Integer, Double> entry : percents.entrySet()) {
@@ -89,36 +113,173 @@ public class Rollback extends FaweCommand {
                     BBC.COMMAND_SYNTAX.send(player, "/frb info u:<uuid> r:<radius> t:<time>");
                     return false;
                 }
-                final Runnable task = new Runnable() {
+                RollbackEngine engine = new RollbackEngine(world, edits);
+                engine.setProgressTask(new RunnableVal3<RollbackEngine.Stage, Integer, Integer>() {
+                    private long last;
+
                     @Override
-                    public void run() {
-                        if (edits.size() == 0) {
-                            player.sendMessage("Rollback complete!");
-                            return;
+                    public void run(RollbackEngine.Stage stage, Integer done, Integer total) {
+                        switch (stage) {
+                            case DONE:
+                                player.deleteMeta("rollbackTask");
+                                player.sendMessage("&dRollback complete! (" + total + " chunks)");
+                                return;
+                            case CANCELLED:
+                                player.deleteMeta("rollbackTask");
+                                player.sendMessage("&cRollback cancelled (" + done + "/" + total + " chunks)");
+                                return;
                         }
-                        DiskStorageHistory edit = edits.remove(0);
-                        player.sendMessage("&d" + edit.getBDFile());
-                        EditSession session = edit.toEditSession(null);
-                        session.undo(session);
-                        edit.deleteFiles();
-                        session.getQueue().addNotifyTask(this);
+                        long now = System.currentTimeMillis();
+                        if (now - last > 1000 || done.equals(total)) {
+                            last = now;
+                            String type = stage == RollbackEngine.Stage.DECODE ? " edits read" : " chunks queued";
+                            player.sendMessage("&d" + done + "/" + total + type);
+                        }
+                    }
+                });
+                player.setMeta("rollbackTask", engine);
+                engine.start(null);
+                break;
+            }
+            case "inspect": {
+                if (!player.hasPermission("fawe.rollback.inspect")) {
+                    BBC.NO_PERM.send(player, "fawe.rollback.inspect");
+                    return false;
+                }
+                if (!Settings.HISTORY_REGION_SHARDS) {
+                    player.sendMessage("&cRegion shards are disabled (history.region-shards)");
+                    return false;
+                }
+                FaweLocation origin = player.getLocation();
+                int bx = origin.x & ~15;
+                int bz = origin.z & ~15;
+                final RegionWrapper region = new RegionWrapper(bx, bx + 15, bz, bz + 15);
+                TaskManager.IMP.async(new Runnable() {
+                    @Override
+                    public void run() {
+                        inspect(player, region);
                     }
-                };
-                task.run();
+                });
+                break;
+            }
+            case "restore": {
+                if (!player.hasPermission("fawe.rollback.perform")) {
+                    BBC.NO_PERM.send(player, "fawe.rollback.perform");
+                    return false;
+                }
+                if (!Settings.HISTORY_REGION_SHARDS) {
+                    player.sendMessage("&cRegion shards are disabled (history.region-shards)");
+                    return false;
+                }
+                final Query query = parse(player, Arrays.copyOfRange(args, 1, args.length));
+                if (query == null) {
+                    return false;
+                }
+                if (query.radius == Integer.MAX_VALUE || query.time == Long.MAX_VALUE) {
+                    BBC.COMMAND_SYNTAX.send(player, "/frb restore u:<uuid> r:<radius> t:<time>");
+                    return false;
+                }
+                final FaweLocation origin = player.getLocation();
+                TaskManager.IMP.async(new Runnable() {
+                    @Override
+                    public void run() {
+                        RegionWrapper region = new RegionWrapper(origin.x - query.radius, origin.x + query.radius, origin.z - query.radius, origin.z + query.radius);
+                        final int count = FaweAPI.restoreRegion(world, region, query.user, query.time, new Runnable() {
+                            @Override
+                            public void run() {
+                                player.sendMessage("&dRestore complete!");
+                            }
+                        });
+                        player.sendMessage("&dRestoring " + count + " blocks");
+                    }
+                });
+                break;
+            }
+            case "cancel": {
+                RollbackEngine engine = (RollbackEngine) player.getMeta("rollbackTask");
+                if (engine == null || !engine.cancel()) {
+                    player.sendMessage("&cNo rollback in progress!");
+                    return false;
+                }
+                break;
             }
         }
         return true;
     }
 
-    public void rollback(final FawePlayer player, final boolean shallow, final String[] args, final RunnableVal<List<DiskStorageHistory>> result) {
-        UUID user = null;
-        int radius = Integer.MAX_VALUE;
-        long time = Long.MAX_VALUE;
+    /**
+     * List the edits which changed a block in an area (newest first), using the region shards<br>
+     *     - Reads the shard files, so call it async
+     * @param player
+     * @param region
+     */
+    public void inspect(FawePlayer player, RegionWrapper region) {
+        World world = player.getWorld();
+        LinkedHashMap<String, Inspected> edits = new LinkedHashMap<>();
+        HistoryShardReader reader = HistoryShards.get(world).getReader(region, null, Long.MIN_VALUE);
+        try {
+            while (reader.next()) {
+                String key = reader.user + ":" + reader.id;
+                Inspected edit = edits.get(key);
+                if (edit == null) {
+                    edits.put(key, edit = new Inspected(reader.user, reader.id));
+                }
+                edit.changes++;
+                edit.time = Math.max(edit.time, reader.time);
+            }
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        } finally {
+            reader.close();
+        }
+        if (edits.isEmpty()) {
+            player.sendMessage("&cNo edits found!");
+            return;
+        }
+        List<Inspected> sorted = new ArrayList<>(edits.values());
+        Collections.sort(sorted, new Comparator<Inspected>() {
+            @Override
+            public int compare(Inspected a, Inspected b) {
+                return Long.compare(b.time, a.time);
+            }
+        });
+        player.sendMessage("&d=| Username | Edit | Changes | Age |= " + region);
+        for (Inspected edit : sorted) {
+            long seconds = (System.currentTimeMillis() - edit.time) / 1000;
+            player.sendMessage("&c" + Fawe.imp().getName(edit.user) + " | #" + edit.id + " | " + edit.changes + " | " + MainUtil.secToTime(seconds));
+        }
+        player.sendMessage("&d==================================================");
+    }
+
+    private static class Inspected {
+        private final UUID user;
+        private final int id;
+        private int changes;
+        private long time;
+
+        private Inspected(UUID user, int id) {
+            this.user = user;
+            this.id = id;
+        }
+    }
+
+    private static class Query {
+        private UUID user;
+        private int radius = Integer.MAX_VALUE;
+        private long time = Long.MAX_VALUE;
+    }
+
+    /**
+     * Parse the u:, r: and t: arguments
+     * @return The query, or null if it's invalid (the player is told why)
+     */
+    private Query parse(FawePlayer player, String[] args) {
+        Query query = new Query();
         for (int i = 0; i < args.length; i++) {
             String[] split = args[i].split(":");
             if (split.length != 2) {
-                BBC.COMMAND_SYNTAX.send(player, "/frb <info|undo> u:<uuid> r:<radius> t:<time>");
-                return;
+                BBC.COMMAND_SYNTAX.send(player, "/frb <info|undo|cancel|inspect|restore> u:<uuid> r:<radius> t:<time>");
+                return null;
             }
             switch (split[0].toLowerCase()) {
                 case "username":
@@ -126,14 +287,14 @@ public class Rollback extends FaweCommand {
                 case "u": {
                     try {
                         if (split[1].length() > 16) {
-                            user = UUID.fromString(split[1]);
+                            query.user = UUID.fromString(split[1]);
                         } else {
-                            user = Fawe.imp().getUUID(split[1]);
+                            query.user = Fawe.imp().getUUID(split[1]);
                         }
                     } catch (IllegalArgumentException e) {}
-                    if (user == null) {
+                    if (query.user == null) {
                         player.sendMessage("&dInvalid user: " + split[1]);
-                        return;
+                        return null;
                     }
                     break;
                 }
@@ -141,24 +302,35 @@ public class Rollback extends FaweCommand {
                 case "radius": {
                     if (!MathMan.isInteger(split[1])) {
                         player.sendMessage("&dInvalid radius: " + split[1]);
-                        return;
+                        return null;
                     }
-                    radius = Integer.parseInt(split[1]);
+                    query.radius = Integer.parseInt(split[1]);
                     break;
                 }
                 case "t":
                 case "time": {
-                    time = MainUtil.timeToSec(split[1]) * 1000;
+                    query.time = MainUtil.timeToSec(split[1]) * 1000;
                     break;
                 }
                 default: {
-                    BBC.COMMAND_SYNTAX.send(player, "/frb <info|undo> u:<uuid> r:<radius> t:<time>");
-                    return;
+                    BBC.COMMAND_SYNTAX.send(player, "/frb <info|undo|cancel|inspect|restore> u:<uuid> r:<radius> t:<time>");
+                    return null;
                 }
             }
         }
+        return query;
+    }
+
+    public void rollback(final FawePlayer player, final boolean shallow, final String[] args, final RunnableVal<List<DiskStorageHistory>> result) {
+        Query query = parse(player, args);
+        if (query == null) {
+            return;
+        }
         FaweLocation origin = player.getLocation();
-        List<DiskStorageHistory> edits = FaweAPI.getBDFiles(origin, user, radius, time, shallow);
+        List<DiskStorageHistory> edits = FaweAPI.getBDFiles(origin, query.user, query.radius, query.time, shallow);
+        if (HistoryIndex.get(origin.getWorld()).isRebuilding()) {
+            player.sendMessage("&7The history is still being indexed, older edits may be missing");
+        }
         if (edits == null) {
             player.sendMessage("&cToo broad, try refining your search!");
             return;
@@ -16,9 +16,16 @@ import java.util.Map.Entry;
 public class Settings {
 
     public static long MEM_FREE = 95;
+    public static int MEM_STEP = 10;
+    public static int MEM_HYSTERESIS = 5;
     public static boolean ENABLE_HARD_LIMIT = true;
     public static boolean STORE_HISTORY_ON_DISK = false;
     public static boolean STORE_CLIPBOARD_ON_DISK = false;
+    public static boolean CLIPBOARD_MEMORY_MAPPED = false;
+    public static boolean CLIPBOARD_TILED = false;
+    public static boolean CLIPBOARD_COMPRESSED = false;
+    public static int CLIPBOARD_HOT_TILES = 64;
+    public static boolean PASTE_PARALLEL = false;
     public static boolean CONSOLE_HISTORY = true;
     public static int DELETE_HISTORY_AFTER_DAYS = 7;
     public static boolean CLEAN_HISTORY_ON_LOGOUT = true;
@@ -29,6 +36,11 @@ public class Settings {
     public static int ALLOCATE = 0;
     public static int QUEUE_SIZE = 64;
     public static int QUEUE_MAX_WAIT = 1000;
+    public static int QUEUE_TARGET_MSPT = 50;
+    public static String QUEUE_POLICY = "fifo";
+    public static boolean QUEUE_SPILL = false;
+    public static boolean PRIMITIVE_QUEUE_MAP = false;
+    public static boolean PALETTE_SECTIONS = false;
     public static boolean DISPLAY_PROGRESS = false;
     public static int DISPLAY_PROGRESS_INTERVAL = 1;
     public static List<String> ALLOWED_3RDPARTY_EXTENTS;
@@ -41,6 +53,17 @@ public class Settings {
     // Maybe confusing?
     // - `compression: false` just uses cheaper compression, but still compresses
     public static int COMPRESSION_LEVEL = 0;
+    // Disk history is chunk indexed by default, so it can be undone newest first (a segment at a time)
+    // - `chunk-index: false` writes the flat format, which is undone oldest first with a map of the visited blocks
+    public static boolean HISTORY_CHUNK_INDEX = true;
+    public static boolean HISTORY_ASYNC_WRITE = false;
+    public static int HISTORY_WRITE_BUFFERS = 8;
+    public static int HISTORY_COMPACT_INTERVAL = 0;
+    public static int HISTORY_COMPACT_AFTER = 30;
+    public static int HISTORY_COMPACT_EDIT_SIZE = 64;
+    public static int HISTORY_USER_QUOTA = 0;
+    public static boolean HISTORY_REGION_SHARDS = false;
+    public static int HISTORY_ROLLBACK_BUFFER = 64;
     public static boolean COMBINE_HISTORY_STAGE = false;
     public static int PARALLEL_THREADS = 1;
 
@@ -58,6 +81,7 @@ public class Settings {
         limit.MAX_ENTITIES = 0;
         limit.MAX_BLOCKSTATES = 0;
         limit.MAX_ITERATIONS = 0;
+        limit.QUEUE_WEIGHT = 0;
         for (Entry<String, FaweLimit> entry : limits.entrySet()) {
             String key = entry.getKey();
             if (key.equals("default") || (player != null && player.hasPermission("fawe.limit." + key))) {
@@ -68,6 +92,7 @@ public class Settings {
                 limit.MAX_ENTITIES = Math.max(limit.MAX_ENTITIES, newLimit.MAX_ENTITIES != -1 ? newLimit.MAX_ENTITIES : Integer.MAX_VALUE);
                 limit.MAX_FAILS = Math.max(limit.MAX_FAILS, newLimit.MAX_FAILS != -1 ? newLimit.MAX_FAILS : Integer.MAX_VALUE);
                 limit.MAX_ITERATIONS = Math.max(limit.MAX_ITERATIONS, newLimit.MAX_ITERATIONS != -1 ? newLimit.MAX_ITERATIONS : Integer.MAX_VALUE);
+                limit.QUEUE_WEIGHT = Math.max(limit.QUEUE_WEIGHT, newLimit.QUEUE_WEIGHT);
             }
         }
         return limit;
@@ -90,9 +115,16 @@ public class Settings {
         final Map<String, Object> options = new HashMap<>();
         options.put("max-memory-percent", MEM_FREE);
         options.put("crash-mitigation", ENABLE_HARD_LIMIT);
+        options.put("memory.step", MEM_STEP);
+        options.put("memory.hysteresis", MEM_HYSTERESIS);
         options.put("lighting.fix-all", FIX_ALL_LIGHTING);
         options.put("lighting.async", ASYNC_LIGHTING);
         options.put("clipboard.use-disk", STORE_CLIPBOARD_ON_DISK);
+        options.put("clipboard.memory-mapped", CLIPBOARD_MEMORY_MAPPED);
+        options.put("clipboard.tiled", CLIPBOARD_TILED);
+        options.put("clipboard.compressed", CLIPBOARD_COMPRESSED);
+        options.put("clipboard.hot-tiles", CLIPBOARD_HOT_TILES);
+        options.put("clipboard.parallel-paste", PASTE_PARALLEL);
         options.put("clipboard.delete-after-days", DELETE_CLIPBOARD_AFTER_DAYS);
         options.put("history.use-disk", STORE_HISTORY_ON_DISK);
         options.put("history.compress", false);
@@ -100,12 +132,26 @@ public class Settings {
         options.put("history.delete-after-days", DELETE_HISTORY_AFTER_DAYS);
         options.put("history.delete-on-logout", CLEAN_HISTORY_ON_LOGOUT);
         options.put("history.enable-for-console", CONSOLE_HISTORY);
+        options.put("history.chunk-index", HISTORY_CHUNK_INDEX);
+        options.put("history.async-write", HISTORY_ASYNC_WRITE);
+        options.put("history.write-buffers", HISTORY_WRITE_BUFFERS);
+        options.put("history.compaction.interval-minutes", HISTORY_COMPACT_INTERVAL);
+        options.put("history.compaction.after-minutes", HISTORY_COMPACT_AFTER);
+        options.put("history.compaction.max-edit-kb", HISTORY_COMPACT_EDIT_SIZE);
+        options.put("history.user-quota-mb", HISTORY_USER_QUOTA);
+        options.put("history.region-shards", HISTORY_REGION_SHARDS);
+        options.put("history.rollback-buffer-mb", HISTORY_ROLLBACK_BUFFER);
         options.put("region-restrictions", REGION_RESTRICTIONS);
         options.put("queue.extra-time-ms", ALLOCATE);
         options.put("queue.progress.display", DISPLAY_PROGRESS);
         options.put("queue.progress.interval", DISPLAY_PROGRESS_INTERVAL);
         options.put("queue.target-size", QUEUE_SIZE);
         options.put("queue.max-wait-ms", QUEUE_MAX_WAIT);
+        options.put("queue.target-mspt", QUEUE_TARGET_MSPT);
+        options.put("queue.policy", QUEUE_POLICY);
+        options.put("queue.spill-to-disk", QUEUE_SPILL);
+        options.put("queue.primitive-map", PRIMITIVE_QUEUE_MAP);
+        options.put("queue.palette-sections", PALETTE_SECTIONS);
         options.put("extent.allowed-plugins", new ArrayList<String>());
         options.put("extent.debug", EXTENT_DEBUG);
         options.put("metrics", METRICS);
@@ -140,6 +186,8 @@ public class Settings {
         ASYNC_LIGHTING = config.getBoolean("lighting.async");
         MEM_FREE = config.getInt("max-memory-percent");
         ENABLE_HARD_LIMIT = config.getBoolean("crash-mitigation");
+        MEM_STEP = config.getInt("memory.step");
+        MEM_HYSTERESIS = config.getInt("memory.hysteresis");
         REGION_RESTRICTIONS = config.getBoolean("region-restrictions");
         METRICS = config.getBoolean("metrics");
         COMPRESSION_LEVEL = config.getInt("history.compression-level", config.getBoolean("history.compress") ? 1 : 0);
@@ -147,15 +195,34 @@ public class Settings {
         CLEAN_HISTORY_ON_LOGOUT = config.getBoolean("history.delete-on-logout");
         CHUNK_WAIT = config.getInt("history.chunk-wait-ms");
         CONSOLE_HISTORY = config.getBoolean("history.enable-for-console");
+        HISTORY_CHUNK_INDEX = config.getBoolean("history.chunk-index");
+        HISTORY_ASYNC_WRITE = config.getBoolean("history.async-write");
+        HISTORY_WRITE_BUFFERS = config.getInt("history.write-buffers");
+        HISTORY_COMPACT_INTERVAL = config.getInt("history.compaction.interval-minutes");
+        HISTORY_COMPACT_AFTER = config.getInt("history.compaction.after-minutes");
+        HISTORY_COMPACT_EDIT_SIZE = config.getInt("history.compaction.max-edit-kb");
+        HISTORY_USER_QUOTA = config.getInt("history.user-quota-mb");
+        HISTORY_REGION_SHARDS = config.getBoolean("history.region-shards");
+        HISTORY_ROLLBACK_BUFFER = config.getInt("history.rollback-buffer-mb");
         ALLOCATE = config.getInt("queue.extra-time-ms");
         QUEUE_SIZE = config.getInt("queue.target-size");
         QUEUE_MAX_WAIT = config.getInt("queue.max-wait-ms");
+        QUEUE_TARGET_MSPT = config.getInt("queue.target-mspt");
+        QUEUE_POLICY = config.getString("queue.policy");
+        QUEUE_SPILL = config.getBoolean("queue.spill-to-disk");
+        PRIMITIVE_QUEUE_MAP = config.getBoolean("queue.primitive-map");
+        PALETTE_SECTIONS = config.getBoolean("queue.palette-sections");
         DISPLAY_PROGRESS = config.getBoolean("queue.progress.display");
         DISPLAY_PROGRESS_INTERVAL = config.getInt("queue.progress.interval");
         PARALLEL_THREADS = config.getInt("queue.parallel-threads", Math.max(1, Runtime.getRuntime().availableProcessors()));
         ALLOWED_3RDPARTY_EXTENTS = config.getStringList("extent.allowed-plugins");
         EXTENT_DEBUG = config.getBoolean("extent.debug");
         STORE_CLIPBOARD_ON_DISK = config.getBoolean("clipboard.use-disk");
+        CLIPBOARD_MEMORY_MAPPED = config.getBoolean("clipboard.memory-mapped");
+        CLIPBOARD_TILED = config.getBoolean("clipboard.tiled");
+        CLIPBOARD_COMPRESSED = config.getBoolean("clipboard.compressed");
+        CLIPBOARD_HOT_TILES = config.getInt("clipboard.hot-tiles");
+        PASTE_PARALLEL = config.getBoolean("clipboard.parallel-paste");
         DELETE_CLIPBOARD_AFTER_DAYS = config.getInt("clipboard.delete-after-days");
         PHYSICS_PER_TICK = config.getInt("tick-limiter.physics");
         ITEMS_PER_TICK = config.getInt("tick-limiter.items");
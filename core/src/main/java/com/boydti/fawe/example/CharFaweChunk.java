@@ -4,10 +4,12 @@ import com.boydti.fawe.FaweCache;
 import com.boydti.fawe.object.BytePair;
 import com.boydti.fawe.object.FaweChunk;
 import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.io.SectionSwap;
 import com.boydti.fawe.util.MainUtil;
 import com.boydti.fawe.util.MathMan;
 import com.sk89q.jnbt.CompoundTag;
 import com.sk89q.worldedit.world.biome.BaseBiome;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,8 +25,22 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
     public short[] relight;
     public int[][] biomes;
 
+    /**
+     * The value of each section which is filled with a single block (0 if it isn't)<br>
+     *     - The section's id array is only created if it's requested with getIdArray
+     */
+    public char[] uniform;
+
     public T chunk;
 
+    /**
+     * Sections written to a swap file when memory is low (0 = not swapped)
+     * @see #spill(SectionSwap)
+     */
+    private volatile long[] swapped;
+    private SectionSwap swap;
+    private volatile boolean pinned;
+
     /**
      * A FaweSections object represents a chunk and the blocks that you wish to change in it.
      *
@@ -38,6 +54,7 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
         this.count = new short[16];
         this.air = new short[16];
         this.relight = new short[16];
+        this.uniform = new char[16];
     }
 
     @Override
@@ -109,10 +126,231 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
      * @return
      */
     public char[] getIdArray(final int i) {
-        return this.ids[i];
+        if (this.swapped != null) {
+            unspill();
+        }
+        char[] array = this.ids[i];
+        if (array == null) {
+            char value = this.uniform[i];
+            if (value != 0) {
+                array = this.ids[i] = new char[4096];
+                Arrays.fill(array, value);
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Get the value stored for a block, without creating the section's id array
+     * @param i The section
+     * @param j The index in the section (@see FaweCache#CACHE_J)
+     * @return 0 if it's unchanged, 1 for air, otherwise (id << 4) + data
+     */
+    public char getValue(final int i, final int j) {
+        if (this.swapped != null) {
+            unspill();
+        }
+        char[] array = this.ids[i];
+        return array != null ? array[j] : this.uniform[i];
+    }
+
+    @Override
+    public int getBlockCombinedId(int x, int y, int z) {
+        return getValue(y >> 4, FaweCache.CACHE_J[y][x][z]);
+    }
+
+    /**
+     * Get the value a section is filled with<br>
+     *     - Platforms can check this before getIdArray and build the section directly from the single value
+     * @param i
+     * @return 1 for air, (id << 4) + data, or 0 if the section isn't filled with a single block
+     */
+    public char getUniform(final int i) {
+        return this.uniform[i];
+    }
+
+    /**
+     * Fill a section with a single block (without creating an id array)
+     * @param i
+     * @param id
+     * @param data
+     */
+    public void setUniform(final int i, final int id, byte data) {
+        if (this.swapped != null) {
+            unspill();
+        }
+        this.ids[i] = null;
+        this.air[i] = 0;
+        this.relight[i] = 0;
+        char combined = getCombinedId(i, id, data);
+        if (this.air[i] != 0) {
+            this.air[i] = 4096;
+        }
+        if (this.relight[i] != 0) {
+            this.relight[i] = 4096;
+        }
+        this.count[i] = 4096;
+        this.uniform[i] = combined;
+    }
+
+    /**
+     * Replace a full section with its uniform value, if every block in it is the same
+     * @param i
+     */
+    protected void checkUniform(final int i) {
+        char[] array = this.ids[i];
+        char value = array[0];
+        for (int j = 1; j < 4096; j++) {
+            if (array[j] != value) {
+                return;
+            }
+        }
+        this.ids[i] = null;
+        this.uniform[i] = value;
+    }
+
+    /**
+     * Write the sections of this chunk to a swap file to free memory<br>
+     *     - Only chunks which aren't being written to should be spilled (setBlock isn't synchronized, @see MappedFaweQueue#spill)
+     *     - Sections are read back when they are next used (or all at once by {@link #pin()})
+     * @param swap
+     * @return The number of sections spilled
+     */
+    public synchronized int spill(SectionSwap swap) {
+        if (pinned) {
+            return 0;
+        }
+        int amount = 0;
+        for (int i = 0; i < 16; i++) {
+            if (this.swapped != null && this.swapped[i] != 0) {
+                continue;
+            }
+            long handle;
+            try {
+                handle = spillSection(i, swap);
+            } catch (IOException e) {
+                MainUtil.handleError(e);
+                break;
+            }
+            if (handle == 0) {
+                continue;
+            }
+            long[] current = this.swapped;
+            if (current == null) {
+                current = new long[16];
+            }
+            current[i] = handle;
+            this.swap = swap;
+            this.swapped = current;
+            amount++;
+        }
+        return amount;
+    }
+
+    /**
+     * Write a section to the swap file and release it
+     * @param i
+     * @param swap
+     * @return The handle, or 0 if nothing was written
+     * @throws IOException
+     */
+    protected long spillSection(final int i, SectionSwap swap) throws IOException {
+        char[] array = this.ids[i];
+        if (array == null) {
+            return 0;
+        }
+        if (this.uniform[i] != 0) {
+            // Can be recreated from the uniform value
+            this.ids[i] = null;
+            return 0;
+        }
+        long handle = swap.write(array);
+        this.ids[i] = null;
+        return handle;
+    }
+
+    /**
+     * Read a spilled section back
+     * @param i
+     * @param handle
+     * @param swap
+     * @throws IOException
+     */
+    protected void unspillSection(final int i, long handle, SectionSwap swap) throws IOException {
+        this.ids[i] = swap.read(handle);
+    }
+
+    /**
+     * Read any spilled sections back into memory
+     */
+    public synchronized void unspill() {
+        long[] current = this.swapped;
+        if (current == null) {
+            return;
+        }
+        for (int i = 0; i < 16; i++) {
+            if (current[i] != 0) {
+                try {
+                    unspillSection(i, current[i], swap);
+                } catch (IOException e) {
+                    MainUtil.handleError(e);
+                }
+            }
+        }
+        this.swapped = null;
+        this.swap = null;
+        if (!pinned && getParent() instanceof MappedFaweQueue) {
+            // It can be spilled again
+            ((MappedFaweQueue) getParent()).addSpillCandidate(this);
+        }
+    }
+
+    /**
+     * Free the spilled sections without reading them back (e.g. the queue was cleared)
+     */
+    public synchronized void discard() {
+        long[] current = this.swapped;
+        if (current == null) {
+            return;
+        }
+        for (int i = 0; i < 16; i++) {
+            if (current[i] != 0) {
+                swap.free(current[i]);
+            }
+        }
+        this.swapped = null;
+        this.swap = null;
+    }
+
+    public boolean isSpilled() {
+        return this.swapped != null;
+    }
+
+    /**
+     * Check if this chunk is about to be dispatched (it won't be spilled)
+     * @return
+     */
+    public boolean isPinned() {
+        return this.pinned;
+    }
+
+    /**
+     * Read this chunk back into memory and stop it from being spilled again (e.g. when it's about to be dispatched)
+     */
+    public synchronized void pin() {
+        this.pinned = true;
+        unspill();
     }
 
     public char[][] getCombinedIdArrays() {
+        if (this.swapped != null) {
+            unspill();
+        }
+        for (int i = 0; i < 16; i++) {
+            if (this.uniform[i] != 0) {
+                getIdArray(i);
+            }
+        }
         return this.ids;
     }
 
@@ -183,20 +421,96 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
 
     @Override
     public void setBlock(final int x, final int y, final int z, final int id, byte data) {
+        if (this.swapped != null) {
+            unspill();
+        }
         final int i = FaweCache.CACHE_I[y][x][z];
         final int j = FaweCache.CACHE_J[y][x][z];
         char[] vs = this.ids[i];
-        if (vs == null) {
+        if (this.uniform[i] != 0) {
+            vs = getIdArray(i);
+            this.uniform[i] = 0;
+        } else if (vs == null) {
             vs = this.ids[i] = new char[4096];
-            this.count[i]++;
-        } else if (vs[j] == 0) {
-            this.count[i]++;
         }
+        if (vs[j] == 0) {
+            vs[j] = getCombinedId(i, id, data);
+            if (++this.count[i] == 4096) {
+                checkUniform(i);
+            }
+        } else {
+            vs[j] = getCombinedId(i, id, data);
+        }
+    }
+
+    /**
+     * Set the blocks of a section from an array in the same layout (e.g. a TiledClipboard tile)
+     * @param layer
+     * @param values 0 to leave a block unchanged, 1 for air, otherwise (id << 4) + data
+     * @return The number of blocks set
+     */
+    public int setBlocks(final int layer, final char[] values) {
+        if (this.swapped != null) {
+            unspill();
+        }
+        // getIdArray also converts a uniform or palette section (@see PaletteFaweChunk) to its dense array
+        char[] vs = getIdArray(layer);
+        if (vs == null) {
+            vs = this.ids[layer] = new char[4096];
+        }
+        this.uniform[layer] = 0;
+        int changes = 0;
+        int count = this.count[layer];
+        for (int j = 0; j < 4096; j++) {
+            char value = values[j];
+            if (value == 0) {
+                continue;
+            }
+            if (vs[j] == 0) {
+                count++;
+            }
+            vs[j] = value == 1 ? getCombinedId(layer, 0, (byte) 0) : getCombinedId(layer, value >> 4, (byte) (value & 15));
+            changes++;
+        }
+        this.count[layer] = (short) count;
+        if (count == 4096) {
+            checkUniform(layer);
+        }
+        return changes;
+    }
+
+    @Override
+    public void fillCuboid(int x1, int x2, int y1, int y2, int z1, int z2, int id, byte data) {
+        int minLayer = (y1 + 15) >> 4;
+        int maxLayer = ((y2 + 1) >> 4) - 1;
+        if (x1 != 0 || x2 != 15 || z1 != 0 || z2 != 15 || minLayer > maxLayer) {
+            super.fillCuboid(x1, x2, y1, y2, z1, z2, id, data);
+            return;
+        }
+        // Partial sections at the bottom and top
+        if (y1 < minLayer << 4) {
+            super.fillCuboid(x1, x2, y1, (minLayer << 4) - 1, z1, z2, id, data);
+        }
+        if (y2 > (maxLayer << 4) + 15) {
+            super.fillCuboid(x1, x2, (maxLayer + 1) << 4, y2, z1, z2, id, data);
+        }
+        for (int layer = minLayer; layer <= maxLayer; layer++) {
+            setUniform(layer, id, data);
+        }
+    }
+
+    /**
+     * Get the value stored in a section for a block, and update the air / relight counts for that section
+     * @param layer
+     * @param id
+     * @param data
+     * @return 1 for air, otherwise (id << 4) + data
+     */
+    protected char getCombinedId(final int layer, final int id, byte data) {
         switch (id) {
             case 0:
-                this.air[i]++;
-                vs[j] = (char) 1;
-                return;
+                this.air[layer]++;
+                return (char) 1;
             case 10:
             case 11:
             case 39:
@@ -208,7 +522,7 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
             case 124:
             case 138:
             case 169:
-                this.relight[i]++;
+                this.relight[layer]++;
             case 2:
             case 4:
             case 13:
@@ -266,21 +580,19 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
             case 190:
             case 191:
             case 192:
-                vs[j] = (char) (id << 4);
-                return;
+                return (char) (id << 4);
             case 130:
             case 76:
             case 62:
             case 50:
-                this.relight[i]++;
+                this.relight[layer]++;
             case 54:
             case 146:
             case 61:
             case 65:
             case 68: // removed
             default:
-                vs[j] = (char) ((id << 4) + data);
-                return;
+                return (char) ((id << 4) + data);
         }
     }
 
@@ -298,6 +610,7 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
 
     @Override
     public CharFaweChunk<T> copy(boolean shallow) {
+        unspill();
         CharFaweChunk<T> copy = (CharFaweChunk<T>) getParent().getFaweChunk(getX(), getZ());
         if (shallow) {
             copy.ids = ids;
@@ -306,6 +619,7 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
             copy.chunk = chunk;
             copy.count = count;
             copy.relight = relight;
+            copy.uniform = uniform;
         } else {
             copy.ids = (char[][]) MainUtil.copyNd(ids);
             copy.air = air.clone();
@@ -313,6 +627,7 @@ public abstract class CharFaweChunk<T> extends FaweChunk<T> {
             copy.chunk = chunk;
             copy.count = count.clone();
             copy.relight = relight.clone();
+            copy.uniform = uniform.clone();
         }
         return copy;
     }
@@ -0,0 +1,102 @@
+package com.boydti.fawe.example;
+
+import com.boydti.fawe.object.FaweChunk;
+import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.RunnableVal;
+import com.boydti.fawe.util.MathMan;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Boxed map + deque implementation (the original MappedFaweQueue storage)
+ */
+public class DefaultFaweQueueMap implements IFaweQueueMap {
+
+    private final MappedFaweQueue parent;
+
+    /**
+     * Map of chunks in the queue
+     */
+    private ConcurrentHashMap<Long, FaweChunk> blocks = new ConcurrentHashMap<>();
+    private LinkedBlockingDeque<FaweChunk> chunks = new LinkedBlockingDeque<FaweChunk>() {
+        @Override
+        public boolean add(FaweChunk o) {
+            if (parent.getProgressTask() != null) {
+                parent.getProgressTask().run(FaweQueue.ProgressType.QUEUE, size() + 1);
+            }
+            return super.add(o);
+        }
+    };
+
+    public DefaultFaweQueueMap(MappedFaweQueue parent) {
+        this.parent = parent;
+    }
+
+    @Override
+    public Collection<FaweChunk> getFaweChunks() {
+        return new ArrayList<>(chunks);
+    }
+
+    @Override
+    public void forEachChunk(RunnableVal<FaweChunk> onEach) {
+        for (FaweChunk chunk : chunks) {
+            onEach.run(chunk);
+        }
+    }
+
+    @Override
+    public FaweChunk getFaweChunk(int cx, int cz) {
+        long pair = MathMan.pairInt(cx, cz);
+        FaweChunk result = this.blocks.get(pair);
+        if (result == null) {
+            result = parent.getFaweChunk(cx, cz);
+            FaweChunk previous = this.blocks.putIfAbsent(pair, result);
+            if (previous != null) {
+                return previous;
+            }
+            chunks.add(result);
+        }
+        return result;
+    }
+
+    @Override
+    public FaweChunk getCachedFaweChunk(int cx, int cz) {
+        return this.blocks.get(MathMan.pairInt(cx, cz));
+    }
+
+    @Override
+    public void add(FaweChunk chunk) {
+        FaweChunk previous = this.blocks.put(chunk.longHash(), chunk);
+        if (previous != null) {
+            chunks.remove(previous);
+        }
+        chunks.add(chunk);
+    }
+
+    @Override
+    public FaweChunk next() {
+        if (this.blocks.size() == 0) {
+            return null;
+        }
+        synchronized (blocks) {
+            FaweChunk chunk = chunks.poll();
+            if (chunk != null) {
+                blocks.remove(chunk.longHash());
+            }
+            return chunk;
+        }
+    }
+
+    @Override
+    public void clear() {
+        blocks.clear();
+        chunks.clear();
+    }
+
+    @Override
+    public int size() {
+        return chunks.size();
+    }
+}
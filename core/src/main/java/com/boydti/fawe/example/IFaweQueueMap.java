@@ -0,0 +1,53 @@
+package com.boydti.fawe.example;
+
+import com.boydti.fawe.object.FaweChunk;
+import com.boydti.fawe.object.RunnableVal;
+import java.util.Collection;
+
+/**
+ * The storage a MappedFaweQueue uses for its queued chunks<br>
+ *     - Chunks are keyed by their coordinates
+ *     - Chunks are dispatched in the order they were first added
+ */
+public interface IFaweQueueMap {
+
+    /**
+     * Get a snapshot of the queued chunks in dispatch order
+     * @return
+     */
+    Collection<FaweChunk> getFaweChunks();
+
+    void forEachChunk(RunnableVal<FaweChunk> onEach);
+
+    /**
+     * Get the queued chunk at a location, or create and queue a new one
+     * @param cx
+     * @param cz
+     * @return
+     */
+    FaweChunk getFaweChunk(int cx, int cz);
+
+    /**
+     * Get the queued chunk at a location
+     * @param cx
+     * @param cz
+     * @return the chunk, or null if it isn't queued
+     */
+    FaweChunk getCachedFaweChunk(int cx, int cz);
+
+    /**
+     * Queue a chunk, replacing any chunk already queued at its location
+     * @param chunk
+     */
+    void add(FaweChunk chunk);
+
+    /**
+     * Remove and return the next chunk to dispatch
+     * @return the chunk, or null if the map is empty
+     */
+    FaweChunk next();
+
+    void clear();
+
+    int size();
+}
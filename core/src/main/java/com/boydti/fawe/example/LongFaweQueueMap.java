@@ -0,0 +1,236 @@
+package com.boydti.fawe.example;
+
+import com.boydti.fawe.object.FaweChunk;
+import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.RunnableVal;
+import com.boydti.fawe.util.MathMan;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Open addressing long -> FaweChunk map with an insertion ordered linked list<br>
+ *     - Keys are never boxed, and lookups / removals don't allocate
+ *     - The linked list replaces the separate dispatch deque
+ *     - Access is synchronized on the map
+ */
+public class LongFaweQueueMap implements IFaweQueueMap {
+
+    private final MappedFaweQueue parent;
+
+    private long[] keys;
+    private FaweChunk[] values;
+    private int[] before;
+    private int[] after;
+    private int mask;
+    private int size;
+    private int head = -1;
+    private int tail = -1;
+
+    public LongFaweQueueMap(MappedFaweQueue parent) {
+        this(parent, 64);
+    }
+
+    public LongFaweQueueMap(MappedFaweQueue parent, int capacity) {
+        this.parent = parent;
+        int length = 16;
+        while (length < capacity) {
+            length <<= 1;
+        }
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        keys = new long[length];
+        values = new FaweChunk[length];
+        before = new int[length];
+        after = new int[length];
+        mask = length - 1;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int slot = mix(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long key, FaweChunk chunk) {
+        if ((size + 1) << 2 > values.length * 3) {
+            rehash(values.length << 1);
+        }
+        int slot = mix(key) & mask;
+        while (values[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = chunk;
+        before[slot] = tail;
+        after[slot] = -1;
+        if (tail == -1) {
+            head = slot;
+        } else {
+            after[tail] = slot;
+        }
+        tail = slot;
+        size++;
+        if (parent.getProgressTask() != null) {
+            parent.getProgressTask().run(FaweQueue.ProgressType.QUEUE, size);
+        }
+    }
+
+    private void rehash(int length) {
+        long[] oldKeys = keys;
+        FaweChunk[] oldValues = values;
+        int[] oldAfter = after;
+        int slot = head;
+        allocate(length);
+        head = -1;
+        tail = -1;
+        while (slot != -1) {
+            long key = oldKeys[slot];
+            int newSlot = mix(key) & mask;
+            while (values[newSlot] != null) {
+                newSlot = (newSlot + 1) & mask;
+            }
+            keys[newSlot] = key;
+            values[newSlot] = oldValues[slot];
+            before[newSlot] = tail;
+            after[newSlot] = -1;
+            if (tail == -1) {
+                head = newSlot;
+            } else {
+                after[tail] = newSlot;
+            }
+            tail = newSlot;
+            slot = oldAfter[slot];
+        }
+    }
+
+    private void unlink(int slot) {
+        int prev = before[slot];
+        int next = after[slot];
+        if (prev == -1) {
+            head = next;
+        } else {
+            after[prev] = next;
+        }
+        if (next == -1) {
+            tail = prev;
+        } else {
+            before[next] = prev;
+        }
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+        int prev = before[to] = before[from];
+        int next = after[to] = after[from];
+        if (prev == -1) {
+            head = to;
+        } else {
+            after[prev] = to;
+        }
+        if (next == -1) {
+            tail = to;
+        } else {
+            before[next] = to;
+        }
+        values[from] = null;
+    }
+
+    private FaweChunk removeSlot(int slot) {
+        FaweChunk chunk = values[slot];
+        unlink(slot);
+        values[slot] = null;
+        size--;
+        // Backward shift deletion so lookups never need tombstones
+        int gap = slot;
+        int i = (gap + 1) & mask;
+        while (values[i] != null) {
+            int ideal = mix(keys[i]) & mask;
+            if (((i - ideal) & mask) >= ((i - gap) & mask)) {
+                move(i, gap);
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        return chunk;
+    }
+
+    @Override
+    public synchronized Collection<FaweChunk> getFaweChunks() {
+        ArrayList<FaweChunk> list = new ArrayList<>(size);
+        for (int slot = head; slot != -1; slot = after[slot]) {
+            list.add(values[slot]);
+        }
+        return list;
+    }
+
+    @Override
+    public void forEachChunk(RunnableVal<FaweChunk> onEach) {
+        for (FaweChunk chunk : getFaweChunks()) {
+            onEach.run(chunk);
+        }
+    }
+
+    @Override
+    public synchronized FaweChunk getFaweChunk(int cx, int cz) {
+        long key = MathMan.pairInt(cx, cz);
+        int slot = indexOf(key);
+        if (slot != -1) {
+            return values[slot];
+        }
+        FaweChunk chunk = parent.getFaweChunk(cx, cz);
+        insert(key, chunk);
+        return chunk;
+    }
+
+    @Override
+    public synchronized FaweChunk getCachedFaweChunk(int cx, int cz) {
+        int slot = indexOf(MathMan.pairInt(cx, cz));
+        return slot == -1 ? null : values[slot];
+    }
+
+    @Override
+    public synchronized void add(FaweChunk chunk) {
+        long key = chunk.longHash();
+        int slot = indexOf(key);
+        if (slot != -1) {
+            removeSlot(slot);
+        }
+        insert(key, chunk);
+    }
+
+    @Override
+    public synchronized FaweChunk next() {
+        if (head == -1) {
+            return null;
+        }
+        return removeSlot(head);
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (int slot = head; slot != -1; slot = after[slot]) {
+            values[slot] = null;
+        }
+        head = -1;
+        tail = -1;
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -5,17 +5,18 @@ import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.object.FaweChunk;
 import com.boydti.fawe.object.IntegerPair;
 import com.boydti.fawe.object.RunnableVal;
+import com.boydti.fawe.object.io.SectionSwap;
 import com.boydti.fawe.object.exception.FaweException;
 import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.util.ChunkDispatcher;
 import com.boydti.fawe.util.MainUtil;
 import com.boydti.fawe.util.SetQueue;
 import com.boydti.fawe.util.TaskManager;
 import com.sk89q.jnbt.CompoundTag;
 import com.sk89q.worldedit.world.biome.BaseBiome;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 
 public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
@@ -25,38 +26,41 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
     /**
      * Map of chunks in the queue
      */
-    private ConcurrentHashMap<Long, FaweChunk> blocks = new ConcurrentHashMap<>();
-    private LinkedBlockingDeque<FaweChunk> chunks = new LinkedBlockingDeque<FaweChunk>() {
-        @Override
-        public boolean add(FaweChunk o) {
-            if (getProgressTask() != null) {
-                getProgressTask().run(ProgressType.QUEUE, size() + 1);
-            }
-            return super.add(o);
-        }
-    };
+    private IFaweQueueMap map;
+    private final Object dispatchLock = new Object();
+    /**
+     * Incremented when the queue is cleared (so a background optimize stops, @see ChunkDispatcher#optimize)
+     */
+    private volatile int generation;
     private ArrayDeque<Runnable> tasks = new ArrayDeque<>();
 
+    /**
+     * The chunks which can be spilled, in dispatch order (@see #spill)<br>
+     *     - Filled from the map the first time the queue is spilled, afterwards a chunk is only added again when it's read back
+     */
+    private final ArrayDeque<CharFaweChunk> spillable = new ArrayDeque<>();
+    private boolean spillSeeded;
+
+    /**
+     * If the edit writing to this queue has finished (@see #enqueue)<br>
+     *     - Only a finished queue is spilled, and a write after that holds the chunk's lock (so a spill can't lose it)
+     */
+    private volatile boolean finished;
+
     @Override
     public void optimize() {
-        ArrayList<Thread> threads = new ArrayList<Thread>();
-        for (final FaweChunk chunk : chunks) {
-            Thread thread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    chunk.optimize();
-                }
-            });
-            threads.add(thread);
-            thread.start();
-        }
-        for (Thread thread : threads) {
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                MainUtil.handleError(e);
-            }
-        }
+        Collection<FaweChunk> chunks = map.getFaweChunks();
+        ChunkDispatcher.IMP.optimize(this, chunks.toArray(new FaweChunk[chunks.size()]));
+    }
+
+    @Override
+    public void enqueue() {
+        finished = true;
+        super.enqueue();
+    }
+
+    public boolean isFinished() {
+        return finished;
     }
 
     @Override
@@ -66,7 +70,35 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
     }
 
     public MappedFaweQueue(final String world) {
+        this(world, null);
+    }
+
+    public MappedFaweQueue(final String world, IFaweQueueMap map) {
         super(world);
+        if (map == null) {
+            map = Settings.PRIMITIVE_QUEUE_MAP ? new LongFaweQueueMap(this) : new DefaultFaweQueueMap(this);
+        }
+        this.map = map;
+    }
+
+    public IFaweQueueMap getFaweQueueMap() {
+        return map;
+    }
+
+    /**
+     * Change the storage used for queued chunks<br>
+     *     - Any chunks already queued are moved to the new map
+     * @param map
+     */
+    public void setFaweQueueMap(IFaweQueueMap map) {
+        IFaweQueueMap old = this.map;
+        this.map = map;
+        lastX = Integer.MIN_VALUE;
+        lastZ = Integer.MIN_VALUE;
+        for (FaweChunk chunk : old.getFaweChunks()) {
+            map.add(chunk);
+        }
+        old.clear();
     }
 
     public abstract WORLD getWorld(String world);
@@ -103,24 +135,9 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
 
     @Override
     public void addNotifyTask(int x, int z, Runnable runnable) {
-        long pair = (long) (x) << 32 | (z) & 0xFFFFFFFFL;
-        FaweChunk result = this.blocks.get(pair);
-        if (result == null) {
-            result = this.getFaweChunk(x, z);
-            result.addNotifyTask(runnable);
-            FaweChunk previous = this.blocks.put(pair, result);
-            if (previous == null) {
-                chunks.add(result);
-                return;
-            }
-            this.blocks.put(pair, previous);
-            result = previous;
-        }
-        result.addNotifyTask(runnable);
+        map.getFaweChunk(x, z).addNotifyTask(runnable);
     }
 
-
-
     private FaweChunk lastWrappedChunk;
     private int lastX = Integer.MIN_VALUE;
     private int lastZ = Integer.MIN_VALUE;
@@ -135,21 +152,16 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
         if (cx != lastX || cz != lastZ) {
             lastX = cx;
             lastZ = cz;
-            long pair = (long) (cx) << 32 | (cz) & 0xFFFFFFFFL;
-            lastWrappedChunk = this.blocks.get(pair);
-            if (lastWrappedChunk == null) {
-                lastWrappedChunk = this.getFaweChunk(x >> 4, z >> 4);
+            lastWrappedChunk = map.getFaweChunk(cx, cz);
+        }
+        if (finished) {
+            // The chunk may be being spilled
+            synchronized (lastWrappedChunk) {
                 lastWrappedChunk.setBlock(x & 15, y, z & 15, id, data);
-                FaweChunk previous = this.blocks.put(pair, lastWrappedChunk);
-                if (previous == null) {
-                    chunks.add(lastWrappedChunk);
-                    return true;
-                }
-                this.blocks.put(pair, previous);
-                lastWrappedChunk = previous;
             }
+        } else {
+            lastWrappedChunk.setBlock(x & 15, y, z & 15, id, data);
         }
-        lastWrappedChunk.setBlock(x & 15, y, z & 15, id, data);
         return true;
     }
 
@@ -163,19 +175,7 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
         if (cx != lastX || cz != lastZ) {
             lastX = cx;
             lastZ = cz;
-            long pair = (long) (cx) << 32 | (cz) & 0xFFFFFFFFL;
-            lastWrappedChunk = this.blocks.get(pair);
-            if (lastWrappedChunk == null) {
-                lastWrappedChunk = this.getFaweChunk(x >> 4, z >> 4);
-                lastWrappedChunk.setTile(x & 15, y, z & 15, tag);
-                FaweChunk previous = this.blocks.put(pair, lastWrappedChunk);
-                if (previous == null) {
-                    chunks.add(lastWrappedChunk);
-                    return;
-                }
-                this.blocks.put(pair, previous);
-                lastWrappedChunk = previous;
-            }
+            lastWrappedChunk = map.getFaweChunk(cx, cz);
         }
         lastWrappedChunk.setTile(x & 15, y, z & 15, tag);
     }
@@ -190,19 +190,7 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
         if (cx != lastX || cz != lastZ) {
             lastX = cx;
             lastZ = cz;
-            long pair = (long) (cx) << 32 | (cz) & 0xFFFFFFFFL;
-            lastWrappedChunk = this.blocks.get(pair);
-            if (lastWrappedChunk == null) {
-                lastWrappedChunk = this.getFaweChunk(x >> 4, z >> 4);
-                lastWrappedChunk.setEntity(tag);
-                FaweChunk previous = this.blocks.put(pair, lastWrappedChunk);
-                if (previous == null) {
-                    chunks.add(lastWrappedChunk);
-                    return;
-                }
-                this.blocks.put(pair, previous);
-                lastWrappedChunk = previous;
-            }
+            lastWrappedChunk = map.getFaweChunk(cx, cz);
         }
         lastWrappedChunk.setEntity(tag);
     }
@@ -217,38 +205,14 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
         if (cx != lastX || cz != lastZ) {
             lastX = cx;
             lastZ = cz;
-            long pair = (long) (cx) << 32 | (cz) & 0xFFFFFFFFL;
-            lastWrappedChunk = this.blocks.get(pair);
-            if (lastWrappedChunk == null) {
-                lastWrappedChunk = this.getFaweChunk(x >> 4, z >> 4);
-                lastWrappedChunk.removeEntity(uuid);
-                FaweChunk previous = this.blocks.put(pair, lastWrappedChunk);
-                if (previous == null) {
-                    chunks.add(lastWrappedChunk);
-                    return;
-                }
-                this.blocks.put(pair, previous);
-                lastWrappedChunk = previous;
-            }
+            lastWrappedChunk = map.getFaweChunk(cx, cz);
         }
         lastWrappedChunk.removeEntity(uuid);
     }
 
     @Override
     public boolean setBiome(int x, int z, BaseBiome biome) {
-        long pair = (long) (x >> 4) << 32 | (z >> 4) & 0xFFFFFFFFL;
-        FaweChunk result = this.blocks.get(pair);
-        if (result == null) {
-            result = this.getFaweChunk(x >> 4, z >> 4);
-            FaweChunk previous = this.blocks.put(pair, result);
-            if (previous != null) {
-                this.blocks.put(pair, previous);
-                result = previous;
-            } else {
-                chunks.add(result);
-            }
-        }
-        result.setBiome(x & 15, z & 15, biome);
+        map.getFaweChunk(x >> 4, z >> 4).setBiome(x & 15, z & 15, biome);
         return true;
     }
 
@@ -257,16 +221,16 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
         lastX = Integer.MIN_VALUE;
         lastZ = Integer.MIN_VALUE;
         try {
-            if (this.blocks.size() == 0) {
-                return null;
-            }
-            synchronized (blocks) {
-                FaweChunk chunk = chunks.poll();
-                if (chunk != null) {
-                    blocks.remove(chunk.longHash());
-                    this.execute(chunk);
-                    return chunk;
+            FaweChunk chunk;
+            synchronized (dispatchLock) {
+                if (map.size() == 0) {
+                    return null;
                 }
+                chunk = map.next();
+            }
+            if (chunk != null) {
+                this.execute(chunk);
+                return chunk;
             }
         } catch (Throwable e) {
             MainUtil.handleError(e);
@@ -275,6 +239,11 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
     }
 
     public void runTasks() {
+        synchronized (spillable) {
+            spillable.clear();
+            spillSeeded = false;
+        }
+        finished = false;
         if (getProgressTask() != null) {
             getProgressTask().run(ProgressType.DONE, 1);
         }
@@ -289,12 +258,69 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
         }
     }
 
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Spill the sections of queued chunks to disk, starting with the chunks which will be dispatched last<br>
+     *     - Nothing is spilled until the queue is finished (the edit could still be writing to the chunks)
+     * @param swap
+     * @param keep The number of chunks (at the front of the queue) to keep in memory
+     * @return The number of sections spilled
+     */
+    public int spill(SectionSwap swap, int keep) {
+        if (!finished) {
+            return 0;
+        }
+        synchronized (spillable) {
+            if (!spillSeeded) {
+                spillSeeded = true;
+                for (FaweChunk chunk : map.getFaweChunks()) {
+                    if (chunk instanceof CharFaweChunk) {
+                        spillable.add((CharFaweChunk) chunk);
+                    }
+                }
+            }
+        }
+        int amount = 0;
+        while (finished) {
+            CharFaweChunk chunk;
+            synchronized (spillable) {
+                // The chunks which have been dispatched are at the front
+                while (!spillable.isEmpty() && spillable.peekFirst().isPinned()) {
+                    spillable.pollFirst();
+                }
+                if (spillable.size() <= keep) {
+                    break;
+                }
+                chunk = spillable.pollLast();
+            }
+            // Not holding the lock, as a chunk adds itself back when it's read (@see #addSpillCandidate)
+            amount += chunk.spill(swap);
+        }
+        return amount;
+    }
+
+    /**
+     * Add a chunk which was read back from the swap, so it can be spilled again
+     * @param chunk
+     */
+    public void addSpillCandidate(CharFaweChunk chunk) {
+        synchronized (spillable) {
+            if (spillSeeded) {
+                spillable.add(chunk);
+            }
+        }
+    }
+
     @Override
     public int size() {
-        if (chunks.size() == 0 && SetQueue.IMP.getStage(this) != SetQueue.QueueStage.INACTIVE) {
+        int size = map.size();
+        if (size == 0 && SetQueue.IMP.getStage(this) != SetQueue.QueueStage.INACTIVE) {
             runTasks();
         }
-        return chunks.size();
+        return size;
     }
 
     private LinkedBlockingDeque<FaweChunk> toUpdate = new LinkedBlockingDeque<>();
@@ -305,11 +331,22 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
         if (fc == null) {
             return false;
         }
+        // Waits for a background optimize of this chunk to finish, and keeps it from starting while the chunk is set (@see ChunkDispatcher#optimize)
+        synchronized (fc) {
+            return executeLocked(fc);
+        }
+    }
+
+    private boolean executeLocked(final FaweChunk fc) {
+        if (fc instanceof CharFaweChunk) {
+            ((CharFaweChunk) fc).pin();
+        }
         // Set blocks / entities / biome
         if (getProgressTask() != null) {
-            getProgressTask().run(ProgressType.QUEUE, chunks.size());
+            getProgressTask().run(ProgressType.QUEUE, map.size());
             getProgressTask().run(ProgressType.DISPATCH, ++dispatched);
         }
+        long start = System.nanoTime();
         if (getChangeTask() != null) {
             if (!this.setComponents(fc, new RunnableVal<FaweChunk>() {
                 @Override
@@ -322,24 +359,37 @@ public abstract class MappedFaweQueue<WORLD, CHUNK, SECTION> extends FaweQueue {
         } else if (!this.setComponents(fc, null)) {
             return false;
         }
-        fc.executeNotifyTasks();
+        ChunkDispatcher.IMP.setTimer.stop(start);
+        if (fc.hasNotifyTasks()) {
+            start = System.nanoTime();
+            fc.executeNotifyTasks();
+            ChunkDispatcher.IMP.notifyTimer.stop(start);
+        }
         return true;
     }
 
     @Override
     public void clear() {
-        this.blocks.clear();
-        this.chunks.clear();
+        synchronized (dispatchLock) {
+            generation++;
+            // Free their space in the swap file
+            discard(map.getFaweChunks());
+            map.clear();
+        }
         runTasks();
     }
 
+    private void discard(Collection<FaweChunk> chunks) {
+        for (FaweChunk chunk : chunks) {
+            if (chunk instanceof CharFaweChunk) {
+                ((CharFaweChunk) chunk).discard();
+            }
+        }
+    }
+
     @Override
     public void setChunk(FaweChunk chunk) {
-        FaweChunk previous = this.blocks.put(chunk.longHash(), (FaweChunk) chunk);
-        if (previous != null) {
-            chunks.remove(previous);
-        }
-        chunks.add((FaweChunk) chunk);
+        map.add(chunk);
     }
 
     public int lastChunkX = Integer.MIN_VALUE;
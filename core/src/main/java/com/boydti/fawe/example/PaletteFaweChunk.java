@@ -0,0 +1,183 @@
+package com.boydti.fawe.example;
+
+import com.boydti.fawe.FaweCache;
+import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.io.SectionSwap;
+import com.boydti.fawe.util.MainUtil;
+import java.io.IOException;
+
+/**
+ * A CharFaweChunk which stores each section as a small palette until it has too many block types<br>
+ *     - Edits which only use a few block types (e.g. //set, //replace) use 512-2048 bytes per section instead of 8192
+ *     - A section is upgraded to the dense char[4096] when the palette fills up, or when it's requested with getIdArray
+ *     - Use getValue / getPalette to read a section without upgrading it (the platforms set palette sections directly)
+ *     - The history of a chunk (getCombinedIdArrays) still needs the dense arrays, but only once the chunk has been set
+ *     - getIdArray / getCount / getAir behave the same as CharFaweChunk
+ *     - Palette sections are spilled in their palette form (@see #spill)
+ *     - Only used by the platforms if queue.palette-sections is enabled
+ */
+public abstract class PaletteFaweChunk<T> extends CharFaweChunk<T> {
+
+    public PaletteSection[] palettes;
+
+    /**
+     * The sections which were spilled as a palette (a bit per section)
+     */
+    private int spilledPalettes;
+
+    /**
+     * A FaweSections object represents a chunk and the blocks that you wish to change in it.
+     *
+     * @param parent
+     * @param x
+     * @param z
+     */
+    public PaletteFaweChunk(FaweQueue parent, int x, int z) {
+        super(parent, x, z);
+        this.palettes = new PaletteSection[16];
+    }
+
+    /**
+     * Get the palette for a section
+     * @param i
+     * @return The palette, or null if the section is empty or dense
+     */
+    public PaletteSection getPalette(final int i) {
+        if (isSpilled()) {
+            unspill();
+        }
+        return this.palettes[i];
+    }
+
+    @Override
+    protected long spillSection(final int i, SectionSwap swap) throws IOException {
+        PaletteSection palette = this.palettes[i];
+        if (palette == null || this.ids[i] != null) {
+            return super.spillSection(i, swap);
+        }
+        long handle = swap.write(palette.toBytes());
+        this.palettes[i] = null;
+        this.spilledPalettes |= 1 << i;
+        return handle;
+    }
+
+    @Override
+    protected void unspillSection(final int i, long handle, SectionSwap swap) throws IOException {
+        if ((this.spilledPalettes & (1 << i)) == 0) {
+            super.unspillSection(i, handle, swap);
+            return;
+        }
+        this.palettes[i] = PaletteSection.fromBytes(swap.readBytes(handle));
+        this.spilledPalettes &= ~(1 << i);
+    }
+
+    @Override
+    public synchronized void discard() {
+        super.discard();
+        this.spilledPalettes = 0;
+    }
+
+    @Override
+    public char getValue(final int i, final int j) {
+        if (isSpilled()) {
+            unspill();
+        }
+        PaletteSection palette = this.palettes[i];
+        if (palette != null && this.ids[i] == null) {
+            return palette.get(j);
+        }
+        return super.getValue(i, j);
+    }
+
+    @Override
+    public char[] getIdArray(final int i) {
+        if (isSpilled()) {
+            unspill();
+        }
+        PaletteSection palette = this.palettes[i];
+        if (palette != null && this.ids[i] == null) {
+            this.palettes[i] = null;
+            return this.ids[i] = palette.toArray();
+        }
+        return super.getIdArray(i);
+    }
+
+    @Override
+    public char[][] getCombinedIdArrays() {
+        for (int i = 0; i < 16; i++) {
+            getIdArray(i);
+        }
+        return this.ids;
+    }
+
+    @Override
+    public void setUniform(final int i, final int id, byte data) {
+        if (isSpilled()) {
+            unspill();
+        }
+        this.palettes[i] = null;
+        super.setUniform(i, id, data);
+    }
+
+    @Override
+    public void setBlock(final int x, final int y, final int z, final int id, byte data) {
+        if (isSpilled()) {
+            unspill();
+        }
+        final int i = FaweCache.CACHE_I[y][x][z];
+        if (this.ids[i] != null) {
+            super.setBlock(x, y, z, id, data);
+            return;
+        }
+        final int j = FaweCache.CACHE_J[y][x][z];
+        PaletteSection palette = this.palettes[i];
+        if (palette == null) {
+            char value = this.uniform[i];
+            if (value != 0) {
+                palette = this.palettes[i] = new PaletteSection(value);
+                this.uniform[i] = 0;
+            } else {
+                palette = this.palettes[i] = new PaletteSection();
+            }
+        }
+        boolean added = palette.get(j) == 0;
+        char combined = getCombinedId(i, id, data);
+        if (!palette.set(j, combined)) {
+            char[] vs = this.ids[i] = palette.toArray();
+            this.palettes[i] = null;
+            vs[j] = combined;
+            if (added) {
+                this.count[i]++;
+            }
+            return;
+        }
+        if (added && ++this.count[i] == 4096 && palette.getPaletteSize() == 2) {
+            // Every block is the same
+            this.palettes[i] = null;
+            this.uniform[i] = combined;
+        }
+    }
+
+    @Override
+    public CharFaweChunk<T> copy(boolean shallow) {
+        CharFaweChunk<T> result = super.copy(shallow);
+        if (!(result instanceof PaletteFaweChunk)) {
+            // queue.palette-sections was turned off (reload) since this chunk was created
+            char[][] dense = getCombinedIdArrays();
+            result.ids = shallow ? dense : (char[][]) MainUtil.copyNd(dense);
+            return result;
+        }
+        PaletteFaweChunk<T> copy = (PaletteFaweChunk<T>) result;
+        if (shallow) {
+            copy.palettes = palettes;
+        } else {
+            copy.palettes = new PaletteSection[16];
+            for (int i = 0; i < 16; i++) {
+                if (palettes[i] != null) {
+                    copy.palettes[i] = palettes[i].copy();
+                }
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,193 @@
+package com.boydti.fawe.example;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A 16x16x16 section stored as a palette + bit packed indices<br>
+ *     - Palette index 0 is always 0 (unchanged)
+ *     - Indices use 1, 2 or 4 bits, so a single block never spans two longs
+ *     - Once the palette has more than {@link #MAX_PALETTE} entries it should be replaced with a char[4096]
+ */
+public class PaletteSection {
+
+    public static final int MAX_PALETTE = 16;
+
+    private char[] palette;
+    private int size;
+    private int bits;
+    private int mask;
+    private long[] data;
+
+    private char lastValue;
+    private int lastIndex;
+
+    public PaletteSection() {
+        this.palette = new char[2];
+        this.size = 1;
+        this.bits = 1;
+        this.mask = 1;
+        this.data = new long[64];
+    }
+
+    /**
+     * Create a section filled with a single value
+     * @param value
+     */
+    public PaletteSection(char value) {
+        this();
+        this.palette[1] = value;
+        this.size = 2;
+        Arrays.fill(data, -1L);
+    }
+
+    private PaletteSection(PaletteSection other) {
+        this.palette = other.palette.clone();
+        this.size = other.size;
+        this.bits = other.bits;
+        this.mask = other.mask;
+        this.data = other.data.clone();
+    }
+
+    public char get(int index) {
+        int bitIndex = index * bits;
+        return palette[(int) (data[bitIndex >> 6] >>> (bitIndex & 63)) & mask];
+    }
+
+    /**
+     * Set a value in this section
+     * @param index
+     * @param value
+     * @return false if the value doesn't fit in the palette (the section needs to be made dense)
+     */
+    public boolean set(int index, char value) {
+        int paletteIndex;
+        if (value == lastValue && size > lastIndex) {
+            paletteIndex = lastIndex;
+        } else {
+            paletteIndex = indexOf(value);
+            if (paletteIndex == -1) {
+                if (size >= MAX_PALETTE) {
+                    return false;
+                }
+                if (size > mask) {
+                    resize(bits << 1);
+                }
+                paletteIndex = size;
+                palette[size++] = value;
+            }
+            lastValue = value;
+            lastIndex = paletteIndex;
+        }
+        int bitIndex = index * bits;
+        int shift = bitIndex & 63;
+        int word = bitIndex >> 6;
+        data[word] = (data[word] & ~((long) mask << shift)) | ((long) paletteIndex << shift);
+        return true;
+    }
+
+    private int indexOf(char value) {
+        for (int i = 0; i < size; i++) {
+            if (palette[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void resize(int newBits) {
+        PaletteSection old = new PaletteSection(this);
+        this.bits = newBits;
+        this.mask = (1 << newBits) - 1;
+        this.palette = new char[1 << newBits];
+        System.arraycopy(old.palette, 0, palette, 0, size);
+        this.data = new long[newBits << 6];
+        for (int i = 0; i < 4096; i++) {
+            int oldBitIndex = i * old.bits;
+            long paletteIndex = (old.data[oldBitIndex >> 6] >>> (oldBitIndex & 63)) & old.mask;
+            if (paletteIndex != 0) {
+                int bitIndex = i * bits;
+                data[bitIndex >> 6] |= paletteIndex << (bitIndex & 63);
+            }
+        }
+    }
+
+    /**
+     * Get the number of distinct values (including 0)
+     * @return
+     */
+    public int getPaletteSize() {
+        return size;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Decode this section to the dense format used by CharFaweChunk
+     * @return
+     */
+    public char[] toArray() {
+        char[] array = new char[4096];
+        if (size == 1) {
+            return array;
+        }
+        int perWord = 64 / bits;
+        int index = 0;
+        for (long word : data) {
+            if (word == 0) {
+                index += perWord;
+                continue;
+            }
+            for (int k = 0; k < perWord; k++, word >>>= bits) {
+                array[index++] = palette[(int) word & mask];
+            }
+        }
+        return array;
+    }
+
+    public PaletteSection copy() {
+        return new PaletteSection(this);
+    }
+
+    /**
+     * Encode this section (e.g. to spill it to disk)<br>
+     *     - { byte size, byte bits, char[1 << bits] palette, long[bits << 6] indices }
+     * @return
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + (palette.length << 1) + (data.length << 3));
+        buffer.put((byte) size);
+        buffer.put((byte) bits);
+        for (char value : palette) {
+            buffer.putChar(value);
+        }
+        for (long word : data) {
+            buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decode a section written with {@link #toBytes()}
+     * @param bytes
+     * @return
+     */
+    public static PaletteSection fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        PaletteSection section = new PaletteSection();
+        section.size = buffer.get() & 0xFF;
+        section.bits = buffer.get();
+        section.mask = (1 << section.bits) - 1;
+        section.palette = new char[1 << section.bits];
+        for (int i = 0; i < section.palette.length; i++) {
+            section.palette[i] = buffer.getChar();
+        }
+        section.data = new long[section.bits << 6];
+        for (int i = 0; i < section.data.length; i++) {
+            section.data[i] = buffer.getLong();
+        }
+        return section;
+    }
+}
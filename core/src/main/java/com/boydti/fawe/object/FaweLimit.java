@@ -14,6 +14,7 @@ public class FaweLimit {
     public int MAX_ITERATIONS = 1000;
     public int MAX_BLOCKSTATES = 1337;
     public int MAX_ENTITIES = 1337;
+    public int QUEUE_WEIGHT = 1;
 
     public static FaweLimit MAX;
     static {
@@ -24,6 +25,7 @@ public class FaweLimit {
         MAX.MAX_ITERATIONS = Integer.MAX_VALUE;
         MAX.MAX_BLOCKSTATES = Integer.MAX_VALUE;
         MAX.MAX_ENTITIES = Integer.MAX_VALUE;
+        MAX.QUEUE_WEIGHT = 1;
     }
 
     public boolean load(ConfigurationSection section, FaweLimit defaultLimit, boolean save) {
@@ -33,6 +35,7 @@ public class FaweLimit {
         this.MAX_ITERATIONS = section.getInt("max-iterations", defaultLimit == null ? MAX_ITERATIONS : defaultLimit.MAX_ITERATIONS);
         this.MAX_BLOCKSTATES = section.getInt("max-blockstates", defaultLimit == null ? MAX_BLOCKSTATES : defaultLimit.MAX_BLOCKSTATES);
         this.MAX_ENTITIES = section.getInt("max-entities", defaultLimit == null ? MAX_ENTITIES : defaultLimit.MAX_ENTITIES);
+        this.QUEUE_WEIGHT = section.getInt("queue-weight", defaultLimit == null ? QUEUE_WEIGHT : defaultLimit.QUEUE_WEIGHT);
         boolean changed = false;
         if (save) {
             HashMap<String, Object> options = new HashMap<>();
@@ -42,6 +45,7 @@ public class FaweLimit {
             options.put("max-iterations", MAX_ITERATIONS);
             options.put("max-blockstates", MAX_BLOCKSTATES);
             options.put("max-entities", MAX_ENTITIES);
+            options.put("queue-weight", QUEUE_WEIGHT);
             for (Map.Entry<String, Object> entry : options.entrySet()) {
                 if (!section.contains(entry.getKey())) {
                     section.set(entry.getKey(), entry.getValue());
@@ -60,6 +64,7 @@ public class FaweLimit {
         limit.MAX_ENTITIES = MAX_ENTITIES;
         limit.MAX_FAILS = MAX_FAILS;
         limit.MAX_ITERATIONS = MAX_ITERATIONS;
+        limit.QUEUE_WEIGHT = QUEUE_WEIGHT;
         return limit;
     }
 
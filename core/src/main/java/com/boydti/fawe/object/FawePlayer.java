@@ -6,7 +6,9 @@ import com.boydti.fawe.config.BBC;
 import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.object.changeset.DiskStorageHistory;
 import com.boydti.fawe.object.changeset.FaweStreamChangeSet;
+import com.boydti.fawe.object.changeset.HistoryPack;
 import com.boydti.fawe.object.clipboard.DiskOptimizedClipboard;
+import com.boydti.fawe.object.clipboard.MappedDiskClipboard;
 import com.boydti.fawe.util.MainUtil;
 import com.boydti.fawe.util.TaskManager;
 import com.boydti.fawe.util.WEManager;
@@ -112,7 +114,6 @@ public abstract class FawePlayer<T> {
         File file = new File(Fawe.imp().getDirectory(), "clipboard" + File.separator + getUUID());
         try {
             if (file.exists() && file.length() > 5) {
-                DiskOptimizedClipboard doc = new DiskOptimizedClipboard(file);
                 Player player = getPlayer();
                 LocalSession session = getSession();
                 try {
@@ -120,10 +121,13 @@ public abstract class FawePlayer<T> {
                         return;
                     }
                 } catch (EmptyClipboardException e) {}
+                // After the session check, as a mapped clipboard takes the file over from the session's clipboard
+                DiskOptimizedClipboard doc = Settings.CLIPBOARD_MEMORY_MAPPED ? null : new DiskOptimizedClipboard(file);
+                MappedDiskClipboard mdc = Settings.CLIPBOARD_MEMORY_MAPPED ? new MappedDiskClipboard(file) : null;
                 if (player != null && session != null) {
                     BBC.LOADING_CLIPBOARD.send(this);
                     WorldData worldData = player.getWorld().getWorldData();
-                    Clipboard clip = doc.toClipboard();
+                    Clipboard clip = mdc != null ? mdc.toClipboard() : doc.toClipboard();
                     ClipboardHolder holder = new ClipboardHolder(clip, worldData);
                     getSession().setClipboard(holder);
                 }
@@ -166,6 +170,8 @@ public abstract class FawePlayer<T> {
                     editIds.add(index);
                 }
             }
+            // Edits merged by the HistoryCompactor
+            editIds.addAll(HistoryPack.get(folder).getIds());
         }
         if (editIds.size() > 0) {
             BBC.INDEXING_HISTORY.send(this, editIds.size());
@@ -384,6 +390,8 @@ public abstract class FawePlayer<T> {
             getSession().clearHistory();
             WorldEdit.getInstance().removeSession(getPlayer());
         }
+        // The clipboard file stays, but isn't mapped while the player is offline
+        MappedDiskClipboard.close(new File(Fawe.imp().getDirectory(), "clipboard" + File.separator + getUUID()));
         Fawe.get().unregister(getName());
     }
 
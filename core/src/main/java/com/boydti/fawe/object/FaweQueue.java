@@ -24,6 +24,8 @@ public abstract class FaweQueue {
     private long modified = System.currentTimeMillis();
     private RunnableVal2<FaweChunk, FaweChunk> changeTask;
     private RunnableVal2<ProgressType, Integer> progressTask;
+    private FawePlayer player;
+    private long enqueued;
 
     public FaweQueue(String world) {
         this.world = world;
@@ -56,6 +58,30 @@ public abstract class FaweQueue {
         return world;
     }
 
+    /**
+     * Get the player who owns this queue (used to schedule queues fairly)
+     * @return The player, or null for console / plugin edits
+     */
+    public FawePlayer getPlayer() {
+        return player;
+    }
+
+    public void setPlayer(FawePlayer player) {
+        this.player = player;
+    }
+
+    /**
+     * Get when this queue was enqueued (0 once its first chunk has been dispatched)
+     * @return
+     */
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    public void setEnqueued(long enqueued) {
+        this.enqueued = enqueued;
+    }
+
     /**
      * Add a progress task<br>
      *      - Progress type
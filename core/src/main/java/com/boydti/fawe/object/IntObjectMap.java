@@ -0,0 +1,171 @@
+package com.boydti.fawe.object;
+
+import java.util.Arrays;
+
+/**
+ * A map of int keys to values (e.g. a clipboard index to the nbt of the block there)<br>
+ *     - Lookups don't allocate (no boxed keys or entry objects)
+ *     - Open addressing with linear probing, null values are not stored
+ *     - Iteration (@see #forEach) is in key order
+ * @param <T>
+ */
+public class IntObjectMap<T> {
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * The keys in order, or null if they changed since they were last sorted
+     */
+    private int[] sorted;
+
+    public interface Visitor<T> {
+        void run(int key, T value);
+    }
+
+    public IntObjectMap() {
+        this(16);
+    }
+
+    public IntObjectMap(int capacity) {
+        int length = Integer.highestOneBit(Math.max(4, capacity) * 2 - 1);
+        keys = new int[length];
+        values = new Object[length];
+        mask = length - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(int key) {
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    public T get(int key) {
+        return (T) values[slot(key)];
+    }
+
+    public boolean containsKey(int key) {
+        return values[slot(key)] != null;
+    }
+
+    /**
+     * Set the value of a key
+     * @param key
+     * @param value The value (null removes the key)
+     * @return The previous value
+     */
+    public T put(int key, T value) {
+        if (value == null) {
+            return remove(key);
+        }
+        int i = slot(key);
+        T previous = (T) values[i];
+        if (previous == null) {
+            keys[i] = key;
+            sorted = null;
+            if (++size > (keys.length >> 1) + (keys.length >> 2)) {
+                values[i] = value;
+                resize(keys.length << 1);
+                return null;
+            }
+        }
+        values[i] = value;
+        return previous;
+    }
+
+    public T remove(int key) {
+        int i = slot(key);
+        T previous = (T) values[i];
+        if (previous == null) {
+            return null;
+        }
+        values[i] = null;
+        size--;
+        sorted = null;
+        // Move back any entries which probed past the removed slot
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                return previous;
+            }
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void resize(int length) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[length];
+        values = new Object[length];
+        mask = length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object value = oldValues[i];
+            if (value != null) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = value;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+        sorted = null;
+    }
+
+    /**
+     * Get the keys in ascending order
+     * @return A shared array (don't modify it)
+     */
+    public int[] getKeys() {
+        int[] result = sorted;
+        if (result == null) {
+            result = new int[size];
+            int index = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    result[index++] = keys[i];
+                }
+            }
+            Arrays.sort(result);
+            sorted = result;
+        }
+        return result;
+    }
+
+    /**
+     * Visit each entry in key order<br>
+     *     - The map must not be modified while visiting
+     * @param task
+     */
+    public void forEach(Visitor<T> task) {
+        for (int key : getKeys()) {
+            task.run(key, get(key));
+        }
+    }
+}
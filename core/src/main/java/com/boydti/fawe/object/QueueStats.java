@@ -0,0 +1,62 @@
+package com.boydti.fawe.object;
+
+/**
+ * Scheduling statistics for the queues owned by a player (or console)
+ */
+public class QueueStats {
+
+    private final String owner;
+    private long chunks;
+    private long queues;
+    private long lastWait;
+    private long maxWait;
+    private long totalWait;
+
+    public QueueStats(String owner) {
+        this.owner = owner;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Record the time a queue waited (from being enqueued to its first chunk being dispatched)
+     * @param wait in milliseconds
+     */
+    public synchronized void addWait(long wait) {
+        queues++;
+        lastWait = wait;
+        totalWait += wait;
+        maxWait = Math.max(maxWait, wait);
+    }
+
+    public synchronized void addChunks(int amount) {
+        chunks += amount;
+    }
+
+    public synchronized long getChunks() {
+        return chunks;
+    }
+
+    public synchronized long getQueues() {
+        return queues;
+    }
+
+    public synchronized long getLastWait() {
+        return lastWait;
+    }
+
+    public synchronized long getMaxWait() {
+        return maxWait;
+    }
+
+    public synchronized long getAverageWait() {
+        return queues == 0 ? 0 : totalWait / queues;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return owner + ": " + queues + " queues, " + chunks + " chunks, wait " + getAverageWait() + "ms (last " + lastWait + "ms, max " + maxWait + "ms)";
+    }
+}
@@ -0,0 +1,65 @@
+package com.boydti.fawe.object;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe accumulator for the time spent in a stage (in nanoseconds)
+ */
+public class StageTimer {
+
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public StageTimer(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record a sample which started at `start` (System.nanoTime())
+     * @param start
+     */
+    public void stop(long start) {
+        add(System.nanoTime() - start);
+    }
+
+    public void add(long nanos) {
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getAverage() {
+        long amount = count.get();
+        return amount == 0 ? 0 : total.get() / amount;
+    }
+
+    public void reset() {
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getCount() + " x " + (getAverage() / 1000) / 1000d + "ms (max " + (getMax() / 1000) / 1000d + "ms, total " + getTotal() / 1000000 + "ms)";
+    }
+}
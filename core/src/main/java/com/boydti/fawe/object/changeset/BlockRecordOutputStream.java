@@ -0,0 +1,175 @@
+package com.boydti.fawe.object.changeset;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes block changes as delta encoded records (record version 2)<br>
+ * <br>
+ * [header] (if written)<br>
+ * { int marker, int origin x, int origin z }<br>
+ * - Version 1 streams start with the origin x, which is never the marker<br>
+ * <br>
+ * [records]... one token byte, then the fields the token doesn't cover<br>
+ * - POS_NEXT: x + 1, otherwise { varint dx, varint dy, varint dz } (zigzag, from the previous position)<br>
+ * - SAME_FROM: the previous combinedFrom, otherwise { varint combinedFrom }<br>
+ * - SAME_TO: the previous combinedTo, otherwise { varint combinedTo }<br>
+ * - RUN: { varint n } - n changes, each x + 1 with the same combinedFrom and combinedTo<br>
+ * - RESET: go back to the origin (y = 0, ids = 0), which is where the state starts<br>
+ * <br>
+ * A run is held back until the next change that breaks it (or finish)
+ * @see BlockRecordReader
+ */
+public class BlockRecordOutputStream extends OutputStream {
+
+    public static final int VERSION_RAW = 1;
+    public static final int VERSION_DELTA = 2;
+
+    public static final int MARKER = 0x80000000 + VERSION_DELTA;
+
+    public static final int POS_NEXT = 1;
+    public static final int SAME_FROM = 2;
+    public static final int SAME_TO = 4;
+    public static final int RUN = 8;
+    public static final int RESET = 16;
+
+    private final OutputStream out;
+    private final int originX;
+    private final int originZ;
+
+    private int lastX;
+    private int lastY;
+    private int lastZ;
+    private int lastFrom;
+    private int lastTo;
+    private int run;
+
+    /**
+     * @param out
+     * @param originX
+     * @param originZ
+     * @param header true to write the header, false to start with a RESET (e.g. for each segment of a chunked file)
+     * @throws IOException
+     */
+    public BlockRecordOutputStream(OutputStream out, int originX, int originZ, boolean header) throws IOException {
+        this.out = out;
+        this.originX = originX;
+        this.originZ = originZ;
+        if (header) {
+            writeInt(MARKER);
+            writeInt(originX);
+            writeInt(originZ);
+        } else {
+            out.write(RESET);
+        }
+        lastX = originX;
+        lastZ = originZ;
+    }
+
+    public int getOriginX() {
+        return originX;
+    }
+
+    public int getOriginZ() {
+        return originZ;
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private void writeSignedVarInt(int value) throws IOException {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void write(int x, int y, int z, int combinedFrom, int combinedTo) throws IOException {
+        boolean next = x == lastX + 1 && y == lastY && z == lastZ;
+        if (next && combinedFrom == lastFrom && combinedTo == lastTo) {
+            run++;
+            lastX = x;
+            return;
+        }
+        finish();
+        int token = 0;
+        if (next) {
+            token |= POS_NEXT;
+        }
+        if (combinedFrom == lastFrom) {
+            token |= SAME_FROM;
+        }
+        if (combinedTo == lastTo) {
+            token |= SAME_TO;
+        }
+        out.write(token);
+        if (!next) {
+            writeSignedVarInt(x - lastX);
+            writeSignedVarInt(y - lastY);
+            writeSignedVarInt(z - lastZ);
+        }
+        if (combinedFrom != lastFrom) {
+            writeVarInt(combinedFrom);
+        }
+        if (combinedTo != lastTo) {
+            writeVarInt(combinedTo);
+        }
+        lastX = x;
+        lastY = y;
+        lastZ = z;
+        lastFrom = combinedFrom;
+        lastTo = combinedTo;
+    }
+
+    /**
+     * Write any run which is being held back
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (run == 1) {
+            out.write(POS_NEXT | SAME_FROM | SAME_TO);
+        } else if (run > 1) {
+            out.write(RUN);
+            writeVarInt(run);
+        }
+        run = 0;
+    }
+
+    /**
+     * Write a raw byte after the records so far (any held back run is written first)<br>
+     *     - The delta state isn't changed, the reader has to expect the raw bytes at this point
+     * @param b
+     * @throws IOException
+     */
+    @Override
+    public void write(int b) throws IOException {
+        finish();
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        finish();
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+}
@@ -0,0 +1,135 @@
+package com.boydti.fawe.object.changeset;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads block change records (either version) without allocating per change<br>
+ *     - Version 1: { short rel x, short rel z, unsigned byte y, short combinedFrom, short combinedTo }
+ *     - Version 2: @see BlockRecordOutputStream
+ */
+public class BlockRecordReader {
+
+    private final InputStream is;
+    private final int version;
+    private final int originX;
+    private final int originZ;
+
+    public int x;
+    public int y;
+    public int z;
+    public int combinedFrom;
+    public int combinedTo;
+
+    private int run;
+
+    public BlockRecordReader(InputStream is, int version, int originX, int originZ) {
+        this.is = is;
+        this.version = version;
+        this.originX = originX;
+        this.originZ = originZ;
+        reset();
+    }
+
+    private void reset() {
+        x = originX;
+        y = 0;
+        z = originZ;
+        combinedFrom = 0;
+        combinedTo = 0;
+        run = 0;
+    }
+
+    /**
+     * Read the stream header
+     * @param is
+     * @return { version, origin x, origin z }
+     * @throws IOException
+     */
+    public static int[] readHeader(InputStream is) throws IOException {
+        int first = readInt(is);
+        if (first == BlockRecordOutputStream.MARKER) {
+            return new int[] { BlockRecordOutputStream.VERSION_DELTA, readInt(is), readInt(is) };
+        }
+        return new int[] { BlockRecordOutputStream.VERSION_RAW, first, readInt(is) };
+    }
+
+    private static int readInt(InputStream is) throws IOException {
+        return (is.read() << 24) + (is.read() << 16) + (is.read() << 8) + is.read();
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = is.read();
+            if (b == -1) {
+                throw new IOException("Truncated record");
+            }
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private int readSignedVarInt() throws IOException {
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read the next change into x, y, z, combinedFrom and combinedTo
+     * @return false at the end of the stream
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        if (version == BlockRecordOutputStream.VERSION_RAW) {
+            int read0 = is.read();
+            if (read0 == -1) {
+                return false;
+            }
+            x = ((byte) read0 & 0xFF) + ((byte) is.read() << 8) + originX;
+            z = ((byte) is.read() & 0xFF) + ((byte) is.read() << 8) + originZ;
+            y = is.read() & 0xFF;
+            combinedFrom = is.read() + (is.read() << 8);
+            combinedTo = is.read() + (is.read() << 8);
+            return true;
+        }
+        if (run > 0) {
+            run--;
+            x++;
+            return true;
+        }
+        int token;
+        while ((token = is.read()) == BlockRecordOutputStream.RESET) {
+            reset();
+        }
+        if (token == -1) {
+            return false;
+        }
+        if (token == BlockRecordOutputStream.RUN) {
+            run = readVarInt() - 1;
+            x++;
+            return true;
+        }
+        if ((token & BlockRecordOutputStream.POS_NEXT) != 0) {
+            x++;
+        } else {
+            x += readSignedVarInt();
+            y += readSignedVarInt();
+            z += readSignedVarInt();
+        }
+        if ((token & BlockRecordOutputStream.SAME_FROM) == 0) {
+            combinedFrom = readVarInt();
+        }
+        if ((token & BlockRecordOutputStream.SAME_TO) == 0) {
+            combinedTo = readVarInt();
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        is.close();
+    }
+}
@@ -0,0 +1,409 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.object.RegionWrapper;
+import com.boydti.fawe.util.MainUtil;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * The index of a chunk bucketed block history file (.bd)<br>
+ * <br>
+ * [header]<br>
+ * { int magic, byte version, int origin x, int origin z }<br>
+ * <br>
+ * [segments]... (one or more per chunk, each an LZ4 block)<br>
+ * { int chunk x, int chunk z, int compressed length, int raw length, int changes, byte[] compressed }<br>
+ * - The raw records are the same as the flat format, starting with a RESET (@see BlockRecordOutputStream)<br>
+ * <br>
+ * [index]<br>
+ * { int segments, { int chunk x, int chunk z, long offset, int compressed length, int raw length, int changes }..., int minX, int minY, int minZ, int maxX, int maxY, int maxZ }<br>
+ * <br>
+ * [trailer]<br>
+ * { long index offset, int magic }<br>
+ * <br>
+ * The flat format starts with the length of an LZ4 block (so its first byte is always 0), which is how the two are told apart.
+ * If the trailer is missing (e.g. the server crashed before the history was flushed) the index is rebuilt from the segment headers.<br>
+ * The segments are read from a single memory mapping, so a file is at most MAX_FILE_SIZE (2GB), which the writer enforces.
+ */
+public class ChunkHistoryIndex {
+
+    public static final int MAGIC = 0x46424443; // FBDC
+    public static final byte VERSION = BlockRecordOutputStream.VERSION_DELTA;
+    public static final int HEADER_SIZE = 13;
+    public static final int SEGMENT_HEADER_SIZE = 20;
+    public static final int TRAILER_SIZE = 12;
+    public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private final File file;
+    private int version = VERSION;
+    private int originX;
+    private int originZ;
+
+    private int size;
+    private int[] chunkX = new int[16];
+    private int[] chunkZ = new int[16];
+    private long[] offset = new long[16];
+    private int[] length = new int[16];
+    private int[] rawLength = new int[16];
+    private int[] changes = new int[16];
+
+    public int minX = Integer.MAX_VALUE;
+    public int minY = Integer.MAX_VALUE;
+    public int minZ = Integer.MAX_VALUE;
+    public int maxX = Integer.MIN_VALUE;
+    public int maxY = Integer.MIN_VALUE;
+    public int maxZ = Integer.MIN_VALUE;
+
+    public ChunkHistoryIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Check if a file uses the chunk bucketed format
+     * @param file
+     * @return
+     */
+    public static boolean isChunked(File file) {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.readInt() == MAGIC;
+        } catch (IOException ignore) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the index of a file (or rebuild it from the segments if there is no trailer)
+     * @param file
+     * @return
+     * @throws IOException if the file isn't in the chunked format
+     */
+    public static ChunkHistoryIndex read(File file) throws IOException {
+        ChunkHistoryIndex index = new ChunkHistoryIndex(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException("Not a chunked history file: " + file);
+            }
+            index.version = raf.readByte();
+            if (index.version != VERSION) {
+                throw new IOException("Unsupported chunked history version " + index.version + ": " + file);
+            }
+            index.originX = raf.readInt();
+            index.originZ = raf.readInt();
+            long fileLength = raf.length();
+            if (fileLength > MAX_FILE_SIZE) {
+                throw new IOException("History file is larger than 2GB: " + file);
+            }
+            if (fileLength >= HEADER_SIZE + TRAILER_SIZE) {
+                raf.seek(fileLength - TRAILER_SIZE);
+                long indexOffset = raf.readLong();
+                if (raf.readInt() == MAGIC && indexOffset >= HEADER_SIZE && indexOffset < fileLength) {
+                    raf.seek(indexOffset);
+                    index.readIndex(raf);
+                    return index;
+                }
+            }
+            index.scan(raf);
+        }
+        return index;
+    }
+
+    private void readIndex(RandomAccessFile raf) throws IOException {
+        int count = raf.readInt();
+        for (int i = 0; i < count; i++) {
+            int cx = raf.readInt();
+            int cz = raf.readInt();
+            long offset = raf.readLong();
+            int length = raf.readInt();
+            int raw = raf.readInt();
+            add(cx, cz, offset, length, raw, raf.readInt());
+        }
+        minX = raf.readInt();
+        minY = raf.readInt();
+        minZ = raf.readInt();
+        maxX = raf.readInt();
+        maxY = raf.readInt();
+        maxZ = raf.readInt();
+    }
+
+    /**
+     * Rebuild the index from the segment headers (bounds are chunk aligned)
+     */
+    private void scan(RandomAccessFile raf) throws IOException {
+        long position = HEADER_SIZE;
+        long end = raf.length();
+        while (position + SEGMENT_HEADER_SIZE <= end) {
+            raf.seek(position);
+            int cx = raf.readInt();
+            int cz = raf.readInt();
+            int compressed = raf.readInt();
+            int raw = raf.readInt();
+            int count = raf.readInt();
+            if (compressed < 0 || raw < 0 || position + SEGMENT_HEADER_SIZE + compressed > end) {
+                break;
+            }
+            add(cx, cz, position + SEGMENT_HEADER_SIZE, compressed, raw, count);
+            minX = Math.min(minX, cx << 4);
+            minZ = Math.min(minZ, cz << 4);
+            maxX = Math.max(maxX, (cx << 4) + 15);
+            maxZ = Math.max(maxZ, (cz << 4) + 15);
+            position += SEGMENT_HEADER_SIZE + compressed;
+        }
+        minY = 0;
+        maxY = 255;
+    }
+
+    /**
+     * Add a segment
+     * @param cx
+     * @param cz
+     * @param offset The file offset of the compressed data
+     * @param length The compressed length
+     * @param rawLength The decompressed length
+     * @param changes The number of block changes
+     */
+    public void add(int cx, int cz, long offset, int length, int rawLength, int changes) {
+        if (size == chunkX.length) {
+            int newSize = size << 1;
+            chunkX = Arrays.copyOf(chunkX, newSize);
+            chunkZ = Arrays.copyOf(chunkZ, newSize);
+            this.offset = Arrays.copyOf(this.offset, newSize);
+            this.length = Arrays.copyOf(this.length, newSize);
+            this.rawLength = Arrays.copyOf(this.rawLength, newSize);
+            this.changes = Arrays.copyOf(this.changes, newSize);
+        }
+        chunkX[size] = cx;
+        chunkZ[size] = cz;
+        this.offset[size] = offset;
+        this.length[size] = length;
+        this.rawLength[size] = rawLength;
+        this.changes[size] = changes;
+        size++;
+    }
+
+    /**
+     * Write the index and trailer (in the current version)
+     * @param raf
+     * @param indexOffset The current position in the file
+     * @throws IOException
+     */
+    public void write(DataOutput raf, long indexOffset) throws IOException {
+        raf.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            raf.writeInt(chunkX[i]);
+            raf.writeInt(chunkZ[i]);
+            raf.writeLong(offset[i]);
+            raf.writeInt(length[i]);
+            raf.writeInt(rawLength[i]);
+            raf.writeInt(changes[i]);
+        }
+        raf.writeInt(minX);
+        raf.writeInt(minY);
+        raf.writeInt(minZ);
+        raf.writeInt(maxX);
+        raf.writeInt(maxY);
+        raf.writeInt(maxZ);
+        raf.writeLong(indexOffset);
+        raf.writeInt(MAGIC);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getOriginX() {
+        return originX;
+    }
+
+    public int getOriginZ() {
+        return originZ;
+    }
+
+    /**
+     * Get the number of segments
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getChunkX(int segment) {
+        return chunkX[segment];
+    }
+
+    public int getChunkZ(int segment) {
+        return chunkZ[segment];
+    }
+
+    /**
+     * Get the file offset of a segment's compressed data
+     * @param segment
+     * @return
+     */
+    public long getOffset(int segment) {
+        return offset[segment];
+    }
+
+    /**
+     * Get the decompressed length of a segment
+     * @param segment
+     * @return
+     */
+    public int getRawLength(int segment) {
+        return rawLength[segment];
+    }
+
+    /**
+     * Get the number of block changes in a segment
+     * @param segment
+     * @return
+     */
+    public int getChanges(int segment) {
+        return changes[segment];
+    }
+
+    /**
+     * Get the total number of block changes
+     * @return
+     */
+    public int getChanges() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += changes[i];
+        }
+        return total;
+    }
+
+    /**
+     * Check if a segment's chunk intersects a region
+     * @param segment
+     * @param region (null for everything)
+     * @return
+     */
+    public boolean intersects(int segment, RegionWrapper region) {
+        if (region == null) {
+            return true;
+        }
+        int bx = chunkX[segment] << 4;
+        int bz = chunkZ[segment] << 4;
+        return bx <= region.maxX && bx + 15 >= region.minX && bz <= region.maxZ && bz + 15 >= region.minZ;
+    }
+
+    /**
+     * Check if any change may be in a region
+     * @param region
+     * @return
+     */
+    public boolean intersects(RegionWrapper region) {
+        return size != 0 && minX <= region.maxX && maxX >= region.minX && minZ <= region.maxZ && maxZ >= region.minZ;
+    }
+
+    /**
+     * Read the changes in the segments which intersect a region, last to first
+     * @param region The region (null for every segment)
+     * @return
+     * @throws IOException
+     */
+    public ReverseBlockRecordReader getReverseReader(RegionWrapper region) throws IOException {
+        return new ReverseBlockRecordReader(this, region);
+    }
+
+    /**
+     * Get the raw records of the segments which intersect a region (the flat format's records, without the header)<br>
+     *     - The file is memory mapped, and only the segments in the region are decompressed
+     * @param region The region (null for every segment)
+     * @return
+     * @throws IOException
+     */
+    public InputStream getInputStream(final RegionWrapper region) throws IOException {
+        final MappedByteBuffer mapped = MainUtil.mapFile(file);
+        mapped.order(ByteOrder.nativeOrder());
+        final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+        return new InputStream() {
+            private MappedByteBuffer source = mapped;
+            private int segment = -1;
+            private byte[] buffer = new byte[0];
+            private ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            private int position;
+            private int limit;
+
+            private boolean next() throws IOException {
+                if (source == null) {
+                    throw new IOException("Stream closed");
+                }
+                while (position >= limit) {
+                    if (++segment >= size) {
+                        return false;
+                    }
+                    if (intersects(segment, region)) {
+                        int raw = rawLength[segment];
+                        if (raw > buffer.length) {
+                            buffer = new byte[raw];
+                            wrapped = ByteBuffer.wrap(buffer);
+                        }
+                        decompressor.decompress(source, (int) offset[segment], wrapped, 0, raw);
+                        position = 0;
+                        limit = raw;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!next()) {
+                    return -1;
+                }
+                return buffer[position++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!next()) {
+                    return -1;
+                }
+                int amount = Math.min(len, limit - position);
+                System.arraycopy(buffer, position, b, off, amount);
+                position += amount;
+                return amount;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = 0;
+                while (skipped < n && next()) {
+                    int amount = (int) Math.min(n - skipped, limit - position);
+                    position += amount;
+                    skipped += amount;
+                }
+                return skipped;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (source != null) {
+                    MainUtil.unmap(source);
+                    source = null;
+                }
+            }
+        };
+    }
+}
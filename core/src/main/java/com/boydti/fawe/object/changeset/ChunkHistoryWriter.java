@@ -0,0 +1,222 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.io.WritePipeline;
+import com.boydti.fawe.util.MathMan;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * Writes block changes to a chunk bucketed history file<br>
+ *     - Changes are buffered (delta encoded) per chunk, and written as one segment per chunk when the buffers reach Settings.BUFFER_SIZE (or on close)
+ *     - A chunk edited across several flushes has several segments
+ *     - A segment has at most MAX_SEGMENT_CHANGES changes (so it can be decoded in bounded memory, e.g. to read it in reverse)
+ *     - The buffers are compressed and written on a WritePipeline (so off the recording thread if history.async-write is enabled)
+ *     - Writing fails once the file would be larger than ChunkHistoryIndex.MAX_FILE_SIZE (the changes after that aren't recorded)
+ * @see ChunkHistoryIndex for the format
+ */
+public class ChunkHistoryWriter {
+
+    public static final int MAX_SEGMENT_CHANGES = 65536;
+
+    private final DataOutputStream out;
+    private final ChunkHistoryIndex index;
+    private final LZ4Compressor compressor;
+    private final int originX;
+    private final int originZ;
+
+    private final WritePipeline pipeline = WritePipeline.create();
+    private LinkedHashMap<Long, Bucket> buckets = new LinkedHashMap<>();
+    private Bucket lastBucket;
+    private int lastX = Integer.MIN_VALUE;
+    private int lastZ = Integer.MIN_VALUE;
+    private int buffered;
+    private long position;
+    private byte[] compressed = new byte[0];
+
+    private static class Bucket extends OutputStream {
+        private final int cx;
+        private final int cz;
+        private final BlockRecordOutputStream records;
+        private byte[] data = new byte[256];
+        private int size;
+        private int changes;
+
+        private Bucket(int cx, int cz, int originX, int originZ) throws IOException {
+            this.cx = cx;
+            this.cz = cz;
+            this.records = new BlockRecordOutputStream(this, originX, originZ, false);
+        }
+
+        @Override
+        public void write(int b) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size << 1);
+            }
+            data[size++] = (byte) b;
+        }
+    }
+
+    public ChunkHistoryWriter(File file, int originX, int originZ) throws IOException {
+        this(file, originX, originZ, Settings.COMPRESSION_LEVEL > 0);
+    }
+
+    /**
+     * @param file
+     * @param originX
+     * @param originZ
+     * @param high If the segments should be compressed with LZ4 HC (e.g. when the HistoryCompactor rewrites a cold edit)
+     * @throws IOException
+     */
+    public ChunkHistoryWriter(File file, int originX, int originZ, boolean high) throws IOException {
+        file.getParentFile().mkdirs();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        this.index = new ChunkHistoryIndex(file);
+        this.originX = originX;
+        this.originZ = originZ;
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        this.compressor = high ? factory.highCompressor() : factory.fastCompressor();
+        out.writeInt(ChunkHistoryIndex.MAGIC);
+        out.writeByte(ChunkHistoryIndex.VERSION);
+        out.writeInt(originX);
+        out.writeInt(originZ);
+        position = ChunkHistoryIndex.HEADER_SIZE;
+    }
+
+    public void add(int x, int y, int z, int combinedFrom, int combinedTo) throws IOException {
+        int cx = x >> 4;
+        int cz = z >> 4;
+        Bucket bucket;
+        if (cx == lastX && cz == lastZ) {
+            bucket = lastBucket;
+        } else {
+            long pair = MathMan.pairInt(cx, cz);
+            bucket = buckets.get(pair);
+            if (bucket == null) {
+                buckets.put(pair, bucket = new Bucket(cx, cz, originX, originZ));
+            }
+            lastBucket = bucket;
+            lastX = cx;
+            lastZ = cz;
+        }
+        int before = bucket.size;
+        bucket.records.write(x, y, z, combinedFrom, combinedTo);
+        bucket.changes++;
+        index.minX = Math.min(index.minX, x);
+        index.maxX = Math.max(index.maxX, x);
+        index.minY = Math.min(index.minY, y);
+        index.maxY = Math.max(index.maxY, y);
+        index.minZ = Math.min(index.minZ, z);
+        index.maxZ = Math.max(index.maxZ, z);
+        if ((buffered += bucket.size - before) >= Settings.BUFFER_SIZE) {
+            flushBuckets();
+        } else if (bucket.changes >= MAX_SEGMENT_CHANGES) {
+            buckets.remove(MathMan.pairInt(cx, cz));
+            buffered -= bucket.size;
+            lastBucket = null;
+            lastX = Integer.MIN_VALUE;
+            lastZ = Integer.MIN_VALUE;
+            submit(Collections.singletonList(bucket));
+        }
+    }
+
+    /**
+     * Queue the buffered chunks to be written as segments
+     * @throws IOException
+     */
+    private void flushBuckets() throws IOException {
+        if (buckets.isEmpty()) {
+            return;
+        }
+        Collection<Bucket> flushing = buckets.values();
+        buckets = new LinkedHashMap<>();
+        lastBucket = null;
+        lastX = Integer.MIN_VALUE;
+        lastZ = Integer.MIN_VALUE;
+        buffered = 0;
+        submit(flushing);
+    }
+
+    private void submit(final Collection<Bucket> flushing) throws IOException {
+        pipeline.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                writeBuckets(flushing);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Compress and write some chunks as segments (on the pipeline)
+     * @throws IOException
+     */
+    private void writeBuckets(Collection<Bucket> flushing) throws IOException {
+        for (Bucket bucket : flushing) {
+            bucket.records.finish();
+            int max = compressor.maxCompressedLength(bucket.size);
+            if (compressed.length < max) {
+                compressed = new byte[max];
+            }
+            int length = compressor.compress(bucket.data, 0, bucket.size, compressed, 0, compressed.length);
+            if (position + ChunkHistoryIndex.SEGMENT_HEADER_SIZE + length > ChunkHistoryIndex.MAX_FILE_SIZE - ChunkHistoryIndex.TRAILER_SIZE - getIndexSize()) {
+                throw new IOException("History file would be larger than 2GB: " + index.getFile());
+            }
+            out.writeInt(bucket.cx);
+            out.writeInt(bucket.cz);
+            out.writeInt(length);
+            out.writeInt(bucket.size);
+            out.writeInt(bucket.changes);
+            out.write(compressed, 0, length);
+            index.add(bucket.cx, bucket.cz, position + ChunkHistoryIndex.SEGMENT_HEADER_SIZE, length, bucket.size, bucket.changes);
+            position += ChunkHistoryIndex.SEGMENT_HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * The size of the index (and one more segment) once it's written
+     */
+    private long getIndexSize() {
+        return 4 + (index.size() + 1) * 28L + 24;
+    }
+
+    /**
+     * Write any buffered changes, the index and the trailer<br>
+     *     - Waits until the file has been written
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flushBuckets();
+        try {
+            pipeline.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    index.write(out, position);
+                    out.close();
+                    return null;
+                }
+            });
+            pipeline.await();
+        } catch (IOException e) {
+            try {
+                out.close();
+            } catch (IOException ignore) {}
+            throw e;
+        }
+    }
+
+    public ChunkHistoryIndex getIndex() {
+        return index;
+    }
+}
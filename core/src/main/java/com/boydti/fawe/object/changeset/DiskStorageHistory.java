@@ -4,21 +4,24 @@ import com.boydti.fawe.Fawe;
 import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.object.IntegerPair;
 import com.boydti.fawe.object.RegionWrapper;
+import com.boydti.fawe.object.change.MutableBlockChange;
+import com.boydti.fawe.object.io.MappedLZ4InputStream;
 import com.boydti.fawe.util.MainUtil;
 import com.sk89q.jnbt.NBTInputStream;
 import com.sk89q.jnbt.NBTOutputStream;
 import com.sk89q.worldedit.world.World;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.UUID;
-import net.jpountz.lz4.LZ4Compressor;
-import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4InputStream;
 
 /**
@@ -31,6 +34,7 @@ import net.jpountz.lz4.LZ4InputStream;
 public class DiskStorageHistory extends FaweStreamChangeSet {
 
     private UUID uuid;
+    private File folder;
     private File bdFile;
     private File nbtfFile;
     private File nbttFile;
@@ -46,12 +50,25 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
      * Block data
      * 
      * [header]
-     * {int origin x, int origin z}
+     * {int marker, int origin x, int origin z} (version 1 has no marker)
      * 
      * [contents]...
-     * { short rel x, short rel z, unsigned byte y, short combinedFrom, short combinedTo }
+     * @see BlockRecordOutputStream
      */
-    private OutputStream osBD;
+    private BlockRecordOutputStream osBD;
+
+    /*
+     * Block data (history.chunk-index)
+     * @see ChunkHistoryIndex
+     */
+    private ChunkHistoryWriter writerBD;
+    private ChunkHistoryIndex index;
+
+    /*
+     * The changes are also written to the region shards (if history.region-shards is enabled)
+     * @see HistoryShards
+     */
+    private HistoryShardWriter writerShards;
 
     // NBT From
     private NBTOutputStream osNBTF;
@@ -66,13 +83,27 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
     private NBTOutputStream osENTCT;
 
     private World world;
+    private int id;
+
+    /*
+     * Stats for the history index
+     */
+    private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+    private int[] counts;
+    private HistoryIndex.Entry indexEntry;
 
     public void deleteFiles() {
+        HistoryIndex.get(world).remove(uuid, id);
         bdFile.delete();
         nbtfFile.delete();
         nbttFile.delete();
         entfFile.delete();
         enttFile.delete();
+        HistoryPack pack = HistoryPack.get(folder);
+        if (pack.contains(id)) {
+            pack.remove(Collections.singleton(id));
+        }
     }
 
     public DiskStorageHistory(World world, UUID uuid) {
@@ -90,6 +121,7 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
                     }
                 }
             }
+            max = Math.max(max, HistoryPack.get(folder).getMaxId());
         }
         init(world, uuid, ++max);
     }
@@ -102,7 +134,9 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
     private void init(World world, UUID uuid, int i) {
         this.uuid = uuid;
         this.world = world;
+        this.id = i;
         String base = "history" + File.separator + world.getName() + File.separator + uuid;
+        folder = new File(Fawe.imp().getDirectory(), base);
         base += File.separator + i;
         nbtfFile = new File(Fawe.imp().getDirectory(), base + ".nbtf");
         nbttFile = new File(Fawe.imp().getDirectory(), base + ".nbtt");
@@ -115,19 +149,79 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
         return uuid;
     }
 
+    /**
+     * Get the id of this edit (the file name)
+     * @return
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the history index entry for this edit
+     * @return The entry, or null if it hasn't been indexed
+     */
+    public HistoryIndex.Entry getIndexEntry() {
+        if (indexEntry == null) {
+            indexEntry = HistoryIndex.get(world).get(uuid, id);
+        }
+        return indexEntry;
+    }
+
+    public void setIndexEntry(HistoryIndex.Entry entry) {
+        this.indexEntry = entry;
+    }
+
     public File getBDFile() {
         return bdFile;
     }
 
+    /**
+     * Check if this edit has been packed (its files merged into a HistoryPack)
+     * @return
+     */
+    public boolean isPacked() {
+        return !bdFile.exists() && HistoryPack.get(folder).contains(id);
+    }
+
+    /**
+     * Get a stream of this edit from its pack
+     * @param stream e.g. HistoryPack.BD
+     * @return The decompressed stream, or null if the edit isn't packed
+     * @throws IOException
+     */
+    private InputStream getPackedIS(int stream) throws IOException {
+        byte[] data = HistoryPack.get(folder).read(id, stream);
+        return data == null ? null : getCompressedIS(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Get the (decompressed) block data of the flat format, from the file or the pack
+     * @return The stream (before the header is read), or null if there is no block data
+     * @throws IOException
+     */
+    private InputStream getFlatBlockIS() throws IOException {
+        return bdFile.exists() ? getMappedIS(bdFile) : getPackedIS(HistoryPack.BD);
+    }
+
+    /**
+     * Close the open streams, waiting until their data has been written to disk
+     * @return if anything was flushed
+     */
     @Override
     public boolean flush() {
         super.flush();
-        boolean flushed = osBD != null || osNBTF != null || osNBTT != null && osENTCF != null || osENTCT != null;
+        boolean flushed = osBD != null || writerBD != null || writerShards != null || osNBTF != null || osNBTT != null && osENTCF != null || osENTCT != null;
         try {
             if (osBD != null) {
                 osBD.close();
                 osBD = null;
             }
+            if (writerBD != null) {
+                index = writerBD.getIndex();
+                writerBD.close();
+                writerBD = null;
+            }
             if (osNBTF != null) {
                 osNBTF.close();
                 osNBTF = null;
@@ -147,31 +241,96 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
         } catch (Exception e) {
             MainUtil.handleError(e);
         }
+        if (flushed && blockSize > 0) {
+            updateIndex();
+        }
+        if (writerShards != null) {
+            // After the index is updated, so the edit is live as soon as it's complete
+            try {
+                writerShards.close();
+            } catch (IOException e) {
+                MainUtil.handleError(e);
+            }
+            writerShards = null;
+        }
         return flushed;
     }
 
+    /**
+     * Add this edit to the history index
+     */
+    private void updateIndex() {
+        HistoryIndex.Entry entry = new HistoryIndex.Entry(uuid, id);
+        entry.time = System.currentTimeMillis();
+        entry.minX = minX;
+        entry.minY = minY;
+        entry.minZ = minZ;
+        entry.maxX = maxX;
+        entry.maxY = maxY;
+        entry.maxZ = maxZ;
+        entry.changes = blockSize;
+        entry.size = bdFile.length();
+        entry.top = counts == null ? new int[0] : HistoryIndex.getTop(counts);
+        HistoryIndex.get(world).add(entry);
+        indexEntry = entry;
+    }
+
     @Override
     public int getCompressedSize() {
-        return bdFile.exists() ? (int) bdFile.length() : 0;
+        if (bdFile.exists()) {
+            return (int) bdFile.length();
+        }
+        HistoryPack.Entry packed = HistoryPack.get(folder).getEntry(id);
+        return packed == null ? 0 : (int) packed.getSize();
     }
 
     @Override
-    public OutputStream getBlockOS(int x, int y, int z) throws IOException {
+    public void add(int x, int y, int z, int combinedFrom, int combinedTo) {
+        if (x < minX) minX = x;
+        if (x > maxX) maxX = x;
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+        if (z < minZ) minZ = z;
+        if (z > maxZ) maxZ = z;
+        if (counts == null) {
+            counts = new int[4096];
+        }
+        counts[(combinedTo >> 4) & 0xFFF]++;
+        if (Settings.HISTORY_REGION_SHARDS) {
+            try {
+                if (writerShards == null) {
+                    writerShards = new HistoryShardWriter(HistoryShards.get(world), uuid, id);
+                }
+                writerShards.add(x, y, z, combinedFrom, combinedTo);
+            } catch (IOException e) {
+                MainUtil.handleError(e);
+            }
+        }
+        if (!Settings.HISTORY_CHUNK_INDEX) {
+            super.add(x, y, z, combinedFrom, combinedTo);
+            return;
+        }
+        blockSize++;
+        try {
+            if (writerBD == null) {
+                setOrigin(x, z);
+                writerBD = new ChunkHistoryWriter(bdFile, x, z);
+            }
+            writerBD.add(x, y, z, combinedFrom, combinedTo);
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        }
+    }
+
+    @Override
+    public BlockRecordOutputStream getBlockOS(int x, int y, int z) throws IOException {
         if (osBD != null) {
             return osBD;
         }
         bdFile.getParentFile().mkdirs();
         bdFile.createNewFile();
-        osBD = getCompressedOS(new FileOutputStream(bdFile));
+        osBD = new BlockRecordOutputStream(getCompressedOS(new FileOutputStream(bdFile)), x, z, true);
         setOrigin(x, z);
-        osBD.write((byte) (x >> 24));
-        osBD.write((byte) (x >> 16));
-        osBD.write((byte) (x >> 8));
-        osBD.write((byte) (x));
-        osBD.write((byte) (z >> 24));
-        osBD.write((byte) (z >> 16));
-        osBD.write((byte) (z >> 8));
-        osBD.write((byte) (z));
         return osBD;
     }
 
@@ -219,22 +378,160 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
         return osNBTF;
     }
 
+    /**
+     * Get the index if the block data is in the chunk bucketed format
+     * @return The index, or null for the flat format
+     */
+    public ChunkHistoryIndex getIndex() {
+        if (index != null && writerBD == null && !bdFile.exists()) {
+            // Packed by the HistoryCompactor (packed edits use the flat format)
+            index = null;
+        }
+        if (index == null && writerBD == null && ChunkHistoryIndex.isChunked(bdFile)) {
+            try {
+                index = ChunkHistoryIndex.read(bdFile);
+            } catch (IOException e) {
+                MainUtil.handleError(e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The chunk bucketed file has no index until its writer is closed, so it can't be read (or mistaken for the flat format) before then
+     * @throws IOException If the block data is still being written (@see #flush)
+     */
+    private void checkWriting() throws IOException {
+        if (writerBD != null) {
+            throw new IOException("The block history is still being written (flush it first): " + bdFile);
+        }
+    }
+
+    /**
+     * Get the block data for the chunks which intersect a region<br>
+     *     - Only the relevant chunks are read for the chunk bucketed format, the flat format is read in full
+     * @param region
+     * @return
+     * @throws IOException
+     */
+    public InputStream getBlockIS(RegionWrapper region) throws IOException {
+        checkWriting();
+        ChunkHistoryIndex index = getIndex();
+        if (index == null) {
+            return getBlockIS();
+        }
+        setOrigin(index.getOriginX(), index.getOriginZ());
+        setBlockVersion(index.getVersion());
+        return index.getInputStream(region);
+    }
+
+    /**
+     * Iterate over the block changes<br>
+     *     - Undo (dir = false) reads chunk bucketed files in reverse, one segment at a time
+     * @param dir true for redo
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public Iterator<MutableBlockChange> getBlockIterator(boolean dir) throws IOException {
+        ChunkHistoryIndex index = dir ? null : getIndex();
+        if (index == null) {
+            return super.getBlockIterator(dir);
+        }
+        final ReverseBlockRecordReader reader = index.getReverseReader(null);
+        final MutableBlockChange change = new MutableBlockChange(0, 0, 0, (short) 0, (byte) 0);
+        return new Iterator<MutableBlockChange>() {
+            private boolean read;
+            private boolean more;
+
+            @Override
+            public boolean hasNext() {
+                if (!read) {
+                    try {
+                        more = reader.next();
+                    } catch (IOException e) {
+                        MainUtil.handleError(e);
+                        reader.close();
+                        more = false;
+                    }
+                    read = true;
+                }
+                return more;
+            }
+
+            @Override
+            public MutableBlockChange next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                read = false;
+                change.x = reader.x;
+                change.y = reader.y;
+                change.z = reader.z;
+                change.id = (short) (reader.combinedFrom >> 4);
+                change.data = (byte) (reader.combinedFrom & 0xf);
+                return change;
+            }
+
+            @Override
+            public void remove() {
+                throw new IllegalArgumentException("CANNOT REMOVE");
+            }
+        };
+    }
+
+    /**
+     * Iterate over the block changes in (the chunks which intersect) a region
+     * @param dir true for redo
+     * @param region
+     * @return
+     * @throws IOException
+     */
+    public Iterator<MutableBlockChange> getBlockIterator(boolean dir, RegionWrapper region) throws IOException {
+        return getBlockIterator(getBlockIS(region), dir);
+    }
+
+    /**
+     * Get a reader over the block changes in (the chunks which intersect) a region<br>
+     *     - Unlike the block iterator, the reader exposes the raw fields (both ids) and creates nothing per change
+     * @param region (null for everything)
+     * @return The reader, or null if there are no block changes
+     * @throws IOException
+     */
+    public BlockRecordReader getBlockReader(RegionWrapper region) throws IOException {
+        InputStream is = getBlockIS(region);
+        return is == null ? null : new BlockRecordReader(is, getBlockVersion(), getOriginX(), getOriginZ());
+    }
+
     @Override
     public InputStream getBlockIS() throws IOException {
-        if (!bdFile.exists()) {
-            return null;
+        checkWriting();
+        ChunkHistoryIndex index = getIndex();
+        if (index != null) {
+            setOrigin(index.getOriginX(), index.getOriginZ());
+            setBlockVersion(index.getVersion());
+            return index.getInputStream(null);
         }
-        InputStream is = getCompressedIS(new FileInputStream(bdFile));
-        int x = ((is.read() << 24) + (is.read() << 16) + (is.read() << 8) + (is.read() << 0));
-        int z = ((is.read() << 24) + (is.read() << 16) + (is.read() << 8) + (is.read() << 0));
-        setOrigin(x, z);
-        return is;
+        InputStream is = getFlatBlockIS();
+        return is == null ? null : readBlockHeader(is);
+    }
+
+    /**
+     * Read a compressed file through a memory mapping (rather than copying it through a FileInputStream)
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private InputStream getMappedIS(File file) throws IOException {
+        InputStream is = new MappedLZ4InputStream(file);
+        return Settings.COMPRESSION_LEVEL > 0 ? new LZ4InputStream(is) : is;
     }
 
     @Override
     public NBTInputStream getEntityCreateIS() throws IOException {
         if (!enttFile.exists()) {
-            return null;
+            InputStream packed = bdFile.exists() ? null : getPackedIS(HistoryPack.ENTT);
+            return packed == null ? null : new NBTInputStream(packed);
         }
         return new NBTInputStream(getCompressedIS(new FileInputStream(enttFile)));
     }
@@ -242,7 +539,8 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
     @Override
     public NBTInputStream getEntityRemoveIS() throws IOException {
         if (!entfFile.exists()) {
-            return null;
+            InputStream packed = bdFile.exists() ? null : getPackedIS(HistoryPack.ENTF);
+            return packed == null ? null : new NBTInputStream(packed);
         }
         return new NBTInputStream(getCompressedIS(new FileInputStream(entfFile)));
     }
@@ -250,7 +548,8 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
     @Override
     public NBTInputStream getTileCreateIS() throws IOException {
         if (!nbttFile.exists()) {
-            return null;
+            InputStream packed = bdFile.exists() ? null : getPackedIS(HistoryPack.NBTT);
+            return packed == null ? null : new NBTInputStream(packed);
         }
         return new NBTInputStream(getCompressedIS(new FileInputStream(nbttFile)));
     }
@@ -258,7 +557,8 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
     @Override
     public NBTInputStream getTileRemoveIS() throws IOException {
         if (!nbtfFile.exists()) {
-            return null;
+            InputStream packed = bdFile.exists() ? null : getPackedIS(HistoryPack.NBTF);
+            return packed == null ? null : new NBTInputStream(packed);
         }
         return new NBTInputStream(getCompressedIS(new FileInputStream(nbtfFile)));
     }
@@ -267,43 +567,33 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
         if (summary != null) {
             return summary;
         }
-        if (bdFile.exists()) {
+        ChunkHistoryIndex index = getIndex();
+        if (index != null) {
+            return summary = summarize(index, requiredRegion, shallow);
+        }
+        if (bdFile.exists() || isPacked()) {
             int ox = getOriginX();
             int oz = getOriginZ();
             if ((ox != 0 || oz != 0) && !requiredRegion.isIn(ox, oz)) {
                 return summary = new DiskStorageSummary(ox, oz);
             }
-            try (FileInputStream fis = new FileInputStream(bdFile)) {
-                LZ4Factory factory = LZ4Factory.fastestInstance();
-                LZ4Compressor compressor = factory.fastCompressor();
-                final LZ4InputStream gis;
-                if (Settings.COMPRESSION_LEVEL > 0) {
-                    gis = new LZ4InputStream(new LZ4InputStream(fis));
-                } else {
-                    gis = new LZ4InputStream(fis);
-                }
-                ox = ((gis.read() << 24) + (gis.read() << 16) + (gis.read() << 8) + (gis.read() << 0));
-                oz = ((gis.read() << 24) + (gis.read() << 16) + (gis.read() << 8) + (gis.read() << 0));
-                setOrigin(ox, oz);
+            try (InputStream gis = getFlatBlockIS()) {
+                readBlockHeader(gis);
+                ox = getOriginX();
+                oz = getOriginZ();
                 summary = new DiskStorageSummary(ox, oz);
                 if (!requiredRegion.isIn(ox, oz)) {
-                    fis.close();
-                    gis.close();
                     return summary;
                 }
-                byte[] buffer = new byte[9];
-                int i = 0;
-                while (!shallow || gis.hasBytesAvailableInDecompressedBuffer(9)) {
-                    if (gis.read(buffer) == -1) {
-                        fis.close();
-                        gis.close();
+                BlockRecordReader reader = new BlockRecordReader(gis, getBlockVersion(), ox, oz);
+                // A version 2 record is at most 22 bytes
+                int available = getBlockVersion() == BlockRecordOutputStream.VERSION_RAW ? 9 : 22;
+                // Shallow only reads what's already been decompressed
+                while (!shallow || gis.available() >= available) {
+                    if (!reader.next()) {
                         return summary;
                     }
-                    int x = ((byte) buffer[0] & 0xFF) + ((byte) buffer[1] << 8) + ox;
-                    int z = ((byte) buffer[2] & 0xFF) + ((byte) buffer[3] << 8) + oz;
-                    int combined1 = buffer[7] & 0xFF;
-                    int combined2 = buffer[8] & 0xFF;
-                    summary.add(x, z, ((combined2 << 4) + (combined1 >> 4)));
+                    summary.add(reader.x, reader.z, reader.combinedTo >> 4);
                 }
             } catch (IOException e) {
                 MainUtil.handleError(e);
@@ -312,25 +602,50 @@ public class DiskStorageHistory extends FaweStreamChangeSet {
         return summary;
     }
 
+    /**
+     * Summarize a chunk bucketed file<br>
+     *     - The bounds are always exact (from the index)
+     *     - Block counts are only read for the chunks in the required region if shallow, or every chunk otherwise
+     */
+    private DiskStorageSummary summarize(ChunkHistoryIndex index, RegionWrapper requiredRegion, boolean shallow) {
+        int ox = index.getOriginX();
+        int oz = index.getOriginZ();
+        setOrigin(ox, oz);
+        DiskStorageSummary summary = new DiskStorageSummary(ox, oz);
+        if (index.size() == 0) {
+            return summary;
+        }
+        summary.minX = index.minX;
+        summary.minZ = index.minZ;
+        summary.maxX = index.maxX;
+        summary.maxZ = index.maxZ;
+        if (!index.intersects(requiredRegion)) {
+            return summary;
+        }
+        try (InputStream is = index.getInputStream(shallow ? requiredRegion : null)) {
+            BlockRecordReader reader = new BlockRecordReader(is, index.getVersion(), ox, oz);
+            while (reader.next()) {
+                summary.blocks[reader.combinedTo >> 4]++;
+            }
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        }
+        return summary;
+    }
+
     public IntegerPair readHeader() {
         int ox = getOriginX();
         int oz = getOriginZ();
-        if (ox == 0 && oz == 0 && bdFile.exists()) {
-            try {
-                FileInputStream fis = new FileInputStream(bdFile);
-                LZ4Factory factory = LZ4Factory.fastestInstance();
-                LZ4Compressor compressor = factory.fastCompressor();
-                final InputStream gis;
-                if (Settings.COMPRESSION_LEVEL > 0) {
-                    gis = new LZ4InputStream(new LZ4InputStream(fis));
-                } else {
-                    gis = new LZ4InputStream(fis);
-                }
-                ox = ((gis.read() << 24) + (gis.read() << 16) + (gis.read() << 8) + (gis.read() << 0));
-                oz = ((gis.read() << 24) + (gis.read() << 16) + (gis.read() << 8) + (gis.read() << 0));
-                setOrigin(ox, oz);
-                fis.close();
-                gis.close();
+        ChunkHistoryIndex index = ox == 0 && oz == 0 ? getIndex() : null;
+        if (index != null) {
+            ox = index.getOriginX();
+            oz = index.getOriginZ();
+            setOrigin(ox, oz);
+        } else if (ox == 0 && oz == 0 && (bdFile.exists() || isPacked())) {
+            try (InputStream gis = getFlatBlockIS()) {
+                readBlockHeader(gis);
+                ox = getOriginX();
+                oz = getOriginZ();
             } catch (IOException e) {
                 MainUtil.handleError(e);
             }
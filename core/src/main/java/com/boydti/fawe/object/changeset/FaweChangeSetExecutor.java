@@ -0,0 +1,279 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.config.BBC;
+import com.boydti.fawe.object.FaweLimit;
+import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.change.MutableEntityChange;
+import com.boydti.fawe.object.change.MutableTileChange;
+import com.boydti.fawe.object.exception.FaweException;
+import com.boydti.fawe.object.extent.FaweRegionExtent;
+import com.boydti.fawe.util.MainUtil;
+import com.boydti.fawe.util.MathMan;
+import com.boydti.fawe.util.WEManager;
+import com.sk89q.jnbt.DoubleTag;
+import com.sk89q.jnbt.IntTag;
+import com.sk89q.jnbt.Tag;
+import com.sk89q.worldedit.EditSession;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.function.mask.Mask;
+import com.sk89q.worldedit.function.operation.ChangeSetExecutor;
+import com.sk89q.worldedit.function.operation.Operation;
+import com.sk89q.worldedit.function.operation.RunContext;
+import com.sk89q.worldedit.history.UndoContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Performs an undo or redo from a FaweStreamChangeSet, writing the block records straight into the queued chunks<br>
+ *     - No Change object is created, and the extent stack is skipped, for each block
+ *     - Records are already grouped by chunk, so the queue's last chunk cache is hit for runs of records
+ *     - Disk history is chunk indexed by default (history.chunk-index), so an undo reads it newest first (@see ReverseBlockRecordReader)
+ *     - Other history (memory, flat files, compacted packs) is undone oldest first, keeping the first value at each position
+ *     - The region restrictions, mask and limit of the EditSession are still checked for each block, tile and entity
+ *     - Blocks are applied first, then tiles and entities as changes (there are few of them)
+ *     - The number of changes is counted for the EditSession (@see #getChanges)
+ * @see ChangeSetExecutor
+ */
+public class FaweChangeSetExecutor implements Operation {
+
+    private final FaweStreamChangeSet changeSet;
+    private final ChangeSetExecutor.Type type;
+    private final EditSession editSession;
+    private final FaweQueue queue;
+    private final FaweRegionExtent region;
+    private final Mask mask;
+    private final FaweLimit limit;
+    private final Vector mutable = new Vector(0, 0, 0);
+
+    /**
+     * The positions which have been undone (only used when the records can't be read newest first, i.e. there is no chunk index)
+     */
+    private Map<Long, long[][]> visited;
+
+    private boolean cancelled;
+    private int changes;
+
+    private FaweChangeSetExecutor(FaweStreamChangeSet changeSet, ChangeSetExecutor.Type type, EditSession editSession) {
+        this.changeSet = changeSet;
+        this.type = type;
+        this.editSession = editSession;
+        this.queue = editSession.getQueue();
+        this.region = editSession.getRegionExtent();
+        this.mask = editSession.getMask();
+        this.limit = editSession.getLimit();
+    }
+
+    @Override
+    public Operation resume(RunContext run) throws WorldEditException {
+        boolean redo = type == ChangeSetExecutor.Type.REDO;
+        changeSet.flush();
+        UndoContext context = new UndoContext();
+        context.setExtent(editSession.getPrimaryExtent());
+        try {
+            applyBlocks(redo);
+            Iterator<MutableTileChange> tileCreate = changeSet.getTileIterator(changeSet.getTileCreateIS(), true, redo);
+            Iterator<MutableTileChange> tileRemove = changeSet.getTileIterator(changeSet.getTileRemoveIS(), false, redo);
+            while (!cancelled && tileCreate.hasNext()) {
+                applyTile(tileCreate.next(), context, redo);
+            }
+            while (!cancelled && tileRemove.hasNext()) {
+                applyTile(tileRemove.next(), context, redo);
+            }
+            Iterator<MutableEntityChange> entityCreate = changeSet.getEntityIterator(changeSet.getEntityCreateIS(), true, redo);
+            Iterator<MutableEntityChange> entityRemove = changeSet.getEntityIterator(changeSet.getEntityRemoveIS(), false, redo);
+            while (!cancelled && entityCreate.hasNext()) {
+                applyEntity(entityCreate.next(), context, redo);
+            }
+            while (!cancelled && entityRemove.hasNext()) {
+                applyEntity(entityRemove.next(), context, redo);
+            }
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        }
+        return null;
+    }
+
+    private void applyBlocks(boolean redo) throws IOException {
+        ChunkHistoryIndex index = !redo && changeSet instanceof DiskStorageHistory ? ((DiskStorageHistory) changeSet).getIndex() : null;
+        if (index != null) {
+            // Newest first, so the last value set at a position is the oldest
+            ReverseBlockRecordReader reader = index.getReverseReader(null);
+            try {
+                while (!cancelled && reader.next()) {
+                    setBlock(reader.x, reader.y, reader.z, reader.combinedFrom);
+                }
+            } finally {
+                reader.close();
+            }
+            return;
+        }
+        InputStream is = changeSet.getBlockIS();
+        if (is == null) {
+            return;
+        }
+        BlockRecordReader reader = new BlockRecordReader(is, changeSet.getBlockVersion(), changeSet.getOriginX(), changeSet.getOriginZ());
+        try {
+            if (redo) {
+                while (!cancelled && reader.next()) {
+                    setBlock(reader.x, reader.y, reader.z, reader.combinedTo);
+                }
+            } else {
+                // Oldest first, so only the first value at each position is kept
+                visited = new HashMap<>();
+                while (!cancelled && reader.next()) {
+                    if (visit(reader.x, reader.y, reader.z)) {
+                        setBlock(reader.x, reader.y, reader.z, reader.combinedFrom);
+                    }
+                }
+            }
+        } finally {
+            visited = null;
+            reader.close();
+        }
+    }
+
+    /**
+     * Mark a position as visited
+     * @return false if it was already visited
+     */
+    private boolean visit(int x, int y, int z) {
+        long pair = MathMan.pairInt(x >> 4, z >> 4);
+        long[][] sections = visited.get(pair);
+        if (sections == null) {
+            visited.put(pair, sections = new long[16][]);
+        }
+        long[] bits = sections[y >> 4];
+        if (bits == null) {
+            bits = sections[y >> 4] = new long[64];
+        }
+        int i = ((y & 15) << 8) + ((z & 15) << 4) + (x & 15);
+        long bit = 1L << (i & 63);
+        if ((bits[i >> 6] & bit) != 0) {
+            return false;
+        }
+        bits[i >> 6] |= bit;
+        return true;
+    }
+
+    private boolean test(int x, int y, int z) {
+        if (region != null && !region.contains(x, y, z)) {
+            if (limit.MAX_FAILS-- < 0) {
+                cancelEdit(BBC.WORLDEDIT_CANCEL_REASON_MAX_FAILS);
+            }
+            return false;
+        }
+        if (mask != null) {
+            mutable.x = x;
+            mutable.y = y;
+            mutable.z = z;
+            if (!mask.test(mutable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setBlock(int x, int y, int z, int combined) {
+        if (y < 0 || y > 255 || !test(x, y, z)) {
+            return;
+        }
+        if (limit.MAX_CHANGES-- < 0) {
+            cancelEdit(BBC.WORLDEDIT_CANCEL_REASON_MAX_CHANGES);
+        }
+        changes++;
+        queue.setBlock(x, y, z, (short) (combined >> 4), (byte) (combined & 0xF));
+    }
+
+    private void applyTile(MutableTileChange change, UndoContext context, boolean redo) throws WorldEditException {
+        if (change.create != redo) {
+            return;
+        }
+        Map<String, Tag> map = change.tag.getValue();
+        int x = ((IntTag) map.get("x")).getValue();
+        int y = ((IntTag) map.get("y")).getValue();
+        int z = ((IntTag) map.get("z")).getValue();
+        if (!test(x, y, z)) {
+            return;
+        }
+        if (limit.MAX_BLOCKSTATES-- < 0) {
+            cancelEdit(BBC.WORLDEDIT_CANCEL_REASON_MAX_TILES);
+        }
+        change.create(context);
+        changes++;
+    }
+
+    private void applyEntity(MutableEntityChange change, UndoContext context, boolean redo) throws WorldEditException {
+        Map<String, Tag> map = change.tag.getValue();
+        if (map.containsKey("Pos")) {
+            List<DoubleTag> pos = (List<DoubleTag>) map.get("Pos").getValue();
+            int x = (int) Math.round(pos.get(0).getValue());
+            int y = (int) Math.round(pos.get(1).getValue());
+            int z = (int) Math.round(pos.get(2).getValue());
+            if (!test(x, y, z)) {
+                return;
+            }
+        }
+        // Only entities which are created count towards the limit
+        if (change.create == redo && limit.MAX_ENTITIES-- < 0) {
+            cancelEdit(BBC.WORLDEDIT_CANCEL_REASON_MAX_ENTITIES);
+        }
+        if (redo) {
+            change.redo(context);
+        } else {
+            change.undo(context);
+        }
+        changes++;
+    }
+
+    private void cancelEdit(BBC reason) {
+        cancelled = true;
+        if (region != null) {
+            try {
+                WEManager.IMP.cancelEdit(region, reason);
+            } catch (WorldEditException ignore) {}
+        }
+        throw new FaweException(reason);
+    }
+
+    /**
+     * Get the number of blocks, tiles and entities which have been changed
+     * @return
+     */
+    public int getChanges() {
+        return changes;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void addStatusMessages(List<String> messages) {
+    }
+
+    /**
+     * Create a new undo operation
+     * @param changeSet the change set
+     * @param editSession the EditSession to undo in (its queue, restrictions, mask and limit are used)
+     * @return an operation
+     */
+    public static FaweChangeSetExecutor createUndo(FaweStreamChangeSet changeSet, EditSession editSession) {
+        return new FaweChangeSetExecutor(changeSet, ChangeSetExecutor.Type.UNDO, editSession);
+    }
+
+    /**
+     * Create a new redo operation
+     * @param changeSet the change set
+     * @param editSession the EditSession to redo in (its queue, restrictions, mask and limit are used)
+     * @return an operation
+     */
+    public static FaweChangeSetExecutor createRedo(FaweStreamChangeSet changeSet, EditSession editSession) {
+        return new FaweChangeSetExecutor(changeSet, ChangeSetExecutor.Type.REDO, editSession);
+    }
+}
@@ -4,6 +4,8 @@ import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.object.change.MutableBlockChange;
 import com.boydti.fawe.object.change.MutableEntityChange;
 import com.boydti.fawe.object.change.MutableTileChange;
+import com.boydti.fawe.object.io.PipelinedOutputStream;
+import com.boydti.fawe.object.io.WritePipeline;
 import com.boydti.fawe.util.MainUtil;
 import com.sk89q.jnbt.CompoundTag;
 import com.sk89q.jnbt.NBTInputStream;
@@ -15,7 +17,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
-import net.jpountz.lz4.LZ4Compressor;
 import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4InputStream;
 import net.jpountz.lz4.LZ4OutputStream;
@@ -35,7 +36,7 @@ public abstract class FaweStreamChangeSet extends FaweChangeSet {
 
     public abstract int getCompressedSize();
 
-    public abstract OutputStream getBlockOS(int x, int y, int z) throws IOException;
+    public abstract BlockRecordOutputStream getBlockOS(int x, int y, int z) throws IOException;
     public abstract NBTOutputStream getEntityCreateOS() throws IOException;
     public abstract NBTOutputStream getEntityRemoveOS() throws IOException;
     public abstract NBTOutputStream getTileCreateOS() throws IOException;
@@ -55,12 +56,39 @@ public abstract class FaweStreamChangeSet extends FaweChangeSet {
 
     private int originX;
     private int originZ;
+    private int blockVersion = BlockRecordOutputStream.VERSION_DELTA;
 
     public void setOrigin(int x, int z) {
         originX = x;
         originZ = z;
     }
 
+    /**
+     * Set the record version of the block streams
+     * @see BlockRecordOutputStream
+     * @param version
+     */
+    public void setBlockVersion(int version) {
+        blockVersion = version;
+    }
+
+    public int getBlockVersion() {
+        return blockVersion;
+    }
+
+    /**
+     * Read the header of a block stream (and set the origin and version)
+     * @param is
+     * @return The stream
+     * @throws IOException
+     */
+    public InputStream readBlockHeader(InputStream is) throws IOException {
+        int[] header = BlockRecordReader.readHeader(is);
+        setBlockVersion(header[0]);
+        setOrigin(header[1], header[2]);
+        return is;
+    }
+
     public int getOriginX() {
         return originX;
     }
@@ -80,34 +108,22 @@ public abstract class FaweStreamChangeSet extends FaweChangeSet {
 
     public OutputStream getCompressedOS(OutputStream os) throws IOException {
         LZ4Factory factory = LZ4Factory.fastestInstance();
-        LZ4Compressor compressor = factory.fastCompressor();
         os = new LZ4OutputStream(os, Settings.BUFFER_SIZE, factory.fastCompressor());
         if (Settings.COMPRESSION_LEVEL > 0) {
             os = new LZ4OutputStream(os, Settings.BUFFER_SIZE, factory.highCompressor());
         }
+        // Compress and write on the history writer threads
+        WritePipeline pipeline = WritePipeline.create();
+        if (pipeline.isAsync()) {
+            os = new PipelinedOutputStream(os, pipeline);
+        }
         return os;
     }
 
     public void add(int x, int y, int z, int combinedFrom, int combinedTo) {
         blockSize++;
         try {
-            OutputStream stream = getBlockOS(x, y, z);
-            //x
-            x-=originX;
-            stream.write((x) & 0xff);
-            stream.write(((x) >> 8) & 0xff);
-            //z
-            z-=originZ;
-            stream.write((z) & 0xff);
-            stream.write(((z) >> 8) & 0xff);
-            //y
-            stream.write((byte) y);
-            //from
-            stream.write((combinedFrom) & 0xff);
-            stream.write(((combinedFrom) >> 8) & 0xff);
-            //to
-            stream.write((combinedTo) & 0xff);
-            stream.write(((combinedTo) >> 8) & 0xff);
+            getBlockOS(x, y, z).write(x, y, z, combinedFrom, combinedTo);
         }
         catch (IOException e) {
             MainUtil.handleError(e);
@@ -163,38 +179,34 @@ public abstract class FaweStreamChangeSet extends FaweChangeSet {
     }
 
     public Iterator<MutableBlockChange> getBlockIterator(final boolean dir) throws IOException {
-        final InputStream is = getBlockIS();
+        return getBlockIterator(getBlockIS(), dir);
+    }
+
+    /**
+     * Iterate over the block records of a stream (relative to the origin)
+     * @param is
+     * @param dir true for redo
+     * @return
+     */
+    public Iterator<MutableBlockChange> getBlockIterator(final InputStream is, final boolean dir) {
         if (is == null) {
             return new ArrayList<MutableBlockChange>().iterator();
         }
         final MutableBlockChange change = new MutableBlockChange(0, 0, 0, (short) 0, (byte) 0);
+        final BlockRecordReader reader = new BlockRecordReader(is, blockVersion, originX, originZ);
         return new Iterator<MutableBlockChange>() {
             private MutableBlockChange last = read();
             public MutableBlockChange read() {
                 try {
-                    int read0 = is.read();
-                    if (read0 == -1) {
+                    if (!reader.next()) {
                         return null;
                     }
-                    int x = ((byte) read0 & 0xFF) + ((byte) is.read() << 8) + originX;
-                    int z = ((byte) is.read() & 0xFF) + ((byte) is.read() << 8) + originZ;
-                    int y = is.read() & 0xff;
-                    change.x = x;
-                    change.y = y;
-                    change.z = z;
-                    if (dir) {
-                        is.skip(2);
-                        int to1 = is.read();
-                        int to2 = is.read();
-                        change.id = (short) ((to2 << 4) + (to1 >> 4));
-                        change.data = (byte) (to1 & 0xf);
-                    } else {
-                        int from1 = is.read();
-                        int from2 = is.read();
-                        is.skip(2);
-                        change.id = (short) ((from2 << 4) + (from1 >> 4));
-                        change.data = (byte) (from1 & 0xf);
-                    }
+                    change.x = reader.x;
+                    change.y = reader.y;
+                    change.z = reader.z;
+                    int combined = dir ? reader.combinedTo : reader.combinedFrom;
+                    change.id = (short) (combined >> 4);
+                    change.data = (byte) (combined & 0xf);
                     return change;
                 } catch (Exception ignoreEOF) {
                     MainUtil.handleError(ignoreEOF);
@@ -0,0 +1,463 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.Fawe;
+import com.boydti.fawe.FaweAPI;
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.util.MainUtil;
+import com.boydti.fawe.util.TaskManager;
+import com.sk89q.worldedit.EditSession;
+import com.sk89q.worldedit.LocalSession;
+import com.sk89q.worldedit.WorldEdit;
+import com.sk89q.worldedit.history.changeset.ChangeSet;
+import com.sk89q.worldedit.world.World;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4OutputStream;
+
+/**
+ * Compacts the disk history in the background (every history.compaction.interval-minutes)<br>
+ *     - Runs of consecutive small edits (history.compaction.max-edit-kb) are merged into a HistoryPack, once they are cold (history.compaction.after-minutes)
+ *     - Packed edits are re-encoded in the flat format and compressed with LZ4 HC
+ *     - The cold edits which weren't packed (e.g. large ones) are recompressed with LZ4 HC in place, once (their ids are kept in cold.ids)
+ *     - Edits older than history.delete-after-days are removed (including from packs)
+ *     - The oldest cold edits of a user are removed while the user is over history.user-quota-mb (except those a loaded session can still undo)
+ *     - The region shards are pruned of the edits which were removed (@see HistoryShards)
+ */
+public class HistoryCompactor {
+
+    public static final HistoryCompactor IMP = new HistoryCompactor();
+
+    /**
+     * The target size of a pack
+     */
+    private static final long MAX_PACK_SIZE = 8 << 20;
+
+    private static final String[] EXTENSIONS = { ".bd", ".nbtf", ".nbtt", ".entf", ".entt" };
+
+    /**
+     * The ids of the loose edits which have been recompressed (in each user's folder)
+     */
+    private static final String COLD_FILE = "cold.ids";
+    private static final String TMP_FILE = "recompress.tmp";
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private int task = -1;
+
+    /**
+     * Start compacting periodically (if enabled)
+     */
+    public synchronized void start() {
+        if (task != -1 || Settings.HISTORY_COMPACT_INTERVAL <= 0) {
+            return;
+        }
+        task = TaskManager.IMP.repeatAsync(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, Settings.HISTORY_COMPACT_INTERVAL * 60 * 20);
+    }
+
+    public synchronized void stop() {
+        if (task != -1) {
+            TaskManager.IMP.cancel(task);
+            task = -1;
+        }
+    }
+
+    /**
+     * Compact the history of every loaded world (does nothing if already compacting)
+     */
+    public void compact() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            File[] worlds = new File(Fawe.imp().getDirectory(), "history").listFiles();
+            if (worlds == null) {
+                return;
+            }
+            for (File worldFolder : worlds) {
+                World world = worldFolder.isDirectory() ? FaweAPI.getWorld(worldFolder.getName()) : null;
+                if (world == null) {
+                    continue;
+                }
+                File[] users = worldFolder.listFiles();
+                if (users == null) {
+                    continue;
+                }
+                HashMap<UUID, HashSet<Integer>> loaded = getLoadedEdits(world);
+                for (File userFolder : users) {
+                    if (!userFolder.isDirectory()) {
+                        continue;
+                    }
+                    UUID user;
+                    try {
+                        user = UUID.fromString(userFolder.getName());
+                    } catch (IllegalArgumentException ignore) {
+                        continue;
+                    }
+                    try {
+                        HashSet<Integer> inUse = loaded.get(user);
+                        compact(world, user, userFolder, inUse != null ? inUse : Collections.<Integer>emptySet());
+                    } catch (Throwable e) {
+                        MainUtil.handleError(e);
+                    }
+                }
+                HistoryShards shards = HistoryShards.get(world);
+                if (shards.getFolder().exists()) {
+                    int pruned = shards.prune();
+                    if (pruned > 0) {
+                        Fawe.debug("Pruned " + pruned + " region shard blocks in " + world.getName());
+                    }
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Get the disk edits which are on the undo/redo stack of a loaded session (they could still be undone)
+     */
+    private HashMap<UUID, HashSet<Integer>> getLoadedEdits(World world) {
+        HashMap<UUID, HashSet<Integer>> loaded = new HashMap<>();
+        for (LocalSession session : WorldEdit.getInstance().getSessionManager().getSessions()) {
+            for (EditSession edit : session.getHistory()) {
+                ChangeSet changeSet = edit.getChangeSet();
+                if (!(changeSet instanceof DiskStorageHistory)) {
+                    continue;
+                }
+                DiskStorageHistory history = (DiskStorageHistory) changeSet;
+                if (!world.getName().equals(history.getWorld().getName())) {
+                    continue;
+                }
+                HashSet<Integer> ids = loaded.get(history.getUUID());
+                if (ids == null) {
+                    loaded.put(history.getUUID(), ids = new HashSet<>());
+                }
+                ids.add(history.getId());
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Compact the history of a user in a world
+     * @param world
+     * @param user
+     * @param folder
+     * @param inUse The edits which a loaded session can still undo (they aren't removed to meet the quota)
+     * @throws IOException
+     */
+    public void compact(World world, UUID user, File folder, Set<Integer> inUse) throws IOException {
+        long now = System.currentTimeMillis();
+        long cold = now - TimeUnit.MINUTES.toMillis(Settings.HISTORY_COMPACT_AFTER);
+        long expire = Settings.DELETE_HISTORY_AFTER_DAYS > 0 ? now - TimeUnit.DAYS.toMillis(Settings.DELETE_HISTORY_AFTER_DAYS) : Long.MIN_VALUE;
+        HistoryPack pack = HistoryPack.get(folder);
+        TreeSet<Integer> packed = pack.getIds();
+
+        // { size, time, has block data } for each edit, oldest first
+        TreeMap<Integer, long[]> edits = new TreeMap<>();
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            if (dot <= 0 || name.endsWith(HistoryPack.EXTENSION) || !name.substring(0, dot).matches("\\d+")) {
+                continue;
+            }
+            int id = Integer.parseInt(name.substring(0, dot));
+            if (packed.contains(id)) {
+                // Left over from an earlier compaction
+                file.delete();
+                continue;
+            }
+            long[] edit = edits.get(id);
+            if (edit == null) {
+                edits.put(id, edit = new long[3]);
+            }
+            edit[0] += file.length();
+            edit[1] = Math.max(edit[1], file.lastModified());
+            if (name.endsWith(".bd")) {
+                edit[2] = 1;
+            }
+        }
+        for (int id : packed) {
+            HistoryPack.Entry entry = pack.getEntry(id);
+            edits.put(id, new long[] { entry.getSize(), entry.time, 1 });
+        }
+
+        // Retention
+        long total = 0;
+        for (long[] edit : edits.values()) {
+            total += edit[0];
+        }
+        long quota = Settings.HISTORY_USER_QUOTA > 0 ? Settings.HISTORY_USER_QUOTA * 1024L * 1024L : Long.MAX_VALUE;
+        List<Integer> removed = new ArrayList<>();
+        for (Map.Entry<Integer, long[]> entry : edits.entrySet()) {
+            long[] edit = entry.getValue();
+            if (edit[1] < expire || (total > quota && edit[1] < cold && !inUse.contains(entry.getKey()))) {
+                removed.add(entry.getKey());
+                total -= edit[0];
+            }
+        }
+        if (!removed.isEmpty()) {
+            HistoryIndex index = HistoryIndex.get(world);
+            List<Integer> removedPacked = new ArrayList<>();
+            for (int id : removed) {
+                edits.remove(id);
+                index.remove(user, id);
+                if (packed.contains(id)) {
+                    removedPacked.add(id);
+                } else {
+                    deleteLoose(folder, id);
+                }
+            }
+            pack.remove(removedPacked);
+            packed.removeAll(removedPacked);
+        }
+
+        // Pack runs of cold small edits
+        long maxEditSize = Settings.HISTORY_COMPACT_EDIT_SIZE * 1024L;
+        List<Integer> run = new ArrayList<>();
+        long runSize = 0;
+        int count = 0;
+        for (Map.Entry<Integer, long[]> entry : edits.entrySet()) {
+            int id = entry.getKey();
+            long[] edit = entry.getValue();
+            boolean candidate = !packed.contains(id) && edit[2] == 1 && edit[1] < cold && edit[0] <= maxEditSize;
+            if (!candidate || runSize + edit[0] > MAX_PACK_SIZE) {
+                count += pack(world, user, folder, pack, run, edits);
+                run.clear();
+                runSize = 0;
+            }
+            if (candidate) {
+                run.add(id);
+                runSize += edit[0];
+            }
+        }
+        count += pack(world, user, folder, pack, run, edits);
+
+        // Recompress the cold edits which are still loose
+        HashSet<Integer> recompressed = readCold(folder);
+        boolean changed = recompressed.retainAll(edits.keySet());
+        packed = pack.getIds();
+        int hc = 0;
+        for (Map.Entry<Integer, long[]> entry : edits.entrySet()) {
+            int id = entry.getKey();
+            long[] edit = entry.getValue();
+            if (packed.contains(id) || edit[1] >= cold || inUse.contains(id) || recompressed.contains(id)) {
+                continue;
+            }
+            recompress(world, user, folder, id, edit[1]);
+            recompressed.add(id);
+            changed = true;
+            hc++;
+        }
+        if (changed) {
+            writeCold(folder, recompressed);
+        }
+        if (count > 0 || hc > 0 || !removed.isEmpty()) {
+            Fawe.debug("Compacted history of " + user + " in " + world.getName() + ": " + count + " packed, " + hc + " recompressed, " + removed.size() + " removed");
+        }
+    }
+
+    private HashSet<Integer> readCold(File folder) throws IOException {
+        HashSet<Integer> ids = new HashSet<>();
+        File file = new File(folder, COLD_FILE);
+        if (!file.exists()) {
+            return ids;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (int i = (int) (file.length() >> 2); i > 0; i--) {
+                ids.add(in.readInt());
+            }
+        }
+        return ids;
+    }
+
+    private void writeCold(File folder, Set<Integer> ids) throws IOException {
+        File file = new File(folder, COLD_FILE);
+        if (ids.isEmpty()) {
+            file.delete();
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (int id : ids) {
+                out.writeInt(id);
+            }
+        }
+    }
+
+    /**
+     * Recompress the files of a loose edit with LZ4 HC<br>
+     *     - The block data keeps its format (a large edit keeps its chunk index)
+     *     - The files keep their modification time (it's the time of the edit)
+     */
+    private void recompress(World world, UUID user, File folder, int id, long time) throws IOException {
+        DiskStorageHistory history = new DiskStorageHistory(world, user, id);
+        File tmp = new File(folder, TMP_FILE);
+        File bd = new File(folder, id + ".bd");
+        if (bd.exists()) {
+            ChunkHistoryIndex chunked = history.getIndex();
+            BlockRecordReader reader = history.getBlockReader(null);
+            if (reader != null) {
+                try {
+                    if (chunked != null) {
+                        ChunkHistoryWriter writer = new ChunkHistoryWriter(tmp, chunked.getOriginX(), chunked.getOriginZ(), true);
+                        while (reader.next()) {
+                            writer.add(reader.x, reader.y, reader.z, reader.combinedFrom, reader.combinedTo);
+                        }
+                        writer.close();
+                    } else {
+                        BlockRecordOutputStream records = new BlockRecordOutputStream(getColdOS(new FileOutputStream(tmp)), history.getOriginX(), history.getOriginZ(), true);
+                        while (reader.next()) {
+                            records.write(reader.x, reader.y, reader.z, reader.combinedFrom, reader.combinedTo);
+                        }
+                        records.close();
+                    }
+                } finally {
+                    reader.close();
+                }
+                replace(bd, tmp, time);
+                HistoryIndex index = HistoryIndex.get(world);
+                HistoryIndex.Entry entry = index.get(user, id);
+                if (entry != null) {
+                    entry.size = bd.length();
+                    index.add(entry);
+                }
+            }
+        }
+        for (int i = 1; i < EXTENSIONS.length; i++) {
+            File file = new File(folder, id + EXTENSIONS[i]);
+            byte[] data = recompress(history, file);
+            if (data == null) {
+                continue;
+            }
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(data);
+            }
+            replace(file, tmp, time);
+        }
+    }
+
+    private void replace(File file, File tmp, long time) throws IOException {
+        if (!file.delete()) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+        file.setLastModified(time);
+    }
+
+    /**
+     * Pack a run of edits (if there is more than one)
+     * @return The number of edits packed
+     */
+    private int pack(World world, UUID user, File folder, HistoryPack pack, List<Integer> run, TreeMap<Integer, long[]> edits) throws IOException {
+        if (run.size() < 2) {
+            return 0;
+        }
+        int[] ids = new int[run.size()];
+        long[] times = new long[run.size()];
+        byte[][][] streams = new byte[run.size()][HistoryPack.STREAMS][];
+        for (int i = 0; i < ids.length; i++) {
+            int id = run.get(i);
+            DiskStorageHistory history = new DiskStorageHistory(world, user, id);
+            ids[i] = id;
+            times[i] = edits.get(id)[1];
+            streams[i][HistoryPack.BD] = encodeBlocks(history);
+            streams[i][HistoryPack.NBTF] = recompress(history, new File(folder, id + ".nbtf"));
+            streams[i][HistoryPack.NBTT] = recompress(history, new File(folder, id + ".nbtt"));
+            streams[i][HistoryPack.ENTF] = recompress(history, new File(folder, id + ".entf"));
+            streams[i][HistoryPack.ENTT] = recompress(history, new File(folder, id + ".entt"));
+        }
+        pack.write(ids, times, streams);
+        for (int id : ids) {
+            deleteLoose(folder, id);
+        }
+        return ids.length;
+    }
+
+    private void deleteLoose(File folder, int id) {
+        for (String extension : EXTENSIONS) {
+            new File(folder, id + extension).delete();
+        }
+    }
+
+    /**
+     * Get a stream which compresses the same way as FaweStreamChangeSet#getCompressedOS, but with LZ4 HC
+     */
+    private OutputStream getColdOS(OutputStream os) throws IOException {
+        LZ4Compressor compressor = LZ4Factory.fastestInstance().highCompressor();
+        os = new LZ4OutputStream(os, Settings.BUFFER_SIZE, compressor);
+        if (Settings.COMPRESSION_LEVEL > 0) {
+            os = new LZ4OutputStream(os, Settings.BUFFER_SIZE, compressor);
+        }
+        return os;
+    }
+
+    /**
+     * Re-encode the block data of an edit in the flat format (chunk bucketing isn't worth it for a small edit)
+     */
+    private byte[] encodeBlocks(DiskStorageHistory history) throws IOException {
+        BlockRecordReader reader = history.getBlockReader(null);
+        if (reader == null) {
+            return null;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            BlockRecordOutputStream records = new BlockRecordOutputStream(getColdOS(baos), history.getOriginX(), history.getOriginZ(), true);
+            while (reader.next()) {
+                records.write(reader.x, reader.y, reader.z, reader.combinedFrom, reader.combinedTo);
+            }
+            records.close();
+        } finally {
+            reader.close();
+        }
+        return baos.toByteArray();
+    }
+
+    private byte[] recompress(DiskStorageHistory history, File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream is = history.getCompressedIS(new FileInputStream(file)); OutputStream os = getColdOS(baos)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,617 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.Fawe;
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.RegionWrapper;
+import com.boydti.fawe.util.MainUtil;
+import com.boydti.fawe.util.MathMan;
+import com.boydti.fawe.util.TaskManager;
+import com.sk89q.worldedit.world.World;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent index of the disk history of a world (history/world/history.index)<br>
+ *     - One entry per edit: user, id, time, bounds, changes, size and the most changed blocks
+ *     - The file is an append only log of put / remove records, compacted when it's mostly stale
+ *     - Entries are bucketed into 512x512 cells, so a radius query only looks at nearby edits
+ *     - If there is no index file (e.g. history from an older version), it's rebuilt from the history files once (async)
+ *     - Edits whose files were deleted some other way (e.g. history.delete-after-days) are dropped when they're queried
+ */
+public class HistoryIndex {
+
+    private static final ConcurrentHashMap<String, HistoryIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private static final int MAGIC = 0x46484958; // FHIX
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int CELL_BITS = 9;
+    /**
+     * Edits spanning more cells than this are kept in a separate list which every query checks
+     */
+    private static final int MAX_CELLS = 64;
+    /**
+     * The number of block types stored for each edit
+     */
+    public static final int TOP_BLOCKS = 5;
+
+    /**
+     * Get the index for a world
+     * @param world
+     * @return
+     */
+    public static HistoryIndex get(World world) {
+        String name = world.getName();
+        HistoryIndex index = INDEXES.get(name);
+        if (index == null) {
+            HistoryIndex existing = INDEXES.putIfAbsent(name, index = new HistoryIndex(world));
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    public static class Entry {
+        public final UUID user;
+        public final int id;
+        public long time;
+        public int minX, minY, minZ, maxX, maxY, maxZ;
+        public int changes;
+        public long size;
+        /**
+         * Pairs of (block id, changes) for the most changed blocks
+         */
+        public int[] top = new int[0];
+
+        public Entry(UUID user, int id) {
+            this.user = user;
+            this.id = id;
+        }
+
+        public RegionWrapper getRegion() {
+            return new RegionWrapper(minX, maxX, minZ, maxZ);
+        }
+
+        /**
+         * Get the percentage of changes for each of the most changed blocks
+         * @return
+         */
+        public Map<Integer, Double> getPercents() {
+            LinkedHashMap<Integer, Double> map = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < top.length; i += 2) {
+                map.put(top[i], changes == 0 ? 0 : ((top[i + 1] * 1000l) / changes) / 10d);
+            }
+            return map;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeByte(PUT);
+            out.writeLong(user.getMostSignificantBits());
+            out.writeLong(user.getLeastSignificantBits());
+            out.writeInt(id);
+            out.writeLong(time);
+            out.writeInt(minX);
+            out.writeInt(minY);
+            out.writeInt(minZ);
+            out.writeInt(maxX);
+            out.writeInt(maxY);
+            out.writeInt(maxZ);
+            out.writeInt(changes);
+            out.writeLong(size);
+            out.writeByte(top.length);
+            for (int value : top) {
+                out.writeInt(value);
+            }
+        }
+
+        private static Entry read(DataInputStream in, UUID user, int id) throws IOException {
+            Entry entry = new Entry(user, id);
+            entry.time = in.readLong();
+            entry.minX = in.readInt();
+            entry.minY = in.readInt();
+            entry.minZ = in.readInt();
+            entry.maxX = in.readInt();
+            entry.maxY = in.readInt();
+            entry.maxZ = in.readInt();
+            entry.changes = in.readInt();
+            entry.size = in.readLong();
+            entry.top = new int[in.readUnsignedByte()];
+            for (int i = 0; i < entry.top.length; i++) {
+                entry.top[i] = in.readInt();
+            }
+            return entry;
+        }
+    }
+
+    private final World world;
+    private final File folder;
+    private final File file;
+
+    private HashMap<UUID, HashMap<Integer, Entry>> entries;
+    private HashMap<Long, ArrayList<Entry>> cells;
+    private ArrayList<Entry> large;
+    private int size;
+    private int stale;
+    /**
+     * If the history files are being indexed (nothing is appended to the file until they're done)
+     */
+    private boolean rebuilding;
+
+    private HistoryIndex(World world) {
+        this.world = world;
+        this.folder = new File(Fawe.imp().getDirectory(), "history" + File.separator + world.getName());
+        this.file = new File(folder, "history.index");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+        cells = new HashMap<>();
+        large = new ArrayList<>();
+        if (!file.exists()) {
+            rebuild();
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid history index: " + file);
+            }
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ignore) {
+                    break;
+                }
+                UUID user = new UUID(in.readLong(), in.readLong());
+                int id = in.readInt();
+                switch (type) {
+                    case PUT:
+                        if (unindex(user, id) != null) {
+                            stale++;
+                        }
+                        put(Entry.read(in, user, id));
+                        break;
+                    case REMOVE:
+                        stale++;
+                        unindex(user, id);
+                        break;
+                    default:
+                        throw new IOException("Invalid history index record: " + type);
+                }
+            }
+        } catch (EOFException ignore) {
+            // Partially written record (crash)
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+            entries.clear();
+            cells.clear();
+            large.clear();
+            size = 0;
+            rebuild();
+            return;
+        }
+        if (stale > size) {
+            compact();
+        }
+    }
+
+    /**
+     * Index the existing history files (done once, when there is no index)<br>
+     *     - The files are summarized async, until then a query only returns the edits added since
+     *     - The file is only written once it's done, so an interrupted rebuild starts again next time
+     */
+    private void rebuild() {
+        rebuilding = true;
+        TaskManager.IMP.async(new Runnable() {
+            @Override
+            public void run() {
+                Fawe.debug("Indexing history for " + world.getName() + "...");
+                ArrayList<Entry> found = new ArrayList<>();
+                try {
+                    scan(found);
+                } catch (Throwable e) {
+                    MainUtil.handleError(e);
+                }
+                synchronized (HistoryIndex.this) {
+                    for (Entry entry : found) {
+                        HashMap<Integer, Entry> userEntries = entries.get(entry.user);
+                        if (userEntries == null || !userEntries.containsKey(entry.id)) {
+                            put(entry);
+                        }
+                    }
+                    compact();
+                    rebuilding = false;
+                }
+                Fawe.debug("Indexed " + found.size() + " edits for " + world.getName());
+            }
+        });
+    }
+
+    /**
+     * Summarize the history files (without holding the lock)
+     */
+    private void scan(List<Entry> found) {
+        File[] users = folder.listFiles();
+        if (users != null) {
+            RegionWrapper everything = new RegionWrapper(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            for (File userFolder : users) {
+                if (!userFolder.isDirectory()) {
+                    continue;
+                }
+                UUID user;
+                try {
+                    user = UUID.fromString(userFolder.getName());
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                File[] files = userFolder.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                HistoryPack pack = HistoryPack.get(userFolder);
+                for (int id : pack.getIds()) {
+                    HistoryPack.Entry packed = pack.getEntry(id);
+                    found.add(index(new DiskStorageHistory(world, user, id), everything, packed.time, packed.getSize()));
+                }
+                for (File bd : files) {
+                    String name = bd.getName();
+                    if (!name.endsWith(".bd") || !MathMan.isInteger(name.substring(0, name.length() - 3))) {
+                        continue;
+                    }
+                    int id = Integer.parseInt(name.substring(0, name.length() - 3));
+                    found.add(index(new DiskStorageHistory(world, user, id), everything, bd.lastModified(), bd.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Index an edit from its block data
+     */
+    private Entry index(DiskStorageHistory history, RegionWrapper everything, long time, long size) {
+        DiskStorageHistory.DiskStorageSummary summary = history.summarize(everything, false);
+        Entry entry = new Entry(history.getUUID(), history.getId());
+        entry.time = time;
+        entry.minX = summary.minX;
+        entry.minZ = summary.minZ;
+        entry.maxX = summary.maxX;
+        entry.maxZ = summary.maxZ;
+        entry.minY = 0;
+        entry.maxY = 255;
+        entry.changes = summary.getSize();
+        entry.size = size;
+        entry.top = getTop(summary.blocks);
+        return entry;
+    }
+
+    /**
+     * Get the most changed blocks as (id, count) pairs
+     * @param counts The changes for each block id
+     * @return
+     */
+    public static int[] getTop(int[] counts) {
+        int[] top = new int[TOP_BLOCKS * 2];
+        int amount = 0;
+        for (int id = 0; id < counts.length; id++) {
+            int count = counts[id];
+            if (count == 0) {
+                continue;
+            }
+            int i = Math.min(amount, TOP_BLOCKS - 1);
+            if (amount == TOP_BLOCKS && count <= top[i * 2 + 1]) {
+                continue;
+            }
+            // Insertion sort (descending)
+            while (i > 0 && top[(i - 1) * 2 + 1] < count) {
+                top[i * 2] = top[(i - 1) * 2];
+                top[i * 2 + 1] = top[(i - 1) * 2 + 1];
+                i--;
+            }
+            top[i * 2] = id;
+            top[i * 2 + 1] = count;
+            if (amount < TOP_BLOCKS) {
+                amount++;
+            }
+        }
+        int[] result = new int[amount * 2];
+        System.arraycopy(top, 0, result, 0, result.length);
+        return result;
+    }
+
+    private void put(Entry entry) {
+        unindex(entry.user, entry.id);
+        HashMap<Integer, Entry> userEntries = entries.get(entry.user);
+        if (userEntries == null) {
+            entries.put(entry.user, userEntries = new HashMap<>());
+        }
+        userEntries.put(entry.id, entry);
+        size++;
+        int cx1 = entry.minX >> CELL_BITS;
+        int cz1 = entry.minZ >> CELL_BITS;
+        int cx2 = entry.maxX >> CELL_BITS;
+        int cz2 = entry.maxZ >> CELL_BITS;
+        if ((long) (cx2 - cx1 + 1) * (cz2 - cz1 + 1) > MAX_CELLS) {
+            large.add(entry);
+            return;
+        }
+        for (int cx = cx1; cx <= cx2; cx++) {
+            for (int cz = cz1; cz <= cz2; cz++) {
+                long pair = MathMan.pairInt(cx, cz);
+                ArrayList<Entry> cell = cells.get(pair);
+                if (cell == null) {
+                    cells.put(pair, cell = new ArrayList<>());
+                }
+                cell.add(entry);
+            }
+        }
+    }
+
+    private Entry unindex(UUID user, int id) {
+        HashMap<Integer, Entry> userEntries = entries.get(user);
+        if (userEntries == null) {
+            return null;
+        }
+        Entry entry = userEntries.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        if (userEntries.isEmpty()) {
+            entries.remove(user);
+        }
+        size--;
+        if (!large.remove(entry)) {
+            for (int cx = entry.minX >> CELL_BITS; cx <= entry.maxX >> CELL_BITS; cx++) {
+                for (int cz = entry.minZ >> CELL_BITS; cz <= entry.maxZ >> CELL_BITS; cz++) {
+                    long pair = MathMan.pairInt(cx, cz);
+                    ArrayList<Entry> cell = cells.get(pair);
+                    if (cell != null && cell.remove(entry) && cell.isEmpty()) {
+                        cells.remove(pair);
+                    }
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Rewrite the file with only the current entries
+     */
+    private void compact() {
+        File tmp = new File(folder, "history.index.tmp");
+        try {
+            folder.mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                for (HashMap<Integer, Entry> userEntries : entries.values()) {
+                    for (Entry entry : userEntries.values()) {
+                        entry.write(out);
+                    }
+                }
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not replace " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            stale = 0;
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        }
+    }
+
+    private void append(Entry entry, UUID user, int id) {
+        try {
+            folder.mkdirs();
+            boolean exists = file.exists();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                if (!exists) {
+                    out.writeInt(MAGIC);
+                }
+                if (entry != null) {
+                    entry.write(out);
+                } else {
+                    writeRemove(out, user, id);
+                }
+            }
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        }
+    }
+
+    private void writeRemove(DataOutputStream out, UUID user, int id) throws IOException {
+        out.writeByte(REMOVE);
+        out.writeLong(user.getMostSignificantBits());
+        out.writeLong(user.getLeastSignificantBits());
+        out.writeInt(id);
+    }
+
+    /**
+     * Check if the files of an edit still exist
+     */
+    private boolean exists(Entry entry) {
+        File userFolder = new File(folder, entry.user.toString());
+        return new File(userFolder, entry.id + ".bd").exists() || HistoryPack.get(userFolder).contains(entry.id);
+    }
+
+    /**
+     * Drop the edits whose files were deleted (e.g. by history.delete-after-days)
+     * @param result The edits (the missing ones are removed from it)
+     */
+    private void validate(List<Entry> result) {
+        ArrayList<Entry> missing = new ArrayList<>();
+        for (int i = result.size() - 1; i >= 0; i--) {
+            Entry entry = result.get(i);
+            if (!exists(entry)) {
+                result.remove(i);
+                unindex(entry.user, entry.id);
+                stale++;
+                missing.add(entry);
+            }
+        }
+        if (missing.isEmpty() || rebuilding || !file.exists()) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            for (Entry entry : missing) {
+                writeRemove(out, entry.user, entry.id);
+            }
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        }
+    }
+
+    /**
+     * Add or replace the entry for an edit
+     * @param entry
+     */
+    public synchronized void add(Entry entry) {
+        load();
+        if (unindex(entry.user, entry.id) != null) {
+            stale++;
+        }
+        put(entry);
+        if (!rebuilding) {
+            append(entry, null, 0);
+        }
+    }
+
+    /**
+     * Remove the entry for an edit (e.g. after it was rolled back)<br>
+     *     - If the index isn't loaded, only the record is appended (it's applied when it's loaded)
+     * @param user
+     * @param id
+     */
+    public synchronized void remove(UUID user, int id) {
+        if (entries == null) {
+            if (file.exists()) {
+                append(null, user, id);
+            }
+            return;
+        }
+        if (unindex(user, id) != null) {
+            stale++;
+            if (!rebuilding) {
+                append(null, user, id);
+            }
+        }
+    }
+
+    /**
+     * Get an entry
+     * @param user
+     * @param id
+     * @return
+     */
+    public synchronized Entry get(UUID user, int id) {
+        load();
+        HashMap<Integer, Entry> userEntries = entries.get(user);
+        return userEntries == null ? null : userEntries.get(id);
+    }
+
+    /**
+     * Find the edits which intersect a region<br>
+     *     - Edits older than history.delete-after-days are ignored (their files have been deleted)
+     *     - Edits whose files no longer exist are removed from the index
+     *     - While the index is being rebuilt (@see #isRebuilding) only the edits indexed so far are returned
+     * @param user The user (or null for everyone)
+     * @param region The region (or null for everywhere)
+     * @param maxAge The max age in milliseconds
+     * @return The edits, oldest first
+     */
+    public synchronized List<Entry> query(UUID user, RegionWrapper region, long maxAge) {
+        load();
+        long now = System.currentTimeMillis();
+        long expire = TimeUnit.DAYS.toMillis(Settings.DELETE_HISTORY_AFTER_DAYS);
+        ArrayList<Entry> result = new ArrayList<>();
+        if (region == null) {
+            for (Map.Entry<UUID, HashMap<Integer, Entry>> userEntries : entries.entrySet()) {
+                if (user == null || user.equals(userEntries.getKey())) {
+                    result.addAll(userEntries.getValue().values());
+                }
+            }
+        } else {
+            HashSet<Entry> found = new HashSet<>();
+            found.addAll(large);
+            long cellsX = ((long) region.maxX >> CELL_BITS) - (region.minX >> CELL_BITS) + 1;
+            long cellsZ = ((long) region.maxZ >> CELL_BITS) - (region.minZ >> CELL_BITS) + 1;
+            if (cellsX * cellsZ > cells.size()) {
+                for (ArrayList<Entry> cell : cells.values()) {
+                    found.addAll(cell);
+                }
+            } else {
+                for (int cx = region.minX >> CELL_BITS; cx <= region.maxX >> CELL_BITS; cx++) {
+                    for (int cz = region.minZ >> CELL_BITS; cz <= region.maxZ >> CELL_BITS; cz++) {
+                        ArrayList<Entry> cell = cells.get(MathMan.pairInt(cx, cz));
+                        if (cell != null) {
+                            found.addAll(cell);
+                        }
+                    }
+                }
+            }
+            for (Entry entry : found) {
+                if ((user == null || user.equals(entry.user)) && region.intersects(entry.getRegion())) {
+                    result.add(entry);
+                }
+            }
+        }
+        for (int i = result.size() - 1; i >= 0; i--) {
+            long age = now - result.get(i).time;
+            if (age > maxAge || (Settings.DELETE_HISTORY_AFTER_DAYS > 0 && age > expire)) {
+                result.remove(i);
+            }
+        }
+        validate(result);
+        Collections.sort(result, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int value = Long.compare(a.time, b.time);
+                return value != 0 ? value : Integer.compare(a.id, b.id);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Get the number of indexed edits
+     * @return
+     */
+    public synchronized int size() {
+        load();
+        return size;
+    }
+
+    /**
+     * Check if the existing history files are still being indexed
+     * @return
+     */
+    public synchronized boolean isRebuilding() {
+        return rebuilding;
+    }
+}
@@ -0,0 +1,372 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.util.MainUtil;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The packed edits of a user in a world (history/world/uuid/first-last.pack)<br>
+ *     - Consecutive small edits are merged into one pack by the HistoryCompactor, so a user has a few files rather than thousands
+ *     - Each edit keeps its id, and is read by DiskStorageHistory when its own files don't exist
+ *     - Packs are immutable, removing an edit rewrites its pack
+ * <br>
+ * [header]<br>
+ * { int magic, byte version }<br>
+ * <br>
+ * [data]...<br>
+ * { byte[] stream } (the compressed contents of each of the edit's files)<br>
+ * <br>
+ * [index]<br>
+ * { int edits, { int id, long time, { long offset, int length } (for each stream) }... }<br>
+ * <br>
+ * [trailer]<br>
+ * { long index offset, int magic }
+ * @see HistoryCompactor
+ */
+public class HistoryPack {
+
+    private static final ConcurrentHashMap<String, HistoryPack> PACKS = new ConcurrentHashMap<>();
+
+    public static final int MAGIC = 0x4648504B; // FHPK
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 5;
+    public static final int TRAILER_SIZE = 12;
+    public static final String EXTENSION = ".pack";
+
+    /**
+     * The streams of an edit (the order they're stored in)
+     */
+    public static final int BD = 0;
+    public static final int NBTF = 1;
+    public static final int NBTT = 2;
+    public static final int ENTF = 3;
+    public static final int ENTT = 4;
+    public static final int STREAMS = 5;
+
+    /**
+     * Get the packs in a user's history folder
+     * @param folder
+     * @return
+     */
+    public static HistoryPack get(File folder) {
+        String key = folder.getAbsolutePath();
+        HistoryPack pack = PACKS.get(key);
+        if (pack == null) {
+            HistoryPack existing = PACKS.putIfAbsent(key, pack = new HistoryPack(folder));
+            if (existing != null) {
+                pack = existing;
+            }
+        }
+        return pack;
+    }
+
+    public static class Entry {
+        public final int id;
+        public final long time;
+        private final File file;
+        private final long[] offset = new long[STREAMS];
+        private final int[] length = new int[STREAMS];
+
+        private Entry(File file, int id, long time) {
+            this.file = file;
+            this.id = id;
+            this.time = time;
+        }
+
+        /**
+         * Get the compressed size of the edit
+         * @return
+         */
+        public long getSize() {
+            long size = 0;
+            for (int value : length) {
+                size += value;
+            }
+            return size;
+        }
+    }
+
+    private final File folder;
+    private HashMap<Integer, Entry> entries;
+
+    private HistoryPack(File folder) {
+        this.folder = folder;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            try {
+                for (Entry entry : readIndex(file)) {
+                    entries.put(entry.id, entry);
+                }
+            } catch (IOException e) {
+                MainUtil.handleError(e);
+            }
+        }
+    }
+
+    private static List<Entry> readIndex(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long fileLength = raf.length();
+            if (fileLength < HEADER_SIZE + TRAILER_SIZE || raf.readInt() != MAGIC) {
+                throw new IOException("Invalid history pack: " + file);
+            }
+            raf.readByte();
+            raf.seek(fileLength - TRAILER_SIZE);
+            long indexOffset = raf.readLong();
+            if (raf.readInt() != MAGIC || indexOffset < HEADER_SIZE || indexOffset >= fileLength) {
+                throw new IOException("Incomplete history pack: " + file);
+            }
+            raf.seek(indexOffset);
+            int count = raf.readInt();
+            List<Entry> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(file, raf.readInt(), raf.readLong());
+                for (int j = 0; j < STREAMS; j++) {
+                    entry.offset[j] = raf.readLong();
+                    entry.length[j] = raf.readInt();
+                }
+                result.add(entry);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Check if an edit is packed
+     * @param id
+     * @return
+     */
+    public synchronized boolean contains(int id) {
+        load();
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Get a packed edit
+     * @param id
+     * @return The entry, or null if the edit isn't packed
+     */
+    public synchronized Entry getEntry(int id) {
+        load();
+        return entries.get(id);
+    }
+
+    /**
+     * Get the ids of the packed edits
+     * @return The ids in ascending order
+     */
+    public synchronized TreeSet<Integer> getIds() {
+        load();
+        return new TreeSet<>(entries.keySet());
+    }
+
+    /**
+     * Get the highest packed id
+     * @return The id, or 0 if nothing is packed
+     */
+    public synchronized int getMaxId() {
+        load();
+        int max = 0;
+        for (int id : entries.keySet()) {
+            max = Math.max(max, id);
+        }
+        return max;
+    }
+
+    /**
+     * Read a stream of a packed edit
+     * @param id
+     * @param stream e.g. HistoryPack.BD
+     * @return The compressed data, or null if the edit isn't packed or has no such stream
+     */
+    public synchronized byte[] read(int id, int stream) throws IOException {
+        load();
+        Entry entry = entries.get(id);
+        if (entry == null || entry.length[stream] == 0) {
+            return null;
+        }
+        byte[] data = new byte[entry.length[stream]];
+        try (RandomAccessFile raf = new RandomAccessFile(entry.file, "r")) {
+            raf.seek(entry.offset[stream]);
+            raf.readFully(data);
+        }
+        return data;
+    }
+
+    /**
+     * Pack some edits into a new file
+     * @param ids The ids (ascending)
+     * @param times The time of each edit
+     * @param streams The compressed streams of each edit (null for a missing stream)
+     * @throws IOException
+     */
+    public synchronized void write(int[] ids, long[] times, byte[][][] streams) throws IOException {
+        load();
+        if (ids.length == 0) {
+            return;
+        }
+        File file = new File(folder, ids[0] + "-" + ids[ids.length - 1] + EXTENSION);
+        File tmp = new File(folder, file.getName() + ".tmp");
+        List<Entry> written = new ArrayList<>(ids.length);
+        long newest = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            long position = HEADER_SIZE;
+            for (int i = 0; i < ids.length; i++) {
+                Entry entry = new Entry(file, ids[i], times[i]);
+                for (int j = 0; j < STREAMS; j++) {
+                    byte[] data = streams[i][j];
+                    if (data != null && data.length > 0) {
+                        out.write(data);
+                        entry.offset[j] = position;
+                        entry.length[j] = data.length;
+                        position += data.length;
+                    }
+                }
+                written.add(entry);
+                newest = Math.max(newest, times[i]);
+            }
+            out.writeInt(written.size());
+            for (Entry entry : written) {
+                out.writeInt(entry.id);
+                out.writeLong(entry.time);
+                for (int j = 0; j < STREAMS; j++) {
+                    out.writeLong(entry.offset[j]);
+                    out.writeInt(entry.length[j]);
+                }
+            }
+            out.writeLong(position);
+            out.writeInt(MAGIC);
+        }
+        if (file.exists() && !file.delete()) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+        // So history.delete-after-days only deletes it once every edit has expired
+        file.setLastModified(newest);
+        for (Entry entry : written) {
+            entries.put(entry.id, entry);
+        }
+    }
+
+    /**
+     * Remove some edits (the packs they are in are rewritten, or deleted if they would be empty)
+     * @param ids
+     */
+    public synchronized void remove(Collection<Integer> ids) {
+        load();
+        HashMap<File, List<Entry>> files = new HashMap<>();
+        for (int id : ids) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                files.put(entry.file, null);
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+        Set<Integer> removed = new HashSet<>(ids);
+        for (Entry entry : entries.values()) {
+            if (files.containsKey(entry.file) && !removed.contains(entry.id)) {
+                List<Entry> kept = files.get(entry.file);
+                if (kept == null) {
+                    files.put(entry.file, kept = new ArrayList<>());
+                }
+                kept.add(entry);
+            }
+        }
+        for (int id : ids) {
+            entries.remove(id);
+        }
+        for (Map.Entry<File, List<Entry>> file : files.entrySet()) {
+            try {
+                rewrite(file.getKey(), file.getValue());
+            } catch (IOException e) {
+                MainUtil.handleError(e);
+            }
+        }
+    }
+
+    /**
+     * Rewrite a pack with only some of its edits
+     * @param old The pack
+     * @param kept The edits to keep (null for none)
+     * @throws IOException
+     */
+    private void rewrite(File old, List<Entry> kept) throws IOException {
+        if (kept == null) {
+            old.delete();
+            return;
+        }
+        Collections.sort(kept, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Integer.compare(a.id, b.id);
+            }
+        });
+        int[] ids = new int[kept.size()];
+        long[] times = new long[kept.size()];
+        byte[][][] streams = new byte[kept.size()][STREAMS][];
+        try (RandomAccessFile raf = new RandomAccessFile(old, "r")) {
+            for (int i = 0; i < ids.length; i++) {
+                Entry entry = kept.get(i);
+                ids[i] = entry.id;
+                times[i] = entry.time;
+                for (int j = 0; j < STREAMS; j++) {
+                    if (entry.length[j] > 0) {
+                        streams[i][j] = new byte[entry.length[j]];
+                        raf.seek(entry.offset[j]);
+                        raf.readFully(streams[i][j]);
+                    }
+                }
+            }
+        }
+        // Replaces the old pack if the name is the same
+        write(ids, times, streams);
+        if (!old.getName().equals(ids[0] + "-" + ids[ids.length - 1] + EXTENSION)) {
+            old.delete();
+        }
+    }
+
+    /**
+     * Forget the loaded index (e.g. if the folder was modified externally)
+     */
+    public synchronized void reload() {
+        entries = null;
+    }
+}
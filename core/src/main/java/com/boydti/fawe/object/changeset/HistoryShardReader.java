@@ -0,0 +1,177 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.object.RegionWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.UUID;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Reads the changes in an area from the region shards<br>
+ *     - Only the shards of the regions the area touches are read (memory mapped, one at a time)
+ *     - Blocks of other users, older blocks and blocks of edits which aren't live are skipped without being decompressed
+ *     - The changes to a position are read in the order they were made (the shards are append only)
+ * @see HistoryShards
+ */
+public class HistoryShardReader {
+
+    private final HistoryShards shards;
+    private final RegionWrapper region;
+    private final UUID filter;
+    private final long since;
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private int rx;
+    private int rz;
+    private File file;
+    private MappedByteBuffer mapped;
+    private ByteBuffer header;
+    private int position;
+
+    private byte[] buffer = new byte[0];
+    private ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    private BlockRecordReader records;
+
+    /**
+     * The edit of the current change
+     */
+    public UUID user;
+    public int id;
+    public long start;
+    /**
+     * When the block of the current change was written
+     */
+    public long time;
+
+    public int x;
+    public int y;
+    public int z;
+    public int combinedFrom;
+    public int combinedTo;
+
+    public HistoryShardReader(HistoryShards shards, RegionWrapper region, UUID user, long since) {
+        this.shards = shards;
+        this.region = region;
+        this.filter = user;
+        this.since = since;
+        this.rx = region.minX >> HistoryShards.REGION_BITS;
+        this.rz = (region.minZ >> HistoryShards.REGION_BITS) - 1;
+    }
+
+    /**
+     * Map the next shard in the area
+     * @return false once every shard has been read
+     */
+    private boolean nextShard() throws IOException {
+        close();
+        while (true) {
+            if (++rz > region.maxZ >> HistoryShards.REGION_BITS) {
+                rz = region.minZ >> HistoryShards.REGION_BITS;
+                if (++rx > region.maxX >> HistoryShards.REGION_BITS) {
+                    return false;
+                }
+            }
+            File file = shards.getFile(rx, rz);
+            mapped = shards.map(file);
+            if (mapped != null) {
+                this.file = file;
+                mapped.order(ByteOrder.nativeOrder());
+                header = mapped.duplicate().order(ByteOrder.BIG_ENDIAN);
+                position = 0;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Decompress the next block which matches the filter
+     * @return false once every block has been read
+     */
+    private boolean nextBlock() throws IOException {
+        while (true) {
+            if (mapped == null || position + HistoryShards.BLOCK_HEADER_SIZE > mapped.limit() || header.getInt(position) != HistoryShards.MAGIC) {
+                if (!nextShard()) {
+                    return false;
+                }
+                continue;
+            }
+            int block = position;
+            int compressed = header.getInt(block + HistoryShards.OFFSET_COMPRESSED);
+            int raw = header.getInt(block + HistoryShards.OFFSET_RAW);
+            int offset = block + HistoryShards.BLOCK_HEADER_SIZE;
+            if (compressed < 0 || raw < 0 || offset + compressed > mapped.limit()) {
+                // A block which is still being appended
+                position = mapped.limit();
+                continue;
+            }
+            position = offset + compressed;
+            UUID blockUser = new UUID(header.getLong(block + HistoryShards.OFFSET_USER), header.getLong(block + HistoryShards.OFFSET_USER + 8));
+            long blockTime = header.getLong(block + HistoryShards.OFFSET_TIME);
+            if (blockTime < since || (filter != null && !filter.equals(blockUser))) {
+                continue;
+            }
+            int blockId = header.getInt(block + HistoryShards.OFFSET_ID);
+            long blockStart = header.getLong(block + HistoryShards.OFFSET_START);
+            if (!shards.isLive(blockUser, blockId, blockStart)) {
+                continue;
+            }
+            if (raw > buffer.length) {
+                buffer = new byte[raw];
+                wrapped = ByteBuffer.wrap(buffer);
+            }
+            decompressor.decompress(mapped, offset, wrapped, 0, raw);
+            records = new BlockRecordReader(new ByteArrayInputStream(buffer, 0, raw), BlockRecordOutputStream.VERSION_DELTA, rx << HistoryShards.REGION_BITS, rz << HistoryShards.REGION_BITS);
+            user = blockUser;
+            id = blockId;
+            start = blockStart;
+            time = blockTime;
+            return true;
+        }
+    }
+
+    /**
+     * Read the next change in the area into user, id, start, time, x, y, z, combinedFrom and combinedTo
+     * @return false once every change has been read
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (records == null && !nextBlock()) {
+                return false;
+            }
+            while (records.next()) {
+                if (region.isIn(records.x, records.z)) {
+                    x = records.x;
+                    y = records.y;
+                    z = records.z;
+                    combinedFrom = records.combinedFrom;
+                    combinedTo = records.combinedTo;
+                    return true;
+                }
+            }
+            records = null;
+        }
+    }
+
+    /**
+     * Skip the rest of the current block (e.g. once it's known that the edit changed something in the area)
+     */
+    public void skipBlock() {
+        records = null;
+    }
+
+    public void close() {
+        records = null;
+        if (mapped != null) {
+            shards.release(file, mapped);
+            mapped = null;
+            file = null;
+            header = null;
+        }
+    }
+}
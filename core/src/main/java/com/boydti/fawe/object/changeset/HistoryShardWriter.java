@@ -0,0 +1,124 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.io.WritePipeline;
+import com.boydti.fawe.util.MathMan;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+/**
+ * Writes the block changes of an edit to the region shards<br>
+ *     - Changes are buffered (delta encoded) per region, and appended as one block per region when the buffers reach Settings.BUFFER_SIZE (or on close)
+ *     - The blocks are compressed and appended on a WritePipeline (so off the recording thread if history.async-write is enabled)
+ * @see HistoryShards for the format
+ */
+public class HistoryShardWriter {
+
+    private final HistoryShards shards;
+    private final UUID user;
+    private final int id;
+    private final long start;
+
+    private final WritePipeline pipeline = WritePipeline.create();
+    private LinkedHashMap<Long, Bucket> buckets = new LinkedHashMap<>();
+    private Bucket lastBucket;
+    private int lastX = Integer.MIN_VALUE;
+    private int lastZ = Integer.MIN_VALUE;
+    private int buffered;
+
+    private static class Bucket extends OutputStream {
+        private final int rx;
+        private final int rz;
+        private final BlockRecordOutputStream records;
+        private byte[] data = new byte[256];
+        private int size;
+        private int changes;
+
+        private Bucket(int rx, int rz) throws IOException {
+            this.rx = rx;
+            this.rz = rz;
+            this.records = new BlockRecordOutputStream(this, rx << HistoryShards.REGION_BITS, rz << HistoryShards.REGION_BITS, false);
+        }
+
+        @Override
+        public void write(int b) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size << 1);
+            }
+            data[size++] = (byte) b;
+        }
+    }
+
+    public HistoryShardWriter(HistoryShards shards, UUID user, int id) {
+        this.shards = shards;
+        this.user = user;
+        this.id = id;
+        this.start = System.currentTimeMillis();
+    }
+
+    public void add(int x, int y, int z, int combinedFrom, int combinedTo) throws IOException {
+        int rx = x >> HistoryShards.REGION_BITS;
+        int rz = z >> HistoryShards.REGION_BITS;
+        Bucket bucket;
+        if (rx == lastX && rz == lastZ) {
+            bucket = lastBucket;
+        } else {
+            long pair = MathMan.pairInt(rx, rz);
+            bucket = buckets.get(pair);
+            if (bucket == null) {
+                buckets.put(pair, bucket = new Bucket(rx, rz));
+            }
+            lastBucket = bucket;
+            lastX = rx;
+            lastZ = rz;
+        }
+        int before = bucket.size;
+        bucket.records.write(x, y, z, combinedFrom, combinedTo);
+        bucket.changes++;
+        if ((buffered += bucket.size - before) >= Settings.BUFFER_SIZE) {
+            flushBuckets();
+        }
+    }
+
+    /**
+     * Queue the buffered regions to be appended to their shards
+     * @throws IOException
+     */
+    private void flushBuckets() throws IOException {
+        if (buckets.isEmpty()) {
+            return;
+        }
+        final Collection<Bucket> flushing = buckets.values();
+        buckets = new LinkedHashMap<>();
+        lastBucket = null;
+        lastX = Integer.MIN_VALUE;
+        lastZ = Integer.MIN_VALUE;
+        buffered = 0;
+        pipeline.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                for (Bucket bucket : flushing) {
+                    bucket.records.finish();
+                    shards.append(bucket.rx, bucket.rz, user, id, start, bucket.changes, bucket.data, bucket.size);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Append any buffered changes, then mark the edit as complete<br>
+     *     - Waits until the shards have been written
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flushBuckets();
+        pipeline.await();
+        shards.complete(user, id, start);
+    }
+}
@@ -0,0 +1,437 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.Fawe;
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.RegionWrapper;
+import com.boydti.fawe.util.MainUtil;
+import com.sk89q.worldedit.world.World;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * The region shards of a world's history (history/world/regions/r.x.z.shard), if history.region-shards is enabled<br>
+ *     - Block changes are also written to the shard of their 512x512 region (like the Minecraft region files)
+ *     - A query for an area only reads the shards it touches, rather than every edit near it
+ *     - Shards are append only, the blocks of removed edits are pruned by the HistoryCompactor
+ *     - A shard which is mapped by a reader isn't replaced until the reader releases it (@see #map)
+ *     - edits.log lists the edits which were completely written to the shards
+ * <br>
+ * [block]... (one per edit per flush)<br>
+ * { int magic, long uuid most, long uuid least, int id, long start, long time, int changes, int compressed length, int raw length }<br>
+ * { byte[] compressed } (LZ4, the delta encoded records relative to the region corner, @see BlockRecordOutputStream)<br>
+ * <br>
+ * [edits.log]<br>
+ * { long uuid most, long uuid least, int id, long start }...<br>
+ * - The start time tells apart edits which reused the id of a removed edit
+ * @see HistoryShardWriter
+ * @see HistoryShardReader
+ */
+public class HistoryShards {
+
+    private static final ConcurrentHashMap<String, HistoryShards> SHARDS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * The number of readers which have each shard mapped (only changed while holding the lock of the shard)
+     */
+    private static final ConcurrentHashMap<String, Integer> MAPPED = new ConcurrentHashMap<>();
+
+    public static final int MAGIC = 0x46485342; // FHSB
+    public static final int BLOCK_HEADER_SIZE = 52;
+
+    /**
+     * The offsets of the fields in a block header
+     */
+    public static final int OFFSET_USER = 4;
+    public static final int OFFSET_ID = 20;
+    public static final int OFFSET_START = 24;
+    public static final int OFFSET_TIME = 32;
+    public static final int OFFSET_CHANGES = 40;
+    public static final int OFFSET_COMPRESSED = 44;
+    public static final int OFFSET_RAW = 48;
+    public static final int REGION_BITS = 9;
+    public static final String EXTENSION = ".shard";
+
+    /**
+     * Get the shards of a world
+     * @param world
+     * @return
+     */
+    public static HistoryShards get(World world) {
+        String name = world.getName();
+        HistoryShards shards = SHARDS.get(name);
+        if (shards == null) {
+            HistoryShards existing = SHARDS.putIfAbsent(name, shards = new HistoryShards(world));
+            if (existing != null) {
+                shards = existing;
+            }
+        }
+        return shards;
+    }
+
+    private final World world;
+    private final File folder;
+    private final File log;
+    private final LZ4Compressor compressor;
+
+    /**
+     * The start time of each completely written edit
+     */
+    private HashMap<UUID, HashMap<Integer, Long>> edits;
+
+    private HistoryShards(World world) {
+        this(world, new File(Fawe.imp().getDirectory(), "history" + File.separator + world.getName() + File.separator + "regions"));
+    }
+
+    /**
+     * Shards in a specific folder (rather than the world's history folder)
+     * @param world
+     * @param folder
+     */
+    HistoryShards(World world, File folder) {
+        this.world = world;
+        this.folder = folder;
+        this.log = new File(folder, "edits.log");
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        this.compressor = Settings.COMPRESSION_LEVEL > 0 ? factory.highCompressor() : factory.fastCompressor();
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Get the shard of a region
+     * @param rx The region x (block x >> 9)
+     * @param rz The region z (block z >> 9)
+     * @return
+     */
+    public File getFile(int rx, int rz) {
+        return new File(folder, "r." + rx + "." + rz + EXTENSION);
+    }
+
+    private static Object lock(File file) {
+        String key = file.getAbsolutePath();
+        Object lock = LOCKS.get(key);
+        if (lock == null) {
+            Object existing = LOCKS.putIfAbsent(key, lock = new Object());
+            if (existing != null) {
+                lock = existing;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Map a shard for reading<br>
+     *     - It won't be replaced by a prune until it's released (a mapped file can't be deleted or replaced on Windows)
+     * @param file
+     * @return The mapped shard, or null if it doesn't exist (or is empty)
+     * @throws IOException
+     */
+    public MappedByteBuffer map(File file) throws IOException {
+        synchronized (lock(file)) {
+            if (!file.exists() || file.length() == 0) {
+                return null;
+            }
+            MappedByteBuffer mapped = MainUtil.mapFile(file);
+            String key = file.getAbsolutePath();
+            Integer count = MAPPED.get(key);
+            MAPPED.put(key, count == null ? 1 : count + 1);
+            return mapped;
+        }
+    }
+
+    /**
+     * Unmap a shard mapped by {@link #map}
+     * @param file
+     * @param mapped
+     */
+    public void release(File file, MappedByteBuffer mapped) {
+        synchronized (lock(file)) {
+            MainUtil.unmap(mapped);
+            String key = file.getAbsolutePath();
+            Integer count = MAPPED.get(key);
+            if (count == null || count <= 1) {
+                MAPPED.remove(key);
+            } else {
+                MAPPED.put(key, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Append the changes of an edit to the shard of a region
+     * @param rx The region x
+     * @param rz The region z
+     * @param user
+     * @param id
+     * @param start The time the edit started
+     * @param changes The number of changes
+     * @param raw The records (@see BlockRecordOutputStream, relative to the region corner)
+     * @param length The length of the records
+     * @throws IOException
+     */
+    public void append(int rx, int rz, UUID user, int id, long start, int changes, byte[] raw, int length) throws IOException {
+        byte[] block = new byte[BLOCK_HEADER_SIZE + compressor.maxCompressedLength(length)];
+        int compressed = compressor.compress(raw, 0, length, block, BLOCK_HEADER_SIZE, block.length - BLOCK_HEADER_SIZE);
+        writeHeader(ByteBuffer.wrap(block), user, id, start, System.currentTimeMillis(), changes, compressed, length);
+        File file = getFile(rx, rz);
+        synchronized (lock(file)) {
+            folder.mkdirs();
+            // One write, so a reader never sees part of a block (other than a truncated tail)
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(block, 0, BLOCK_HEADER_SIZE + compressed);
+            }
+        }
+    }
+
+    /**
+     * Write a block header at the buffer's position (big endian)
+     * @param header
+     * @param user
+     * @param id
+     * @param start The time the edit started
+     * @param time The time the block was written
+     * @param changes
+     * @param compressed The compressed length
+     * @param raw The length of the records
+     */
+    public static void writeHeader(ByteBuffer header, UUID user, int id, long start, long time, int changes, int compressed, int raw) {
+        header.putInt(MAGIC);
+        header.putLong(user.getMostSignificantBits());
+        header.putLong(user.getLeastSignificantBits());
+        header.putInt(id);
+        header.putLong(start);
+        header.putLong(time);
+        header.putInt(changes);
+        header.putInt(compressed);
+        header.putInt(raw);
+    }
+
+    private void load() {
+        if (edits != null) {
+            return;
+        }
+        edits = new HashMap<>();
+        if (!log.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            while (true) {
+                UUID user = new UUID(in.readLong(), in.readLong());
+                int id = in.readInt();
+                long start = in.readLong();
+                HashMap<Integer, Long> userEdits = edits.get(user);
+                if (userEdits == null) {
+                    edits.put(user, userEdits = new HashMap<>());
+                }
+                userEdits.put(id, start);
+            }
+        } catch (EOFException ignore) {
+            // End of the log (or a truncated record)
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        }
+    }
+
+    /**
+     * Mark an edit as completely written to the shards
+     * @param user
+     * @param id
+     * @param start The time the edit started
+     */
+    public synchronized void complete(UUID user, int id, long start) {
+        load();
+        HashMap<Integer, Long> userEdits = edits.get(user);
+        if (userEdits == null) {
+            edits.put(user, userEdits = new HashMap<>());
+        }
+        userEdits.put(id, start);
+        folder.mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true)))) {
+            writeEdit(out, user, id, start);
+        } catch (IOException e) {
+            MainUtil.handleError(e);
+        }
+    }
+
+    private static void writeEdit(DataOutputStream out, UUID user, int id, long start) throws IOException {
+        out.writeLong(user.getMostSignificantBits());
+        out.writeLong(user.getLeastSignificantBits());
+        out.writeInt(id);
+        out.writeLong(start);
+    }
+
+    /**
+     * Check if an edit was completely written to the shards (i.e. a query of the shards finds all of its changes)
+     * @param user
+     * @param id
+     * @return
+     */
+    public synchronized boolean isSharded(UUID user, int id) {
+        load();
+        HashMap<Integer, Long> userEdits = edits.get(user);
+        return userEdits != null && userEdits.containsKey(id);
+    }
+
+    /**
+     * Check if the changes of a block in a shard should be used<br>
+     *     - The edit must be completely written, and still be in the history index (i.e. not removed or rolled back)
+     * @param user
+     * @param id
+     * @param start The start time in the block
+     * @return
+     */
+    public boolean isLive(UUID user, int id, long start) {
+        Long value = getStart(user, id);
+        return value != null && value == start && isIndexed(user, id);
+    }
+
+    /**
+     * Check if an edit is still in the history index of the world
+     * @param user
+     * @param id
+     * @return
+     */
+    protected boolean isIndexed(UUID user, int id) {
+        return HistoryIndex.get(world).get(user, id) != null;
+    }
+
+    private synchronized Long getStart(UUID user, int id) {
+        load();
+        HashMap<Integer, Long> userEdits = edits.get(user);
+        return userEdits == null ? null : userEdits.get(id);
+    }
+
+    /**
+     * Get a reader for the changes in an area
+     * @param region The area (only the shards it touches are read)
+     * @param user The user (or null for everyone)
+     * @param since The oldest time to include
+     * @return
+     */
+    public HistoryShardReader getReader(RegionWrapper region, UUID user, long since) {
+        return new HistoryShardReader(this, region, user, since);
+    }
+
+    /**
+     * Remove the blocks of edits which aren't live anymore (and forget those edits)
+     * @return The number of blocks removed
+     */
+    public int prune() {
+        long cold = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(Settings.HISTORY_COMPACT_AFTER);
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            try {
+                synchronized (lock(file)) {
+                    if (MAPPED.containsKey(file.getAbsolutePath())) {
+                        // Being read, it's pruned next time
+                        continue;
+                    }
+                    removed += prune(file, cold);
+                }
+            } catch (IOException e) {
+                MainUtil.handleError(e);
+            }
+        }
+        pruneLog();
+        return removed;
+    }
+
+    private int prune(File file, long cold) throws IOException {
+        byte[] data;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            data = new byte[(int) raf.length()];
+            raf.readFully(data);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        ByteBuffer kept = ByteBuffer.allocate(data.length);
+        int removed = 0;
+        int position = 0;
+        while (position + BLOCK_HEADER_SIZE <= data.length && buffer.getInt(position) == MAGIC) {
+            int length = BLOCK_HEADER_SIZE + buffer.getInt(position + OFFSET_COMPRESSED);
+            if (position + length > data.length) {
+                break;
+            }
+            UUID user = new UUID(buffer.getLong(position + OFFSET_USER), buffer.getLong(position + OFFSET_USER + 8));
+            int id = buffer.getInt(position + OFFSET_ID);
+            long start = buffer.getLong(position + OFFSET_START);
+            // Blocks of an edit which isn't complete are kept until they're cold (it may still be recording)
+            if (getStart(user, id) == null ? buffer.getLong(position + OFFSET_TIME) >= cold : isLive(user, id, start)) {
+                kept.put(data, position, length);
+            } else {
+                removed++;
+            }
+            position += length;
+        }
+        if (removed == 0 && position == data.length) {
+            return 0;
+        }
+        if (kept.position() == 0) {
+            file.delete();
+            return removed;
+        }
+        File tmp = new File(folder, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(kept.array(), 0, kept.position());
+        }
+        if (!file.delete() || !tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        return removed;
+    }
+
+    private synchronized void pruneLog() {
+        load();
+        File tmp = new File(folder, log.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Map.Entry<UUID, HashMap<Integer, Long>> userEdits : edits.entrySet()) {
+                UUID user = userEdits.getKey();
+                for (Map.Entry<Integer, Long> edit : userEdits.getValue().entrySet()) {
+                    if (isIndexed(user, edit.getKey())) {
+                        writeEdit(out, user, edit.getKey(), edit.getValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            MainUtil.handleError(e);
+            return;
+        }
+        if (log.exists() && !log.delete() || !tmp.renameTo(log)) {
+            tmp.delete();
+            return;
+        }
+        edits = null;
+    }
+}
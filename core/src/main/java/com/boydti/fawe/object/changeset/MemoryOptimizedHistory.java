@@ -9,7 +9,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 
 /**
  * ChangeSet optimized for low memory usage
@@ -21,7 +20,7 @@ public class MemoryOptimizedHistory extends FaweStreamChangeSet {
 
     private byte[] ids;
     private ByteArrayOutputStream idsStream;
-    private OutputStream idsStreamZip;
+    private BlockRecordOutputStream idsStreamZip;
 
     private byte[] entC;
     private ByteArrayOutputStream entCStream;
@@ -90,18 +89,18 @@ public class MemoryOptimizedHistory extends FaweStreamChangeSet {
     }
 
     @Override
-    public OutputStream getBlockOS(int x, int y, int z) throws IOException {
+    public BlockRecordOutputStream getBlockOS(int x, int y, int z) throws IOException {
         if (idsStreamZip != null) {
             return idsStreamZip;
         }
         setOrigin(x, z);
         idsStream = new ByteArrayOutputStream(Settings.BUFFER_SIZE);
-        return idsStreamZip = getCompressedOS(idsStream);
+        return idsStreamZip = new BlockRecordOutputStream(getCompressedOS(idsStream), x, z, true);
     }
 
     @Override
-    public InputStream getBlockIS() {
-        return ids == null ? null : getCompressedIS(new ByteArrayInputStream(ids));
+    public InputStream getBlockIS() throws IOException {
+        return ids == null ? null : readBlockHeader(getCompressedIS(new ByteArrayInputStream(ids)));
     }
 
     @Override
@@ -0,0 +1,108 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.object.RegionWrapper;
+import com.boydti.fawe.util.MainUtil;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Reads the changes of a chunk bucketed history file in reverse (i.e. the order to undo them in)<br>
+ *     - The segments are read last to first using the index, and only one segment is decoded at a time
+ *     - Memory is bounded by the largest segment (@see ChunkHistoryWriter#MAX_SEGMENT_CHANGES), not by the size of the edit
+ *     - Changes to different chunks are independent, so only the order within a chunk matters
+ */
+public class ReverseBlockRecordReader {
+
+    private final ChunkHistoryIndex index;
+    private final RegionWrapper region;
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+    private MappedByteBuffer mapped;
+
+    private byte[] buffer = new byte[0];
+    private ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+
+    /**
+     * The decoded changes of the current segment<br>
+     *     - { byte y, nibble x, nibble z, short combinedFrom, short combinedTo }
+     */
+    private long[] changes = new long[0];
+    private int remaining;
+    private int segment;
+    private int bx;
+    private int bz;
+
+    public int x;
+    public int y;
+    public int z;
+    public int combinedFrom;
+    public int combinedTo;
+
+    public ReverseBlockRecordReader(ChunkHistoryIndex index, RegionWrapper region) throws IOException {
+        this.index = index;
+        this.region = region;
+        this.segment = index.size();
+        this.mapped = MainUtil.mapFile(index.getFile());
+        mapped.order(ByteOrder.nativeOrder());
+    }
+
+    private void load(int segment) throws IOException {
+        int raw = index.getRawLength(segment);
+        if (raw > buffer.length) {
+            buffer = new byte[raw];
+            wrapped = ByteBuffer.wrap(buffer);
+        }
+        decompressor.decompress(mapped, (int) index.getOffset(segment), wrapped, 0, raw);
+        int count = index.getChanges(segment);
+        if (count > changes.length) {
+            changes = new long[count];
+        }
+        BlockRecordReader reader = new BlockRecordReader(new ByteArrayInputStream(buffer, 0, raw), index.getVersion(), index.getOriginX(), index.getOriginZ());
+        int i = 0;
+        while (reader.next()) {
+            if (i == changes.length) {
+                changes = Arrays.copyOf(changes, Math.max(16, i << 1));
+            }
+            changes[i++] = ((long) (reader.y & 0xFF) << 40) + ((long) (reader.x & 15) << 36) + ((long) (reader.z & 15) << 32) + ((reader.combinedFrom & 0xFFFFL) << 16) + (reader.combinedTo & 0xFFFF);
+        }
+        remaining = i;
+        bx = index.getChunkX(segment) << 4;
+        bz = index.getChunkZ(segment) << 4;
+    }
+
+    /**
+     * Read the previous change into x, y, z, combinedFrom and combinedTo
+     * @return false once every change has been read
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        while (remaining == 0) {
+            if (--segment < 0) {
+                close();
+                return false;
+            }
+            if (index.intersects(segment, region)) {
+                load(segment);
+            }
+        }
+        long value = changes[--remaining];
+        y = (int) (value >> 40) & 0xFF;
+        x = bx + ((int) (value >> 36) & 15);
+        z = bz + ((int) (value >> 32) & 15);
+        combinedFrom = (int) (value >> 16) & 0xFFFF;
+        combinedTo = (int) value & 0xFFFF;
+        return true;
+    }
+
+    public void close() {
+        if (mapped != null) {
+            MainUtil.unmap(mapped);
+            mapped = null;
+        }
+    }
+}
@@ -0,0 +1,654 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.Fawe;
+import com.boydti.fawe.FaweAPI;
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.RunnableVal3;
+import com.boydti.fawe.object.change.MutableEntityChange;
+import com.boydti.fawe.object.change.MutableTileChange;
+import com.boydti.fawe.object.extent.FastWorldEditExtent;
+import com.boydti.fawe.util.MainUtil;
+import com.boydti.fawe.util.MathMan;
+import com.boydti.fawe.util.TaskManager;
+import com.boydti.fawe.util.WorkerPool;
+import com.sk89q.worldedit.history.UndoContext;
+import com.sk89q.worldedit.world.World;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Roll back several disk histories at once<br>
+ *     - Work runs on the rollback threads, never on the ChunkDispatcher pool (which the main thread relies on)
+ *     - The changes are merged per chunk, so each position is only set once (to its state before the oldest edit)
+ *     - Chunk bucketed edits (@see ChunkHistoryIndex) are read one chunk at a time while merging, only flat edits are decoded up front
+ *     - If the flat edits don't fit in history.rollback-buffer-mb, they're decoded again for each batch of regions (32x32 chunks) instead
+ *     - The chunks are fed to a single FaweQueue, ordered by region then chunk
+ *     - Tiles and entities are undone per edit (newest first) afterwards
+ */
+public class RollbackEngine {
+
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private static final WorkerPool POOL = new WorkerPool("FAWE Rollback");
+
+    public enum Stage {
+        DECODE,
+        APPLY,
+        DONE,
+        CANCELLED
+    }
+
+    private final World world;
+    private final List<DiskStorageHistory> edits;
+    private final FaweQueue queue;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final AtomicInteger decoded = new AtomicInteger();
+
+    private volatile Stage stage = Stage.DECODE;
+    private volatile int applied;
+    private volatile int chunks;
+    /**
+     * If the flat edits are decoded per batch of regions (@see Settings#HISTORY_ROLLBACK_BUFFER)
+     */
+    private boolean batched;
+    private RunnableVal3<Stage, Integer, Integer> progressTask;
+
+    /**
+     * The block changes of each edit (oldest first)
+     */
+    private Source[] sources;
+
+    /**
+     * Where the block changes of an edit are read from
+     */
+    private static class Source {
+        private final DiskStorageHistory edit;
+
+        /**
+         * The decoded changes by chunk (flat format, only the current batch if batched)
+         */
+        private Map<Long, Changes> decoded;
+
+        /**
+         * The changed chunks, and the number of changes in each region (flat format, if batched)
+         */
+        private HashSet<Long> chunks;
+        private HashMap<Long, int[]> regions;
+
+        /**
+         * The segments of each chunk, in file order (chunk bucketed format)
+         */
+        private HashMap<Long, int[]> segments;
+        private ChunkHistoryIndex index;
+        private MappedByteBuffer mapped;
+
+        private Source(DiskStorageHistory edit) {
+            this.edit = edit;
+        }
+
+        private boolean isFlat() {
+            return index == null;
+        }
+
+        private Set<Long> getChunks() {
+            return segments != null ? segments.keySet() : chunks != null ? chunks : decoded.keySet();
+        }
+    }
+
+    /**
+     * The block changes of a single edit in a single chunk<br>
+     *     - { byte y, nibble x, nibble z, short combined } as an int
+     */
+    private static class Changes {
+        private final int cx;
+        private final int cz;
+        private int[] data = new int[64];
+        private int size;
+
+        private Changes(int cx, int cz) {
+            this.cx = cx;
+            this.cz = cz;
+        }
+
+        private void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size << 1);
+            }
+            data[size++] = value;
+        }
+    }
+
+    public RollbackEngine(World world, List<DiskStorageHistory> edits) {
+        this.world = world;
+        this.edits = new ArrayList<>(edits);
+        Collections.sort(this.edits, new Comparator<DiskStorageHistory>() {
+            @Override
+            public int compare(DiskStorageHistory a, DiskStorageHistory b) {
+                return Long.compare(getTime(a), getTime(b));
+            }
+        });
+        this.queue = FaweAPI.createQueue(Fawe.imp().getWorldName(world), true);
+    }
+
+    private static long getTime(DiskStorageHistory edit) {
+        HistoryIndex.Entry entry = edit.getIndexEntry();
+        return entry != null ? entry.time : edit.getBDFile().lastModified();
+    }
+
+    /**
+     * Set the task called as the rollback progresses
+     * @param progressTask (stage, done, total) - edits decoded, or chunks applied
+     */
+    public void setProgressTask(RunnableVal3<Stage, Integer, Integer> progressTask) {
+        this.progressTask = progressTask;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Get the edits being rolled back (oldest first)
+     * @return
+     */
+    public List<DiskStorageHistory> getEdits() {
+        return edits;
+    }
+
+    public FaweQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Get the progress of the current stage
+     * @return 0 - 1
+     */
+    public double getProgress() {
+        switch (stage) {
+            case DECODE:
+                return edits.isEmpty() ? 1 : decoded.get() / (double) edits.size();
+            case APPLY:
+                return chunks == 0 ? 1 : applied / (double) chunks;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Stop the rollback<br>
+     *     - Chunks which have already been dispatched stay rolled back
+     *     - No history files are deleted
+     * @return false if it had already finished
+     */
+    public boolean cancel() {
+        if (stage == Stage.DONE || !cancelled.compareAndSet(false, true)) {
+            return false;
+        }
+        queue.cancel();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    private void progress(Stage stage, int done, int total) {
+        this.stage = stage;
+        if (progressTask != null) {
+            progressTask.run(stage, done, total);
+        }
+    }
+
+    /**
+     * Start the rollback (async)
+     * @param whenDone Called when the changes have been applied (not if it's cancelled)
+     */
+    public void start(final Runnable whenDone) {
+        TaskManager.IMP.async(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (decode() && apply()) {
+                        queue.addNotifyTask(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (cancelled.get()) {
+                                    progress(Stage.CANCELLED, applied, chunks);
+                                    return;
+                                }
+                                for (DiskStorageHistory edit : edits) {
+                                    edit.deleteFiles();
+                                }
+                                progress(Stage.DONE, chunks, chunks);
+                                if (whenDone != null) {
+                                    whenDone.run();
+                                }
+                            }
+                        });
+                        queue.enqueue();
+                        return;
+                    }
+                } catch (Throwable e) {
+                    MainUtil.handleError(e);
+                    cancel();
+                }
+                progress(Stage.CANCELLED, applied, chunks);
+            }
+        });
+    }
+
+    /**
+     * The number of block changes which can be decoded at once
+     */
+    private static long getBudget() {
+        return Math.max(1, (long) Settings.HISTORY_ROLLBACK_BUFFER << 18);
+    }
+
+    /**
+     * Read the index of every edit, and decode the edits in the flat format (in parallel)<br>
+     *     - If the flat edits are over the budget, they're only scanned for the chunks they change (and decoded per batch later)
+     * @return false if cancelled
+     */
+    private boolean decode() throws Exception {
+        int size = edits.size();
+        sources = new Source[size];
+        List<Future<Source>> futures = new ArrayList<>(size);
+        progress(Stage.DECODE, 0, size);
+        for (final DiskStorageHistory edit : edits) {
+            futures.add(POOL.get().submit(new Callable<Source>() {
+                @Override
+                public Source call() throws Exception {
+                    Source source = open(edit);
+                    if (!source.isFlat()) {
+                        progress(Stage.DECODE, decoded.incrementAndGet(), edits.size());
+                    }
+                    return source;
+                }
+            }));
+        }
+        long flat = 0;
+        for (int i = 0; i < size; i++) {
+            Source source = sources[i] = futures.get(i).get();
+            if (source.isFlat()) {
+                HistoryIndex.Entry entry = source.edit.getIndexEntry();
+                // Unknown sizes are scanned
+                flat += entry != null ? entry.changes : Integer.MAX_VALUE;
+            }
+        }
+        batched = flat > getBudget();
+        List<Future<?>> decoding = new ArrayList<>(size);
+        for (final Source source : sources) {
+            if (!source.isFlat()) {
+                continue;
+            }
+            decoding.add(POOL.get().submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if (batched) {
+                        scan(source);
+                    } else {
+                        source.decoded = decode(source.edit, null);
+                    }
+                    progress(Stage.DECODE, decoded.incrementAndGet(), edits.size());
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : decoding) {
+            future.get();
+        }
+        return !cancelled.get();
+    }
+
+    private Source open(DiskStorageHistory edit) throws Exception {
+        Source source = new Source(edit);
+        ChunkHistoryIndex index = edit.getIndex();
+        if (index == null) {
+            return source;
+        }
+        HashMap<Long, int[]> segments = new HashMap<>();
+        for (int segment = 0; segment < index.size(); segment++) {
+            long pair = MathMan.pairInt(index.getChunkX(segment), index.getChunkZ(segment));
+            int[] previous = segments.get(pair);
+            if (previous == null) {
+                segments.put(pair, new int[] { segment });
+            } else {
+                int[] value = Arrays.copyOf(previous, previous.length + 1);
+                value[previous.length] = segment;
+                segments.put(pair, value);
+            }
+        }
+        source.segments = segments;
+        source.index = index;
+        source.mapped = MainUtil.mapFile(index.getFile());
+        return source;
+    }
+
+    /**
+     * Decode the changes of a flat edit by chunk
+     * @param edit
+     * @param regions The regions to decode (pairs of region x, z), or null for all of them
+     * @return
+     * @throws Exception
+     */
+    private Map<Long, Changes> decode(DiskStorageHistory edit, Set<Long> regions) throws Exception {
+        HashMap<Long, Changes> map = new HashMap<>();
+        BlockRecordReader reader = edit.getBlockReader(null);
+        if (reader == null) {
+            return map;
+        }
+        Changes last = null;
+        int lastX = Integer.MIN_VALUE;
+        int lastZ = Integer.MIN_VALUE;
+        int count = 0;
+        try {
+            while (reader.next()) {
+                if ((++count & 4095) == 0 && cancelled.get()) {
+                    break;
+                }
+                int x = reader.x;
+                int z = reader.z;
+                int cx = x >> 4;
+                int cz = z >> 4;
+                if (cx != lastX || cz != lastZ) {
+                    lastX = cx;
+                    lastZ = cz;
+                    if (regions != null && !regions.contains(MathMan.pairInt(cx >> 5, cz >> 5))) {
+                        last = null;
+                        continue;
+                    }
+                    long pair = MathMan.pairInt(cx, cz);
+                    last = map.get(pair);
+                    if (last == null) {
+                        map.put(pair, last = new Changes(cx, cz));
+                    }
+                } else if (last == null) {
+                    continue;
+                }
+                last.add((reader.y << 24) + ((x & 15) << 20) + ((z & 15) << 16) + (reader.combinedFrom & 0xFFFF));
+            }
+        } finally {
+            reader.close();
+        }
+        return map;
+    }
+
+    /**
+     * Find the chunks a flat edit changes, and the number of changes in each region (without keeping the changes)
+     */
+    private void scan(Source source) throws Exception {
+        HashSet<Long> chunks = new HashSet<>();
+        HashMap<Long, int[]> regions = new HashMap<>();
+        source.chunks = chunks;
+        source.regions = regions;
+        BlockRecordReader reader = source.edit.getBlockReader(null);
+        if (reader == null) {
+            return;
+        }
+        int[] last = null;
+        int lastX = Integer.MIN_VALUE;
+        int lastZ = Integer.MIN_VALUE;
+        int count = 0;
+        try {
+            while (reader.next()) {
+                if ((++count & 4095) == 0 && cancelled.get()) {
+                    break;
+                }
+                int cx = reader.x >> 4;
+                int cz = reader.z >> 4;
+                if (cx != lastX || cz != lastZ) {
+                    chunks.add(MathMan.pairInt(cx, cz));
+                    long region = MathMan.pairInt(cx >> 5, cz >> 5);
+                    last = regions.get(region);
+                    if (last == null) {
+                        regions.put(region, last = new int[1]);
+                    }
+                    lastX = cx;
+                    lastZ = cz;
+                }
+                last[0]++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Get the end of the batch of chunks starting at an index (whole regions, with as many changes as the budget allows)
+     * @param order The chunks, ordered by region
+     * @param start
+     * @return
+     */
+    private int nextBatch(List<int[]> order, int start) {
+        long budget = getBudget();
+        long used = 0;
+        long lastRegion = 0;
+        for (int i = start; i < order.size(); i++) {
+            int[] chunk = order.get(i);
+            long region = MathMan.pairInt(chunk[0] >> 5, chunk[1] >> 5);
+            if (i != start && region == lastRegion) {
+                continue;
+            }
+            lastRegion = region;
+            long cost = 0;
+            for (Source source : sources) {
+                if (source.regions != null) {
+                    int[] changes = source.regions.get(region);
+                    if (changes != null) {
+                        cost += changes[0];
+                    }
+                }
+            }
+            if (used != 0 && used + cost > budget) {
+                return i;
+            }
+            used += cost;
+        }
+        return order.size();
+    }
+
+    /**
+     * Decode the flat edits for a batch of chunks (in parallel), replacing the previous batch
+     * @return false if cancelled
+     */
+    private boolean decodeBatch(List<int[]> order, int start, int end) throws Exception {
+        final HashSet<Long> regions = new HashSet<>();
+        for (int i = start; i < end; i++) {
+            int[] chunk = order.get(i);
+            regions.add(MathMan.pairInt(chunk[0] >> 5, chunk[1] >> 5));
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (final Source source : sources) {
+            if (!source.isFlat()) {
+                continue;
+            }
+            source.decoded = null;
+            futures.add(POOL.get().submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    source.decoded = decode(source.edit, regions);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return !cancelled.get();
+    }
+
+    /**
+     * Merge and queue the changes chunk by chunk, then undo the tiles and entities
+     * @return false if cancelled
+     */
+    private boolean apply() throws Exception {
+        HashSet<Long> keys = new HashSet<>();
+        for (Source source : sources) {
+            keys.addAll(source.getChunks());
+        }
+        final List<int[]> order = new ArrayList<>(keys.size());
+        for (long pair : keys) {
+            order.add(new int[] { MathMan.unpairIntX(pair), MathMan.unpairIntY(pair) });
+        }
+        keys = null;
+        Collections.sort(order, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                int value = Integer.compare(a[0] >> 5, b[0] >> 5);
+                if (value == 0 && (value = Integer.compare(a[1] >> 5, b[1] >> 5)) == 0 && (value = Integer.compare(a[0], b[0])) == 0) {
+                    value = Integer.compare(a[1], b[1]);
+                }
+                return value;
+            }
+        });
+        chunks = order.size();
+        progress(Stage.APPLY, 0, chunks);
+        int window = Math.max(1, Settings.PARALLEL_THREADS) * 4;
+        ArrayDeque<Future<Changes>> pending = new ArrayDeque<>(window);
+        int submitted = 0;
+        int end = 0;
+        try {
+            while (submitted < order.size() || !pending.isEmpty()) {
+                if (submitted == end && pending.isEmpty()) {
+                    // The next batch (only once the previous one has been merged)
+                    end = batched ? nextBatch(order, submitted) : order.size();
+                    if (batched && !decodeBatch(order, submitted, end)) {
+                        return false;
+                    }
+                }
+                while (submitted < end && pending.size() < window) {
+                    final int[] chunk = order.get(submitted++);
+                    pending.add(POOL.get().submit(new Callable<Changes>() {
+                        @Override
+                        public Changes call() throws Exception {
+                            return merge(chunk[0], chunk[1]);
+                        }
+                    }));
+                }
+                if (cancelled.get()) {
+                    return false;
+                }
+                Changes merged = pending.poll().get();
+                int bx = merged.cx << 4;
+                int bz = merged.cz << 4;
+                int[] data = merged.data;
+                for (int i = 0; i < merged.size; i++) {
+                    int value = data[i];
+                    int combined = value & 0xFFFF;
+                    queue.setBlock(bx + ((value >> 20) & 15), value >>> 24, bz + ((value >> 16) & 15), (short) (combined >> 4), (byte) (combined & 15));
+                }
+                if ((++applied & 63) == 0 || applied == chunks) {
+                    progress(Stage.APPLY, applied, chunks);
+                }
+            }
+        } finally {
+            // The mapped files can only be released once no merge is reading them
+            for (Future<Changes> future : pending) {
+                future.cancel(false);
+                try {
+                    future.get();
+                } catch (Throwable ignore) {
+                }
+            }
+            for (Source source : sources) {
+                if (source.mapped != null) {
+                    MainUtil.unmap(source.mapped);
+                    source.mapped = null;
+                }
+            }
+            sources = null;
+        }
+        UndoContext context = new UndoContext();
+        context.setExtent(new FastWorldEditExtent(world, queue));
+        for (int i = edits.size() - 1; i >= 0 && !cancelled.get(); i--) {
+            DiskStorageHistory edit = edits.get(i);
+            Iterator<MutableTileChange> tiles = edit.getTileIterator(edit.getTileRemoveIS(), false, false);
+            while (tiles.hasNext()) {
+                tiles.next().undo(context);
+            }
+            Iterator<MutableEntityChange> created = edit.getEntityIterator(edit.getEntityCreateIS(), true, false);
+            while (created.hasNext()) {
+                created.next().undo(context);
+            }
+            Iterator<MutableEntityChange> removed = edit.getEntityIterator(edit.getEntityRemoveIS(), false, false);
+            while (removed.hasNext()) {
+                removed.next().undo(context);
+            }
+        }
+        return !cancelled.get();
+    }
+
+    /**
+     * Merge the changes to a chunk, keeping the first (i.e. original) state of each position
+     */
+    private Changes merge(int cx, int cz) throws IOException {
+        long pair = MathMan.pairInt(cx, cz);
+        Changes merged = new Changes(cx, cz);
+        long[] visited = new long[1024];
+        byte[] buffer = null;
+        for (Source source : sources) {
+            if (source.isFlat()) {
+                if (source.decoded == null) {
+                    continue;
+                }
+                Changes changes = source.decoded.get(pair);
+                if (changes == null) {
+                    continue;
+                }
+                int[] data = changes.data;
+                for (int i = 0; i < changes.size; i++) {
+                    add(merged, visited, data[i]);
+                }
+                changes.data = null;
+                continue;
+            }
+            int[] segments = source.segments.get(pair);
+            if (segments == null) {
+                continue;
+            }
+            ChunkHistoryIndex index = source.index;
+            for (int segment : segments) {
+                int raw = index.getRawLength(segment);
+                if (buffer == null || buffer.length < raw) {
+                    buffer = new byte[raw];
+                }
+                // Absolute reads, so the mapping is shared by every merge
+                DECOMPRESSOR.decompress(source.mapped, (int) index.getOffset(segment), ByteBuffer.wrap(buffer), 0, raw);
+                BlockRecordReader reader = new BlockRecordReader(new ByteArrayInputStream(buffer, 0, raw), index.getVersion(), index.getOriginX(), index.getOriginZ());
+                while (reader.next()) {
+                    add(merged, visited, (reader.y << 24) + ((reader.x & 15) << 20) + ((reader.z & 15) << 16) + (reader.combinedFrom & 0xFFFF));
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static void add(Changes merged, long[] visited, int value) {
+        int index = value >>> 16;
+        long bit = 1L << (index & 63);
+        if ((visited[index >> 6] & bit) == 0) {
+            visited[index >> 6] |= bit;
+            merged.add(value);
+        }
+    }
+}
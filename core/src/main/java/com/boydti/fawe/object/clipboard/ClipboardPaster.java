@@ -0,0 +1,369 @@
+package com.boydti.fawe.object.clipboard;
+
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.example.CharFaweChunk;
+import com.boydti.fawe.example.MappedFaweQueue;
+import com.boydti.fawe.object.FaweChunk;
+import com.boydti.fawe.object.FaweLimit;
+import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.IntObjectMap;
+import com.boydti.fawe.object.NullChangeSet;
+import com.boydti.fawe.object.extent.FaweRegionExtent;
+import com.boydti.fawe.util.MainUtil;
+import com.boydti.fawe.util.WorkerPool;
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.worldedit.EditSession;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.entity.Entity;
+import com.sk89q.worldedit.extent.clipboard.BlockArrayClipboard;
+import com.sk89q.worldedit.extent.transform.BlockTransformExtent;
+import com.sk89q.worldedit.function.entity.ExtentEntityCopy;
+import com.sk89q.worldedit.function.mask.Mask;
+import com.sk89q.worldedit.math.transform.Transform;
+import com.sk89q.worldedit.world.registry.BlockRegistry;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Paste a (transformed) clipboard a chunk column at a time, in parallel<br>
+ *     - Each column is filled on the paste threads: the source of each target block is found with the inverse transform, then the block is rotated, and the region is checked
+ *     - The filled sections are masked and handed to the queue's chunks in column order (in bulk for a CharFaweChunk)
+ *     - Skips the edit session's extents, so it's only used if nothing else needs to see the blocks (@see #canPaste)
+ *     - Mask tests read the world through the edit session, so they are made on the pasting thread (the workers never share a mask)
+ *     - If a column fails the edit is cancelled and the error is thrown (nothing is pasted)
+ * <br>
+ * Unlike a ForwardExtentCopy, every target position is looked up from the clipboard, so a scaled paste has no holes
+ */
+public class ClipboardPaster {
+
+    private static final WorkerPool POOL = new WorkerPool("FAWE Paste");
+
+    private final BlockArrayClipboard clipboard;
+    private final Transform transform;
+    private final EditSession editSession;
+    private final BlockRegistry registry;
+    private final Vector to;
+    private final boolean air;
+
+    private final FaweRegionExtent regionExtent;
+    private final Mask mask;
+
+    /**
+     * The rotated block for each combined id (filled in by the workers, a race just transforms a block twice)
+     */
+    private final BaseBlock[] transformed = new BaseBlock[Character.MAX_VALUE + 1];
+
+    // The bounds of the paste
+    private int minX;
+    private int minY;
+    private int minZ;
+    private int maxX;
+    private int maxY;
+    private int maxZ;
+
+    // The clipboard position (relative to its min) of the target at the paste min, and its change per target block
+    private double baseX, baseY, baseZ;
+    private double[] stepX;
+    private double[] stepY;
+    private double[] stepZ;
+
+    private static class Column {
+        private final int cx;
+        private final int cz;
+        private final char[][] sections = new char[16][];
+        /**
+         * The nbt in the column, by section index (y << 8 | z << 4 | x)
+         */
+        private final IntObjectMap<CompoundTag> tiles = new IntObjectMap<>();
+        private int changes;
+
+        private Column(int cx, int cz) {
+            this.cx = cx;
+            this.cz = cz;
+        }
+    }
+
+    /**
+     * @param clipboard The clipboard
+     * @param transform The transform (relative to the clipboard origin)
+     * @param editSession The session to paste to
+     * @param to Where to paste the clipboard origin
+     * @param air If air should be pasted
+     */
+    public ClipboardPaster(BlockArrayClipboard clipboard, Transform transform, EditSession editSession, Vector to, boolean air) {
+        this.clipboard = clipboard;
+        this.transform = transform;
+        this.editSession = editSession;
+        this.registry = editSession.getWorld().getWorldData().getBlockRegistry();
+        this.to = to;
+        this.air = air;
+        this.regionExtent = editSession.getRegionExtent();
+        this.mask = editSession.getMask();
+    }
+
+    /**
+     * Check if a clipboard can be pasted into an edit session with the ClipboardPaster<br>
+     *     - The clipboard must be readable from several threads
+     *     - History must be off, or recorded by the queue (history.combine-stages)
+     *     - The limit must allow every block in the clipboard to change
+     * @param clipboard
+     * @param editSession
+     * @return
+     */
+    public static boolean canPaste(BlockArrayClipboard clipboard, EditSession editSession) {
+        if (!Settings.PASTE_PARALLEL || !clipboard.IMP.isThreadSafe()) {
+            return false;
+        }
+        if (!(editSession.getChangeSet() instanceof NullChangeSet) && !Settings.COMBINE_HISTORY_STAGE) {
+            return false;
+        }
+        FaweLimit limit = editSession.getLimit();
+        return limit == null || limit.MAX_CHANGES >= clipboard.getRegion().getArea();
+    }
+
+    private void setup() {
+        Vector origin = clipboard.getOrigin();
+        Vector min = clipboard.getMinimumPoint();
+        Vector max = clipboard.getMaximumPoint();
+        double[] lower = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] upper = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int i = 0; i < 8; i++) {
+            Vector corner = new Vector((i & 1) == 0 ? min.getX() : max.getX(), (i & 2) == 0 ? min.getY() : max.getY(), (i & 4) == 0 ? min.getZ() : max.getZ());
+            Vector target = transform.apply(corner.subtract(origin)).add(to);
+            lower[0] = Math.min(lower[0], target.getX());
+            lower[1] = Math.min(lower[1], target.getY());
+            lower[2] = Math.min(lower[2], target.getZ());
+            upper[0] = Math.max(upper[0], target.getX());
+            upper[1] = Math.max(upper[1], target.getY());
+            upper[2] = Math.max(upper[2], target.getZ());
+        }
+        minX = (int) Math.floor(lower[0] + 0.5);
+        minY = Math.max(0, (int) Math.floor(lower[1] + 0.5));
+        minZ = (int) Math.floor(lower[2] + 0.5);
+        maxX = (int) Math.floor(upper[0] + 0.5);
+        maxY = Math.min(255, (int) Math.floor(upper[1] + 0.5));
+        maxZ = (int) Math.floor(upper[2] + 0.5);
+        // The transform is affine, so the inverse of the paste min and a step along each axis is enough
+        Transform inverse = transform.inverse();
+        Vector offset = origin.subtract(min);
+        Vector base = inverse.apply(new Vector(minX, minY, minZ).subtract(to)).add(offset);
+        baseX = base.getX();
+        baseY = base.getY();
+        baseZ = base.getZ();
+        stepX = step(inverse, base, offset, 1, 0, 0);
+        stepY = step(inverse, base, offset, 0, 1, 0);
+        stepZ = step(inverse, base, offset, 0, 0, 1);
+    }
+
+    private double[] step(Transform inverse, Vector base, Vector offset, int x, int y, int z) {
+        Vector next = inverse.apply(new Vector(minX + x, minY + y, minZ + z).subtract(to)).add(offset);
+        return new double[] { next.getX() - base.getX(), next.getY() - base.getY(), next.getZ() - base.getZ() };
+    }
+
+    /**
+     * Paste the clipboard (blocks in parallel, then entities)<br>
+     *     - Call from an async thread, waits until every column has been given to the queue
+     * @return The number of blocks set
+     */
+    public int paste() {
+        setup();
+        int changes = 0;
+        if (maxY >= minY) {
+            changes = pasteBlocks();
+        }
+        FaweLimit limit = editSession.getLimit();
+        if (limit != null) {
+            limit.MAX_CHANGES -= changes;
+        }
+        ExtentEntityCopy entityCopy = new ExtentEntityCopy(clipboard.getOrigin(), editSession, to, transform);
+        for (Entity entity : clipboard.getEntities()) {
+            try {
+                entityCopy.apply(entity);
+            } catch (WorldEditException e) {
+                MainUtil.handleError(e);
+            }
+        }
+        return changes;
+    }
+
+    private int pasteBlocks() {
+        FaweQueue queue = editSession.getQueue();
+        int window = Math.max(1, Settings.PARALLEL_THREADS) * 4;
+        ArrayDeque<Future<Column>> pending = new ArrayDeque<>(window);
+        int changes = 0;
+        int cx = minX >> 4;
+        int cz = minZ >> 4;
+        try {
+            while (cx <= maxX >> 4 || !pending.isEmpty()) {
+                while (cx <= maxX >> 4 && pending.size() < window) {
+                    final int x = cx;
+                    final int z = cz;
+                    pending.add(POOL.get().submit(new Callable<Column>() {
+                        @Override
+                        public Column call() {
+                            return fill(x, z);
+                        }
+                    }));
+                    if (++cz > maxZ >> 4) {
+                        cz = minZ >> 4;
+                        cx++;
+                    }
+                }
+                changes += apply(queue, pending.poll().get());
+            }
+        } catch (Exception e) {
+            for (Future<Column> future : pending) {
+                future.cancel(false);
+            }
+            // Don't leave part of the paste queued
+            editSession.cancel();
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException("Paste failed", cause);
+        }
+        return changes;
+    }
+
+    /**
+     * Fill the sections of a chunk column (on a worker thread)
+     */
+    private Column fill(int cx, int cz) {
+        Column column = new Column(cx, cz);
+        FaweClipboard source = clipboard.IMP;
+        Vector size = clipboard.getDimensions();
+        int width = size.getBlockX();
+        int height = size.getBlockY();
+        int length = size.getBlockZ();
+        int x1 = Math.max(minX, cx << 4);
+        int x2 = Math.min(maxX, (cx << 4) + 15);
+        int z1 = Math.max(minZ, cz << 4);
+        int z2 = Math.min(maxZ, (cz << 4) + 15);
+        for (int y = minY; y <= maxY; y++) {
+            int dy = y - minY;
+            for (int z = z1; z <= z2; z++) {
+                int dz = z - minZ;
+                for (int x = x1; x <= x2; x++) {
+                    int dx = x - minX;
+                    int sx = (int) Math.floor(baseX + dx * stepX[0] + dy * stepY[0] + dz * stepZ[0] + 0.5);
+                    int sy = (int) Math.floor(baseY + dx * stepX[1] + dy * stepY[1] + dz * stepZ[1] + 0.5);
+                    int sz = (int) Math.floor(baseZ + dx * stepX[2] + dy * stepY[2] + dz * stepZ[2] + 0.5);
+                    if (sx < 0 || sy < 0 || sz < 0 || sx >= width || sy >= height || sz >= length) {
+                        continue;
+                    }
+                    BaseBlock block = source.getBlock(sx, sy, sz);
+                    int id = block.getId();
+                    if (id == 0 && !air) {
+                        continue;
+                    }
+                    if (regionExtent != null && !regionExtent.contains(x, y, z)) {
+                        continue;
+                    }
+                    block = transform(block);
+                    id = block.getId();
+                    int layer = y >> 4;
+                    char[] section = column.sections[layer];
+                    if (section == null) {
+                        section = column.sections[layer] = new char[4096];
+                    }
+                    section[((y & 15) << 8) | ((z & 15) << 4) | (x & 15)] = id == 0 ? 1 : (char) ((id << 4) + block.getData());
+                    if (block.hasNbtData()) {
+                        column.tiles.put((y << 8) | ((z & 15) << 4) | (x & 15), block.getNbtData());
+                    }
+                    column.changes++;
+                }
+            }
+        }
+        return column;
+    }
+
+    /**
+     * Rotate a block's data for the transform
+     */
+    private BaseBlock transform(BaseBlock block) {
+        int combined = (block.getId() << 4) + block.getData();
+        if (block.hasNbtData()) {
+            return BlockTransformExtent.transform(new BaseBlock(block.getId(), block.getData(), block.getNbtData()), transform, registry);
+        }
+        BaseBlock result = transformed[combined];
+        if (result == null) {
+            result = BlockTransformExtent.transform(new BaseBlock(block.getId(), block.getData()), transform, registry);
+            transformed[combined] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Test the mask for every block in a column (on the pasting thread), removing those which don't match
+     */
+    private void mask(Column column) {
+        int bx = column.cx << 4;
+        int bz = column.cz << 4;
+        Vector pos = new Vector();
+        for (int layer = 0; layer < 16; layer++) {
+            char[] section = column.sections[layer];
+            if (section == null) {
+                continue;
+            }
+            int by = layer << 4;
+            for (int j = 0; j < 4096; j++) {
+                if (section[j] == 0) {
+                    continue;
+                }
+                pos.x = bx + (j & 15);
+                pos.y = by + (j >> 8);
+                pos.z = bz + ((j >> 4) & 15);
+                if (!mask.test(pos)) {
+                    section[j] = 0;
+                    column.tiles.remove(((by + (j >> 8)) << 8) | (j & 255));
+                    column.changes--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give a filled column to the queue (on the pasting thread)
+     */
+    private int apply(FaweQueue queue, Column column) {
+        if (column.changes != 0 && mask != null) {
+            mask(column);
+        }
+        if (column.changes == 0) {
+            return 0;
+        }
+        int bx = column.cx << 4;
+        int bz = column.cz << 4;
+        FaweChunk chunk = queue instanceof MappedFaweQueue ? ((MappedFaweQueue) queue).getFaweQueueMap().getFaweChunk(column.cx, column.cz) : null;
+        for (int layer = 0; layer < 16; layer++) {
+            char[] section = column.sections[layer];
+            if (section == null) {
+                continue;
+            }
+            if (chunk instanceof CharFaweChunk) {
+                ((CharFaweChunk) chunk).setBlocks(layer, section);
+                continue;
+            }
+            int by = layer << 4;
+            for (int j = 0; j < 4096; j++) {
+                char value = section[j];
+                if (value == 0) {
+                    continue;
+                }
+                int id = value == 1 ? 0 : value >> 4;
+                byte data = (byte) (value == 1 ? 0 : value & 15);
+                if (chunk != null) {
+                    chunk.setBlock(j & 15, by + (j >> 8), (j >> 4) & 15, id, data);
+                } else {
+                    queue.setBlock(bx + (j & 15), by + (j >> 8), bz + ((j >> 4) & 15), (short) id, data);
+                }
+            }
+        }
+        for (int index : column.tiles.getKeys()) {
+            queue.setTile(bx + (index & 15), index >> 8, bz + ((index >> 4) & 15), column.tiles.get(index));
+        }
+        return column.changes;
+    }
+}
@@ -0,0 +1,183 @@
+package com.boydti.fawe.object.clipboard;
+
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.util.MemUtil;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * A tiled clipboard which keeps its tiles LZ4 compressed<br>
+ *     - Only the most recently used tiles are decompressed (clipboard.hot-tiles), the rest are compressed when they're evicted
+ *     - A tile is only compressed again if it changed while it was hot
+ *     - While memory is limited (@see MemUtil) only a single tile per stripe is kept decompressed
+ *     - Uniform tiles are not stored at all (as with the TiledClipboard)
+ *     - The hot tiles are split into stripes (by tile index) with their own lock, so paste workers on different tiles don't wait for each other
+ *     - The buffers used to compress and decompress are reused per thread
+ * <br>
+ * [compressed tile]<br>
+ * { byte[4096] high bytes, byte[4096] low bytes } (LZ4, the high bytes are mostly the same so they compress well)
+ * @see TiledClipboard
+ */
+public class CompressedClipboard extends TiledClipboard {
+
+    private static final int RAW_SIZE = 8192;
+    private static final int STRIPES = 16;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private static final ThreadLocal<byte[]> RAW = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[RAW_SIZE];
+        }
+    };
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COMPRESSOR.maxCompressedLength(RAW_SIZE)];
+        }
+    };
+
+    /**
+     * The compressed tiles (a tile is only accessed while holding the lock of its stripe)
+     */
+    private final byte[][] compressed;
+    private final LinkedHashMap<Integer, HotTile>[] hot;
+
+    private static class HotTile {
+        private final char[] blocks;
+        private boolean dirty;
+
+        private HotTile(char[] blocks, boolean dirty) {
+            this.blocks = blocks;
+            this.dirty = dirty;
+        }
+    }
+
+    public CompressedClipboard(int width, int height, int length) {
+        this(width, height, length, 0, 0, 0);
+    }
+
+    public CompressedClipboard(int width, int height, int length, int offsetX, int offsetY, int offsetZ) {
+        super(width, height, length, offsetX, offsetY, offsetZ);
+        this.compressed = new byte[getTileCount()][];
+        this.hot = new LinkedHashMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            hot[i] = new LinkedHashMap<>(16, 0.75f, true);
+        }
+    }
+
+    @Override
+    protected char[] getTile(int t, boolean write) {
+        LinkedHashMap<Integer, HotTile> stripe = hot[t & (STRIPES - 1)];
+        synchronized (stripe) {
+            HotTile tile = stripe.get(t);
+            if (tile == null) {
+                byte[] packed = compressed[t];
+                if (packed == null) {
+                    return null;
+                }
+                tile = new HotTile(decompress(packed), false);
+                stripe.put(t, tile);
+                trim(stripe);
+            }
+            if (write) {
+                tile.dirty = true;
+            }
+            return tile.blocks;
+        }
+    }
+
+    @Override
+    protected void putTile(int t, char[] blocks) {
+        LinkedHashMap<Integer, HotTile> stripe = hot[t & (STRIPES - 1)];
+        synchronized (stripe) {
+            if (blocks == null) {
+                stripe.remove(t);
+                compressed[t] = null;
+                return;
+            }
+            stripe.put(t, new HotTile(blocks, true));
+            trim(stripe);
+        }
+    }
+
+    /**
+     * Compress the least recently used tiles of a stripe until it's within its share of the hot cache limit
+     */
+    private void trim(LinkedHashMap<Integer, HotTile> stripe) {
+        int limit = MemUtil.isMemoryLimited() ? 1 : Math.max(1, Settings.CLIPBOARD_HOT_TILES / STRIPES);
+        Iterator<Map.Entry<Integer, HotTile>> iter = stripe.entrySet().iterator();
+        while (stripe.size() > limit && iter.hasNext()) {
+            Map.Entry<Integer, HotTile> entry = iter.next();
+            HotTile tile = entry.getValue();
+            if (tile.dirty) {
+                compressed[entry.getKey()] = compress(tile.blocks);
+            }
+            iter.remove();
+        }
+    }
+
+    /**
+     * Compress every hot tile (e.g. once the clipboard has been copied)
+     */
+    public void compressAll() {
+        for (LinkedHashMap<Integer, HotTile> stripe : hot) {
+            synchronized (stripe) {
+                for (Map.Entry<Integer, HotTile> entry : stripe.entrySet()) {
+                    HotTile tile = entry.getValue();
+                    if (tile.dirty) {
+                        compressed[entry.getKey()] = compress(tile.blocks);
+                    }
+                }
+                stripe.clear();
+            }
+        }
+    }
+
+    private byte[] compress(char[] blocks) {
+        byte[] raw = RAW.get();
+        byte[] buffer = BUFFER.get();
+        for (int i = 0; i < 4096; i++) {
+            char value = blocks[i];
+            raw[i] = (byte) (value >> 8);
+            raw[i + 4096] = (byte) value;
+        }
+        int length = COMPRESSOR.compress(raw, 0, RAW_SIZE, buffer, 0, buffer.length);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private char[] decompress(byte[] packed) {
+        byte[] raw = RAW.get();
+        DECOMPRESSOR.decompress(packed, 0, raw, 0, RAW_SIZE);
+        char[] blocks = new char[4096];
+        for (int i = 0; i < 4096; i++) {
+            blocks[i] = (char) (((raw[i] & 0xFF) << 8) | (raw[i + 4096] & 0xFF));
+        }
+        return blocks;
+    }
+
+    /**
+     * Get the size of the compressed tiles in bytes (excluding the hot tiles which haven't been compressed yet)
+     * @return
+     */
+    public long getCompressedSize() {
+        long size = 0;
+        for (int t = 0; t < compressed.length; t++) {
+            synchronized (hot[t & (STRIPES - 1)]) {
+                byte[] packed = compressed[t];
+                if (packed != null) {
+                    size += packed.length;
+                }
+            }
+        }
+        return size;
+    }
+}
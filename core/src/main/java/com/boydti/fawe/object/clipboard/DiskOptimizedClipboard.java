@@ -4,7 +4,7 @@ import com.boydti.fawe.Fawe;
 import com.boydti.fawe.FaweCache;
 import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.object.BufferedRandomAccessFile;
-import com.boydti.fawe.object.IntegerTrio;
+import com.boydti.fawe.object.IntObjectMap;
 import com.boydti.fawe.object.RunnableVal2;
 import com.boydti.fawe.util.MainUtil;
 import com.boydti.fawe.util.TaskManager;
@@ -22,7 +22,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
@@ -43,7 +42,7 @@ public class DiskOptimizedClipboard extends FaweClipboard {
     protected int width;
     protected int area;
 
-    private final HashMap<IntegerTrio, CompoundTag> nbtMap;
+    private final IntObjectMap<CompoundTag> nbtMap;
     private final HashSet<ClipboardEntity> entities;
     private final File file;
     private final byte[] buffer;
@@ -57,7 +56,7 @@ public class DiskOptimizedClipboard extends FaweClipboard {
     }
 
     public DiskOptimizedClipboard(File file) throws IOException {
-        nbtMap = new HashMap<>();
+        nbtMap = new IntObjectMap<>();
         entities = new HashSet<>();this.buffer = new byte[2];
         this.file = file;
         this.lastAccessed = System.currentTimeMillis();
@@ -101,7 +100,7 @@ public class DiskOptimizedClipboard extends FaweClipboard {
     }
 
     public DiskOptimizedClipboard(int width, int height, int length, File file) {
-        nbtMap = new HashMap<>();
+        nbtMap = new IntObjectMap<>();
         entities = new HashSet<>();
         this.file = file;
         this.buffer = new byte[2];
@@ -244,7 +243,7 @@ public class DiskOptimizedClipboard extends FaweClipboard {
                     block = FaweCache.CACHE_BLOCK[(id << 4) + (buffer[0] & 0xF)];
                 }
                 if (FaweCache.hasNBT(id)) {
-                    CompoundTag nbt = nbtMap.get(new IntegerTrio((int) pos.x, (int) pos.y, (int) pos.z));
+                    CompoundTag nbt = nbtMap.get((int) ((i - HEADER_SIZE) >> 1));
                     if (nbt != null) {
                         block = new BaseBlock(block.getId(), block.getData());
                         block.setNbtData(nbt);
@@ -278,7 +277,7 @@ public class DiskOptimizedClipboard extends FaweClipboard {
                 block = FaweCache.CACHE_BLOCK[(id << 4) + (buffer[0] & 0xF)];
             }
             if (FaweCache.hasNBT(id)) {
-                CompoundTag nbt = nbtMap.get(new IntegerTrio(x, y, z));
+                CompoundTag nbt = nbtMap.get(i);
                 if (nbt != null) {
                     block = new BaseBlock(block.getId(), block.getData());
                     block.setNbtData(nbt);
@@ -310,7 +309,7 @@ public class DiskOptimizedClipboard extends FaweClipboard {
             buffer[1] = (byte) (((combined) >> 8) & 0xFF);
             raf.write(buffer);
             if (FaweCache.hasNBT(id)) {
-                nbtMap.put(new IntegerTrio(x, y, z), block.getNbtData());
+                nbtMap.put(i, block.getNbtData());
             }
             return true;
         }  catch (Exception e) {
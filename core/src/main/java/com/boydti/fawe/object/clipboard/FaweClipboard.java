@@ -26,6 +26,15 @@ public abstract class FaweClipboard {
 
     public void setOrigin(Vector offset) {} // Do nothing
 
+    /**
+     * Check if getBlock can be called from several threads at once (while nothing is being set)
+     * @see ClipboardPaster
+     * @return
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
     /**
      * The locations provided are relative to the clipboard min
      * @param task
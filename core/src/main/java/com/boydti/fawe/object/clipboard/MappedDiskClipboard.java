@@ -0,0 +1,388 @@
+package com.boydti.fawe.object.clipboard;
+
+import com.boydti.fawe.Fawe;
+import com.boydti.fawe.FaweCache;
+import com.boydti.fawe.object.IntObjectMap;
+import com.boydti.fawe.object.RunnableVal2;
+import com.boydti.fawe.util.MainUtil;
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.EditSession;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.entity.BaseEntity;
+import com.sk89q.worldedit.entity.Entity;
+import com.sk89q.worldedit.extent.Extent;
+import com.sk89q.worldedit.extent.clipboard.BlockArrayClipboard;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A clipboard with disk backed storage, accessed through memory mapped windows of the file<br>
+ *     - The same file layout as the DiskOptimizedClipboard (so either can load the other's clipboard)
+ *     - Getting / setting a block is an absolute read / write of the mapped buffer (no seek or syscall)
+ *     - The file is mapped in fixed size windows (a mapping is limited to 2GB), which stay mapped until close
+ *     - Reads don't change any state, so several threads can read concurrently (e.g. while pasting)
+ *     - The windows are accessed while holding a read lock, so close waits for those threads before unmapping
+ *     - Only one clipboard maps a file: creating another for the same file (e.g. the player copies again) closes the previous one first,
+ *       which can't be mapped again afterwards (so the file is never resized while it's mapped)
+ *     - nbt / entities are stored in memory
+ * <br>
+ * [header]<br>
+ * { short width, short length } (little endian), { short origin x, short origin y, short origin z } (big endian)<br>
+ * [blocks]<br>
+ * { short combined id } (little endian) for each block, x then z then y
+ * @see DiskOptimizedClipboard
+ */
+public class MappedDiskClipboard extends FaweClipboard {
+
+    private static final int HEADER_SIZE = 10;
+    /**
+     * The size of each window (even, so a block is never split between two windows)
+     */
+    private static final int WINDOW_BITS = 26;
+    private static final int WINDOW_MASK = (1 << WINDOW_BITS) - 1;
+
+    /**
+     * The clipboard which owns each file (by absolute path)
+     */
+    private static final ConcurrentHashMap<String, MappedDiskClipboard> OWNERS = new ConcurrentHashMap<>();
+
+    protected int length;
+    protected int height;
+    protected int width;
+    protected int area;
+
+    private final IntObjectMap<CompoundTag> nbtMap;
+    private final HashSet<ClipboardEntity> entities;
+    private final File file;
+
+    private volatile MappedByteBuffer[] windows;
+    private volatile boolean replaced;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public MappedDiskClipboard(int width, int height, int length, UUID uuid) {
+        this(width, height, length, new File(Fawe.imp().getDirectory(), "clipboard" + File.separator + uuid));
+    }
+
+    public MappedDiskClipboard(int width, int height, int length) {
+        this(width, height, length, new File(Fawe.imp().getDirectory(), "clipboard" + File.separator + UUID.randomUUID()));
+    }
+
+    public MappedDiskClipboard(int width, int height, int length, File file) {
+        this.nbtMap = new IntObjectMap<>();
+        this.entities = new HashSet<>();
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.length = length;
+        this.area = width * length;
+        own();
+        try {
+            if (!file.exists()) {
+                file.getParentFile().mkdirs();
+            }
+            file.createNewFile();
+        } catch (Exception e) {
+            MainUtil.handleError(e);
+        }
+    }
+
+    /**
+     * Load an existing clipboard file
+     * @param file
+     * @throws IOException
+     */
+    public MappedDiskClipboard(File file) throws IOException {
+        this.nbtMap = new IntObjectMap<>();
+        this.entities = new HashSet<>();
+        this.file = file;
+        own();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            width = raf.read() + (raf.read() << 8);
+            length = raf.read() + (raf.read() << 8);
+            area = width * length;
+            height = (int) (((raf.length() - HEADER_SIZE) >> 1) / area);
+        }
+        open();
+    }
+
+    /**
+     * Take the file over from the clipboard which had it (waits until that clipboard is unmapped)
+     */
+    private void own() {
+        MappedDiskClipboard previous = OWNERS.put(file.getAbsolutePath(), this);
+        if (previous != null && previous != this) {
+            previous.replaced = true;
+            previous.close();
+        }
+    }
+
+    /**
+     * Unmap the clipboard using a file, if there is one (e.g. when the player logs out)<br>
+     *     - It's mapped again if it's used afterwards
+     * @param file
+     */
+    public static void close(File file) {
+        MappedDiskClipboard owner = OWNERS.get(file.getAbsolutePath());
+        if (owner != null) {
+            owner.close();
+        }
+    }
+
+    /**
+     * Unmap this clipboard for good (e.g. it was replaced as the session clipboard)<br>
+     *     - The file is left for the next clipboard (or to be loaded when the player joins)
+     */
+    public void release() {
+        replaced = true;
+        OWNERS.remove(file.getAbsolutePath(), this);
+        close();
+    }
+
+    public BlockArrayClipboard toClipboard() {
+        CuboidRegion region = new CuboidRegion(new Vector(0, 0, 0), new Vector(width - 1, height - 1, length - 1)) {
+            @Override
+            public boolean contains(Vector position) {
+                return true;
+            }
+        };
+        int ox, oy, oz;
+        lock.readLock().lock();
+        try {
+            MappedByteBuffer header = getWindows()[0];
+            ox = header.get(4) << 8 | (header.get(5) & 0xFF);
+            oy = header.get(6) << 8 | (header.get(7) & 0xFF);
+            oz = header.get(8) << 8 | (header.get(9) & 0xFF);
+        } finally {
+            lock.readLock().unlock();
+        }
+        BlockArrayClipboard clipboard = new BlockArrayClipboard(region, this);
+        clipboard.setOrigin(new Vector(ox, oy, oz));
+        return clipboard;
+    }
+
+    @Override
+    public void setOrigin(Vector offset) {
+        lock.readLock().lock();
+        try {
+            MappedByteBuffer header = getWindows()[0];
+            header.put(4, (byte) (offset.getBlockX() >> 8));
+            header.put(5, (byte) (offset.getBlockX()));
+            header.put(6, (byte) (offset.getBlockY() >> 8));
+            header.put(7, (byte) (offset.getBlockY()));
+            header.put(8, (byte) (offset.getBlockZ() >> 8));
+            header.put(9, (byte) (offset.getBlockZ()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Map the file (creating the header if it's new)
+     * @return the windows
+     * @throws IOException
+     */
+    public synchronized MappedByteBuffer[] open() throws IOException {
+        if (windows != null) {
+            return windows;
+        }
+        if (replaced) {
+            throw new IOException("The clipboard was replaced: " + file);
+        }
+        long size = (long) width * height * length * 2 + HEADER_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != size) {
+                raf.setLength(size);
+                raf.seek(0);
+                raf.write((width) & 0xff);
+                raf.write(((width) >> 8) & 0xff);
+                raf.write((length) & 0xff);
+                raf.write(((length) >> 8) & 0xff);
+            }
+            // The mappings stay valid once the file is closed
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((size + WINDOW_MASK) >> WINDOW_BITS)];
+            for (int i = 0; i < mapped.length; i++) {
+                long position = (long) i << WINDOW_BITS;
+                mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(WINDOW_MASK + 1, size - position));
+                mapped[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            windows = mapped;
+        }
+        return windows;
+    }
+
+    /**
+     * Get the windows (the caller must hold the read lock until it's done with them)
+     */
+    private MappedByteBuffer[] getWindows() {
+        MappedByteBuffer[] mapped = windows;
+        if (mapped == null) {
+            try {
+                mapped = open();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Write the changes to the file (it stays mapped)
+     */
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            MappedByteBuffer[] mapped = windows;
+            if (mapped != null) {
+                for (MappedByteBuffer window : mapped) {
+                    window.force();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        file.setWritable(true);
+    }
+
+    /**
+     * Write the changes and unmap the file<br>
+     *     - Waits until no other thread is accessing the clipboard (a buffer can't be used once it's unmapped)
+     *     - It's mapped again if it's used afterwards
+     */
+    public void close() {
+        // Before the monitor, as a reader may be waiting on it (in open) while holding the read lock
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                MappedByteBuffer[] mapped = windows;
+                windows = null;
+                if (mapped != null) {
+                    for (MappedByteBuffer window : mapped) {
+                        window.force();
+                        MainUtil.unmap(window);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int getCombined(MappedByteBuffer[] mapped, int i) {
+        long position = HEADER_SIZE + ((long) i << 1);
+        return mapped[(int) (position >> WINDOW_BITS)].getShort((int) (position & WINDOW_MASK)) & 0xFFFF;
+    }
+
+    private BaseBlock getBlock(int combined, int index) {
+        int id = combined >> 4;
+        BaseBlock block;
+        if (!FaweCache.hasData(id)) {
+            block = FaweCache.CACHE_BLOCK[id << 4];
+        } else {
+            block = FaweCache.CACHE_BLOCK[combined];
+        }
+        if (FaweCache.hasNBT(id)) {
+            CompoundTag nbt = nbtMap.get(index);
+            if (nbt != null) {
+                block = new BaseBlock(block.getId(), block.getData());
+                block.setNbtData(nbt);
+            }
+        }
+        return block;
+    }
+
+    @Override
+    public void forEach(final RunnableVal2<Vector, BaseBlock> task, boolean air) {
+        lock.readLock().lock();
+        try {
+            MappedByteBuffer[] mapped = getWindows();
+            BlockVector pos = new BlockVector(0, 0, 0);
+            int index = 0;
+            for (int y = 0; y < height; y++) {
+                for (int z = 0; z < length; z++) {
+                    for (int x = 0; x < width; x++, index++) {
+                        int combined = getCombined(mapped, index);
+                        if (combined == 0 && !air) {
+                            continue;
+                        }
+                        pos.x = x;
+                        pos.y = y;
+                        pos.z = z;
+                        task.run(pos, getBlock(combined, index));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public BaseBlock getBlock(int x, int y, int z) {
+        lock.readLock().lock();
+        try {
+            int index = x + z * width + y * area;
+            return getBlock(getCombined(getWindows(), index), index);
+        } catch (Exception e) {
+            MainUtil.handleError(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return EditSession.nullBlock;
+    }
+
+    @Override
+    public boolean setBlock(int x, int y, int z, BaseBlock block) {
+        lock.readLock().lock();
+        try {
+            final int id = block.getId();
+            int index = x + z * width + y * area;
+            long position = HEADER_SIZE + ((long) index << 1);
+            getWindows()[(int) (position >> WINDOW_BITS)].putShort((int) (position & WINDOW_MASK), (short) ((id << 4) + block.getData()));
+            if (FaweCache.hasNBT(id)) {
+                nbtMap.put(index, block.getNbtData());
+            }
+            return true;
+        } catch (Exception e) {
+            MainUtil.handleError(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return false;
+    }
+
+    @Override
+    public Entity createEntity(Extent world, double x, double y, double z, float yaw, float pitch, BaseEntity entity) {
+        FaweClipboard.ClipboardEntity ret = new ClipboardEntity(world, x, y, z, yaw, pitch, entity);
+        entities.add(ret);
+        return ret;
+    }
+
+    @Override
+    public List<? extends Entity> getEntities() {
+        return new ArrayList<>(entities);
+    }
+
+    @Override
+    public boolean remove(ClipboardEntity clipboardEntity) {
+        return entities.remove(clipboardEntity);
+    }
+}
@@ -1,7 +1,7 @@
 package com.boydti.fawe.object.clipboard;
 
 import com.boydti.fawe.FaweCache;
-import com.boydti.fawe.object.IntegerTrio;
+import com.boydti.fawe.object.IntObjectMap;
 import com.boydti.fawe.object.RunnableVal2;
 import com.sk89q.jnbt.CompoundTag;
 import com.sk89q.worldedit.BlockVector;
@@ -12,7 +12,6 @@ import com.sk89q.worldedit.entity.BaseEntity;
 import com.sk89q.worldedit.entity.Entity;
 import com.sk89q.worldedit.extent.Extent;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -26,7 +25,7 @@ public class MemoryOptimizedClipboard extends FaweClipboard {
     private final byte[][] ids;
     private final byte[] heights;
     private byte[][] datas;
-    private final HashMap<IntegerTrio, CompoundTag> nbtMap;
+    private final IntObjectMap<CompoundTag> nbtMap;
     private final HashSet<ClipboardEntity> entities;
 
     public MemoryOptimizedClipboard(int width, int height, int length) {
@@ -39,7 +38,7 @@ public class MemoryOptimizedClipboard extends FaweClipboard {
             heights[y] = (byte) Math.min(16, height - (y << 4));
         }
         ids = new byte[width * length * ((height + 15) >>  4)][];
-        nbtMap = new HashMap<>();
+        nbtMap = new IntObjectMap<>();
         entities = new HashSet<>();
     }
 
@@ -69,7 +68,7 @@ public class MemoryOptimizedClipboard extends FaweClipboard {
             }
         }
         if (FaweCache.hasNBT(id)) {
-            CompoundTag nbt = nbtMap.get(new IntegerTrio(x, y, z));
+            CompoundTag nbt = nbtMap.get(x + z * width + y * area);
             if (nbt != null) {
                 block = new BaseBlock(block.getId(), block.getData());
                 block.setNbtData(nbt);
@@ -122,7 +121,7 @@ public class MemoryOptimizedClipboard extends FaweClipboard {
                             }
                         }
                         if (FaweCache.hasNBT(id)) {
-                            CompoundTag nbt = nbtMap.get(new IntegerTrio((int) pos.x, (int) pos.y, (int) pos.z));
+                            CompoundTag nbt = nbtMap.get(i2 + (y1 + y2) * area);
                             if (nbt != null) {
                                 block = new BaseBlock(block.getId(), block.getData());
                                 block.setNbtData(nbt);
@@ -185,7 +184,7 @@ public class MemoryOptimizedClipboard extends FaweClipboard {
             case 151:
             case 178: {
                 if (block.hasNbtData()) {
-                    nbtMap.put(new IntegerTrio(x, y, z), block.getNbtData());
+                    nbtMap.put(x + z * width + y * area, block.getNbtData());
                 }
                 int i = x + ((ylast == y) ? ylasti : (ylasti = ((ylast = y) >> 4) * area)) + ((zlast == z) ? zlasti : (zlasti = (zlast = z) * width));
                 int y2 = y & 0xF;
@@ -0,0 +1,428 @@
+package com.boydti.fawe.object.clipboard;
+
+import com.boydti.fawe.FaweCache;
+import com.boydti.fawe.example.CharFaweChunk;
+import com.boydti.fawe.example.MappedFaweQueue;
+import com.boydti.fawe.object.FaweChunk;
+import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.IntObjectMap;
+import com.boydti.fawe.object.RunnableVal2;
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.EditSession;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.entity.BaseEntity;
+import com.sk89q.worldedit.entity.Entity;
+import com.sk89q.worldedit.extent.Extent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A clipboard stored in 16x16x16 tiles, in the same layout as the sections of a CharFaweChunk<br>
+ *     - The tile grid is offset so it lines up with the world sections the clipboard was copied from
+ *     - A tile which is filled with a single block is stored as that value (e.g. air, or the inside of a solid build)
+ *     - Pasting at an offset which keeps the tiles aligned copies each tile straight into its section (@see #paste)
+ *     - forEach goes tile by tile, so the blocks of one section are set together
+ * <br>
+ * Values: 0 = not set, 1 = air, otherwise (id << 4) + data (@see CharFaweChunk#getCombinedId)
+ */
+public class TiledClipboard extends FaweClipboard {
+
+    protected int length;
+    protected int height;
+    protected int width;
+    protected int area;
+
+    /**
+     * The position of the clipboard min within its tile
+     */
+    private final int offsetX;
+    private final int offsetY;
+    private final int offsetZ;
+
+    private final int tilesX;
+    private final int tilesY;
+    private final int tilesZ;
+    private final int tilesXZ;
+
+    private final char[][] tiles;
+    private final char[] uniform;
+    private final short[] counts;
+
+    private final IntObjectMap<CompoundTag> nbtMap;
+    private final HashSet<ClipboardEntity> entities;
+
+    public TiledClipboard(int width, int height, int length) {
+        this(width, height, length, 0, 0, 0);
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @param length
+     * @param offsetX The position of the clipboard min within its tile (e.g. minX & 15 to line up with the world)
+     * @param offsetY
+     * @param offsetZ
+     */
+    public TiledClipboard(int width, int height, int length, int offsetX, int offsetY, int offsetZ) {
+        this.width = width;
+        this.height = height;
+        this.length = length;
+        this.area = width * length;
+        this.offsetX = offsetX & 15;
+        this.offsetY = offsetY & 15;
+        this.offsetZ = offsetZ & 15;
+        this.tilesX = (this.offsetX + width + 15) >> 4;
+        this.tilesY = (this.offsetY + height + 15) >> 4;
+        this.tilesZ = (this.offsetZ + length + 15) >> 4;
+        this.tilesXZ = tilesX * tilesZ;
+        this.tiles = new char[tilesXZ * tilesY][];
+        this.uniform = new char[tiles.length];
+        this.counts = new short[tiles.length];
+        this.nbtMap = new IntObjectMap<>();
+        this.entities = new HashSet<>();
+    }
+
+    /**
+     * Get the number of tiles
+     */
+    protected int getTileCount() {
+        return tiles.length;
+    }
+
+    /**
+     * Get the blocks of a tile
+     * @param t The tile index
+     * @param write If the returned array will be modified
+     * @return The blocks (@see CharFaweChunk for the layout), or null if the tile is uniform
+     */
+    protected char[] getTile(int t, boolean write) {
+        return tiles[t];
+    }
+
+    /**
+     * Store the blocks of a tile
+     * @param t The tile index
+     * @param tile The blocks, or null if the tile is now uniform
+     */
+    protected void putTile(int t, char[] tile) {
+        tiles[t] = tile;
+    }
+
+    private int getTileIndex(int x, int y, int z) {
+        return ((x + offsetX) >> 4) + ((z + offsetZ) >> 4) * tilesX + ((y + offsetY) >> 4) * tilesXZ;
+    }
+
+    private int getIndex(int x, int y, int z) {
+        return (((y + offsetY) & 15) << 8) | (((z + offsetZ) & 15) << 4) | ((x + offsetX) & 15);
+    }
+
+    private char getValue(int x, int y, int z) {
+        int t = getTileIndex(x, y, z);
+        char[] tile = getTile(t, false);
+        return tile != null ? tile[getIndex(x, y, z)] : uniform[t];
+    }
+
+    private BaseBlock getBlock(char value, int x, int y, int z) {
+        if (value <= 1) {
+            return EditSession.nullBlock;
+        }
+        BaseBlock block = FaweCache.CACHE_BLOCK[value];
+        if (FaweCache.hasNBT(value >> 4)) {
+            CompoundTag nbt = nbtMap.get(x + z * width + y * area);
+            if (nbt != null) {
+                block = new BaseBlock(block.getId(), block.getData());
+                block.setNbtData(nbt);
+            }
+        }
+        return block;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public BaseBlock getBlock(int x, int y, int z) {
+        return getBlock(getValue(x, y, z), x, y, z);
+    }
+
+    @Override
+    public boolean setBlock(int x, int y, int z, BaseBlock block) {
+        int id = block.getId();
+        char value = id == 0 ? 1 : (char) ((id << 4) + block.getData());
+        if (FaweCache.hasNBT(id) && block.hasNbtData()) {
+            nbtMap.put(x + z * width + y * area, block.getNbtData());
+        }
+        int t = getTileIndex(x, y, z);
+        char[] tile = getTile(t, true);
+        if (tile == null) {
+            char current = uniform[t];
+            if (current == value) {
+                return true;
+            }
+            putTile(t, tile = new char[4096]);
+            if (current != 0) {
+                fillTile(t, tile, current);
+                uniform[t] = 0;
+                counts[t] = (short) getVolume(t);
+            }
+        }
+        int j = getIndex(x, y, z);
+        if (tile[j] == 0 && ++counts[t] == getVolume(t)) {
+            tile[j] = value;
+            checkUniform(t, tile);
+            return true;
+        }
+        tile[j] = value;
+        return true;
+    }
+
+    /**
+     * Get the number of positions of a tile which are inside the clipboard
+     */
+    private int getVolume(int t) {
+        int ty = t / tilesXZ;
+        int tz = (t % tilesXZ) / tilesX;
+        int tx = t % tilesX;
+        return getSpan(tx, offsetX, width) * getSpan(ty, offsetY, height) * getSpan(tz, offsetZ, length);
+    }
+
+    private static int getSpan(int tile, int offset, int size) {
+        int min = Math.max(0, (tile << 4) - offset);
+        int max = Math.min(size - 1, (tile << 4) + 15 - offset);
+        return max - min + 1;
+    }
+
+    /**
+     * Set the positions of a tile which are inside the clipboard to a value
+     */
+    private void fillTile(int t, char[] tile, char value) {
+        int ty = t / tilesXZ;
+        int tz = (t % tilesXZ) / tilesX;
+        int tx = t % tilesX;
+        int minX = Math.max(0, (tx << 4) - offsetX);
+        int maxX = Math.min(width - 1, (tx << 4) + 15 - offsetX);
+        int minY = Math.max(0, (ty << 4) - offsetY);
+        int maxY = Math.min(height - 1, (ty << 4) + 15 - offsetY);
+        int minZ = Math.max(0, (tz << 4) - offsetZ);
+        int maxZ = Math.min(length - 1, (tz << 4) + 15 - offsetZ);
+        if (maxX - minX == 15 && maxY - minY == 15 && maxZ - minZ == 15) {
+            Arrays.fill(tile, value);
+            return;
+        }
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                int j = getIndex(minX, y, z);
+                Arrays.fill(tile, j, j + maxX - minX + 1, value);
+            }
+        }
+    }
+
+    /**
+     * Replace a fully set tile with its value, if every block in it is the same
+     */
+    private void checkUniform(int t, char[] tile) {
+        char value = 0;
+        for (char current : tile) {
+            if (current != 0) {
+                if (value == 0) {
+                    value = current;
+                } else if (current != value) {
+                    return;
+                }
+            }
+        }
+        putTile(t, null);
+        uniform[t] = value;
+    }
+
+    @Override
+    public void forEach(final RunnableVal2<Vector, BaseBlock> task, boolean air) {
+        BlockVector pos = new BlockVector(0, 0, 0);
+        for (int ty = 0; ty < tilesY; ty++) {
+            int minY = Math.max(0, (ty << 4) - offsetY);
+            int maxY = Math.min(height - 1, (ty << 4) + 15 - offsetY);
+            for (int tz = 0; tz < tilesZ; tz++) {
+                int minZ = Math.max(0, (tz << 4) - offsetZ);
+                int maxZ = Math.min(length - 1, (tz << 4) + 15 - offsetZ);
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int t = tx + tz * tilesX + ty * tilesXZ;
+                    char[] tile = getTile(t, false);
+                    char value = uniform[t];
+                    if (tile == null && value <= 1 && !air) {
+                        continue;
+                    }
+                    int minX = Math.max(0, (tx << 4) - offsetX);
+                    int maxX = Math.min(width - 1, (tx << 4) + 15 - offsetX);
+                    for (int y = minY; y <= maxY; y++) {
+                        for (int z = minZ; z <= maxZ; z++) {
+                            int j = getIndex(minX, y, z);
+                            for (int x = minX; x <= maxX; x++, j++) {
+                                if (tile != null) {
+                                    value = tile[j];
+                                }
+                                if (value <= 1 && !air) {
+                                    continue;
+                                }
+                                pos.x = x;
+                                pos.y = y;
+                                pos.z = z;
+                                task.run(pos, getBlock(value, x, y, z));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if pasting at an offset copies each tile to a single world section
+     * @param relX The offset from a clipboard position to its world position
+     * @param relY
+     * @param relZ
+     * @return
+     */
+    public boolean isAligned(int relX, int relY, int relZ) {
+        return ((relX - offsetX) & 15) == 0 && ((relY - offsetY) & 15) == 0 && ((relZ - offsetZ) & 15) == 0;
+    }
+
+    /**
+     * Paste straight into the chunks of a queue, a tile at a time<br>
+     *     - No extent is used (i.e. no history, mask, region restrictions or limit), the caller must check those are not needed
+     *     - If the tiles are aligned with the world sections (@see #isAligned), a uniform tile is set as a uniform section and other tiles are copied in bulk
+     *     - Otherwise each block is set on the queue (still grouped by tile)
+     * @param queue
+     * @param relX The offset from a clipboard position to its world position
+     * @param relY
+     * @param relZ
+     * @param air If air should be pasted
+     * @return The number of blocks set
+     */
+    public int paste(FaweQueue queue, int relX, int relY, int relZ, boolean air) {
+        boolean aligned = queue instanceof MappedFaweQueue && isAligned(relX, relY, relZ);
+        char[] section = aligned ? new char[4096] : null;
+        int changes = 0;
+        for (int ty = 0; ty < tilesY; ty++) {
+            int minY = Math.max(0, (ty << 4) - offsetY);
+            int maxY = Math.min(height - 1, (ty << 4) + 15 - offsetY);
+            for (int tz = 0; tz < tilesZ; tz++) {
+                int minZ = Math.max(0, (tz << 4) - offsetZ);
+                int maxZ = Math.min(length - 1, (tz << 4) + 15 - offsetZ);
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int t = tx + tz * tilesX + ty * tilesXZ;
+                    char[] tile = getTile(t, false);
+                    char value = uniform[t];
+                    if (tile == null && (value == 0 || (value == 1 && !air))) {
+                        continue;
+                    }
+                    int minX = Math.max(0, (tx << 4) - offsetX);
+                    int maxX = Math.min(width - 1, (tx << 4) + 15 - offsetX);
+                    if (aligned) {
+                        changes += pasteTile(queue, t, minX + relX, minY + relY, minZ + relZ, air, section);
+                        continue;
+                    }
+                    for (int y = minY; y <= maxY; y++) {
+                        int wy = y + relY;
+                        if (wy < 0 || wy > 255) {
+                            continue;
+                        }
+                        for (int z = minZ; z <= maxZ; z++) {
+                            int j = getIndex(minX, y, z);
+                            for (int x = minX; x <= maxX; x++, j++) {
+                                if (tile != null) {
+                                    value = tile[j];
+                                }
+                                if (value == 0 || (value == 1 && !air)) {
+                                    continue;
+                                }
+                                queue.setBlock(x + relX, wy, z + relZ, (short) (value == 1 ? 0 : value >> 4), (byte) (value == 1 ? 0 : value & 15));
+                                changes++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        for (int index : nbtMap.getKeys()) {
+            int y = index / area;
+            int z = (index - y * area) / width;
+            int x = index - y * area - z * width;
+            int wy = y + relY;
+            if (wy >= 0 && wy <= 255 && FaweCache.hasNBT(getValue(x, y, z) >> 4)) {
+                queue.setTile(x + relX, wy, z + relZ, nbtMap.get(index));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Copy a tile into the world section it's aligned with
+     * @param wx Any world position in the tile
+     */
+    private int pasteTile(FaweQueue queue, int t, int wx, int wy, int wz, boolean air, char[] section) {
+        int layer = wy >> 4;
+        if (layer < 0 || layer > 15) {
+            return 0;
+        }
+        FaweChunk chunk = ((MappedFaweQueue) queue).getFaweQueueMap().getFaweChunk(wx >> 4, wz >> 4);
+        char[] tile = getTile(t, false);
+        char value = uniform[t];
+        int volume = getVolume(t);
+        if (tile == null && volume == 4096 && chunk instanceof CharFaweChunk) {
+            ((CharFaweChunk) chunk).setUniform(layer, value == 1 ? 0 : value >> 4, (byte) (value == 1 ? 0 : value & 15));
+            return 4096;
+        }
+        if (tile == null) {
+            Arrays.fill(section, (char) 0);
+            fillTile(t, section, value);
+            tile = section;
+        } else if (!air) {
+            System.arraycopy(tile, 0, section, 0, 4096);
+            tile = section;
+        }
+        if (chunk instanceof CharFaweChunk) {
+            if (!air) {
+                for (int j = 0; j < 4096; j++) {
+                    if (tile[j] == 1) {
+                        tile[j] = 0;
+                    }
+                }
+            }
+            return ((CharFaweChunk) chunk).setBlocks(layer, tile);
+        }
+        int changes = 0;
+        int by = layer << 4;
+        for (int j = 0; j < 4096; j++) {
+            char current = tile[j];
+            if (current == 0 || (current == 1 && !air)) {
+                continue;
+            }
+            chunk.setBlock(j & 15, by + (j >> 8), (j >> 4) & 15, current == 1 ? 0 : current >> 4, (byte) (current == 1 ? 0 : current & 15));
+            changes++;
+        }
+        return changes;
+    }
+
+    @Override
+    public Entity createEntity(Extent world, double x, double y, double z, float yaw, float pitch, BaseEntity entity) {
+        FaweClipboard.ClipboardEntity ret = new ClipboardEntity(world, x, y, z, yaw, pitch, entity);
+        entities.add(ret);
+        return ret;
+    }
+
+    @Override
+    public List<? extends Entity> getEntities() {
+        return new ArrayList<>(entities);
+    }
+
+    @Override
+    public boolean remove(ClipboardEntity clipboardEntity) {
+        return entities.remove(clipboardEntity);
+    }
+}
@@ -1,8 +1,9 @@
 package com.boydti.fawe.object.extent;
 
+import com.boydti.fawe.Fawe;
 import com.boydti.fawe.config.BBC;
 import com.boydti.fawe.object.FawePlayer;
-import com.boydti.fawe.util.MemUtil;
+import com.boydti.fawe.util.MemoryMonitor;
 import com.boydti.fawe.util.Perm;
 import com.boydti.fawe.util.WEManager;
 import com.sk89q.worldedit.Vector;
@@ -11,8 +12,12 @@ import com.sk89q.worldedit.blocks.BaseBlock;
 import com.sk89q.worldedit.extent.AbstractDelegateExtent;
 import com.sk89q.worldedit.extent.Extent;
 
+/**
+ * Slows an edit down while memory is high, and cancels it when memory is critical
+ */
 public class MemoryCheckingExtent extends AbstractDelegateExtent {
     private final FawePlayer<?> player;
+    private int count;
 
     public MemoryCheckingExtent(final FawePlayer<?> player, final Extent extent) {
         super(extent);
@@ -22,7 +27,14 @@ public class MemoryCheckingExtent extends AbstractDelegateExtent {
     @Override
     public boolean setBlock(final Vector location, final BaseBlock block) throws WorldEditException {
         if (super.setBlock(location, block)) {
-            if (MemUtil.isMemoryLimited()) {
+            MemoryMonitor.Level level = MemoryMonitor.IMP.getLevel();
+            if (level == MemoryMonitor.Level.HIGH && (++count & 4095) == 0 && !Fawe.get().isMainThread()) {
+                // Give the queue (and GC) a chance to catch up, longer the less headroom there is
+                try {
+                    Thread.sleep(Math.max(1, (long) (50 * (1 - MemoryMonitor.IMP.getHeadroom()))));
+                } catch (InterruptedException ignore) {}
+            }
+            if (level == MemoryMonitor.Level.CRITICAL) {
                 if (this.player != null) {
                     player.sendMessage(BBC.WORLDEDIT_CANCEL_REASON.format(BBC.WORLDEDIT_CANCEL_REASON_LOW_MEMORY.s()));
                     if (Perm.hasPermission(this.player, "worldedit.fast")) {
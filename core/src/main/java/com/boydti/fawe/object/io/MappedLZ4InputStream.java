@@ -0,0 +1,108 @@
+package com.boydti.fawe.object.io;
+
+import com.boydti.fawe.util.MainUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Reads an LZ4 stream (as written by LZ4OutputStream) from a memory mapped file<br>
+ *     - Each block is decompressed straight from the mapped buffer into a reused array
+ *     - The file is unmapped on close
+ * @see net.jpountz.lz4.LZ4InputStream
+ */
+public class MappedLZ4InputStream extends InputStream {
+
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private MappedByteBuffer mapped;
+    private int position;
+    private byte[] buffer = new byte[0];
+    private ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    private int bufferPosition;
+    private int bufferLength;
+
+    public MappedLZ4InputStream(File file) throws IOException {
+        this.mapped = MainUtil.mapFile(file);
+        mapped.order(ByteOrder.nativeOrder());
+    }
+
+    private int readLength(int index) {
+        return ((mapped.get(index) & 0xFF) << 24) | ((mapped.get(index + 1) & 0xFF) << 16) | ((mapped.get(index + 2) & 0xFF) << 8) | (mapped.get(index + 3) & 0xFF);
+    }
+
+    private boolean fill() {
+        while (bufferPosition >= bufferLength) {
+            if (mapped == null || position + 8 > mapped.limit()) {
+                return false;
+            }
+            int raw = readLength(position);
+            int compressed = readLength(position + 4);
+            if (raw < 0 || compressed < 0 || position + 8 + compressed > mapped.limit()) {
+                return false;
+            }
+            if (raw > buffer.length) {
+                buffer = new byte[raw];
+                wrapped = ByteBuffer.wrap(buffer);
+            }
+            DECOMPRESSOR.decompress(mapped, position + 8, wrapped, 0, raw);
+            position += 8 + compressed;
+            bufferPosition = 0;
+            bufferLength = raw;
+        }
+        return true;
+    }
+
+    public boolean hasBytesAvailableInDecompressedBuffer(int bytes) {
+        return bufferPosition + bytes <= bufferLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer[bufferPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int amount = Math.min(len, bufferLength - bufferPosition);
+        System.arraycopy(buffer, bufferPosition, b, off, amount);
+        bufferPosition += amount;
+        return amount;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int amount = (int) Math.min(n - skipped, bufferLength - bufferPosition);
+            bufferPosition += amount;
+            skipped += amount;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return bufferLength - bufferPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        MainUtil.unmap(mapped);
+        mapped = null;
+    }
+}
@@ -0,0 +1,147 @@
+package com.boydti.fawe.object.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An OutputStream which hands the data to the underlying stream (e.g. LZ4 + file) on a WritePipeline<br>
+ *     - Writes go into pooled 64KB buffers, and each full buffer is queued
+ *     - flush / close wait until everything has been written to the underlying stream
+ */
+public class PipelinedOutputStream extends OutputStream {
+
+    public static final int BUFFER_SIZE = 65536;
+
+    private static final int MAX_POOLED = 64;
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private static byte[] take() {
+        byte[] buffer = POOL.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    private static void release(byte[] buffer) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.add(buffer);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    private final OutputStream out;
+    private final WritePipeline pipeline;
+    private byte[] buffer;
+    private int size;
+    private boolean closed;
+
+    public PipelinedOutputStream(OutputStream out, WritePipeline pipeline) {
+        this.out = out;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffer == null) {
+            buffer = take();
+        }
+        buffer[size++] = (byte) b;
+        if (size == BUFFER_SIZE) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (buffer == null) {
+                buffer = take();
+            }
+            int amount = Math.min(len, BUFFER_SIZE - size);
+            System.arraycopy(b, off, buffer, size, amount);
+            size += amount;
+            off += amount;
+            len -= amount;
+            if (size == BUFFER_SIZE) {
+                submit();
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = buffer;
+        final int length = size;
+        buffer = null;
+        size = 0;
+        if (data == null || length == 0) {
+            if (data != null) {
+                release(data);
+            }
+            return;
+        }
+        pipeline.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                try {
+                    out.write(data, 0, length);
+                } finally {
+                    release(data);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Wait until the data written so far has been flushed by the underlying stream
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        submit();
+        pipeline.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                out.flush();
+                return null;
+            }
+        });
+        pipeline.await();
+    }
+
+    /**
+     * Wait until everything has been written, then close the underlying stream
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit();
+            pipeline.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    out.close();
+                    return null;
+                }
+            });
+            pipeline.await();
+        } catch (IOException e) {
+            // The pipeline skips the remaining tasks after a failure
+            try {
+                out.close();
+            } catch (IOException ignore) {}
+            throw e;
+        }
+    }
+}
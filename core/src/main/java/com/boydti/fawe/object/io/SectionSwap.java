@@ -0,0 +1,194 @@
+package com.boydti.fawe.object.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * An append only scratch file for LZ4 compressed chunk sections (a char[4096], or the bytes of a palette section)<br>
+ *     - {@link #write} returns a handle (offset << 28 | compressed length << 14 | raw length) used to {@link #read} the section back
+ *     - A section which won't be read back (e.g. its queue was cleared) should be freed with {@link #free}
+ *     - The file is truncated once every section written to it has been read back or freed
+ */
+public class SectionSwap {
+
+    private static final int RAW_SIZE = 8192;
+    private static final int SIZE_BITS = 14;
+    private static final int SIZE_MASK = (1 << SIZE_BITS) - 1;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private long length;
+    private int live;
+    private long totalWritten;
+    private long totalRead;
+
+    private final LZ4Compressor compressor;
+    private final LZ4FastDecompressor decompressor;
+    private final byte[] raw = new byte[RAW_SIZE];
+    private final byte[] compressed;
+
+    public SectionSwap(File file) {
+        this.file = file;
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        this.compressor = factory.fastCompressor();
+        this.decompressor = factory.fastDecompressor();
+        this.compressed = new byte[compressor.maxCompressedLength(RAW_SIZE)];
+    }
+
+    private RandomAccessFile getFile() throws IOException {
+        if (raf == null) {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            length = 0;
+        }
+        return raf;
+    }
+
+    /**
+     * Write a section to the file
+     * @param section
+     * @return The handle to read it back with
+     * @throws IOException
+     */
+    public synchronized long write(char[] section) throws IOException {
+        for (int i = 0, j = 0; i < 4096; i++) {
+            char value = section[i];
+            raw[j++] = (byte) (value >> 8);
+            raw[j++] = (byte) value;
+        }
+        return writeRaw(raw, RAW_SIZE);
+    }
+
+    /**
+     * Write some bytes to the file (e.g. a palette section)
+     * @param data At most 8192 bytes
+     * @return The handle to read it back with
+     * @throws IOException
+     */
+    public synchronized long write(byte[] data) throws IOException {
+        if (data.length > RAW_SIZE) {
+            throw new IllegalArgumentException("Too large: " + data.length);
+        }
+        return writeRaw(data, data.length);
+    }
+
+    private long writeRaw(byte[] data, int rawLength) throws IOException {
+        int size = compressor.compress(data, 0, rawLength, compressed, 0, compressed.length);
+        RandomAccessFile out = getFile();
+        long offset = length;
+        out.seek(offset);
+        out.write(compressed, 0, size);
+        length += size;
+        live++;
+        totalWritten++;
+        return (offset << (SIZE_BITS << 1)) | ((long) size << SIZE_BITS) | rawLength;
+    }
+
+    /**
+     * Read a section back (each handle should only be read once)
+     * @param handle
+     * @return
+     * @throws IOException
+     */
+    public synchronized char[] read(long handle) throws IOException {
+        readRaw(handle, raw);
+        char[] section = new char[4096];
+        for (int i = 0, j = 0; i < 4096; i++, j += 2) {
+            section[i] = (char) (((raw[j] & 0xFF) << 8) | (raw[j + 1] & 0xFF));
+        }
+        return section;
+    }
+
+    /**
+     * Read some bytes back (each handle should only be read once)
+     * @param handle
+     * @return
+     * @throws IOException
+     */
+    public synchronized byte[] readBytes(long handle) throws IOException {
+        byte[] data = new byte[(int) (handle & SIZE_MASK)];
+        readRaw(handle, data);
+        return data;
+    }
+
+    private void readRaw(long handle, byte[] dest) throws IOException {
+        long offset = handle >>> (SIZE_BITS << 1);
+        int size = (int) ((handle >> SIZE_BITS) & SIZE_MASK);
+        int rawLength = (int) (handle & SIZE_MASK);
+        RandomAccessFile in = getFile();
+        in.seek(offset);
+        in.readFully(compressed, 0, size);
+        decompressor.decompress(compressed, 0, dest, 0, rawLength);
+        totalRead++;
+        if (--live <= 0) {
+            reset();
+        }
+    }
+
+    /**
+     * Forget a section which won't be read back
+     * @param handle
+     */
+    public synchronized void free(long handle) {
+        if (live > 0 && --live == 0) {
+            reset();
+        }
+    }
+
+    /**
+     * Discard everything in the file (e.g. once all the queues are done)
+     */
+    public synchronized void reset() {
+        live = 0;
+        length = 0;
+        if (raf != null) {
+            try {
+                raf.setLength(0);
+            } catch (IOException ignore) {}
+        }
+    }
+
+    public synchronized void close() {
+        live = 0;
+        length = 0;
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignore) {}
+            raf = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * Get the number of sections in the file which haven't been read back
+     * @return
+     */
+    public synchronized int getLiveSections() {
+        return live;
+    }
+
+    /**
+     * Get the size of the file in bytes
+     * @return
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    public synchronized long getTotalWritten() {
+        return totalWritten;
+    }
+
+    public synchronized long getTotalRead() {
+        return totalRead;
+    }
+}
@@ -0,0 +1,126 @@
+package com.boydti.fawe.object.io;
+
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.util.WorkerPool;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs the write tasks of a single stream in order, on the shared history writer threads<br>
+ *     - At most `maxPending` tasks are queued, after which submit blocks (backpressure)
+ *     - The first failure is thrown by the next submit / await, and later tasks are skipped
+ *     - With maxPending 0 the tasks run on the calling thread
+ */
+public class WritePipeline {
+
+    private static final WorkerPool POOL = new WorkerPool("FAWE History Writer");
+
+    private final ArrayDeque<Callable<?>> tasks = new ArrayDeque<>();
+    private final int maxPending;
+    private boolean running;
+    private volatile Throwable error;
+
+    public WritePipeline(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Create a pipeline for a history stream (synchronous if history.async-write is disabled)
+     * @return
+     */
+    public static WritePipeline create() {
+        return new WritePipeline(Settings.HISTORY_ASYNC_WRITE ? Math.max(1, Settings.HISTORY_WRITE_BUFFERS) : 0);
+    }
+
+    public boolean isAsync() {
+        return maxPending > 0;
+    }
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Callable<?> task;
+                synchronized (tasks) {
+                    task = tasks.peek();
+                    if (task == null) {
+                        running = false;
+                        tasks.notifyAll();
+                        return;
+                    }
+                }
+                if (error == null) {
+                    try {
+                        task.call();
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+                }
+                synchronized (tasks) {
+                    tasks.poll();
+                    tasks.notifyAll();
+                }
+            }
+        }
+    };
+
+    private void checkError() throws IOException {
+        Throwable e = error;
+        if (e != null) {
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * Queue a task, waiting if the pipeline is full
+     * @param task
+     * @throws IOException If an earlier task failed
+     */
+    public void submit(Callable<?> task) throws IOException {
+        if (maxPending <= 0) {
+            try {
+                task.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+        synchronized (tasks) {
+            checkError();
+            while (tasks.size() >= maxPending) {
+                waitForTasks();
+                checkError();
+            }
+            tasks.add(task);
+            if (!running) {
+                running = true;
+                POOL.get().execute(drain);
+            }
+        }
+    }
+
+    /**
+     * Wait until every queued task has run
+     * @throws IOException If a task failed
+     */
+    public void await() throws IOException {
+        synchronized (tasks) {
+            while (running || !tasks.isEmpty()) {
+                waitForTasks();
+            }
+        }
+        checkError();
+    }
+
+    private void waitForTasks() throws IOException {
+        try {
+            tasks.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.boydti.fawe.util;
+
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.example.MappedFaweQueue;
+import com.boydti.fawe.object.FaweChunk;
+import com.boydti.fawe.object.StageTimer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optimizes queued chunks off the main thread, and times each stage of a chunk<br>
+ *     - The chunks of a queue are split across a work stealing pool (sized by `queue.parallel-threads`, see {@link #optimize})
+ *     - The world is only read and written on the main thread (setComponents), the timers show how long that takes per chunk
+ */
+public class ChunkDispatcher {
+
+    public static final ChunkDispatcher IMP = new ChunkDispatcher();
+
+    /**
+     * Main thread time per chunk in setComponents
+     */
+    public final StageTimer setTimer = new StageTimer("set");
+
+    /**
+     * Main thread time per chunk running notify tasks
+     */
+    public final StageTimer notifyTimer = new StageTimer("notify");
+
+    /**
+     * Time per chunk in FaweChunk.optimize()
+     */
+    public final StageTimer optimizeTimer = new StageTimer("optimize");
+
+    /**
+     * The number of chunks handled by a single optimize task
+     */
+    public static final int OPTIMIZE_BATCH = 64;
+
+    private final AtomicInteger optimizeDepth = new AtomicInteger();
+    private final AtomicLong optimizeChunks = new AtomicLong();
+    private final AtomicLong optimizeWall = new AtomicLong();
+
+    private ForkJoinPool pool;
+
+    public StageTimer[] getTimers() {
+        return new StageTimer[] { optimizeTimer, setTimer, notifyTimer };
+    }
+
+    public void resetTimers() {
+        for (StageTimer timer : getTimers()) {
+            timer.reset();
+        }
+        optimizeChunks.set(0);
+        optimizeWall.set(0);
+    }
+
+    /**
+     * Get the number of chunks waiting to be optimized
+     * @return
+     */
+    public int getOptimizeQueueDepth() {
+        return optimizeDepth.get();
+    }
+
+    /**
+     * Get the optimize throughput (chunks per second of wall time spent in {@link #optimize})
+     * @return
+     */
+    public double getOptimizeThroughput() {
+        long wall = optimizeWall.get();
+        return wall == 0 ? 0 : (optimizeChunks.get() * 1000000000d) / wall;
+    }
+
+    /**
+     * Optimize the chunks of a queue on the pool, in batches of {@link #OPTIMIZE_BATCH}<br>
+     *     - Returns immediately (the chunks are optimized in the background, or until the queue is cleared)
+     *     - A chunk is locked while it's optimized, so it isn't dispatched half way through (@see MappedFaweQueue#execute)
+     * @param queue
+     * @param chunks
+     */
+    public void optimize(MappedFaweQueue queue, FaweChunk[] chunks) {
+        if (chunks.length == 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+        optimizeDepth.addAndGet(chunks.length);
+        final OptimizeTask task = new OptimizeTask(queue, queue.getGeneration(), chunks, 0, chunks.length);
+        getPool().execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    task.invoke();
+                } catch (Throwable e) {
+                    MainUtil.handleError(e);
+                } finally {
+                    // Chunks which were skipped (cancelled) are no longer waiting
+                    optimizeDepth.addAndGet(-task.remaining.get());
+                    optimizeWall.addAndGet(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    public synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(1, Settings.PARALLEL_THREADS));
+        }
+        return pool;
+    }
+
+    /**
+     * Replace the pool (and the other worker pools @see WorkerPool) the next time it's used (e.g. after `queue.parallel-threads` changed)<br>
+     *     - Tasks already on the old pool still finish
+     */
+    public synchronized void resetPool() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        WorkerPool.resetAll();
+    }
+
+    private class OptimizeTask extends RecursiveAction {
+        private final MappedFaweQueue queue;
+        private final int generation;
+        private final FaweChunk[] chunks;
+        private final int start;
+        private final int end;
+        private final AtomicInteger remaining;
+
+        public OptimizeTask(MappedFaweQueue queue, int generation, FaweChunk[] chunks, int start, int end) {
+            this(queue, generation, chunks, start, end, new AtomicInteger(end - start));
+        }
+
+        private OptimizeTask(MappedFaweQueue queue, int generation, FaweChunk[] chunks, int start, int end, AtomicInteger remaining) {
+            this.queue = queue;
+            this.generation = generation;
+            this.chunks = chunks;
+            this.start = start;
+            this.end = end;
+            this.remaining = remaining;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= OPTIMIZE_BATCH) {
+                for (int i = start; i < end; i++) {
+                    if (queue.getGeneration() != generation) {
+                        // Cancelled
+                        return;
+                    }
+                    long startTime = System.nanoTime();
+                    try {
+                        FaweChunk chunk = chunks[i];
+                        synchronized (chunk) {
+                            chunk.optimize();
+                        }
+                    } catch (Throwable e) {
+                        MainUtil.handleError(e);
+                    }
+                    optimizeTimer.stop(startTime);
+                    optimizeChunks.incrementAndGet();
+                    optimizeDepth.decrementAndGet();
+                    remaining.decrementAndGet();
+                }
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new OptimizeTask(queue, generation, chunks, start, mid, remaining), new OptimizeTask(queue, generation, chunks, mid, end, remaining));
+        }
+    }
+}
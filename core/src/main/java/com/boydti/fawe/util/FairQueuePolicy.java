@@ -0,0 +1,144 @@
+package com.boydti.fawe.util;
+
+import com.boydti.fawe.object.FawePlayer;
+import com.boydti.fawe.object.FaweQueue;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Deficit round robin between the owners of the active queues<br>
+ *     - Each round an owner is given `quantum * weight` chunks, where the weight is the `queue-weight` of their limit
+ *     - An owner's queues are dispatched oldest first, and their deficit is reset once that queue leaves the active set
+ *     - Selecting doesn't allocate (the rotation is reused between ticks)
+ *     - A small edit only waits for the other owners' shares of a round, no matter how large their edits are
+ */
+public class FairQueuePolicy extends QueuePolicy {
+
+    /**
+     * The default number of chunks an owner with a weight of 1 gets each round
+     */
+    public static final int QUANTUM = 4;
+
+    private final int quantum;
+
+    /**
+     * The owners in rotation order, and the same flows by owner
+     */
+    private final ArrayDeque<Flow> rotation = new ArrayDeque<>();
+    private final HashMap<String, Flow> flows = new HashMap<>();
+    private Flow current;
+    private int stamp;
+
+    private static class Flow {
+        private final String owner;
+        private final int weight;
+        private double deficit;
+        /**
+         * The oldest active queue of this owner
+         */
+        private FaweQueue head;
+        /**
+         * The selection this owner was last seen in
+         */
+        private int stamp;
+
+        public Flow(String owner, int weight) {
+            this.owner = owner;
+            this.weight = weight;
+        }
+    }
+
+    public FairQueuePolicy() {
+        this(QUANTUM);
+    }
+
+    public FairQueuePolicy(int quantum) {
+        this.quantum = Math.max(1, quantum);
+    }
+
+    /**
+     * Get the scheduling weight of a queue's owner
+     * @param queue
+     * @return
+     */
+    public int getWeight(FaweQueue queue) {
+        FawePlayer player = queue.getPlayer();
+        if (player == null) {
+            return 1;
+        }
+        return Math.max(1, player.getLimit().QUEUE_WEIGHT);
+    }
+
+    @Override
+    public synchronized FaweQueue select(List<FaweQueue> queues) {
+        if (queues.isEmpty()) {
+            rotation.clear();
+            flows.clear();
+            current = null;
+            return null;
+        }
+        int stamp = ++this.stamp;
+        // The oldest queue of each owner (new owners join at the back)
+        for (FaweQueue queue : queues) {
+            String owner = getOwner(queue);
+            Flow flow = flows.get(owner);
+            if (flow == null) {
+                flow = new Flow(owner, getWeight(queue));
+                flows.put(owner, flow);
+                rotation.add(flow);
+            } else if (flow.stamp == stamp) {
+                continue;
+            }
+            flow.stamp = stamp;
+            if (flow.head != queue) {
+                // The owner's previous queue left the active set, its unused share isn't carried over
+                if (flow.head != null) {
+                    flow.deficit = 0;
+                }
+                flow.head = queue;
+            }
+        }
+        // Owners with nothing queued leave the rotation (and lose their deficit)
+        for (int i = rotation.size(); i > 0; i--) {
+            Flow flow = rotation.poll();
+            if (flow.stamp == stamp) {
+                rotation.add(flow);
+            } else {
+                flows.remove(flow.owner);
+                if (flow == current) {
+                    current = null;
+                }
+            }
+        }
+        if (current != null && current.deficit >= 1) {
+            return current.head;
+        }
+        // Move to the next owner in the rotation
+        Flow next = rotation.poll();
+        rotation.add(next);
+        next.deficit += quantum * next.weight;
+        current = next;
+        return next.head;
+    }
+
+    @Override
+    public synchronized int getAllowance(FaweQueue queue, int max) {
+        Flow flow = flows.get(getOwner(queue));
+        if (flow == null) {
+            return max;
+        }
+        return Math.max(1, Math.min(max, (int) flow.deficit));
+    }
+
+    @Override
+    public void dispatched(FaweQueue queue, int chunks) {
+        super.dispatched(queue, chunks);
+        synchronized (this) {
+            Flow flow = flows.get(getOwner(queue));
+            if (flow != null) {
+                flow.deficit -= chunks;
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.boydti.fawe.util;
+
+import com.boydti.fawe.object.FaweQueue;
+import java.util.List;
+
+/**
+ * Dispatch queues in the order they were enqueued (each queue finishes before the next one starts)
+ */
+public class FifoQueuePolicy extends QueuePolicy {
+    @Override
+    public FaweQueue select(List<FaweQueue> queues) {
+        return queues.isEmpty() ? null : queues.get(0);
+    }
+}
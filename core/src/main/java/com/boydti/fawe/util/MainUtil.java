@@ -21,11 +21,15 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -441,6 +445,16 @@ public class MainUtil {
     }
 
     public static void deleteOlder(File directory, final long timeDiff) {
+        deleteOlder(directory, timeDiff, null);
+    }
+
+    /**
+     * Delete the files older than timeDiff
+     * @param directory
+     * @param timeDiff
+     * @param onDelete Called with each file which was deleted (may be null)
+     */
+    public static void deleteOlder(File directory, final long timeDiff, final RunnableVal<File> onDelete) {
         final long now = System.currentTimeMillis();
         iterateFiles(directory, new RunnableVal<File>() {
             @Override
@@ -448,12 +462,51 @@ public class MainUtil {
                 long age = now - file.lastModified();
                 if (age > timeDiff) {
                     Fawe.debug("Deleting file: " + file);
-                    file.delete();
+                    if (file.delete() && onDelete != null) {
+                        onDelete.run(file);
+                    }
                 }
             }
         });
     }
     
+    /**
+     * Map a file (read only)
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MappedByteBuffer mapFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Release a mapped buffer now, rather than when it's garbage collected<br>
+     *     - Windows can't delete a file while it's mapped
+     *     - The buffer must not be used afterwards
+     * @param buffer
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            Method getCleaner = buffer.getClass().getMethod("cleaner");
+            getCleaner.setAccessible(true);
+            Object cleaner = getCleaner.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Throwable ignore) {
+            // It'll be unmapped when it's garbage collected
+        }
+    }
+
     public static boolean deleteDirectory(File directory) {
         if (directory.exists()) {
             File[] files = directory.listFiles();
@@ -151,6 +151,18 @@ public class MathMan {
         return (short) (hash & 0xFFFF);
     }
 
+    public static long pairInt(int x, int y) {
+        return (((long) x) << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    public static int unpairIntX(long pair) {
+        return (int) (pair >> 32);
+    }
+
+    public static int unpairIntY(long pair) {
+        return (int) pair;
+    }
+
     /**
      * Returns [x, y, z]
      * @param yaw
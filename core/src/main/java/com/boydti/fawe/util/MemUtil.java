@@ -1,35 +1,48 @@
 package com.boydti.fawe.util;
 
-import com.boydti.fawe.config.Settings;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Memory is `limited` while the {@link MemoryMonitor} is at {@link MemoryMonitor.Level#CRITICAL}
+ */
 public class MemUtil {
 
-    private static AtomicBoolean memory = new AtomicBoolean(false);
+    static {
+        MemoryMonitor.IMP.subscribe(new MemoryMonitor.Listener() {
+            @Override
+            public void onLevelChange(MemoryMonitor.Level previous, MemoryMonitor.Level level, double headroom) {
+                if (level == MemoryMonitor.Level.CRITICAL) {
+                    for (Runnable task : memoryLimitedTasks) {
+                        task.run();
+                    }
+                } else if (previous == MemoryMonitor.Level.CRITICAL) {
+                    for (Runnable task : memoryPlentifulTasks) {
+                        task.run();
+                    }
+                }
+            }
+        });
+    }
 
     public static boolean isMemoryFree() {
-        return !memory.get();
+        return !isMemoryLimited();
     }
 
     public static boolean isMemoryLimited() {
-        return memory.get();
+        return MemoryMonitor.IMP.getLevel() == MemoryMonitor.Level.CRITICAL;
     }
 
+    /**
+     * Get the percentage of the heap which was free after the last GC
+     * @return The percentage, or Integer.MAX_VALUE if there is no memory pressure
+     */
     public static int calculateMemory() {
-        final long heapSize = Runtime.getRuntime().totalMemory();
-        final long heapMaxSize = Runtime.getRuntime().maxMemory();
-        if (heapSize < heapMaxSize) {
-            return Integer.MAX_VALUE;
-        }
-        final long heapFreeSize = Runtime.getRuntime().freeMemory();
-        final int size = (int) ((heapFreeSize * 100) / heapMaxSize);
-        if (size > (100 - Settings.MEM_FREE)) {
-            memoryPlentifulTask();
+        MemoryMonitor.IMP.poll();
+        if (MemoryMonitor.IMP.getLevel() == MemoryMonitor.Level.NORMAL) {
             return Integer.MAX_VALUE;
         }
-        return size;
+        return (int) (MemoryMonitor.IMP.getHeadroom() * 100);
     }
 
     private static BlockingQueue<Runnable> memoryLimitedTasks = new LinkedBlockingQueue<>();
@@ -46,16 +59,10 @@ public class MemUtil {
     }
 
     public static void memoryLimitedTask() {
-        for (Runnable task : memoryLimitedTasks) {
-            task.run();
-        }
-        memory.set(true);
+        MemoryMonitor.IMP.setLevel(MemoryMonitor.Level.CRITICAL);
     }
 
     public static void memoryPlentifulTask() {
-        for (Runnable task : memoryPlentifulTasks) {
-            task.run();
-        }
-        memory.set(false);
+        MemoryMonitor.IMP.setLevel(MemoryMonitor.Level.NORMAL);
     }
 }
@@ -0,0 +1,240 @@
+package com.boydti.fawe.util;
+
+import com.boydti.fawe.config.Settings;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Tracks heap usage after garbage collection and publishes it as a pressure level<br>
+ *     - The level is only re-evaluated after a GC (or a collection usage threshold notification), so allocation spikes which the GC can clear don't change it
+ *     - A level is entered at its threshold and only left once usage drops {@link Settings#MEM_HYSTERESIS} percent below it
+ *     - {@link #getHeadroom()} is the fraction of the heap still free after the last GC (1 = empty, 0 = full)
+ */
+public class MemoryMonitor {
+
+    public static final MemoryMonitor IMP = new MemoryMonitor();
+
+    /**
+     * The thresholds are (in percent of the heap used after GC):<br>
+     *     - CRITICAL: `max-memory-percent`
+     *     - HIGH: `max-memory-percent - memory.step`
+     *     - ELEVATED: `max-memory-percent - 2 * memory.step`
+     */
+    public enum Level {
+        NORMAL,
+        ELEVATED,
+        HIGH,
+        CRITICAL;
+
+        public boolean isAtLeast(Level other) {
+            return ordinal() >= other.ordinal();
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called when the pressure level changes (from the thread which noticed the change)
+         * @param previous
+         * @param level
+         * @param headroom
+         */
+        void onLevelChange(Level previous, Level level, double headroom);
+    }
+
+    /**
+     * The type of the notification sent by the HotSpot GC beans (com.sun.management.GarbageCollectionNotificationInfo)
+     */
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+
+    private volatile Level level = Level.NORMAL;
+    private volatile double headroom = 1;
+    private volatile boolean started;
+    private long lastPoll;
+
+    private MemoryMonitor() {}
+
+    /**
+     * Register for collection usage thresholds and GC notifications
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            long max = pool.getUsage().getMax();
+            if (max <= 0) {
+                continue;
+            }
+            pool.setCollectionUsageThreshold((max * getThreshold(Level.ELEVATED)) / 100);
+            pools.add(pool);
+        }
+        NotificationListener listener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                update();
+            }
+        };
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(new NotificationListener() {
+                    @Override
+                    public void handleNotification(Notification notification, Object handback) {
+                        if (GC_NOTIFICATION.equals(notification.getType())) {
+                            update();
+                        }
+                    }
+                }, null, null);
+            }
+        }
+        started = true;
+        update();
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Re-evaluate the level at most once per second (for JVMs which don't send GC notifications)
+     */
+    public void poll() {
+        long now = System.currentTimeMillis();
+        if (now - lastPoll < 1000) {
+            return;
+        }
+        lastPoll = now;
+        update();
+    }
+
+    /**
+     * Sample the heap usage after the last GC and update the level
+     */
+    public void update() {
+        if (Settings.MEM_FREE < 1) {
+            return;
+        }
+        long used = 0;
+        long max = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null || usage.getMax() <= 0) {
+                continue;
+            }
+            used += usage.getUsed();
+            max += usage.getMax();
+        }
+        if (max <= 0) {
+            Runtime runtime = Runtime.getRuntime();
+            max = runtime.maxMemory();
+            used = runtime.totalMemory() - runtime.freeMemory();
+        }
+        update(Math.max(0, Math.min(1, 1 - (double) used / max)));
+    }
+
+    /**
+     * Update the level from a headroom value
+     * @param headroom The fraction of the heap which is free
+     */
+    public synchronized void update(double headroom) {
+        this.headroom = headroom;
+        int percent = (int) Math.round((1 - headroom) * 100);
+        Level next = level;
+        // Escalate (possibly several levels at once)
+        while (next != Level.CRITICAL && percent >= getThreshold(Level.values()[next.ordinal() + 1])) {
+            next = Level.values()[next.ordinal() + 1];
+        }
+        // De-escalate once below the threshold by the hysteresis
+        while (next != Level.NORMAL && percent < getThreshold(next) - Settings.MEM_HYSTERESIS) {
+            next = Level.values()[next.ordinal() - 1];
+        }
+        setLevel(next);
+    }
+
+    /**
+     * Get the percentage of the heap (used after GC) at which a level is entered
+     * @param level
+     * @return
+     */
+    public int getThreshold(Level level) {
+        int critical = (int) Settings.MEM_FREE;
+        int step = Math.max(1, Settings.MEM_STEP);
+        switch (level) {
+            case NORMAL:
+                return 0;
+            case ELEVATED:
+                return Math.max(1, critical - step * 2);
+            case HIGH:
+                return Math.max(1, critical - step);
+            case CRITICAL:
+            default:
+                return critical;
+        }
+    }
+
+    /**
+     * Set the level directly (e.g. after an OutOfMemoryError) and notify the listeners if it changed
+     * @param level
+     */
+    public void setLevel(Level level) {
+        Level previous;
+        synchronized (this) {
+            previous = this.level;
+            if (previous == level) {
+                return;
+            }
+            this.level = level;
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.onLevelChange(previous, level, headroom);
+            } catch (Throwable e) {
+                MainUtil.handleError(e);
+            }
+        }
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public boolean isAtLeast(Level level) {
+        return this.level.isAtLeast(level);
+    }
+
+    /**
+     * Get the fraction of the heap which was free after the last GC
+     * @return 0 to 1
+     */
+    public double getHeadroom() {
+        return headroom;
+    }
+
+    public void subscribe(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void unsubscribe(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public String toString() {
+        return "memory: " + level + " (" + Math.round(headroom * 100) + "% headroom)";
+    }
+}
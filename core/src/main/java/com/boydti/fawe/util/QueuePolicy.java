@@ -0,0 +1,105 @@
+package com.boydti.fawe.util;
+
+import com.boydti.fawe.object.FawePlayer;
+import com.boydti.fawe.object.FaweQueue;
+import com.boydti.fawe.object.QueueStats;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which active queue the SetQueue dispatches chunks from<br>
+ *     - {@link #select} picks a queue, {@link #getAllowance} limits how many chunks it gets before the next selection
+ *     - Wait times (enqueue -> first chunk) and chunk counts are recorded per owner
+ * @see FifoQueuePolicy
+ * @see FairQueuePolicy
+ */
+public abstract class QueuePolicy {
+
+    public static final String CONSOLE = "#console";
+
+    private final ConcurrentHashMap<String, QueueStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Create the policy set in the config (`queue.policy`)
+     * @param name fifo or fair
+     * @return
+     */
+    public static QueuePolicy create(String name) {
+        switch (name == null ? "" : name.toLowerCase()) {
+            case "fair":
+                return new FairQueuePolicy();
+            case "fifo":
+            default:
+                return new FifoQueuePolicy();
+        }
+    }
+
+    /**
+     * Get the owner used to group queues
+     * @param queue
+     * @return The player's name, or {@link #CONSOLE}
+     */
+    public static String getOwner(FaweQueue queue) {
+        FawePlayer player = queue.getPlayer();
+        return player == null ? CONSOLE : player.getName();
+    }
+
+    /**
+     * Select the next queue to dispatch chunks from
+     * @param queues The active queues with chunks, in the order they were enqueued
+     * @return The queue, or null
+     */
+    public abstract FaweQueue select(List<FaweQueue> queues);
+
+    /**
+     * Get the number of chunks the selected queue may dispatch before a queue is selected again
+     * @param queue
+     * @param max The chunks left in this tick
+     * @return
+     */
+    public int getAllowance(FaweQueue queue, int max) {
+        return max;
+    }
+
+    /**
+     * Called after chunks were dispatched from a queue
+     * @param queue
+     * @param chunks
+     */
+    public void dispatched(FaweQueue queue, int chunks) {
+        if (chunks <= 0) {
+            return;
+        }
+        QueueStats owner = getStats(getOwner(queue));
+        long enqueued = queue.getEnqueued();
+        if (enqueued != 0) {
+            queue.setEnqueued(0);
+            owner.addWait(System.currentTimeMillis() - enqueued);
+        }
+        owner.addChunks(chunks);
+    }
+
+    public QueueStats getStats(String owner) {
+        QueueStats value = stats.get(owner);
+        if (value == null) {
+            QueueStats existing = stats.putIfAbsent(owner, value = new QueueStats(owner));
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Get the wait time statistics for each owner
+     * @return
+     */
+    public List<QueueStats> getStats() {
+        return new ArrayList<>(stats.values());
+    }
+
+    public void resetStats() {
+        stats.clear();
+    }
+}
@@ -2,12 +2,16 @@ package com.boydti.fawe.util;
 
 import com.boydti.fawe.Fawe;
 import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.example.MappedFaweQueue;
 import com.boydti.fawe.object.FaweChunk;
 import com.boydti.fawe.object.FaweQueue;
 import com.boydti.fawe.object.RunnableVal2;
+import com.boydti.fawe.object.io.SectionSwap;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SetQueue {
 
@@ -27,17 +31,45 @@ public class SetQueue {
      * Used to calculate elapsed time in milliseconds and ensure block placement doesn't lag the server
      */
     private long last;
-    private long secondLast;
     private long lastSuccess;
-    
+
+    /**
+     * Decides how many chunks to apply each tick
+     */
+    private final TickBudget budget = new TickBudget();
+
+    /**
+     * Queued chunks are spilled here when memory is low
+     */
+    private volatile SectionSwap swap;
+    private final AtomicBoolean spilling = new AtomicBoolean();
+    private volatile int lastSpilled = -1;
+
+    /**
+     * Decides which queue to dispatch from
+     */
+    private volatile QueuePolicy policy;
+
     /**
      * A queue of tasks that will run when the queue is empty
      */
     private final LinkedBlockingDeque<Runnable> runnables = new LinkedBlockingDeque<>();
 
+    /**
+     * The number of chunks dispatched by the last SET_TASK run
+     */
+    private int dispatched;
+
+    /**
+     * The most chunks SET_TASK may dispatch (value1 is the time limit in ms)
+     */
+    private int limit;
+
     private final RunnableVal2<Long, FaweQueue> SET_TASK = new RunnableVal2<Long, FaweQueue>() {
         @Override
         public void run(Long free, FaweQueue queue) {
+            dispatched = 0;
+            long start = System.currentTimeMillis();
             do {
                 final FaweChunk<?> current = queue.next();
                 if (current == null) {
@@ -47,25 +79,44 @@ public class SetQueue {
                     }
                     return;
                 }
-            } while (((SetQueue.this.secondLast = System.currentTimeMillis()) - SetQueue.this.last) < free);
+                dispatched++;
+            } while (dispatched < limit && System.currentTimeMillis() - start < free);
         }
     };
 
     public SetQueue() {
         activeQueues = new LinkedBlockingDeque();
         inactiveQueues = new LinkedBlockingDeque<>();
+        MemoryMonitor.IMP.subscribe(new MemoryMonitor.Listener() {
+            @Override
+            public void onLevelChange(MemoryMonitor.Level previous, MemoryMonitor.Level level, double headroom) {
+                if (level == MemoryMonitor.Level.NORMAL) {
+                    // Allow spilling again next time
+                    lastSpilled = -1;
+                }
+            }
+        });
         TaskManager.IMP.repeat(new Runnable() {
             @Override
             public void run() {
+                last = System.currentTimeMillis();
+                long tickStart = System.nanoTime();
                 if (inactiveQueues.size() == 0 && activeQueues.size() == 0) {
                     lastSuccess = System.currentTimeMillis();
+                    if (swap != null && swap.getLength() != 0) {
+                        swap.reset();
+                    }
                     tasks();
                     return;
                 }
-                if (!MemUtil.isMemoryFree()) {
-                    final int mem = MemUtil.calculateMemory();
-                    if (mem != Integer.MAX_VALUE) {
-                        if ((mem <= 1) && Settings.ENABLE_HARD_LIMIT) {
+                MemoryMonitor monitor = MemoryMonitor.IMP;
+                monitor.poll();
+                if (monitor.isAtLeast(MemoryMonitor.Level.ELEVATED)) {
+                    // Elevated: spill what we can and keep going
+                    // High / Critical: when there is nothing left to spill, force chunks out (and cancel everything as a last resort)
+                    boolean spilled = Settings.QUEUE_SPILL && spill();
+                    if (!spilled && monitor.isAtLeast(MemoryMonitor.Level.HIGH)) {
+                        if (monitor.isAtLeast(MemoryMonitor.Level.CRITICAL) && monitor.getHeadroom() <= 0.01 && Settings.ENABLE_HARD_LIMIT) {
                             for (FaweQueue queue : getAllQueues()) {
                                 queue.saveMemory();
                             }
@@ -79,45 +130,130 @@ public class SetQueue {
                         return;
                     }
                 }
-                SET_TASK.value1 = Settings.ALLOCATE + 50 + Math.min((50 + SetQueue.this.last) - (SetQueue.this.last = System.currentTimeMillis()), SetQueue.this.secondLast - System.currentTimeMillis());
-                SET_TASK.value2 = getNextQueue();
-                if (SET_TASK.value2 == null) {
-                    return;
-                }
-                if (Thread.currentThread() != Fawe.get().getMainThread()) {
-                    throw new IllegalStateException("This shouldn't be possible for placement to occur off the main thread");
-                }
-                // Disable the async catcher as it can't discern async vs parallel
-                SET_TASK.value2.startSet(true);
+                int chunks = budget.startTick(tickStart);
+                long timeLimit = budget.getTimeLimit();
+                QueuePolicy policy = getQueuePolicy();
+                long start = System.nanoTime();
+                int total = 0;
                 try {
-                    if (Settings.PARALLEL_THREADS <= 1) {
-                        SET_TASK.run();
-                    } else {
-                        ArrayList<Thread> threads = new ArrayList<Thread>();
-                        for (int i = 0; i < Settings.PARALLEL_THREADS; i++) {
-                            threads.add(new Thread(SET_TASK));
+                    while (total < chunks) {
+                        long elapsed = (System.nanoTime() - start) / 1000000;
+                        if (elapsed >= timeLimit) {
+                            break;
+                        }
+                        SET_TASK.value1 = timeLimit - elapsed;
+                        SET_TASK.value2 = getNextQueue();
+                        if (SET_TASK.value2 == null) {
+                            return;
                         }
-                        for (Thread thread : threads) {
-                            thread.start();
+                        if (Thread.currentThread() != Fawe.get().getMainThread()) {
+                            throw new IllegalStateException("This shouldn't be possible for placement to occur off the main thread");
                         }
-                        for (Thread thread : threads) {
-                            try {
-                                thread.join();
-                            } catch (InterruptedException e) {
-                                MainUtil.handleError(e);
-                            }
+                        limit = policy.getAllowance(SET_TASK.value2, chunks - total);
+                        // Disable the async catcher as it can't discern async vs parallel
+                        SET_TASK.value2.startSet(true);
+                        try {
+                            SET_TASK.run();
+                        } catch (Throwable e) {
+                            MainUtil.handleError(e);
+                        } finally {
+                            // Enable it again (note that we are still on the main thread)
+                            SET_TASK.value2.endSet(true);
+                        }
+                        policy.dispatched(SET_TASK.value2, dispatched);
+                        total += dispatched;
+                        if (dispatched == 0) {
+                            break;
                         }
                     }
-                } catch (Throwable e) {
-                    MainUtil.handleError(e);
                 } finally {
-                    // Enable it again (note that we are still on the main thread)
-                    SET_TASK.value2.endSet(true);
+                    long end = System.nanoTime();
+                    budget.endTick(total, end - start, end);
                 }
             }
         }, 1);
     }
 
+    /**
+     * Spill the chunks of the active queues to disk (async), so edits can continue while memory is low<br>
+     *     - Only queues whose edit has finished are spilled
+     *     - The chunks needed for the next couple of ticks are kept in memory
+     * @return false if there is nothing left to spill
+     */
+    private boolean spill() {
+        final ArrayList<MappedFaweQueue> queues = new ArrayList<>();
+        for (FaweQueue queue : activeQueues) {
+            if (queue instanceof MappedFaweQueue && ((MappedFaweQueue) queue).isFinished()) {
+                queues.add((MappedFaweQueue) queue);
+            }
+        }
+        if (queues.isEmpty()) {
+            return false;
+        }
+        if (spilling.compareAndSet(false, true)) {
+            TaskManager.IMP.async(new Runnable() {
+                @Override
+                public void run() {
+                    int amount = 0;
+                    try {
+                        int keep = budget.getChunksPerTick() << 1;
+                        SectionSwap swap = getSwap();
+                        for (MappedFaweQueue queue : queues) {
+                            amount += queue.spill(swap, keep);
+                        }
+                    } catch (Throwable e) {
+                        MainUtil.handleError(e);
+                    } finally {
+                        lastSpilled = amount;
+                        spilling.set(false);
+                    }
+                }
+            });
+            return true;
+        }
+        return lastSpilled != 0;
+    }
+
+    /**
+     * Get the scratch file queued chunks are spilled to
+     * @return
+     */
+    public synchronized SectionSwap getSwap() {
+        if (swap == null) {
+            swap = new SectionSwap(new File(Fawe.imp().getDirectory(), "swap" + File.separator + "queue.swap"));
+        }
+        return swap;
+    }
+
+    /**
+     * Get the policy which decides which queue chunks are dispatched from
+     * @return
+     */
+    public QueuePolicy getQueuePolicy() {
+        QueuePolicy value = policy;
+        if (value == null) {
+            synchronized (this) {
+                if (policy == null) {
+                    policy = QueuePolicy.create(Settings.QUEUE_POLICY);
+                }
+                value = policy;
+            }
+        }
+        return value;
+    }
+
+    public void setQueuePolicy(QueuePolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Get the scheduler which decides how many chunks are applied each tick
+     * @return
+     */
+    public TickBudget getTickBudget() {
+        return budget;
+    }
+
     public QueueStage getStage(FaweQueue queue) {
         if (activeQueues.contains(queue)) {
             return QueueStage.ACTIVE;
@@ -143,6 +279,7 @@ public class SetQueue {
         inactiveQueues.remove(queue);
         if (queue.size() > 0 && !activeQueues.contains(queue)) {
             queue.optimize();
+            queue.setEnqueued(System.currentTimeMillis());
             activeQueues.add(queue);
         }
     }
@@ -178,6 +315,7 @@ public class SetQueue {
     public void flush(FaweQueue queue) {
         SET_TASK.value1 = Long.MAX_VALUE;
         SET_TASK.value2 = queue;
+        limit = Integer.MAX_VALUE;
         if (SET_TASK.value2 == null) {
             return;
         }
@@ -187,24 +325,7 @@ public class SetQueue {
         // Disable the async catcher as it can't discern async vs parallel
         SET_TASK.value2.startSet(true);
         try {
-            if (Settings.PARALLEL_THREADS <= 1) {
-                SET_TASK.run();
-            } else {
-                ArrayList<Thread> threads = new ArrayList<Thread>();
-                for (int i = 0; i < Settings.PARALLEL_THREADS; i++) {
-                    threads.add(new Thread(SET_TASK));
-                }
-                for (Thread thread : threads) {
-                    thread.start();
-                }
-                for (Thread thread : threads) {
-                    try {
-                        thread.join();
-                    } catch (InterruptedException e) {
-                        MainUtil.handleError(e);
-                    }
-                }
-            }
+            SET_TASK.run();
         } catch (Throwable e) {
             MainUtil.handleError(e);
         } finally {
@@ -215,13 +336,19 @@ public class SetQueue {
     }
 
     public FaweQueue getNextQueue() {
-        while (activeQueues.size() > 0) {
-            FaweQueue queue = activeQueues.peek();
-            if (queue != null && queue.size() > 0) {
+        if (activeQueues.size() > 0) {
+            ArrayList<FaweQueue> queues = new ArrayList<>(activeQueues.size());
+            for (FaweQueue queue : activeQueues) {
+                if (queue.size() > 0) {
+                    queues.add(queue);
+                } else {
+                    activeQueues.remove(queue);
+                }
+            }
+            FaweQueue queue = getQueuePolicy().select(queues);
+            if (queue != null) {
                 queue.setModified(System.currentTimeMillis());
                 return queue;
-            } else {
-                activeQueues.poll();
             }
         }
         if (inactiveQueues.size() > 0) {
@@ -0,0 +1,176 @@
+package com.boydti.fawe.util;
+
+import com.boydti.fawe.config.Settings;
+
+/**
+ * Decides how many chunks the SetQueue should apply each tick<br>
+ *     - Measures the tick duration (from the start of the tick to the end of the queue run, plus any time the server ran behind) and the main thread cost of applying a chunk
+ *     - While ticks are within `queue.target-mspt` the budget grows, and when they take longer it shrinks by the overshoot
+ *     - The number of chunks per tick is the budget divided by the average chunk cost (at least one, so edits always progress)
+ */
+public class TickBudget {
+
+    public static enum Decision {
+        GROW, SHRINK, HOLD;
+    }
+
+    /**
+     * The smallest budget (ms) the scheduler will shrink to
+     */
+    public static final double MIN_BUDGET = 1;
+
+    /**
+     * Ticks longer than this (ms) are treated as a pause (e.g. world save, no queues) and ignored
+     */
+    private static final long MAX_INTERVAL = 1000;
+
+    /**
+     * The length (ms) of a tick when the server isn't behind
+     */
+    private static final long TICK_LENGTH = 50;
+
+    private static final double SMOOTHING = 0.2;
+
+    private long lastTick;
+    private double lastDuration = -1;
+    private double tickTime = 50;
+    private double chunkCost = 1;
+    private double budget = 10;
+    private int chunksPerTick = 1;
+    private Decision decision = Decision.HOLD;
+
+    private int lastChunks;
+    private long lastNanos;
+    private long grows;
+    private long shrinks;
+
+    /**
+     * Called at the start of each tick
+     * @param now System.nanoTime()
+     * @return The number of chunks to apply this tick
+     */
+    public synchronized int startTick(long now) {
+        if (lastTick != 0 && lastDuration >= 0) {
+            double interval = (now - lastTick) / 1000000d;
+            if (interval <= MAX_INTERVAL) {
+                // The time between ticks is never shorter than a tick (the server sleeps), so only the part over a tick counts as the rest of the tick
+                double duration = lastDuration + Math.max(0, interval - TICK_LENGTH);
+                tickTime += (duration - tickTime) * SMOOTHING;
+            }
+        }
+        lastTick = now;
+        lastDuration = -1;
+        double target = getTargetMspt();
+        double max = getMaxBudget();
+        if (tickTime > target) {
+            budget = Math.max(MIN_BUDGET, budget - (tickTime - target));
+            decision = Decision.SHRINK;
+            shrinks++;
+        } else if (budget < max) {
+            budget = Math.min(max, budget * 1.1 + 0.5);
+            decision = Decision.GROW;
+            grows++;
+        } else {
+            budget = max;
+            decision = Decision.HOLD;
+        }
+        chunksPerTick = Math.max(1, (int) (budget / chunkCost));
+        return chunksPerTick;
+    }
+
+    /**
+     * Called after the chunks for this tick have been applied
+     * @param chunks The number of chunks applied
+     * @param nanos The time it took
+     * @param now System.nanoTime()
+     */
+    public synchronized void endTick(int chunks, long nanos, long now) {
+        if (lastTick != 0) {
+            lastDuration = (now - lastTick) / 1000000d;
+        }
+        lastChunks = chunks;
+        lastNanos = nanos;
+        if (chunks > 0) {
+            double cost = (nanos / 1000000d) / chunks;
+            chunkCost += (cost - chunkCost) * SMOOTHING;
+        }
+    }
+
+    /**
+     * Get the most time (ms) to spend applying chunks in a tick, even if the chunks are slower than expected
+     * @return
+     */
+    public synchronized long getTimeLimit() {
+        return Math.max(1, (long) budget);
+    }
+
+    public int getTargetMspt() {
+        return Settings.QUEUE_TARGET_MSPT;
+    }
+
+    /**
+     * The largest budget (ms) - the target tick time, plus `queue.extra-time-ms`
+     * @return
+     */
+    public double getMaxBudget() {
+        return Math.max(MIN_BUDGET, getTargetMspt() + Settings.ALLOCATE);
+    }
+
+    /**
+     * The average tick duration (ms), excluding the time the server sleeps between ticks
+     * @return
+     */
+    public synchronized double getTickTime() {
+        return tickTime;
+    }
+
+    /**
+     * The average main thread cost (ms) of applying a chunk
+     * @return
+     */
+    public synchronized double getChunkCost() {
+        return chunkCost;
+    }
+
+    /**
+     * The time (ms) currently allowed for applying chunks each tick
+     * @return
+     */
+    public synchronized double getBudget() {
+        return budget;
+    }
+
+    public synchronized int getChunksPerTick() {
+        return chunksPerTick;
+    }
+
+    public synchronized Decision getDecision() {
+        return decision;
+    }
+
+    public synchronized int getLastChunks() {
+        return lastChunks;
+    }
+
+    public synchronized long getLastNanos() {
+        return lastNanos;
+    }
+
+    public synchronized long getGrowCount() {
+        return grows;
+    }
+
+    public synchronized long getShrinkCount() {
+        return shrinks;
+    }
+
+    public synchronized void reset() {
+        grows = 0;
+        shrinks = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "scheduler: " + decision + " " + chunksPerTick + " chunks/tick (budget " + Math.round(budget * 10) / 10d + "ms, tick " + Math.round(tickTime * 10) / 10d + "/" + getTargetMspt() + "ms, chunk " + Math.round(chunkCost * 100) / 100d + "ms, last " + lastChunks + " in " + (lastNanos / 1000) / 1000d + "ms)";
+    }
+}
@@ -0,0 +1,64 @@
+package com.boydti.fawe.util;
+
+import com.boydti.fawe.config.Settings;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of daemon threads, sized by `queue.parallel-threads` and created when it's first used<br>
+ *     - Every pool is replaced on reload (@see ChunkDispatcher#resetPool), tasks already submitted still finish
+ *     - Call {@link #get()} for each submit rather than keeping the executor, so nothing is submitted to a pool which was shut down
+ */
+public class WorkerPool {
+
+    private static final List<WorkerPool> POOLS = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+    private ExecutorService executor;
+
+    /**
+     * @param name The prefix of the thread names
+     */
+    public WorkerPool(String name) {
+        this.name = name;
+        POOLS.add(this);
+    }
+
+    public synchronized ExecutorService get() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Math.max(1, Settings.PARALLEL_THREADS), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Replace the pool the next time it's used
+     */
+    public synchronized void reset() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Replace every pool the next time it's used (e.g. after `queue.parallel-threads` changed)
+     */
+    public static void resetAll() {
+        for (WorkerPool pool : POOLS) {
+            pool.reset();
+        }
+    }
+}
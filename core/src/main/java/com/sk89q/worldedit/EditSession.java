@@ -34,6 +34,8 @@ import com.boydti.fawe.object.RunnableVal;
 import com.boydti.fawe.object.changeset.CPUOptimizedChangeSet;
 import com.boydti.fawe.object.changeset.DiskStorageHistory;
 import com.boydti.fawe.object.changeset.FaweChangeSet;
+import com.boydti.fawe.object.changeset.FaweChangeSetExecutor;
+import com.boydti.fawe.object.changeset.FaweStreamChangeSet;
 import com.boydti.fawe.object.changeset.MemoryOptimizedHistory;
 import com.boydti.fawe.object.exception.FaweException;
 import com.boydti.fawe.object.extent.FastWorldEditExtent;
@@ -44,6 +46,7 @@ import com.boydti.fawe.object.extent.ProcessedWEExtent;
 import com.boydti.fawe.object.progress.DefaultProgressTracker;
 import com.boydti.fawe.util.MainUtil;
 import com.boydti.fawe.util.MemUtil;
+import com.boydti.fawe.util.MemoryMonitor;
 import com.boydti.fawe.util.Perm;
 import com.boydti.fawe.util.SetQueue;
 import com.boydti.fawe.util.TaskManager;
@@ -257,7 +260,7 @@ public class EditSession implements Extent {
             extent = this.wrapExtent(extent, eventBus, event, Stage.BEFORE_REORDER);
             // History
             if (Settings.CONSOLE_HISTORY) {
-                this.changeSet = Settings.STORE_HISTORY_ON_DISK ? new DiskStorageHistory(world, CONSOLE) : (Settings.COMBINE_HISTORY_STAGE && Settings.COMPRESSION_LEVEL == 0) ? new CPUOptimizedChangeSet(world) : new MemoryOptimizedHistory(world);
+                this.changeSet = (Settings.STORE_HISTORY_ON_DISK || MemoryMonitor.IMP.isAtLeast(MemoryMonitor.Level.HIGH)) ? new DiskStorageHistory(world, CONSOLE) : (Settings.COMBINE_HISTORY_STAGE && Settings.COMPRESSION_LEVEL == 0) ? new CPUOptimizedChangeSet(world) : new MemoryOptimizedHistory(world);
                 if (Settings.COMBINE_HISTORY_STAGE) {
                     changeSet.addChangeTask(queue);
                 } else {
@@ -279,6 +282,7 @@ public class EditSession implements Extent {
         this.fastmode = session.hasFastMode();
         boolean bypass = fp.hasWorldEditBypass();
         this.queue = SetQueue.IMP.getNewQueue(Fawe.imp().getWorldName(world), bypass, true);
+        queue.setPlayer(fp);
         queue.setProgressTracker(new DefaultProgressTracker(fp));
         if (bypass) {
             queue.addEditSession(this);
@@ -343,7 +347,7 @@ public class EditSession implements Extent {
         extent = this.wrapExtent(extent, eventBus, event, Stage.BEFORE_REORDER);
 
         // History
-        this.changeSet = Settings.STORE_HISTORY_ON_DISK ? new DiskStorageHistory(world, actor.getUniqueId()) : (Settings.COMBINE_HISTORY_STAGE && Settings.COMPRESSION_LEVEL == 0) ? new CPUOptimizedChangeSet(world) : new MemoryOptimizedHistory(world);
+        this.changeSet = (Settings.STORE_HISTORY_ON_DISK || MemoryMonitor.IMP.isAtLeast(MemoryMonitor.Level.HIGH)) ? new DiskStorageHistory(world, actor.getUniqueId()) : (Settings.COMBINE_HISTORY_STAGE && Settings.COMPRESSION_LEVEL == 0) ? new CPUOptimizedChangeSet(world) : new MemoryOptimizedHistory(world);
         this.changeSet = this.wrapper.wrapChangeSet(this, limit, extent, this.changeSet, queue, fp);
         if (Settings.COMBINE_HISTORY_STAGE) {
             changeSet.addChangeTask(queue);
@@ -384,6 +388,14 @@ public class EditSession implements Extent {
         return regionExtent;
     }
 
+    /**
+     * Get the limit (changes, fails, tiles, entities) remaining for this edit
+     * @return
+     */
+    public FaweLimit getLimit() {
+        return limit;
+    }
+
     /**
      * Get the actor
      * @return
@@ -901,13 +913,20 @@ public class EditSession implements Extent {
         final UndoContext context = new UndoContext();
         context.setExtent(editSession.primaryExtent);
         editSession.getQueue().setChangeTask(null);
-        Operations.completeSmart(ChangeSetExecutor.createUndo(this.changeSet, context), new Runnable() {
+        Operation executor;
+        if (this.changeSet instanceof FaweStreamChangeSet && editSession.primaryExtent instanceof FastWorldEditExtent) {
+            // Decode the records straight into the queue
+            executor = FaweChangeSetExecutor.createUndo((FaweStreamChangeSet) this.changeSet, editSession);
+        } else {
+            executor = ChangeSetExecutor.createUndo(this.changeSet, context);
+        }
+        Operations.completeSmart(executor, new Runnable() {
             @Override
             public void run() {
                 editSession.flushQueue();
             }
         }, true);
-        editSession.changes = 1;
+        editSession.changes = executor instanceof FaweChangeSetExecutor ? ((FaweChangeSetExecutor) executor).getChanges() : 1;
     }
 
     /**
@@ -919,13 +938,20 @@ public class EditSession implements Extent {
         final UndoContext context = new UndoContext();
         context.setExtent(editSession.primaryExtent);
         editSession.getQueue().setChangeTask(null);
-        Operations.completeSmart(ChangeSetExecutor.createRedo(this.changeSet, context), new Runnable() {
+        Operation executor;
+        if (this.changeSet instanceof FaweStreamChangeSet && editSession.primaryExtent instanceof FastWorldEditExtent) {
+            // Decode the records straight into the queue
+            executor = FaweChangeSetExecutor.createRedo((FaweStreamChangeSet) this.changeSet, editSession);
+        } else {
+            executor = ChangeSetExecutor.createRedo(this.changeSet, context);
+        }
+        Operations.completeSmart(executor, new Runnable() {
             @Override
             public void run() {
                 editSession.flushQueue();
             }
         }, true);
-        editSession.changes = 1;
+        editSession.changes = executor instanceof FaweChangeSetExecutor ? ((FaweChangeSetExecutor) executor).getChanges() : 1;
     }
 
     /**
@@ -20,7 +20,9 @@
 package com.sk89q.worldedit;
 
 import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.clipboard.CompressedClipboard;
 import com.boydti.fawe.object.clipboard.DiskOptimizedClipboard;
+import com.boydti.fawe.object.clipboard.MappedDiskClipboard;
 import com.sk89q.jchronic.Chronic;
 import com.sk89q.jchronic.Options;
 import com.sk89q.jchronic.utils.Span;
@@ -48,6 +50,7 @@ import com.sk89q.worldedit.session.ClipboardHolder;
 import com.sk89q.worldedit.session.request.Request;
 import com.sk89q.worldedit.world.World;
 import com.sk89q.worldedit.world.snapshot.Snapshot;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
@@ -178,6 +181,17 @@ public class LocalSession {
         this.timezone = timezone;
     }
 
+    /**
+     * Get the edits which can be undone or redone.
+     *
+     * @return a copy of the history
+     */
+    public List<EditSession> getHistory() {
+        synchronized (history) {
+            return new ArrayList<EditSession>(history);
+        }
+    }
+
     /**
      * Clear history.
      */
@@ -469,12 +483,27 @@ public class LocalSession {
      * @param clipboard the clipboard, or null if the clipboard is to be cleared
      */
     public void setClipboard(@Nullable ClipboardHolder clipboard) {
+        if (this.clipboard != null) {
+            // Unmap the clipboard being replaced
+            Clipboard old = this.clipboard.getClipboard();
+            if (old instanceof BlockArrayClipboard && ((BlockArrayClipboard) old).IMP instanceof MappedDiskClipboard) {
+                MappedDiskClipboard mapped = (MappedDiskClipboard) ((BlockArrayClipboard) old).IMP;
+                Clipboard clip = clipboard == null ? null : clipboard.getClipboard();
+                if (!(clip instanceof BlockArrayClipboard) || ((BlockArrayClipboard) clip).IMP != mapped) {
+                    mapped.release();
+                }
+            }
+        }
         if (this.clipboard != null && clipboard != null) {
             Clipboard clip = clipboard.getClipboard();
             if (clip instanceof BlockArrayClipboard) {
                 BlockArrayClipboard bac = (BlockArrayClipboard) clip;
                 if (bac.IMP instanceof DiskOptimizedClipboard) {
                     ((DiskOptimizedClipboard) bac.IMP).flush();
+                } else if (bac.IMP instanceof MappedDiskClipboard) {
+                    ((MappedDiskClipboard) bac.IMP).flush();
+                } else if (bac.IMP instanceof CompressedClipboard) {
+                    ((CompressedClipboard) bac.IMP).compressAll();
                 }
             }
         }
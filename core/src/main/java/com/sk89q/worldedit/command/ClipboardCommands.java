@@ -20,8 +20,13 @@
 package com.sk89q.worldedit.command;
 
 import com.boydti.fawe.config.BBC;
+import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.FaweLimit;
+import com.boydti.fawe.object.NullChangeSet;
 import com.boydti.fawe.object.RunnableVal2;
+import com.boydti.fawe.object.clipboard.ClipboardPaster;
 import com.boydti.fawe.object.clipboard.LazyClipboard;
+import com.boydti.fawe.object.clipboard.TiledClipboard;
 import com.sk89q.minecraft.util.commands.Command;
 import com.sk89q.minecraft.util.commands.CommandPermissions;
 import com.sk89q.minecraft.util.commands.Logging;
@@ -232,12 +237,17 @@ public class ClipboardCommands {
         Clipboard clipboard = holder.getClipboard();
         Region region = clipboard.getRegion();
         Vector to = atOrigin ? clipboard.getOrigin() : session.getPlacementPosition(player);
-        Operation operation = holder
-                .createPaste(editSession, editSession.getWorld().getWorldData())
-                .to(to)
-                .ignoreAirBlocks(ignoreAirBlocks)
-                .build();
-        Operations.completeLegacy(operation);
+        if (clipboard instanceof BlockArrayClipboard && ClipboardPaster.canPaste((BlockArrayClipboard) clipboard, editSession)) {
+            // Transform and fill the chunk columns in parallel
+            new ClipboardPaster((BlockArrayClipboard) clipboard, holder.getTransform(), editSession, to, !ignoreAirBlocks).paste();
+        } else {
+            Operation operation = holder
+                    .createPaste(editSession, editSession.getWorld().getWorldData())
+                    .to(to)
+                    .ignoreAirBlocks(ignoreAirBlocks)
+                    .build();
+            Operations.completeLegacy(operation);
+        }
 
         if (selectPasted) {
             Vector max = to.add(region.getMaximumPoint().subtract(region.getMinimumPoint()));
@@ -249,6 +259,23 @@ public class ClipboardCommands {
         BBC.COMMAND_PASTE.send(player, to);
     }
 
+    /**
+     * Check if a paste can skip the edit session's extents (and go straight to the queue)<br>
+     *     - No mask or region restriction
+     *     - History is not needed, or is recorded by the queue (history.combine-stages)
+     *     - The limit allows every block in the region to change
+     */
+    private boolean canPasteDirect(EditSession editSession, Region region) {
+        if (editSession.getMask() != null || editSession.getRegionExtent() != null) {
+            return false;
+        }
+        if (!(editSession.getChangeSet() instanceof NullChangeSet) && !Settings.COMBINE_HISTORY_STAGE) {
+            return false;
+        }
+        FaweLimit limit = editSession.getLimit();
+        return limit == null || limit.MAX_CHANGES >= region.getArea();
+    }
+
     @Command(
             aliases = { "/place" },
             usage = "",
@@ -285,19 +312,28 @@ public class ClipboardCommands {
             final int rely = to.getBlockY() + bot.getBlockY() - origin.getBlockY();
             final int relz = to.getBlockZ() + bot.getBlockZ() - origin.getBlockZ();
             BlockArrayClipboard bac = (BlockArrayClipboard) clipboard;
-            bac.IMP.forEach(new RunnableVal2<Vector, BaseBlock>() {
-                @Override
-                public void run(Vector pos, BaseBlock block) {
-                    pos.x += relx;
-                    pos.y += rely;
-                    pos.z += relz;
-                    try {
-                        editSession.setBlock(pos, block);
-                    } catch (MaxChangedBlocksException e) {
-                        throw new RuntimeException(e);
-                    }
+            if (bac.IMP instanceof TiledClipboard && canPasteDirect(editSession, region)) {
+                // Nothing needs to see the individual blocks, so copy the tiles straight into the chunks
+                int changes = ((TiledClipboard) bac.IMP).paste(editSession.getQueue(), relx, rely, relz, !ignoreAirBlocks);
+                FaweLimit limit = editSession.getLimit();
+                if (limit != null) {
+                    limit.MAX_CHANGES -= changes;
                 }
-            }, !ignoreAirBlocks);
+            } else {
+                bac.IMP.forEach(new RunnableVal2<Vector, BaseBlock>() {
+                    @Override
+                    public void run(Vector pos, BaseBlock block) {
+                        pos.x += relx;
+                        pos.y += rely;
+                        pos.z += relz;
+                        try {
+                            editSession.setBlock(pos, block);
+                        } catch (MaxChangedBlocksException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }, !ignoreAirBlocks);
+            }
         } else {
             // To must be relative to the clipboard origin ( player location - clipboard origin ) (as the locations supplied are relative to the world origin)
             final int relx = to.getBlockX() - origin.getBlockX();
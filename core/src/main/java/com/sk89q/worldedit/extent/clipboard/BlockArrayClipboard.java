@@ -20,9 +20,13 @@
 package com.sk89q.worldedit.extent.clipboard;
 
 import com.boydti.fawe.config.Settings;
+import com.boydti.fawe.object.clipboard.CompressedClipboard;
 import com.boydti.fawe.object.clipboard.DiskOptimizedClipboard;
 import com.boydti.fawe.object.clipboard.FaweClipboard;
+import com.boydti.fawe.object.clipboard.MappedDiskClipboard;
 import com.boydti.fawe.object.clipboard.MemoryOptimizedClipboard;
+import com.boydti.fawe.object.clipboard.TiledClipboard;
+import com.boydti.fawe.util.MemoryMonitor;
 import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.Vector2D;
@@ -69,7 +73,7 @@ public class BlockArrayClipboard implements Clipboard {
         checkNotNull(region);
         this.region = region.clone();
         this.size = getDimensions();
-        this.IMP = Settings.STORE_CLIPBOARD_ON_DISK ? new DiskOptimizedClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ()) : new MemoryOptimizedClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ());
+        this.IMP = (Settings.STORE_CLIPBOARD_ON_DISK || MemoryMonitor.IMP.isAtLeast(MemoryMonitor.Level.HIGH)) ? getDiskClipboard(size, UUID.randomUUID()) : getMemoryClipboard(size, region.getMinimumPoint());
         this.origin = region.getMinimumPoint();
         this.mx = origin.getBlockX();
         this.my = origin.getBlockY();
@@ -87,13 +91,37 @@ public class BlockArrayClipboard implements Clipboard {
         checkNotNull(region);
         this.region = region.clone();
         this.size = getDimensions();
-        this.IMP = Settings.STORE_CLIPBOARD_ON_DISK ? new DiskOptimizedClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ(), clipboardId) : new MemoryOptimizedClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ());
+        this.IMP = (Settings.STORE_CLIPBOARD_ON_DISK || MemoryMonitor.IMP.isAtLeast(MemoryMonitor.Level.HIGH)) ? getDiskClipboard(size, clipboardId) : getMemoryClipboard(size, region.getMinimumPoint());
         this.origin = region.getMinimumPoint();
         this.mx = origin.getBlockX();
         this.my = origin.getBlockY();
         this.mz = origin.getBlockZ();
     }
 
+    /**
+     * Get a disk backed clipboard (memory mapped if clipboard.memory-mapped is enabled)
+     */
+    private static FaweClipboard getDiskClipboard(Vector size, UUID clipboardId) {
+        if (Settings.CLIPBOARD_MEMORY_MAPPED) {
+            return new MappedDiskClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ(), clipboardId);
+        }
+        return new DiskOptimizedClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ(), clipboardId);
+    }
+
+    /**
+     * Get a memory clipboard (tiled if clipboard.tiled is enabled, lined up with the world sections at the min point)<br>
+     *     - The tiles are compressed if clipboard.compressed is enabled
+     */
+    private static FaweClipboard getMemoryClipboard(Vector size, Vector min) {
+        if (Settings.CLIPBOARD_TILED) {
+            if (Settings.CLIPBOARD_COMPRESSED) {
+                return new CompressedClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ(), min.getBlockX(), min.getBlockY(), min.getBlockZ());
+            }
+            return new TiledClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ(), min.getBlockX(), min.getBlockY(), min.getBlockZ());
+        }
+        return new MemoryOptimizedClipboard(size.getBlockX(), size.getBlockY(), size.getBlockZ());
+    }
+
     public BlockArrayClipboard(Region region, FaweClipboard clipboard) {
         checkNotNull(region);
         this.region = region.clone();
@@ -37,8 +37,10 @@ import com.sk89q.worldedit.util.eventbus.Subscribe;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -91,6 +93,19 @@ public class SessionManager {
         return sessions.containsKey(getKey(owner));
     }
 
+    /**
+     * Get the loaded sessions
+     *
+     * @return a copy of the sessions
+     */
+    public synchronized List<LocalSession> getSessions() {
+        List<LocalSession> result = new ArrayList<LocalSession>(sessions.size());
+        for (SessionHolder holder : sessions.values()) {
+            result.add(holder.session);
+        }
+        return result;
+    }
+
     /**
      * Find a session by its name specified by {@link SessionKey#getName()}.
      *
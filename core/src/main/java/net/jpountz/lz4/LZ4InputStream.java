@@ -75,6 +75,11 @@ public class LZ4InputStream extends InputStream {
         return n - numBytesRemainingToSkip;
     }
 
+    @Override
+    public int available() throws IOException {
+        return decompressedBufferLength - decompressedBufferPosition;
+    }
+
     public boolean hasBytesAvailableInDecompressedBuffer(int bytes) {
         return decompressedBufferPosition + bytes <= decompressedBufferLength;
     }
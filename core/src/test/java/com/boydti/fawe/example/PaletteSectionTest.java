@@ -0,0 +1,130 @@
+package com.boydti.fawe.example;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PaletteSectionTest {
+
+    /**
+     * Set random positions to the values 1 - types (and some back to 0), tracking the expected dense array
+     */
+    private static char[] fill(PaletteSection section, int types, long seed) {
+        char[] expected = new char[4096];
+        Random random = new Random(seed);
+        for (int i = 0; i < 8192; i++) {
+            int index = random.nextInt(4096);
+            char value = (char) (random.nextInt(types + 1) << 4);
+            assertTrue(section.set(index, value));
+            expected[index] = value;
+        }
+        // Every type is used at least once (the palette keeps types which were overwritten)
+        for (int type = 1; type <= types; type++) {
+            assertTrue(section.set(type, (char) (type << 4)));
+            expected[type] = (char) (type << 4);
+        }
+        return expected;
+    }
+
+    private static void assertSection(char[] expected, PaletteSection section) {
+        for (int i = 0; i < 4096; i++) {
+            assertEquals(expected[i], section.get(i));
+        }
+        assertArrayEquals(expected, section.toArray());
+    }
+
+    @Test
+    public void empty() {
+        PaletteSection section = new PaletteSection();
+        assertEquals(1, section.getPaletteSize());
+        assertArrayEquals(new char[4096], section.toArray());
+    }
+
+    @Test
+    public void oneBit() {
+        PaletteSection section = new PaletteSection();
+        char[] expected = fill(section, 1, 1);
+        assertEquals(1, section.getBits());
+        assertEquals(2, section.getPaletteSize());
+        assertSection(expected, section);
+    }
+
+    @Test
+    public void twoBits() {
+        PaletteSection section = new PaletteSection();
+        char[] expected = fill(section, 3, 2);
+        assertEquals(2, section.getBits());
+        assertEquals(4, section.getPaletteSize());
+        assertSection(expected, section);
+    }
+
+    @Test
+    public void fourBits() {
+        PaletteSection section = new PaletteSection();
+        char[] expected = fill(section, 15, 4);
+        assertEquals(4, section.getBits());
+        assertEquals(PaletteSection.MAX_PALETTE, section.getPaletteSize());
+        assertSection(expected, section);
+    }
+
+    @Test
+    public void resizeKeepsValues() {
+        PaletteSection section = new PaletteSection();
+        char[] expected = fill(section, 1, 5);
+        // 1 -> 2 -> 4 bits
+        for (int type = 2; type <= 15; type++) {
+            assertTrue(section.set(4095 - type, (char) (type << 4)));
+            expected[4095 - type] = (char) (type << 4);
+        }
+        assertEquals(4, section.getBits());
+        assertSection(expected, section);
+    }
+
+    @Test
+    public void uniform() {
+        PaletteSection section = new PaletteSection((char) (7 << 4));
+        char[] expected = new char[4096];
+        Arrays.fill(expected, (char) (7 << 4));
+        assertSection(expected, section);
+        assertTrue(section.set(100, (char) 0));
+        expected[100] = 0;
+        assertSection(expected, section);
+    }
+
+    @Test
+    public void upgradeToDense() {
+        PaletteSection section = new PaletteSection();
+        char[] expected = fill(section, 15, 6);
+        // A 17th value (including 0) doesn't fit, and leaves the section unchanged
+        assertFalse(section.set(10, (char) (16 << 4)));
+        assertSection(expected, section);
+        // As PaletteFaweChunk does when the palette is full
+        char[] dense = section.toArray();
+        dense[10] = (char) (16 << 4);
+        expected[10] = (char) (16 << 4);
+        assertArrayEquals(expected, dense);
+    }
+
+    @Test
+    public void bytesRoundTrip() {
+        int[] types = { 0, 1, 3, 15 };
+        for (int i = 0; i < types.length; i++) {
+            PaletteSection section = new PaletteSection();
+            char[] expected = types[i] == 0 ? new char[4096] : fill(section, types[i], 7 + i);
+            PaletteSection read = PaletteSection.fromBytes(section.toBytes());
+            assertEquals(section.getBits(), read.getBits());
+            assertEquals(section.getPaletteSize(), read.getPaletteSize());
+            assertSection(expected, read);
+            // The decoded section can still be written to
+            if (types[i] < 15) {
+                assertTrue(read.set(0, (char) (15 << 4)));
+                assertEquals((char) (15 << 4), read.get(0));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.boydti.fawe.object;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IntObjectMapTest {
+
+    /**
+     * Keys which all hash to the same slot of a map with 8 slots, so removing one has to move the others back
+     */
+    private static int[] collidingKeys(int count) {
+        int[] keys = new int[count];
+        int found = 0;
+        int home = -1;
+        for (int key = 0; found < count; key++) {
+            int h = key * 0x9E3779B9;
+            int slot = (h ^ (h >>> 16)) & 7;
+            if (home == -1) {
+                home = slot;
+            }
+            if (slot == home) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void removeFromACluster() {
+        int[] keys = collidingKeys(4);
+        for (int removed = 0; removed < keys.length; removed++) {
+            IntObjectMap<String> map = new IntObjectMap<>(8);
+            for (int key : keys) {
+                map.put(key, "v" + key);
+            }
+            assertEquals("v" + keys[removed], map.remove(keys[removed]));
+            assertEquals(keys.length - 1, map.size());
+            assertFalse(map.containsKey(keys[removed]));
+            for (int key : keys) {
+                if (key != keys[removed]) {
+                    assertEquals("v" + key, map.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void removeMissingKey() {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        map.put(1, "a");
+        assertNull(map.remove(2));
+        assertNull(map.put(3, null));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void putNullRemoves() {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        map.put(5, "a");
+        assertEquals("a", map.put(5, null));
+        assertTrue(map.isEmpty());
+        assertNull(map.get(5));
+    }
+
+    @Test
+    public void keysStaySortedAfterRemove() {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        for (int i = 10; i > 0; i--) {
+            map.put(i * 7, i);
+        }
+        assertArrayEquals(new int[] { 7, 14, 21, 28, 35, 42, 49, 56, 63, 70 }, map.getKeys());
+        map.remove(21);
+        map.remove(70);
+        assertArrayEquals(new int[] { 7, 14, 28, 35, 42, 49, 56, 63 }, map.getKeys());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(0);
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(512) - 256;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (int key = -256; key < 256; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.boydti.fawe.object.changeset;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockRecordOutputStreamTest {
+
+    /**
+     * { x, y, z, combinedFrom, combinedTo } (runs, repeated ids, negative deltas and large ids)
+     */
+    private static final int[][] CHANGES = {
+            { 100, 64, -200, 1 << 4, 0 },
+            { 101, 64, -200, 1 << 4, 0 },
+            { 102, 64, -200, 1 << 4, 0 },
+            { 103, 64, -200, 1 << 4, 0 },
+            { 104, 64, -200, 2 << 4, 0 },
+            { 105, 64, -200, 2 << 4, 5 << 4 },
+            { 90, 0, -250, 2 << 4, 5 << 4 },
+            { 91, 255, -250, 4095 << 4 | 15, 1 },
+            { -30000000, 12, 30000000, 0, 7 },
+            { -29999999, 12, 30000000, 0, 7 },
+    };
+
+    private static void write(BlockRecordOutputStream out, int[][] changes) throws IOException {
+        for (int[] change : changes) {
+            out.write(change[0], change[1], change[2], change[3], change[4]);
+        }
+    }
+
+    private static void read(BlockRecordReader reader, int[][] changes) throws IOException {
+        for (int[] change : changes) {
+            assertTrue(reader.next());
+            assertArrayEquals(change, new int[] { reader.x, reader.y, reader.z, reader.combinedFrom, reader.combinedTo });
+        }
+    }
+
+    @Test
+    public void roundTripWithHeader() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlockRecordOutputStream out = new BlockRecordOutputStream(baos, 96, -192, true);
+        write(out, CHANGES);
+        out.close();
+
+        ByteArrayInputStream is = new ByteArrayInputStream(baos.toByteArray());
+        int[] header = BlockRecordReader.readHeader(is);
+        assertArrayEquals(new int[] { BlockRecordOutputStream.VERSION_DELTA, 96, -192 }, header);
+        BlockRecordReader reader = new BlockRecordReader(is, header[0], header[1], header[2]);
+        read(reader, CHANGES);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void segmentsResetTheState() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlockRecordOutputStream first = new BlockRecordOutputStream(baos, 0, 0, false);
+        write(first, CHANGES);
+        first.finish();
+        BlockRecordOutputStream second = new BlockRecordOutputStream(baos, 0, 0, false);
+        write(second, CHANGES);
+        second.finish();
+
+        BlockRecordReader reader = new BlockRecordReader(new ByteArrayInputStream(baos.toByteArray()), BlockRecordOutputStream.VERSION_DELTA, 0, 0);
+        read(reader, CHANGES);
+        read(reader, CHANGES);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void rawBytesFollowTheHeldRun() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlockRecordOutputStream out = new BlockRecordOutputStream(baos, 0, 0, true);
+        write(out, CHANGES);
+        // The run of the last two changes is held back until the raw bytes are written
+        out.write(0x7F);
+        out.write(new byte[] { 1, 2, 3 }, 1, 2);
+        out.close();
+
+        ByteArrayInputStream is = new ByteArrayInputStream(baos.toByteArray());
+        int[] header = BlockRecordReader.readHeader(is);
+        read(new BlockRecordReader(is, header[0], header[1], header[2]), CHANGES);
+        assertEquals(3, is.available());
+        assertEquals(0x7F, is.read());
+        assertEquals(2, is.read());
+        assertEquals(3, is.read());
+    }
+}
@@ -0,0 +1,161 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.object.RegionWrapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkHistoryIndexTest {
+
+    private static final int ORIGIN_X = 32;
+    private static final int ORIGIN_Z = -16;
+
+    /**
+     * { x, y, z, combinedFrom, combinedTo } in chunks (2, -1), (3, -1) and (-1, 0), interleaved
+     */
+    private static final int[][] CHANGES = {
+            { 32, 64, -16, 1 << 4, 0 },
+            { 33, 64, -16, 1 << 4, 0 },
+            { 48, 10, -10, 2 << 4, 3 << 4 },
+            { 34, 64, -16, 1 << 4, 0 },
+            { -5, 255, 3, 0, 4095 << 4 | 15 },
+            { 47, 0, -1, 7 << 4, 7 << 4 | 1 },
+            { 49, 10, -10, 2 << 4, 3 << 4 },
+            { -16, 0, 15, 1, 2 },
+    };
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("history", ".bd");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void writeChanges() throws IOException {
+        ChunkHistoryWriter writer = new ChunkHistoryWriter(file, ORIGIN_X, ORIGIN_Z);
+        for (int[] change : CHANGES) {
+            writer.add(change[0], change[1], change[2], change[3], change[4]);
+        }
+        writer.close();
+    }
+
+    /**
+     * The changes in a chunk, in the order they were made
+     */
+    private static List<int[]> inChunk(int cx, int cz) {
+        List<int[]> result = new ArrayList<>();
+        for (int[] change : CHANGES) {
+            if (change[0] >> 4 == cx && change[2] >> 4 == cz) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The changes grouped by segment (chunks in the order they were first changed)
+     */
+    private static List<int[]> bySegment() {
+        List<int[]> result = new ArrayList<>();
+        result.addAll(inChunk(2, -1));
+        result.addAll(inChunk(3, -1));
+        result.addAll(inChunk(-1, 0));
+        return result;
+    }
+
+    private static void read(ChunkHistoryIndex index, RegionWrapper region, List<int[]> expected) throws IOException {
+        try (InputStream is = index.getInputStream(region)) {
+            BlockRecordReader reader = new BlockRecordReader(is, index.getVersion(), index.getOriginX(), index.getOriginZ());
+            for (int[] change : expected) {
+                assertTrue(reader.next());
+                assertArrayEquals(change, new int[] { reader.x, reader.y, reader.z, reader.combinedFrom, reader.combinedTo });
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        writeChanges();
+        assertTrue(ChunkHistoryIndex.isChunked(file));
+        ChunkHistoryIndex index = ChunkHistoryIndex.read(file);
+        assertEquals(ChunkHistoryIndex.VERSION, index.getVersion());
+        assertEquals(ORIGIN_X, index.getOriginX());
+        assertEquals(ORIGIN_Z, index.getOriginZ());
+        assertEquals(3, index.size());
+        assertEquals(CHANGES.length, index.getChanges());
+        assertEquals(2, index.getChunkX(0));
+        assertEquals(-1, index.getChunkZ(0));
+        assertEquals(4, index.getChanges(0));
+        assertEquals(ChunkHistoryIndex.HEADER_SIZE + ChunkHistoryIndex.SEGMENT_HEADER_SIZE, index.getOffset(0));
+        assertEquals(-16, index.minX);
+        assertEquals(49, index.maxX);
+        assertEquals(0, index.minY);
+        assertEquals(255, index.maxY);
+        assertEquals(-16, index.minZ);
+        assertEquals(15, index.maxZ);
+        read(index, null, bySegment());
+    }
+
+    @Test
+    public void readRegion() throws IOException {
+        writeChanges();
+        ChunkHistoryIndex index = ChunkHistoryIndex.read(file);
+        RegionWrapper region = new RegionWrapper(48, 63, -16, -1);
+        assertTrue(index.intersects(region));
+        assertFalse(index.intersects(new RegionWrapper(1000, 1010, 1000, 1010)));
+        read(index, region, inChunk(3, -1));
+    }
+
+    @Test
+    public void readReverse() throws IOException {
+        writeChanges();
+        ChunkHistoryIndex index = ChunkHistoryIndex.read(file);
+        List<int[]> expected = bySegment();
+        ReverseBlockRecordReader reader = index.getReverseReader(null);
+        for (int i = expected.size() - 1; i >= 0; i--) {
+            assertTrue(reader.next());
+            assertArrayEquals(expected.get(i), new int[] { reader.x, reader.y, reader.z, reader.combinedFrom, reader.combinedTo });
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void rebuildWithoutTrailer() throws IOException {
+        writeChanges();
+        long indexOffset;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - ChunkHistoryIndex.TRAILER_SIZE);
+            indexOffset = raf.readLong();
+            // As if the server stopped before the index was written
+            raf.setLength(indexOffset);
+        }
+        ChunkHistoryIndex index = ChunkHistoryIndex.read(file);
+        assertEquals(3, index.size());
+        assertEquals(CHANGES.length, index.getChanges());
+        // The bounds are rebuilt from the chunks
+        assertEquals(-16, index.minX);
+        assertEquals(63, index.maxX);
+        assertEquals(-16, index.minZ);
+        assertEquals(15, index.maxZ);
+        assertEquals(0, index.minY);
+        assertEquals(255, index.maxY);
+        read(index, null, bySegment());
+    }
+}
@@ -0,0 +1,210 @@
+package com.boydti.fawe.object.changeset;
+
+import com.boydti.fawe.object.RegionWrapper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryShardsTest {
+
+    private static final UUID USER = new UUID(0x0123456789ABCDEFL, 0xFEDCBA9876543210L);
+    private static final UUID OTHER = new UUID(1, 2);
+
+    /**
+     * { x, y, z, combinedFrom, combinedTo } in regions (0, 0), (1, -1) and (-2, 0)
+     */
+    private static final int[][] CHANGES = {
+            { 10, 64, 20, 1 << 4, 0 },
+            { 600, 0, -5, 2 << 4, 3 << 4 },
+            { 11, 65, 20, 1 << 4, 0 },
+            { -513, 255, 511, 0, 4095 << 4 | 15 },
+            { 511, 10, 100, 7 << 4, 1 },
+    };
+
+    private File folder;
+    private HistoryShards shards;
+
+    /**
+     * The edits which are still in the history index (user:id)
+     */
+    private final Set<String> indexed = new HashSet<>();
+
+    @Before
+    public void setUp() throws IOException {
+        folder = File.createTempFile("shards", "");
+        folder.delete();
+        folder.mkdirs();
+        shards = new HistoryShards(null, folder) {
+            @Override
+            protected boolean isIndexed(UUID user, int id) {
+                return indexed.contains(user + ":" + id);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    private void write(UUID user, int id, int[][] changes) throws IOException {
+        HistoryShardWriter writer = new HistoryShardWriter(shards, user, id);
+        for (int[] change : changes) {
+            writer.add(change[0], change[1], change[2], change[3], change[4]);
+        }
+        writer.close();
+        indexed.add(user + ":" + id);
+    }
+
+    /**
+     * The changes read from the shards, as "user:id x,y,z from>to" (sorted, as the shards are read region by region)
+     */
+    private List<String> read(RegionWrapper region, UUID user, long since) throws IOException {
+        List<String> result = new ArrayList<>();
+        HistoryShardReader reader = shards.getReader(region, user, since);
+        try {
+            while (reader.next()) {
+                result.add(reader.user + ":" + reader.id + " " + reader.x + "," + reader.y + "," + reader.z + " " + reader.combinedFrom + ">" + reader.combinedTo);
+            }
+        } finally {
+            reader.close();
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<String> expected(UUID user, int id, int[]... changes) {
+        List<String> result = new ArrayList<>();
+        for (int[] change : changes) {
+            result.add(user + ":" + id + " " + change[0] + "," + change[1] + "," + change[2] + " " + change[3] + ">" + change[4]);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static RegionWrapper everywhere() {
+        return new RegionWrapper(-1024, 1023, -1024, 1023);
+    }
+
+    private static void assertHeader(ByteBuffer buffer, int block, int id, long start, long time, int changes, int compressed, int raw) {
+        assertEquals(HistoryShards.MAGIC, buffer.getInt(block));
+        assertEquals(USER, new UUID(buffer.getLong(block + HistoryShards.OFFSET_USER), buffer.getLong(block + HistoryShards.OFFSET_USER + 8)));
+        assertEquals(id, buffer.getInt(block + HistoryShards.OFFSET_ID));
+        assertEquals(start, buffer.getLong(block + HistoryShards.OFFSET_START));
+        assertEquals(time, buffer.getLong(block + HistoryShards.OFFSET_TIME));
+        assertEquals(changes, buffer.getInt(block + HistoryShards.OFFSET_CHANGES));
+        assertEquals(compressed, buffer.getInt(block + HistoryShards.OFFSET_COMPRESSED));
+        assertEquals(raw, buffer.getInt(block + HistoryShards.OFFSET_RAW));
+    }
+
+    @Test
+    public void headerSize() {
+        ByteBuffer buffer = ByteBuffer.allocate(HistoryShards.BLOCK_HEADER_SIZE);
+        HistoryShards.writeHeader(buffer, USER, 1, 2, 3, 4, 5, 6);
+        assertEquals(HistoryShards.BLOCK_HEADER_SIZE, buffer.position());
+        assertEquals(HistoryShards.BLOCK_HEADER_SIZE, HistoryShards.OFFSET_RAW + 4);
+    }
+
+    @Test
+    public void headerOffsets() {
+        ByteBuffer buffer = ByteBuffer.allocate(HistoryShards.BLOCK_HEADER_SIZE);
+        HistoryShards.writeHeader(buffer, USER, -7, 1234567890123L, 1234567899999L, 65536, 321, Integer.MAX_VALUE);
+        assertHeader(buffer, 0, -7, 1234567890123L, 1234567899999L, 65536, 321, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void consecutiveBlocks() {
+        int first = 10;
+        ByteBuffer buffer = ByteBuffer.allocate((HistoryShards.BLOCK_HEADER_SIZE + first) * 2);
+        HistoryShards.writeHeader(buffer, USER, 1, 100, 200, 3, first, 30);
+        buffer.position(buffer.position() + first);
+        int second = buffer.position();
+        HistoryShards.writeHeader(buffer, USER, 2, 101, 201, 4, 0, 40);
+        assertEquals(HistoryShards.BLOCK_HEADER_SIZE + first, second);
+        assertHeader(buffer, 0, 1, 100, 200, 3, first, 30);
+        assertHeader(buffer, second, 2, 101, 201, 4, 0, 40);
+    }
+
+    @Test
+    public void writesTheShardOfEachRegion() throws IOException {
+        write(USER, 1, CHANGES);
+        assertTrue(new File(folder, "r.0.0" + HistoryShards.EXTENSION).exists());
+        assertTrue(new File(folder, "r.1.-1" + HistoryShards.EXTENSION).exists());
+        assertTrue(new File(folder, "r.-2.0" + HistoryShards.EXTENSION).exists());
+        assertEquals(3, folder.list().length - 1);
+        assertTrue(shards.isSharded(USER, 1));
+        assertEquals(expected(USER, 1, CHANGES), read(everywhere(), null, 0));
+    }
+
+    @Test
+    public void readRegion() throws IOException {
+        write(USER, 1, CHANGES);
+        // Part of region (0, 0): the change at 511, 100 is in the shard but outside the area
+        RegionWrapper region = new RegionWrapper(0, 31, 0, 31);
+        assertEquals(expected(USER, 1, CHANGES[0], CHANGES[2]), read(region, null, 0));
+        assertEquals(expected(USER, 1, CHANGES[1]), read(new RegionWrapper(512, 1023, -512, -1), null, 0));
+        assertTrue(read(new RegionWrapper(2048, 2100, 2048, 2100), null, 0).isEmpty());
+    }
+
+    @Test
+    public void readSince() throws IOException, InterruptedException {
+        int[][] later = { { 12, 64, 20, 0, 5 << 4 }, { 601, 1, -5, 0, 6 << 4 } };
+        write(USER, 1, CHANGES);
+        Thread.sleep(20);
+        long since = System.currentTimeMillis();
+        write(OTHER, 2, later);
+        assertEquals(expected(OTHER, 2, later), read(everywhere(), null, since));
+        List<String> all = expected(USER, 1, CHANGES);
+        all.addAll(expected(OTHER, 2, later));
+        Collections.sort(all);
+        assertEquals(all, read(everywhere(), null, 0));
+        // And by user
+        assertEquals(expected(USER, 1, CHANGES), read(everywhere(), USER, 0));
+    }
+
+    @Test
+    public void pruneRemovedEdits() throws IOException {
+        int[][] second = { { 12, 64, 20, 0, 5 << 4 } };
+        write(USER, 1, CHANGES);
+        write(USER, 2, second);
+        File shard = new File(folder, "r.0.0" + HistoryShards.EXTENSION);
+        long length = shard.length();
+        assertEquals(0, shards.prune());
+        assertEquals(length, shard.length());
+
+        // Edit 1 was removed (e.g. undone or rolled back)
+        indexed.remove(USER + ":" + 1);
+        assertEquals(expected(USER, 2, second), read(everywhere(), null, 0));
+        // Its blocks in the 3 regions
+        assertEquals(3, shards.prune());
+        assertTrue(shard.length() < length);
+        assertFalse(new File(folder, "r.1.-1" + HistoryShards.EXTENSION).exists());
+        assertFalse(new File(folder, "r.-2.0" + HistoryShards.EXTENSION).exists());
+        assertFalse(shards.isSharded(USER, 1));
+        assertTrue(shards.isSharded(USER, 2));
+        assertEquals(expected(USER, 2, second), read(everywhere(), null, 0));
+
+        // The removed edit stays removed, even if its id is used again
+        indexed.add(USER + ":" + 1);
+        assertEquals(expected(USER, 2, second), read(everywhere(), null, 0));
+    }
+}
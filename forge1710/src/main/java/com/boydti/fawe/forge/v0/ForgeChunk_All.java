@@ -4,6 +4,7 @@ import com.boydti.fawe.FaweCache;
 import com.boydti.fawe.example.CharFaweChunk;
 import com.boydti.fawe.object.FaweQueue;
 import com.boydti.fawe.util.MainUtil;
+import java.util.Arrays;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.NibbleArray;
@@ -33,6 +34,41 @@ public class ForgeChunk_All extends CharFaweChunk<Chunk> {
         return datas[i];
     }
 
+    @Override
+    public void setUniform(int i, int id, byte data) {
+        // Sections also need the byte / nibble arrays, so fill those (and the char array) directly
+        this.air[i] = 0;
+        this.relight[i] = 0;
+        char combined = getCombinedId(i, id, data);
+        if (this.air[i] != 0) {
+            this.air[i] = 4096;
+        }
+        if (this.relight[i] != 0) {
+            this.relight[i] = 4096;
+        }
+        this.count[i] = 4096;
+        char[] vs2 = this.ids[i];
+        if (vs2 == null) {
+            vs2 = this.ids[i] = new char[4096];
+        }
+        Arrays.fill(vs2, combined);
+        byte[] vs = this.byteIds[i];
+        if (vs == null) {
+            vs = this.byteIds[i] = new byte[4096];
+        }
+        Arrays.fill(vs, id == 0 ? (byte) -1 : (byte) id);
+        int nibble = combined == 1 ? 0 : combined & 15;
+        if (nibble != 0) {
+            NibbleArray dataArray = datas[i];
+            if (dataArray == null) {
+                datas[i] = dataArray = new NibbleArray(4096, 4);
+            }
+            Arrays.fill(dataArray.data, (byte) (nibble | (nibble << 4)));
+        } else if (datas[i] != null) {
+            Arrays.fill(datas[i].data, (byte) 0);
+        }
+    }
+
     @Override
     public void setBlock(int x, int y, int z, int id, byte data) {
         int i = FaweCache.CACHE_I[y][x][z];
@@ -19,6 +19,7 @@ import com.sk89q.jnbt.Tag;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -431,6 +432,11 @@ public class ForgeQueue_All extends NMSMappedFaweQueue<World, Chunk, ExtendedBlo
                 int ly = pos.getY();
                 int lz = pos.getZ() & 15;
                 int j = FaweCache.CACHE_I[ly][lx][lz];
+                if (fs.getUniform(j) != 0) {
+                    tile.getValue().invalidate();
+                    iterator.remove();
+                    continue;
+                }
                 char[] array = fs.getIdArray(j);
                 if (array == null) {
                     continue;
@@ -458,12 +464,22 @@ public class ForgeQueue_All extends NMSMappedFaweQueue<World, Chunk, ExtendedBlo
                 if (count == 0) {
                     continue;
                 }
+                ExtendedBlockStorage section = sections[j];
+                char uniform = fs.getUniform(j);
+                if (uniform != 0) {
+                    // Filled with a single block
+                    char value = uniform == 1 ? 0 : uniform;
+                    if (section == null) {
+                        sections[j] = section = new ExtendedBlockStorage(j << 4, flag);
+                    }
+                    Arrays.fill(section.getData(), value);
+                    setCount(0, value == 0 ? 0 : 4096, section);
+                    continue;
+                }
                 char[] newArray = fs.getIdArray(j);
                 if (newArray == null) {
                     continue;
                 }
-                ExtendedBlockStorage section = sections[j];
-
                 if ((section == null)) {
                     section = new ExtendedBlockStorage(j << 4, flag);
                     section.setData(newArray);
@@ -0,0 +1,22 @@
+package com.boydti.fawe.sponge.v1_8;
+
+import com.boydti.fawe.example.PaletteFaweChunk;
+import com.boydti.fawe.object.FaweQueue;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.world.World;
+
+/**
+ * The chunk used by SpongeQueue_1_8 if queue.palette-sections is enabled
+ */
+public class SpongePaletteChunk_1_8 extends PaletteFaweChunk<net.minecraft.world.chunk.Chunk> {
+
+    public SpongePaletteChunk_1_8(FaweQueue parent, int x, int z) {
+        super(parent, x, z);
+    }
+
+    @Override
+    public net.minecraft.world.chunk.Chunk getNewChunk() {
+        World world = Sponge.getServer().getWorld(getParent().getWorldName()).get();
+        return (net.minecraft.world.chunk.Chunk) world.loadChunk(getX(), 0, getZ(), true).get();
+    }
+}
@@ -2,8 +2,11 @@ package com.boydti.fawe.sponge.v1_8;
 
 import com.boydti.fawe.Fawe;
 import com.boydti.fawe.FaweCache;
+import com.boydti.fawe.config.Settings;
 import com.boydti.fawe.example.CharFaweChunk;
 import com.boydti.fawe.example.NMSMappedFaweQueue;
+import com.boydti.fawe.example.PaletteFaweChunk;
+import com.boydti.fawe.example.PaletteSection;
 import com.boydti.fawe.object.BytePair;
 import com.boydti.fawe.object.FaweChunk;
 import com.boydti.fawe.object.PseudoRandom;
@@ -19,6 +22,7 @@ import com.sk89q.jnbt.Tag;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -280,12 +284,8 @@ public class SpongeQueue_1_8 extends NMSMappedFaweQueue<World, net.minecraft.wor
                     int z = ((int) Math.round(ent.posZ) & 15);
                     int y = (int) Math.round(ent.posY);
                     int i = FaweCache.CACHE_I[y][x][z];
-                    char[] array = fs.getIdArray(i);
-                    if (array == null) {
-                        continue;
-                    }
                     int j = FaweCache.CACHE_J[y][x][z];
-                    if (array[j] != 0) {
+                    if (fs.getValue(i, j) != 0) {
                         String id = EntityList.getEntityString(ent);
                         if (id != null) {
                             NBTTagCompound tag = ent.getNBTTagCompound();  // readEntityIntoTag
@@ -303,7 +303,7 @@ public class SpongeQueue_1_8 extends NMSMappedFaweQueue<World, net.minecraft.wor
 
     @Override
     public boolean setComponents(FaweChunk fc, RunnableVal<FaweChunk> changeTask) {
-        SpongeChunk_1_8 fs = (SpongeChunk_1_8) fc;
+        CharFaweChunk<net.minecraft.world.chunk.Chunk> fs = (CharFaweChunk<net.minecraft.world.chunk.Chunk>) fc;
         net.minecraft.world.chunk.Chunk nmsChunk = fs.getChunk();
         net.minecraft.world.World nmsWorld = nmsChunk.getWorld();
         try {
@@ -322,7 +322,6 @@ public class SpongeQueue_1_8 extends NMSMappedFaweQueue<World, net.minecraft.wor
                 } else if (count >= 4096) {
                     entities[i] = new ClassInheritanceMultiMap<>(Entity.class);
                 } else {
-                    char[] array = fs.getIdArray(i);
                     Collection<Entity> ents = new ArrayList<>(entities[i]);
                     for (Entity entity : ents) {
                         if (entity instanceof EntityPlayer) {
@@ -331,10 +330,7 @@ public class SpongeQueue_1_8 extends NMSMappedFaweQueue<World, net.minecraft.wor
                         int x = ((int) Math.round(entity.posX) & 15);
                         int z = ((int) Math.round(entity.posZ) & 15);
                         int y = (int) Math.round(entity.posY);
-                        if (array == null) {
-                            continue;
-                        }
-                        if (y < 0 || y > 255 || array[FaweCache.CACHE_J[y][x][z]] != 0) {
+                        if (y < 0 || y > 255 || fs.getValue(i, FaweCache.CACHE_J[y][x][z]) != 0) {
                             nmsWorld.removeEntity(entity);
                         }
                     }
@@ -380,12 +376,8 @@ public class SpongeQueue_1_8 extends NMSMappedFaweQueue<World, net.minecraft.wor
                 int ly = pos.getY();
                 int lz = pos.getZ() & 15;
                 int j = FaweCache.CACHE_I[ly][lx][lz];
-                char[] array = fs.getIdArray(j);
-                if (array == null) {
-                    continue;
-                }
                 int k = FaweCache.CACHE_J[ly][lx][lz];
-                if (array[k] != 0) {
+                if (fs.getValue(j, k) != 0) {
                     tile.getValue().invalidate();
                     iterator.remove();
                 }
@@ -407,12 +399,53 @@ public class SpongeQueue_1_8 extends NMSMappedFaweQueue<World, net.minecraft.wor
                 if (count == 0) {
                     continue;
                 }
+                ExtendedBlockStorage section = sections[j];
+                char uniform = fs.getUniform(j);
+                if (uniform != 0) {
+                    // Filled with a single block
+                    char value = uniform == 1 ? 0 : uniform;
+                    if (section == null) {
+                        sections[j] = section = new ExtendedBlockStorage(j << 4, flag);
+                    }
+                    Arrays.fill(section.getData(), value);
+                    setCount(0, value == 0 ? 0 : 4096, section);
+                    continue;
+                }
+                PaletteSection palette = fs instanceof PaletteFaweChunk ? ((PaletteFaweChunk) fs).getPalette(j) : null;
+                if (palette != null && section != null && count < 4096) {
+                    // Merge straight from the palette (without creating the section's id array)
+                    char[] currentArray = section.getData();
+                    boolean fill = true;
+                    int solid = 0;
+                    for (int k = 0; k < 4096; k++) {
+                        char n = palette.get(k);
+                        switch (n) {
+                            case 0:
+                                fill = false;
+                                continue;
+                            case 1:
+                                fill = false;
+                                if (currentArray[k] > 1) {
+                                    solid++;
+                                }
+                                currentArray[k] = 0;
+                                continue;
+                            default:
+                                solid++;
+                                currentArray[k] = n;
+                                continue;
+                        }
+                    }
+                    setCount(0, solid, section);
+                    if (fill) {
+                        fs.setCount(j, Short.MAX_VALUE);
+                    }
+                    continue;
+                }
                 char[] newArray = fs.getIdArray(j);
                 if (newArray == null) {
                     continue;
                 }
-                ExtendedBlockStorage section = sections[j];
-
                 if ((section == null)) {
                     section = new ExtendedBlockStorage(j << 4, flag);
                     section.setData(newArray);
@@ -518,6 +551,9 @@ public class SpongeQueue_1_8 extends NMSMappedFaweQueue<World, net.minecraft.wor
 
     @Override
     public FaweChunk<net.minecraft.world.chunk.Chunk> getFaweChunk(int x, int z) {
+        if (Settings.PALETTE_SECTIONS) {
+            return new SpongePaletteChunk_1_8(this, x, z);
+        }
         return new SpongeChunk_1_8(this, x, z);
     }
 
@@ -528,7 +564,7 @@ public class SpongeQueue_1_8 extends NMSMappedFaweQueue<World, net.minecraft.wor
             return true;
         }
         try {
-            SpongeChunk_1_8 bc = (SpongeChunk_1_8) fc;
+            CharFaweChunk<net.minecraft.world.chunk.Chunk> bc = (CharFaweChunk<net.minecraft.world.chunk.Chunk>) fc;
             net.minecraft.world.chunk.Chunk nmsChunk = bc.getChunk();
             if (!nmsChunk.isLoaded()) {
                 return false;